@@ -0,0 +1,93 @@
+/*
+ * Copyright 2012-2014 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+
+package concrete.agiga.util;
+
+import java.nio.ByteBuffer;
+
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * Read-only {@link TTransport} over a {@link ByteBuffer}. Reads advance the
+ * buffer's position, so {@link #position()} can be used to find where a
+ * serialized struct ended. Heap buffers expose their backing array so that
+ * protocols can decode strings in place; direct and mapped buffers are copied
+ * only as far as the protocol asks for.
+ */
+public class ByteBufferInputTransport extends TTransport {
+
+  private final ByteBuffer buf;
+
+  /**
+   * @param buf the buffer to read from, starting at its current position and
+   *          ending at its limit. The buffer's position is advanced as bytes are
+   *          consumed; pass a {@link ByteBuffer#duplicate()} to leave a shared
+   *          buffer untouched.
+   */
+  public ByteBufferInputTransport(ByteBuffer buf) {
+    this.buf = buf;
+  }
+
+  public int position() {
+    return this.buf.position();
+  }
+
+  public void position(int newPosition) {
+    this.buf.position(newPosition);
+  }
+
+  public int remaining() {
+    return this.buf.remaining();
+  }
+
+  @Override
+  public boolean isOpen() {
+    return true;
+  }
+
+  @Override
+  public void open() {
+  }
+
+  @Override
+  public void close() {
+  }
+
+  @Override
+  public int read(byte[] out, int off, int len) throws TTransportException {
+    int n = Math.min(len, this.buf.remaining());
+    if (n <= 0)
+      throw new TTransportException(TTransportException.END_OF_FILE, "No more bytes in buffer.");
+    this.buf.get(out, off, n);
+    return n;
+  }
+
+  @Override
+  public void write(byte[] in, int off, int len) throws TTransportException {
+    throw new TTransportException("Writing to a " + ByteBufferInputTransport.class.getSimpleName()
+        + " is not supported.");
+  }
+
+  @Override
+  public byte[] getBuffer() {
+    return this.buf.hasArray() ? this.buf.array() : null;
+  }
+
+  @Override
+  public int getBufferPosition() {
+    return this.buf.hasArray() ? this.buf.arrayOffset() + this.buf.position() : 0;
+  }
+
+  @Override
+  public int getBytesRemainingInBuffer() {
+    return this.buf.hasArray() ? this.buf.remaining() : -1;
+  }
+
+  @Override
+  public void consumeBuffer(int len) {
+    this.buf.position(this.buf.position() + len);
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012-2014 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+
+package concrete.agiga.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * Write-only {@link TTransport} into a growable byte array that is kept between
+ * uses. After serializing, {@link #toByteBuffer()} hands out the written bytes
+ * without copying them; {@link #reset()} then makes the array available for
+ * the next struct.
+ */
+public class ByteBufferOutputTransport extends TTransport {
+
+  private final int initialSize;
+  private final int maxRetainedSize;
+  private byte[] buf;
+  private int length = 0;
+
+  /**
+   * @param initialSize
+   *          starting size of the array
+   * @param maxRetainedSize
+   *          if the array has grown past this size, {@link #reset()} replaces it
+   *          with a new one of {@code initialSize}, so one very large struct
+   *          does not pin its memory for good
+   */
+  public ByteBufferOutputTransport(int initialSize, int maxRetainedSize) {
+    this.initialSize = initialSize;
+    this.maxRetainedSize = maxRetainedSize;
+    this.buf = new byte[initialSize];
+  }
+
+  /**
+   * Discard everything written so far. Buffers returned by
+   * {@link #toByteBuffer()} are invalid from here on.
+   */
+  public void reset() {
+    this.length = 0;
+    if (this.buf.length > this.maxRetainedSize)
+      this.buf = new byte[this.initialSize];
+  }
+
+  public int length() {
+    return this.length;
+  }
+
+  /**
+   * @return a view of the bytes written since the last {@link #reset()}, backed
+   *         by this transport's array
+   */
+  public ByteBuffer toByteBuffer() {
+    return ByteBuffer.wrap(this.buf, 0, this.length);
+  }
+
+  @Override
+  public boolean isOpen() {
+    return true;
+  }
+
+  @Override
+  public void open() {
+  }
+
+  @Override
+  public void close() {
+  }
+
+  @Override
+  public int read(byte[] out, int off, int len) throws TTransportException {
+    throw new TTransportException("Reading from a " + ByteBufferOutputTransport.class.getSimpleName()
+        + " is not supported.");
+  }
+
+  @Override
+  public void write(byte[] in, int off, int len) {
+    int needed = this.length + len;
+    if (needed > this.buf.length)
+      this.buf = Arrays.copyOf(this.buf, Math.max(needed, this.buf.length * 2));
+    System.arraycopy(in, off, this.buf, this.length, len);
+    this.length = needed;
+  }
+}
@@ -60,4 +60,277 @@ public class ConcreteAgigaProperties {
   public final String getToolName() {
     return this.props.getProperty("tool.name");
   }
+
+  /**
+   * @return true if every TextSpan of a converted Communication should also be
+   *         checked with concrete-validation after conversion
+   */
+  public boolean isFullTextSpanValidation() {
+    return this.getBoolean("validation.textspans.full", false);
+  }
+
+  /**
+   * @return true if annotated documents should be written straight to Thrift,
+   *         without building each Communication first
+   */
+  public boolean isStreamingConversion() {
+    return this.getBoolean("conversion.streaming", false);
+  }
+
+  /**
+   * @return the number of threads to convert with; 0 in the properties means one
+   *         per available processor
+   */
+  public int getConversionThreads() {
+    int n = this.getInt("conversion.threads", 1);
+    return n > 0 ? n : Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * @return the number of threads to convert the sentences of one document with;
+   *         0 in the properties means one per available processor
+   */
+  public int getSentenceThreads() {
+    int n = this.getInt("conversion.sentence.threads", 1);
+    return n > 0 ? n : Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * @return the fewest sentences a document must have for them to be converted
+   *         in parallel
+   */
+  public int getSentenceParallelMin() {
+    return this.getInt("conversion.sentence.min", 64);
+  }
+
+  /**
+   * @return where to write a token offset index of each annotated document, or
+   *         null for none
+   */
+  public String getOffsetIndexDir() {
+    return this.getOptional("offsets.index.dir");
+  }
+
+  /**
+   * @return the fraction of written documents to run concrete-validation over,
+   *         from 0 for none to 1 for all
+   */
+  public double getValidationSampleRate() {
+    return this.getDouble("validation.sample.rate", 0);
+  }
+
+  /**
+   * @return the number of threads to validate sampled documents on
+   */
+  public int getValidationThreads() {
+    return this.getInt("validation.threads", 1);
+  }
+
+  /**
+   * @return where to write corpus statistics, or null to not collect them
+   */
+  public String getStatisticsDir() {
+    return this.getOptional("stats.dir");
+  }
+
+  /**
+   * @return how many of the most frequent words to list in each statistics
+   *         report
+   */
+  public int getStatisticsTopWords() {
+    return this.getInt("stats.top.words", 100);
+  }
+
+  /**
+   * @return where to write an inverted index of words and entity names, or
+   *         null for none
+   */
+  public String getInvertedIndexFile() {
+    return this.getOptional("index.file");
+  }
+
+  /**
+   * @return about how many megabytes of postings each thread holds before
+   *         writing them out as a segment
+   */
+  public int getInvertedIndexSegmentMB() {
+    return this.getInt("index.segment.mb", 64);
+  }
+
+  /**
+   * @return true if a document that fails to convert should be quarantined and
+   *         the run carry on, rather than the run stopping
+   */
+  public boolean isQuarantineEnabled() {
+    return this.getBoolean("quarantine.enabled", true);
+  }
+
+  /**
+   * @return where failed documents are put, or null for a {@code quarantine}
+   *         directory in the output directory
+   */
+  public String getQuarantineDir() {
+    return this.getOptional("quarantine.dir");
+  }
+
+  /**
+   * @return how many of the slowest and largest documents to keep for replay; 0,
+   *         the default, to not time documents at all
+   */
+  public int getReplayTopK() {
+    return this.getInt("replay.top.k", 0);
+  }
+
+  /**
+   * @return where the slowest and largest documents are written, or null for a
+   *         {@code replay} directory in the output directory
+   */
+  public String getReplayDir() {
+    return this.getOptional("replay.dir");
+  }
+
+  /**
+   * @return how many of each kind of input anomaly to log as examples; the
+   *         rest are only counted
+   */
+  public int getDiagnosticsExamples() {
+    return this.getInt("diagnostics.examples", 3);
+  }
+
+  /**
+   * @return seconds between summaries of the anomalies counted so far, or 0 for
+   *         a summary only at the end
+   */
+  public int getDiagnosticsSummarySeconds() {
+    return this.getInt("diagnostics.summary.seconds", 300);
+  }
+
+  /**
+   * @return the format CoNLLExporter writes: {@code conllx} or {@code conllu}
+   */
+  public String getCoNLLFormat() {
+    return this.getProperty("conll.format", "conllx").trim();
+  }
+
+  /**
+   * @return the dependencies CoNLLExporter writes: {@code basic}, {@code col}
+   *         or {@code col-ccproc}
+   */
+  public String getCoNLLDependencyType() {
+    return this.getProperty("conll.deps", "basic").trim();
+  }
+
+  /**
+   * @return how converted documents are laid out under the output directory:
+   *         {@code none}, {@code hash} or {@code date}
+   */
+  public String getOutputPartitioner() {
+    return this.getProperty("output.partitioner", "none").trim();
+  }
+
+  public int getOutputShards() {
+    return this.getInt("output.shards", 16);
+  }
+
+  public String getOutputDateGranularity() {
+    return this.getProperty("output.date.granularity", "month").trim();
+  }
+
+  public String getOutputStreamName() {
+    return this.getProperty("output.stream.name", "part").trim();
+  }
+
+  public int getMaxOpenOutputStreams() {
+    return this.getInt("output.max.open.streams", 256);
+  }
+
+  /**
+   * @return the size of the buffers standard input is read and standard output
+   *         written through, in streaming mode
+   */
+  public int getStdioBufferKB() {
+    return this.getInt("stdio.buffer.kb", 1024);
+  }
+
+  /**
+   * @return the size of the direct memory ring documents are staged in on
+   *         their way to the output, or 0 to write them on the converting
+   *         threads
+   */
+  public int getStagingMB() {
+    return this.getInt("staging.mb", 64);
+  }
+
+  /**
+   * @return the address {@link edu.jhu.hlt.concrete.agiga.ConversionServer}
+   *         listens on
+   */
+  public String getServerAddress() {
+    return this.getProperty("server.address", "127.0.0.1").trim();
+  }
+
+  public int getServerPort() {
+    return this.getInt("server.port", 7601);
+  }
+
+  public int getServerMaxRequestMB() {
+    return this.getInt("server.max.request.mb", 256);
+  }
+
+  /**
+   * @return the shared directory workers claim input files from, or null when
+   *         this process converts all of its input files by itself
+   */
+  public String getWorkManifestDir() {
+    return this.getOptional("work.manifest.dir");
+  }
+
+  /**
+   * @return this worker's name in the work manifest, or null to derive one from
+   *         the host name and process id
+   */
+  public String getWorkerId() {
+    return this.getOptional("work.worker.id");
+  }
+
+  public int getLeaseTimeoutSeconds() {
+    return this.getInt("work.lease.timeout.seconds", 600);
+  }
+
+  public int getLeaseHeartbeatSeconds() {
+    return this.getInt("work.heartbeat.seconds", 30);
+  }
+
+  public int getWorkPollSeconds() {
+    return this.getInt("work.poll.seconds", 30);
+  }
+
+  /**
+   * Look up a setting. A JVM system property of the same name (e.g.
+   * {@code -Dvalidation.textspans.full=true}) takes precedence over
+   * concrete-agiga.properties.
+   */
+  public String getProperty(String key, String defaultValue) {
+    return System.getProperty(key, this.props.getProperty(key, defaultValue));
+  }
+
+  /**
+   * @return the setting, or null if it is missing or blank
+   */
+  public String getOptional(String key) {
+    String v = this.getProperty(key, "").trim();
+    return v.isEmpty() ? null : v;
+  }
+
+  public boolean getBoolean(String key, boolean defaultValue) {
+    return Boolean.parseBoolean(this.getProperty(key, Boolean.toString(defaultValue)).trim());
+  }
+
+  public int getInt(String key, int defaultValue) {
+    return Integer.parseInt(this.getProperty(key, Integer.toString(defaultValue)).trim());
+  }
+
+  public double getDouble(String key, double defaultValue) {
+    return Double.parseDouble(this.getProperty(key, Double.toString(defaultValue)).trim());
+  }
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012-2014 Johns Hopkins University HLTCOE. All rights reserved.
+ * See LICENSE in the project root directory.
+ */
+
+package concrete.agiga.util;
+
+import java.nio.ByteBuffer;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocol;
+
+import edu.jhu.hlt.concrete.util.ConcreteException;
+
+/**
+ * Compact-protocol serialization into a buffer kept per thread, so serializing
+ * a struct allocates nothing once the buffer has grown to fit. The bytes are
+ * returned as a view of that buffer, valid until the same thread serializes
+ * again.
+ */
+public class ReusableCompactSerializer {
+
+  public static final int INITIAL_SIZE = 16 * 1024;
+  public static final int MAX_RETAINED_SIZE = 16 * 1024 * 1024;
+
+  private static final class Buffer {
+    private final ByteBufferOutputTransport trans;
+    private final TProtocol prot;
+
+    Buffer(int initialSize, int maxRetainedSize) {
+      this.trans = new ByteBufferOutputTransport(initialSize, maxRetainedSize);
+      this.prot = new TCompactProtocol(this.trans);
+    }
+  }
+
+  private final ThreadLocal<Buffer> buffers;
+
+  public ReusableCompactSerializer() {
+    this(INITIAL_SIZE, MAX_RETAINED_SIZE);
+  }
+
+  public ReusableCompactSerializer(final int initialSize, final int maxRetainedSize) {
+    this.buffers = new ThreadLocal<Buffer>() {
+      @Override
+      protected Buffer initialValue() {
+        return new Buffer(initialSize, maxRetainedSize);
+      }
+    };
+  }
+
+  /**
+   * Start a new struct in this thread's buffer, discarding what was there.
+   *
+   * @return the protocol to write the struct to; finish with {@link #finish()}
+   */
+  public TProtocol begin() {
+    Buffer b = this.buffers.get();
+    b.trans.reset();
+    return b.prot;
+  }
+
+  /**
+   * @return the bytes written to this thread's protocol since {@link #begin()}
+   */
+  public ByteBuffer finish() {
+    return this.buffers.get().trans.toByteBuffer();
+  }
+
+  /**
+   * @return the serialized {@code struct}, valid until this thread next calls
+   *         {@link #begin()} or {@link #serialize(TBase)}
+   */
+  public ByteBuffer serialize(TBase<?, ?> struct) throws ConcreteException {
+    try {
+      struct.write(this.begin());
+    } catch (TException e) {
+      throw new ConcreteException("Failed to serialize " + struct.getClass().getSimpleName(), e);
+    }
+    return this.finish();
+  }
+}
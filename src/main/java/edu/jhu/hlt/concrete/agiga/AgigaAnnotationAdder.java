@@ -90,11 +90,7 @@ public class AgigaAnnotationAdder {
           Tree root = aSent.getStanfordContituencyTree();
           List<Tree> leaves = root.getLeaves();
           if (leaves.size() != n) {
-            int i = 0;
-            for (Tree node : leaves)
-              System.out.println((i++) + ": " + node.toString());
-            for (i = 0; i < n; i++)
-              System.out.println(i + ": " + aSent.getTokens().get(i).getWord());
+            Diagnostics.get().record(AgigaConverter.LEAF_TOKEN_MISMATCH, "{} tokens, parse {}", n, root);
             throw new AnnotationException("number of leaves in the parse (" + leaves.size()
                 + ") is not equal to the number of tokens in the sentence (" + n+ ")");
           }
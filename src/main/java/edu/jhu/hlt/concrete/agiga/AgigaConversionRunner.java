@@ -0,0 +1,294 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import concrete.agiga.util.ReusableCompactSerializer;
+import concrete.tools.AnnotationException;
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaPrefs;
+import edu.jhu.agiga.AgigaSentence;
+import edu.jhu.hlt.concrete.util.ConcreteException;
+
+/**
+ * Converts whole Agiga XML files and writes the results to a
+ * {@link CommunicationSink}. This is the loop behind
+ * {@link AgigaConverter#main(String[])}.
+ */
+public class AgigaConversionRunner {
+
+  private static final Logger logger = LoggerFactory.getLogger(AgigaConversionRunner.class);
+
+  private static final int LOG_EVERY = 1000;
+
+  private final AgigaConverter converter;
+  private final boolean rawExtraction;
+  private final CommunicationSink sink;
+  private final Quarantine quarantine;
+  private final DocumentXmlParser parser = new DocumentXmlParser(new AgigaPrefs());
+  private final ReusableCompactSerializer serializer = new ReusableCompactSerializer();
+  /**
+   * Null unless annotated documents are serialized without building their Communications.
+   */
+  private final StreamingCommunicationWriter streamingWriter;
+  private SlowDocumentCapture capture;
+  private File offsetIndexDir;
+  private OutputValidator validator;
+  private StatisticsCollector statistics;
+  private InvertedIndexWriter invertedIndex;
+
+  private final long start = System.currentTimeMillis();
+  private final AtomicInteger nWritten = new AtomicInteger();
+
+  /**
+   * @param rawExtraction
+   *          whether to only extract the raw Communications, dropping the
+   *          annotations
+   */
+  public AgigaConversionRunner(AgigaConverter converter, boolean rawExtraction, CommunicationSink sink) {
+    this(converter, rawExtraction, sink, null);
+  }
+
+  /**
+   * @param quarantine
+   *          where documents that fail to convert are put, after which the run
+   *          carries on. If null, the first failure ends the run.
+   */
+  public AgigaConversionRunner(AgigaConverter converter, boolean rawExtraction, CommunicationSink sink,
+      Quarantine quarantine) {
+    this.converter = converter;
+    this.rawExtraction = rawExtraction;
+    this.sink = sink;
+    this.quarantine = quarantine;
+    this.streamingWriter = converter.getProperties().isStreamingConversion() ? new StreamingCommunicationWriter(
+        converter) : null;
+  }
+
+  /**
+   * Time every document and keep the slowest and largest in {@code capture}.
+   * Set this before converting.
+   */
+  public void setSlowDocumentCapture(SlowDocumentCapture capture) {
+    this.capture = capture;
+  }
+
+  /**
+   * Write a {@link TokenOffsetIndex} of every annotated document to
+   * {@code dir}, as {@code docId.offsets}. Set this before converting.
+   */
+  public void setOffsetIndexDir(File dir) {
+    this.offsetIndexDir = dir;
+  }
+
+  /**
+   * Hand every document written to {@code validator}, which validates a sample
+   * of them. Set this before converting.
+   */
+  public void setOutputValidator(OutputValidator validator) {
+    this.validator = validator;
+  }
+
+  /**
+   * Count what is in every annotated document converted into
+   * {@code statistics}. Set this before converting.
+   */
+  public void setStatisticsCollector(StatisticsCollector statistics) {
+    this.statistics = statistics;
+  }
+
+  /**
+   * Index the words and entity names of every annotated document converted
+   * in {@code invertedIndex}. Set this before converting.
+   */
+  public void setInvertedIndexWriter(InvertedIndexWriter invertedIndex) {
+    this.invertedIndex = invertedIndex;
+  }
+
+  public int getNumWritten() {
+    return nWritten.get();
+  }
+
+  public boolean convertFile(File agigaXML) throws AnnotationException, ConcreteException, IOException {
+    return this.convertFile(agigaXML, null);
+  }
+
+  /**
+   * Convert every document in {@code agigaXML}. A document that fails to parse,
+   * convert or serialize is quarantined, if there is a quarantine.
+   *
+   * @param lease
+   *          if not null, the work manifest lease held on this file. Progress is
+   *          reported to it, and conversion stops if it is lost.
+   * @return false if the file was skipped or abandoned part way through
+   */
+  public boolean convertFile(File agigaXML, WorkManifest.Lease lease) throws AnnotationException, ConcreteException,
+      IOException {
+    if (!isConvertible(agigaXML))
+      return false;
+
+    logger.info("Reading from: " + agigaXML.getPath());
+    try (AgigaDocumentChunker chunker = new AgigaDocumentChunker(agigaXML.getPath())) {
+      for (RawAgigaDocument raw : chunker) {
+        if (lease != null) {
+          if (!lease.isValid()) {
+            logger.warn("Abandoning {}: another worker has taken it over.", agigaXML.getPath());
+            return false;
+          }
+          lease.progress();
+        }
+        this.convertDocument(raw);
+      }
+    }
+
+    logger.info("Finished {}. Wrote {} communications in {} seconds.", agigaXML.getPath(), this.nWritten.get(),
+        (System.currentTimeMillis() - this.start) / 1000d);
+    return true;
+  }
+
+  /**
+   * Convert every document read from {@code in}, such as standard input, which
+   * is closed at the end.
+   *
+   * @param source
+   *          name of the input, used in {@link RawAgigaDocument#getSource()}
+   */
+  public void convertStream(String source, InputStream in) throws AnnotationException, ConcreteException,
+      IOException {
+    logger.info("Reading from: " + source);
+    try (AgigaDocumentChunker chunker = new AgigaDocumentChunker(source, in)) {
+      for (RawAgigaDocument raw : chunker)
+        this.convertDocument(raw);
+    }
+    logger.info("Finished {}. Wrote {} communications in {} seconds.", source, this.nWritten.get(),
+        (System.currentTimeMillis() - this.start) / 1000d);
+  }
+
+  /**
+   * @return false, after logging why, if {@code agigaXML} is not a file
+   */
+  static boolean isConvertible(File agigaXML) {
+    if (!agigaXML.exists()) {
+      logger.error("File: {} does not seem to exist.", agigaXML.getAbsolutePath());
+      return false;
+    } else if (!agigaXML.isFile()) {
+      logger.error("File: {} does not seem to be a file.", agigaXML.getAbsolutePath());
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Convert one document and write it to the sink. Safe to call from several
+   * threads at once.
+   *
+   * @return false if the document failed and was quarantined
+   */
+  public boolean convertDocument(RawAgigaDocument raw) throws AnnotationException, ConcreteException, IOException {
+    String docId;
+    ByteBuffer serialized;
+    TokenOffsetIndex index = null;
+    long started = System.nanoTime();
+    try {
+      int tokens;
+      if (this.rawExtraction) {
+        // the text is read straight from the XML, without loading CoreNLP
+        docId = raw.getDocId();
+        if (docId == null)
+          throw new AnnotationException("Document has no id: " + raw);
+        serialized = this.serializer.serialize(this.converter.extractRawCommunication(docId, raw.getText()));
+        tokens = this.capture == null ? 0 : raw.countTokens();
+      } else {
+        AgigaDocument doc = raw.parse(this.parser);
+        docId = doc.getDocId();
+        serialized = this.serialize(doc);
+        tokens = this.capture == null ? 0 : countTokens(doc);
+        if (this.offsetIndexDir != null)
+          index = TokenOffsetIndex.of(doc);
+        if (this.statistics != null)
+          this.statistics.add(raw.getSource(), doc);
+        if (this.invertedIndex != null)
+          this.invertedIndex.add(doc);
+      }
+      if (this.capture != null)
+        this.capture.offer(raw, docId, System.nanoTime() - started, tokens, serialized.remaining());
+    } catch (AnnotationException | ConcreteException | RuntimeException | StackOverflowError e) {
+      if (this.quarantine == null)
+        throw e;
+      this.quarantine.add(raw, e);
+      return false;
+    }
+    ByteBuffer written = this.validator == null ? null : serialized.duplicate();
+    this.sink.write(docId, serialized);
+    if (written != null)
+      this.validator.offer(docId, written);
+    if (index != null)
+      this.writeIndex(docId, index);
+
+    int n = this.nWritten.incrementAndGet();
+    if (n % LOG_EVERY == 0)
+      logger.info("Wrote {} documents in {} seconds.", n, (System.currentTimeMillis() - this.start) / 1000d);
+    return true;
+  }
+
+  private void writeIndex(String docId, TokenOffsetIndex index) throws IOException {
+    File f = new File(this.offsetIndexDir, docId + ".offsets");
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f),
+        Math.min(index.getSerializedSize(), 1 << 16)))) {
+      index.writeTo(out);
+    }
+  }
+
+  private static int countTokens(AgigaDocument doc) {
+    int n = 0;
+    for (AgigaSentence sent : doc.getSents())
+      n += sent.getTokens().size();
+    return n;
+  }
+
+  /**
+   * @return the document serialized into a buffer that is reused for the next
+   *         document
+   */
+  private ByteBuffer serialize(AgigaDocument doc) throws AnnotationException, ConcreteException {
+    if (this.streamingWriter != null)
+      return this.streamingWriter.serialize(doc, this.serializer);
+    else
+      return this.serializer.serialize(this.converter.convertDoc(doc));
+  }
+
+  /**
+   * Log the totals for the run, including the documents that failed.
+   */
+  public void logSummary() {
+    logger.info("Wrote {} communications in {} seconds.", this.nWritten.get(),
+        (System.currentTimeMillis() - this.start) / 1000d);
+    if (AgigaConverter.isHeadFinderLoaded())
+      AgigaConverter.getHeadFinderCache().logSummary();
+    Diagnostics.get().logSummary();
+    if (this.quarantine != null)
+      this.quarantine.logSummary();
+  }
+
+  /**
+   * Convert files claimed from {@code manifest} until every file in it is done.
+   */
+  public void convertAll(WorkManifest manifest) throws AnnotationException, ConcreteException, IOException,
+      InterruptedException {
+    WorkManifest.Lease lease;
+    while ((lease = manifest.claim()) != null) {
+      this.convertFile(new File(lease.getFile()), lease);
+      // a missing file will not appear by retrying it, so it is done too
+      lease.complete();
+    }
+    logger.info("Every file in the work manifest is done.");
+  }
+}
@@ -1,13 +1,16 @@
 package edu.jhu.hlt.concrete.agiga;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,11 +20,9 @@ import concrete.tools.AnnotationException;
 import edu.jhu.agiga.AgigaCoref;
 import edu.jhu.agiga.AgigaDocument;
 import edu.jhu.agiga.AgigaMention;
-import edu.jhu.agiga.AgigaPrefs;
 import edu.jhu.agiga.AgigaSentence;
 import edu.jhu.agiga.AgigaToken;
 import edu.jhu.agiga.AgigaTypedDependency;
-import edu.jhu.agiga.StreamingDocumentReader;
 import edu.jhu.hlt.concrete.AnnotationMetadata;
 import edu.jhu.hlt.concrete.Communication;
 import edu.jhu.hlt.concrete.Constituent;
@@ -45,20 +46,19 @@ import edu.jhu.hlt.concrete.Tokenization;
 import edu.jhu.hlt.concrete.TokenizationKind;
 import edu.jhu.hlt.concrete.UUID;
 import edu.jhu.hlt.concrete.communications.SuperCommunication;
-import edu.jhu.hlt.concrete.serialization.CommunicationSerializer;
-import edu.jhu.hlt.concrete.serialization.CompactCommunicationSerializer;
 import edu.jhu.hlt.concrete.util.ConcreteUUIDFactory;
 import edu.jhu.hlt.concrete.validation.ValidatableTextSpan;
-import edu.stanford.nlp.trees.HeadFinder;
 import edu.stanford.nlp.trees.SemanticHeadFinder;
 import edu.stanford.nlp.trees.Tree;
 
-public class AgigaConverter {
+public class AgigaConverter implements AutoCloseable {
   private static final Logger logger = LoggerFactory.getLogger(AgigaConverter.class);
 
+  private static final String STDIN_SOURCE = "stdin";
+
   public static final long annotationTime = System.currentTimeMillis();
 
-  private final ConcreteUUIDFactory idF = new ConcreteUUIDFactory();
+  private ConcreteUUIDFactory idF = new ConcreteUUIDFactory();
   private final String toolName;
   private final ConcreteAgigaProperties props;
 
@@ -68,6 +68,18 @@ public class AgigaConverter {
   private boolean allowEmpties;
   private boolean addTextSpans;
   private boolean storeOffsetInRaw;
+  /**
+   * Whether to run concrete-validation over every TextSpan after a document is converted. Offsets are always checked as
+   * they are computed.
+   */
+  private boolean fullTextSpanValidation;
+  /**
+   * Threads to convert the sentences of one document with, and the fewest sentences a document must have to be split
+   * among them.
+   */
+  private int sentenceThreads;
+  private int sentenceParallelMin;
+  private ForkJoinPool sentencePool;
 
   /**
    * @param addTextSpans
@@ -98,12 +110,85 @@ public class AgigaConverter {
     this.storeOffsetInRaw = true;
     this.props = new ConcreteAgigaProperties();
     this.toolName = this.props.getToolName();
+    this.fullTextSpanValidation = this.props.isFullTextSpanValidation();
+    this.sentenceThreads = this.props.getSentenceThreads();
+    this.sentenceParallelMin = this.props.getSentenceParallelMin();
   }
 
   public boolean isAddingTextSpans() {
     return addTextSpans;
   }
 
+  public boolean isFullTextSpanValidation() {
+    return fullTextSpanValidation;
+  }
+
+  public void setFullTextSpanValidation(boolean fullTextSpanValidation) {
+    this.fullTextSpanValidation = fullTextSpanValidation;
+  }
+
+  /**
+   * Convert the sentences of documents with at least {@code minSentences} sentences on {@code threads} threads in
+   * {@link #convertDoc(AgigaDocument)}, so that one very large document is not converted on a single core. 1 thread
+   * converts every document serially.
+   */
+  public synchronized void setSentenceParallelism(int threads, int minSentences) {
+    if (threads < 1)
+      throw new IllegalArgumentException("threads must be at least 1: " + threads);
+    if (threads != this.sentenceThreads && this.sentencePool != null) {
+      this.sentencePool.shutdown();
+      this.sentencePool = null;
+    }
+    this.sentenceThreads = threads;
+    this.sentenceParallelMin = minSentences;
+  }
+
+  public int getSentenceThreads() {
+    return this.sentenceThreads;
+  }
+
+  private synchronized ForkJoinPool getSentencePool() {
+    if (this.sentencePool == null)
+      this.sentencePool = new ForkJoinPool(this.sentenceThreads);
+    return this.sentencePool;
+  }
+
+  /**
+   * Shut down the threads sentences are converted on. A converter used again afterwards starts new ones.
+   */
+  @Override
+  public synchronized void close() {
+    if (this.sentencePool != null) {
+      this.sentencePool.shutdown();
+      this.sentencePool = null;
+    }
+  }
+
+  ConcreteAgigaProperties getProperties() {
+    return this.props;
+  }
+
+  boolean isAllowingEmpties() {
+    return this.allowEmpties;
+  }
+
+  boolean isStoringOffsetInRaw() {
+    return this.storeOffsetInRaw;
+  }
+
+  ConcreteUUIDFactory getUUIDFactory() {
+    return this.idF;
+  }
+
+  /**
+   * Replace the source of UUIDs, e.g. with a deterministic one in tests. With more than one sentence thread, the
+   * sentences of a large document draw their UUIDs from the pool's threads at once, in no fixed order, so the factory
+   * must be thread-safe, and a deterministic one only gives the same UUIDs in the same places when converting serially.
+   */
+  void setUUIDFactory(ConcreteUUIDFactory idF) {
+    this.idF = idF;
+  }
+
   public AnnotationMetadata metadata(String toolName) {
     return new AnnotationMetadata().setTool(toolName).setTimestamp(annotationTime);
   }
@@ -151,17 +236,52 @@ public class AgigaConverter {
     p.setMetadata(md);
     s2cHelper(root, idCounter, left, right, n, p, tokenizationUUID);
     if (!p.isSetConstituentList()) {
-      logger.warn("Setting constituent list to compensate for the empty parse for tokenization id" + tokenizationUUID
-          + " and tree " + root);
+      DIAGNOSTICS.record("Empty constituency parse", "tokenization {}, tree {}", tokenizationUUID, root);
       p.setConstituentList(new ArrayList<Constituent>());
     }
     return p;
   }
 
+  private static final Diagnostics DIAGNOSTICS = Diagnostics.get();
+
+  static final String EMPTY_SENTENCE = "Empty sentence skipped";
+  static final String EMPTY_MENTION = "Empty mention";
+  static final String LEAF_TOKEN_MISMATCH = "Parse leaves do not match tokens";
+
   /**
-   *
+   * Holds the head finder, so that CoreNLP is only loaded once a parse is converted, and never by raw extraction.
    */
-  private static final HeadFinder HEAD_FINDER = new SemanticHeadFinder();
+  private static final class HeadFinders {
+    static final HeadFinderCache HEAD_FINDER = new HeadFinderCache(new SemanticHeadFinder());
+
+    static {
+      headFinderLoaded = true;
+    }
+  }
+
+  private static volatile boolean headFinderLoaded = false;
+
+  /**
+   * @return the index of {@code node}'s head child, falling back on the rightmost child if no head can be found, or -1 if
+   *         {@code node} is a leaf
+   */
+  static int headChildIndex(Tree node) {
+    return HeadFinders.HEAD_FINDER.headChildIndex(node);
+  }
+
+  /**
+   * @return the head finder shared by every converter, and its hit rate
+   */
+  public static HeadFinderCache getHeadFinderCache() {
+    return HeadFinders.HEAD_FINDER;
+  }
+
+  /**
+   * @return whether a head has been found yet, i.e. whether {@link #getHeadFinderCache()} has anything to report
+   */
+  public static boolean isHeadFinderLoaded() {
+    return headFinderLoaded;
+  }
 
   /**
    *
@@ -185,31 +305,16 @@ public class AgigaConverter {
     cb.setTag(root.value());
 	cb.setStart(left);
 	cb.setEnding(right);
-    Tree headTree = null;
-    if (!root.isLeaf()) {
-      try {
-        headTree = HEAD_FINDER.determineHead(root);
-      } catch (java.lang.IllegalArgumentException iae) {
-        logger.warn("Failed to find head, falling back on rightmost constituent.", iae);
-        headTree = root.children()[root.numChildren() - 1];
-      }
-    }
-    int i = 0, headTreeIdx = -1;
 
     int leftPtr = left;
     for (Tree child : root.getChildrenAsList()) {
       int width = child.getLeaves().size();
       int childId = s2cHelper(child, idCounter, leftPtr, leftPtr + width, n, p, tokenizationUUID);
       cb.addToChildList(childId);
-
       leftPtr += width;
-      if (headTree != null && child == headTree) {
-        assert (headTreeIdx < 0);
-        headTreeIdx = i;
-      }
-      i++;
     }
 
+    int headTreeIdx = headChildIndex(root);
     if (headTreeIdx >= 0)
       cb.setHeadChildIndex(headTreeIdx);
 
@@ -237,7 +342,7 @@ public class AgigaConverter {
       if (m.getHeadTokenIdx() >= 0)
         tb.setAnchorTokenIndex(m.getHeadTokenIdx());
 
-      logger.warn("Creating an EMPTY mention for mention " + m + " with UUID = " + uuid);
+      DIAGNOSTICS.record(EMPTY_MENTION, "mention {} in tokenization {}", m, uuid);
       return tb;
     }
     return extractTokenRefSequence(start, end, m.getHeadTokenIdx(), uuid);
@@ -348,9 +453,31 @@ public class AgigaConverter {
 
   private Tokenization addTokenTaggings(AgigaSentence sent, Tokenization tkz) throws AnnotationException {
     UUID tUuid = tkz.getUuid();
-    TheoryDependencies taggingDeps = new TheoryDependencies();
-    taggingDeps.addToTokenizationTheoryList(tUuid);
+    this.addTaggings(sent, tkz);
+
+    Parse parse = this.convertParse(sent, tUuid);
+    if (!allowEmpties && !parse.isSetConstituentList())
+      DIAGNOSTICS.record("Empty constituency parse left out", "tokenization {}", tUuid);
+    else
+      tkz.addToParseList(parse);
+
+    for (String dt : DEPENDENCY_TYPES) {
+      List<AgigaTypedDependency> deps = getDepsForType(sent, dt);
+      DependencyParse dp = convertDependencyParse(deps, dt, tUuid);
+      if (!allowEmpties && !dp.isSetDependencyList())
+        DIAGNOSTICS.record("Empty dependency parse left out", "{} in tokenization {}", dt, tUuid);
+      else
+        tkz.addToDependencyParseList(dp);
+    }
+
+    return tkz;
+  }
 
+  /**
+   * Add the lemma, POS and NER taggings of {@code sent} to {@code tkz}.
+   */
+  void addTaggings(AgigaSentence sent, Tokenization tkz) {
+    UUID tUuid = tkz.getUuid();
     AnnotationMetadata lemmaMd = this.getLemmaMetadata(tUuid);
     AnnotationMetadata posMd = this.getPOSMetadata(tUuid);
     AnnotationMetadata nerMd = this.getNERMetadata(tUuid);
@@ -377,34 +504,21 @@ public class AgigaConverter {
     tkz.addToTokenTaggingList(lemma);
     tkz.addToTokenTaggingList(pos);
     tkz.addToTokenTaggingList(ner);
+  }
 
+  /**
+   * @throws AnnotationException
+   *           if the leaves of the parse are not the tokens
+   */
+  Parse convertParse(AgigaSentence sent, UUID tUuid) throws AnnotationException {
+    int nTokens = sent.getTokens().size();
     Tree tree = sent.getStanfordContituencyTree();
     if (tree.getLeaves().size() != nTokens) {
-      int i = 0;
-      for (Tree n : tree.getLeaves())
-        logger.error((i++) + ": " + n.toString());
-      for (i = 0; i < nTokens; i++)
-        logger.error(i + ": " + tokList.get(i).getWord());
+      DIAGNOSTICS.record(LEAF_TOKEN_MISMATCH, "{} tokens, parse {}", nTokens, tree);
       throw new AnnotationException("number of leaves in the parse (" + tree.getLeaves().size()
           + ") is not equal to the number of tokens in the sentence (" + nTokens + ")");
     }
-    Parse parse = stanford2concrete(tree, nTokens, tUuid);
-    if (!allowEmpties && !parse.isSetConstituentList())
-      logger.warn("Not adding empty constituency parse for tokenization id " + tUuid);
-    else
-      tkz.addToParseList(parse);
-
-    String[] depTypes = new String[] { "basic-deps", "col-deps", "col-ccproc-deps" };
-    for (String dt : depTypes) {
-      List<AgigaTypedDependency> deps = getDepsForType(sent, dt);
-      DependencyParse dp = convertDependencyParse(deps, dt, tUuid);
-      if (!allowEmpties && !dp.isSetDependencyList())
-        logger.warn("Not adding empty " + dt + " dependency parse for tokenization id " + tUuid);
-      else
-        tkz.addToDependencyParseList(dp);
-    }
-
-    return tkz;
+    return stanford2concrete(tree, nTokens, tUuid);
   }
 
   /**
@@ -441,28 +555,21 @@ public class AgigaConverter {
       int curTokId = tokId++;
 
       Token ttok = new Token().setTokenIndex(curTokId).setText(tok.getWord());
-      computedTokenEnd = computedTokenStart + tok.getWord().length();
+      computedTokenEnd = TextSpans.tokenEnd(computedTokenStart, tok);
       if (addTextSpans) {
         if (charOffset < 0)
           throw new AnnotationException("Bad character offset of " + charOffset + " for sentence " + sent);
 
-        TextSpan tokTS = new TextSpan(computedTokenStart, computedTokenEnd);
-        boolean isValidTokTS = new ValidatableTextSpan(tokTS).isValid();
-        if (!isValidTokTS)
-          throw new AnnotationException("Token TextSpan was invalid: " + tokTS.toString());
-        ttok.setTextSpan(tokTS);
+        TextSpans.checkToken(computedTokenStart, computedTokenEnd);
+        ttok.setTextSpan(new TextSpan(computedTokenStart, computedTokenEnd));
 
         if (this.storeOffsetInRaw) {
-          TextSpan compTS = new TextSpan(tok.getCharOffBegin(), tok.getCharOffEnd());
-          boolean isValidCompTS = new ValidatableTextSpan(compTS).isValid();
-          if (!isValidCompTS)
-            throw new AnnotationException("Computed/Raw TextSpan was invalid: " + compTS.toString());
-          ttok.setRawTextSpan(compTS);
+          TextSpans.checkRawToken(tok);
+          ttok.setRawTextSpan(new TextSpan(tok.getCharOffBegin(), tok.getCharOffEnd()));
         }
       }
 
-      // add 1 for spaces
-      computedTokenStart = computedTokenEnd + 1;
+      computedTokenStart = TextSpans.nextTokenStart(computedTokenEnd);
       tl.addToTokenList(ttok);
       // token annotations
       // normNerBuilder.addTaggedToken(makeTaggedToken(tok.getNormNerTag(), curTokId));
@@ -480,7 +587,55 @@ public class AgigaConverter {
     return tb;
   }
 
-  private List<AgigaTypedDependency> getDepsForType(AgigaSentence aSent, String which) throws AnnotationException {
+  /**
+   * Run concrete-validation over every section, sentence and token TextSpan (and raw TextSpan) in {@code comm}. Unlike
+   * the checks made during conversion, this also checks that each TextSpan ends within the Communication's text. Raw
+   * TextSpans point into the original document, which the Communication does not hold, so they only get the checks
+   * that need no text.
+   *
+   * @throws AnnotationException
+   *           naming the first invalid span found
+   */
+  public void validateTextSpans(Communication comm) throws AnnotationException {
+    if (!comm.isSetSectionList())
+      return;
+    for (Section sect : comm.getSectionList()) {
+      validateTextSpan(comm, sect.getTextSpan(), "Section", sect.getUuid());
+      if (!sect.isSetSentenceList())
+        continue;
+      for (Sentence sent : sect.getSentenceList()) {
+        validateTextSpan(comm, sent.getTextSpan(), "Sentence", sent.getUuid());
+        validateTextSpan(null, sent.getRawTextSpan(), "Sentence raw", sent.getUuid());
+        if (!sent.isSetTokenization() || !sent.getTokenization().isSetTokenList())
+          continue;
+        Tokenization tkz = sent.getTokenization();
+        for (Token tok : tkz.getTokenList().getTokenList()) {
+          validateTextSpan(comm, tok.getTextSpan(), "Token " + tok.getTokenIndex(), tkz.getUuid());
+          validateTextSpan(null, tok.getRawTextSpan(), "Token " + tok.getTokenIndex() + " raw", tkz.getUuid());
+        }
+      }
+    }
+  }
+
+  /**
+   * @param comm
+   *          the Communication {@code ts} points into, or null if it points into the original document
+   */
+  private static void validateTextSpan(Communication comm, TextSpan ts, String what, UUID owner)
+      throws AnnotationException {
+    if (ts == null)
+      return;
+    ValidatableTextSpan vts = new ValidatableTextSpan(ts);
+    if (!(comm == null ? vts.isValid() : vts.validate(comm)))
+      throw new AnnotationException(what + " TextSpan in " + owner + " was invalid: " + ts.toString());
+  }
+
+  /**
+   * The names of the dependency parses, in the order they are added to a tokenization.
+   */
+  static final String[] DEPENDENCY_TYPES = { "basic-deps", "col-deps", "col-ccproc-deps" };
+
+  List<AgigaTypedDependency> getDepsForType(AgigaSentence aSent, String which) throws AnnotationException {
     switch (which) {
     case "basic-deps":
       return aSent.getBasicDeps();
@@ -516,26 +671,17 @@ public class AgigaConverter {
     Tokenization tokenization = convertTokenization(sent, charsFromStartOfCommunication, preserveTokenTaggings);
     Sentence concSent = new Sentence().setUuid(this.idF.getConcreteUUID());
     if (addTextSpans) {
-      AgigaToken firstToken = sent.getTokens().get(0);
-      AgigaToken lastToken = sent.getTokens().get(sent.getTokens().size() - 1);
       if (charsFromStartOfCommunication < 0)
         throw new AnnotationException("bad character offset of " + charsFromStartOfCommunication
             + " for converting sent " + sent);
 
-      TextSpan sentTS = new TextSpan(charsFromStartOfCommunication, charsFromStartOfCommunication
-          + flattenText(sent).length());
-      boolean isValidSentTS = new ValidatableTextSpan(sentTS).isValid();
-      if (!isValidSentTS)
-        throw new AnnotationException("TextSpan was not valid: " + sentTS.toString());
-      concSent.setTextSpan(sentTS);
+      int sentEnd = charsFromStartOfCommunication + flattenText(sent).length();
+      TextSpans.checkSentence(charsFromStartOfCommunication, sentEnd);
+      concSent.setTextSpan(new TextSpan(charsFromStartOfCommunication, sentEnd));
 
       if (this.storeOffsetInRaw) {
-        TextSpan compTS = new TextSpan(firstToken.getCharOffBegin(), lastToken.getCharOffEnd());
-        boolean isValidCompTS = new ValidatableTextSpan(compTS).isValid();
-        if (!isValidCompTS)
-          throw new AnnotationException("Computed TextSpan was not valid: " + compTS.toString());
-
-        concSent.setRawTextSpan(compTS);
+        TextSpans.checkRawSentence(sent);
+        concSent.setRawTextSpan(new TextSpan(TextSpans.rawSentenceStart(sent), TextSpans.rawSentenceEnd(sent)));
       }
     }
 
@@ -567,7 +713,7 @@ public class AgigaConverter {
       numTaggings++;
     }
     if (numTaggings == 0) {
-      logger.warn("No NE Tag theories found in tokenization " + tokenization.getUuid());
+      DIAGNOSTICS.record("No NER tagging", "tokenization {}", tokenization.getUuid());
       return null;
     }
     String[][] neTags = new String[numTaggings][];
@@ -584,17 +730,17 @@ public class AgigaConverter {
       for (TaggedToken tagTok : tt.getTaggedTokenList()) {
         whichTIndex++;
         if (!tagTok.isSetTokenIndex()) {
-          logger.warn("token index in " + tokenization.getUuid() + " is not set");
+          DIAGNOSTICS.record("NER tag without a token index", "tokenization {}", tokenization.getUuid());
           continue;
         }
         if (!tagTok.isSetTag()) {
-          logger.warn("token tag in " + tokenization.getUuid() + " is not set");
+          DIAGNOSTICS.record("NER tag not set", "tokenization {}", tokenization.getUuid());
           continue;
         }
         int ttIdx = tagTok.getTokenIndex();
         if (whichTIndex != ttIdx) {
-          logger.error("in tokenization " + tokenization.getUuid() + ", token index " + ttIdx
-              + " does not match what it should (" + whichTIndex + ")");
+          DIAGNOSTICS.record("NER tag out of order", "tokenization {}: token index {} in position {}",
+              tokenization.getUuid(), ttIdx, whichTIndex);
         }
         neTags[which][ttIdx] = tagTok.getTag();
       }
@@ -667,8 +813,16 @@ public class AgigaConverter {
 
   public EntityMention convertMention(AgigaMention m, AgigaDocument doc, UUID corefSet, Tokenization tokenization)
       throws AnnotationException {
-    String mstring = extractMentionString(m, doc);
-    TokenRefSequence trs = extractTokenRefSequence(m, tokenization.getUuid());
+    return this.convertMention(m, extractMentionString(m, doc), corefSet, tokenization.getUuid());
+  }
+
+  /**
+   * @param mstring
+   *          the text of the mention
+   */
+  EntityMention convertMention(AgigaMention m, String mstring, UUID corefSet, UUID tokenizationId)
+      throws AnnotationException {
+    TokenRefSequence trs = extractTokenRefSequence(m, tokenizationId);
     EntityMention em = new EntityMention().setUuid(this.idF.getConcreteUUID()).setTokens(trs);
     // String emType = getEntityMentionType(em, tokenization);
     em.setText(mstring); // TODO merge this an method below
@@ -683,6 +837,25 @@ public class AgigaConverter {
    */
   public Entity convertCoref(EntityMentionSet emsb, AgigaCoref coref, AgigaDocument doc, List<Tokenization> toks)
       throws AnnotationException {
+    List<UUID> tokenizationIds = new ArrayList<>(toks.size());
+    for (Tokenization tz : toks)
+      tokenizationIds.add(tz.getUuid());
+    List<EntityMention> mentions = new ArrayList<>();
+    Entity e = this.convertCoref(coref, doc, null, tokenizationIds, mentions);
+    for (EntityMention em : mentions)
+      emsb.addToMentionList(em);
+    return e;
+  }
+
+  /**
+   * As {@link #convertCoref(EntityMentionSet, AgigaCoref, AgigaDocument, List)}, given only the UUID of each sentence's
+   * tokenization, adding the mentions to {@code mentions}.
+   *
+   * @param text
+   *          the text of {@code doc}, to take the mention text from; if null, it is put together from the words
+   */
+  Entity convertCoref(AgigaCoref coref, AgigaDocument doc, DocumentText text, List<UUID> tokenizationIds,
+      List<EntityMention> mentions) throws AnnotationException {
     if (coref.getMentions().isEmpty() && !allowEmpties)
       throw new AnnotationException("Entity does not have any mentions");
 
@@ -693,11 +866,14 @@ public class AgigaConverter {
     // String repEntType = null;
 
     for (AgigaMention m : coref.getMentions()) {
-      Tokenization tz = toks.get(m.getSentenceIdx());
-      EntityMention em = convertMention(m, doc, this.idF.getConcreteUUID(), tz);
+      UUID tzId = tokenizationIds.get(m.getSentenceIdx());
+      if (tzId == null)
+        throw new AnnotationException("Mention " + m + " is in sentence " + m.getSentenceIdx()
+            + ", which has no tokenization");
+      String mstring = text == null ? extractMentionString(m, doc) : text.getMentionText(m);
+      EntityMention em = convertMention(m, mstring, this.idF.getConcreteUUID(), tzId);
       if (m.isRepresentative()) {
-        String mentionString = extractMentionString(m, doc);
-        entBuilder.setCanonicalName(mentionString);
+        entBuilder.setCanonicalName(mstring);
         // repEntType = em.getEntityType();
         // }
         // if (!counter.containsKey(em.getEntityType())) {
@@ -710,7 +886,7 @@ public class AgigaConverter {
         // maxEType = em.getEntityType();
       }
 
-      emsb.addToMentionList(em);
+      mentions.add(em);
       entBuilder.addToMentionIdList(em.getUuid());
     }
 
@@ -729,7 +905,9 @@ public class AgigaConverter {
   }
 
   public Communication convertDoc(AgigaDocument doc) throws AnnotationException {
-    Communication comm = extractRawCommunication(doc);
+    // the text, with where each token is in it for the mentions
+    DocumentText text = new DocumentText(doc);
+    Communication comm = extractRawCommunication(doc.getDocId(), text.getText());
 
     // Section the communication.
     String commText = comm.getText();
@@ -738,19 +916,24 @@ public class AgigaConverter {
       concSect.setTextSpan(new TextSpan().setStart(0).setEnding(commText.length()));
     comm.addToSectionList(concSect);
 
-    // Perform sentence splitting.
+    // Perform sentence splitting. The offsets are worked out first, so that the sentences can be converted in parallel.
+    List<AgigaSentence> sents = new ArrayList<>(doc.getSents().size());
+    int[] offsets = new int[doc.getSents().size()];
     int charsFromStartOfCommunication = 0; // communication only has one section
-    for (AgigaSentence sentence : doc.getSents()) {
+    for (int i = 0; i < doc.getSents().size(); i++) {
+      AgigaSentence sentence = doc.getSents().get(i);
       if (sentence.getTokens().isEmpty()) {
-        logger.warn("Skipping empty sentence " + sentence + " in section with id " + concSect.getUuid());
+        DIAGNOSTICS.record(EMPTY_SENTENCE, "sentence {} of {}", sentence.getSentIdx(), doc.getDocId());
         continue;
       }
 
-      Sentence st = this.convertSentence(sentence, charsFromStartOfCommunication, true);
-      concSect.addToSentenceList(st);
-      // sb.addToSentenceList(convertSentence(sentence, charsFromStartOfCommunication, addTo, sectionSegmentationUUID));
-      charsFromStartOfCommunication += flattenText(sentence).length() + 1; // +1 for newline at end of sentence
+      offsets[sents.size()] = charsFromStartOfCommunication;
+      sents.add(sentence);
+      charsFromStartOfCommunication = TextSpans.nextSentenceStart(charsFromStartOfCommunication,
+          text.getSentenceLength(i));
     }
+    for (Sentence st : this.convertSentences(sents, offsets))
+      concSect.addToSentenceList(st);
 
     // Retrieve the tokenizations.
     Collection<Tokenization> tokColl = new SuperCommunication(comm).generateTokenizationIdToTokenizationMap().values();
@@ -761,14 +944,17 @@ public class AgigaConverter {
         .setMentionList(mentionSet);
     List<Entity> entityList = new ArrayList<Entity>();
     EntitySet esb = new EntitySet().setUuid(this.idF.getConcreteUUID()).setMetadata(md).setEntityList(entityList);
+    List<UUID> tokenizationIds = new ArrayList<>(toks.size());
+    for (Tokenization tz : toks)
+      tokenizationIds.add(tz.getUuid());
     for (AgigaCoref coref : doc.getCorefs()) {
-      Entity e = convertCoref(emsb, coref, doc, toks);
+      Entity e = convertCoref(coref, doc, text, tokenizationIds, mentionSet);
       esb.addToEntityList(e);
     }
 
     if (!emsb.isSetMentionList()) {
       if (allowEmpties) {
-        logger.warn("No mentions found: creating empty mention list");
+        DIAGNOSTICS.record("Document without mentions", "{}", doc.getDocId());
         emsb.setMentionList(new ArrayList<EntityMention>());
       }
     }
@@ -776,19 +962,112 @@ public class AgigaConverter {
 
     if (!esb.isSetEntityList()) {
       if (allowEmpties) {
-        logger.warn("No entities found: creating empty entity list");
+        DIAGNOSTICS.record("Document without entities", "{}", doc.getDocId());
         esb.setEntityList(new ArrayList<Entity>());
       }
     }
     comm.addToEntitySetList(esb);
 
+    if (this.fullTextSpanValidation)
+      this.validateTextSpans(comm);
+
     return comm;
   }
 
+  /**
+   * Convert sentences, in parallel if there are enough of them and more than one sentence thread.
+   *
+   * @return the sentences, in order
+   */
+  private List<Sentence> convertSentences(List<AgigaSentence> sents, int[] offsets) throws AnnotationException {
+    Sentence[] out = new Sentence[sents.size()];
+    int threads;
+    synchronized (this) {
+      threads = sents.size() >= this.sentenceParallelMin ? this.sentenceThreads : 1;
+    }
+    if (threads <= 1) {
+      for (int i = 0; i < out.length; i++)
+        out[i] = this.convertSentence(sents.get(i), offsets[i], true);
+      return Arrays.asList(out);
+    }
+
+    // a few tasks per thread, so that threads given short sentences help with the rest
+    int grain = Math.max(1, out.length / (threads * 8));
+    try {
+      this.getSentencePool().invoke(new SentenceTask(sents, offsets, out, 0, out.length, grain));
+    } catch (RuntimeException e) {
+      // the pool may rethrow a copy of the failure, caused by the original
+      for (Throwable t = e; t != null; t = t.getCause())
+        if (t instanceof AnnotationException)
+          throw (AnnotationException) t;
+      throw e;
+    }
+    return Arrays.asList(out);
+  }
+
+  /**
+   * Converts the sentences in [from, to), splitting the range in two while it is larger than the grain.
+   */
+  private final class SentenceTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final List<AgigaSentence> sents;
+    private final int[] offsets;
+    private final Sentence[] out;
+    private final int from;
+    private final int to;
+    private final int grain;
+
+    SentenceTask(List<AgigaSentence> sents, int[] offsets, Sentence[] out, int from, int to, int grain) {
+      this.sents = sents;
+      this.offsets = offsets;
+      this.out = out;
+      this.from = from;
+      this.to = to;
+      this.grain = grain;
+    }
+
+    @Override
+    protected void compute() {
+      if (this.to - this.from <= this.grain) {
+        for (int i = this.from; i < this.to; i++) {
+          try {
+            this.out[i] = convertSentence(this.sents.get(i), this.offsets[i], true);
+          } catch (AnnotationException e) {
+            throw new SentenceFailure(e);
+          }
+        }
+        return;
+      }
+      int mid = (this.from + this.to) >>> 1;
+      invokeAll(new SentenceTask(this.sents, this.offsets, this.out, this.from, mid, this.grain),
+          new SentenceTask(this.sents, this.offsets, this.out, mid, this.to, this.grain));
+    }
+  }
+
+  /**
+   * Carries an {@link AnnotationException} out of a {@link SentenceTask}.
+   */
+  private static final class SentenceFailure extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    SentenceFailure(AnnotationException cause) {
+      super(cause);
+    }
+  }
+
   public Communication extractRawCommunication(AgigaDocument doc) {
+    return this.extractRawCommunication(doc.getDocId(), flattenText(doc));
+  }
+
+  /**
+   * @param text
+   *          the text of the document, as {@link #flattenText(AgigaDocument)} gives it
+   */
+  public Communication extractRawCommunication(String docId, String text) {
     Communication comm = new Communication();
-    comm.setId(doc.getDocId());
-    comm.setText(flattenText(doc));
+    comm.setId(docId);
+    comm.setText(text);
     comm.setType("News");
     comm.setUuid(this.idF.getConcreteUUID());
     AnnotationMetadata md = new AnnotationMetadata().setTool(this.toolName).setTimestamp(
@@ -800,74 +1079,165 @@ public class AgigaConverter {
   public static void main(String[] args) throws Exception {
     if (args.length < 2) {
       System.out.println("Please provide at minimum: ");
-      System.out.println("Path to a directory for Concrete thrift output files");
+      System.out.println("Path to a directory for Concrete thrift output files, or - for standard output");
       System.out
           .println("A boolean to indicate whether to extract ONLY the raw Concrete Communications (e.g., whether drop annotations or not)");
-      System.out.println("Path to 1 or more input Agiga XML files");
+      System.out.println("Path to 0 or more input Agiga XML files, or - for standard input (the default)");
       System.out.println("e.g., " + AgigaConverter.class.getSimpleName() + " /my/output/dir true /my/agiga/doc.xml.gz");
+      System.out.println("or, in a pipeline, zcat doc.xml.gz | " + AgigaConverter.class.getSimpleName() + " - false > comms");
       System.exit(1);
     }
 
     String rawExtractionString = args[1];
     boolean rawExtraction = Boolean.parseBoolean(rawExtractionString);
+    run(new File(args[0]), rawExtraction, Arrays.asList(args).subList(2, args.length));
+  }
+
+  /**
+   * Convert {@code inputFiles} into {@code outputDir}, as configured by the properties. This is {@link #main(String[])}
+   * after the arguments are parsed; {@link RawExtractor} calls it without loading CoreNLP.
+   * <br/>
+   * An output directory of {@code -} writes length-delimited Communications to standard output (see
+   * {@link FramedCommunicationSink}), and an input of {@code -}, or no inputs, reads standard input.
+   */
+  static void run(File outputDir, boolean rawExtraction, List<String> inputFiles) throws Exception {
+    // frames go to standard output, so everything else goes to standard error
+    boolean toStdout = CommunicationSinks.isStandardOutput(outputDir);
+    if (toStdout)
+      System.setOut(System.err);
+
     if (rawExtraction)
       logger.info("Extracting only raw Agiga documents.");
     else
       logger.info("Extracting Agiga documents and annotations.");
 
-    String outputDirPath = args[0];
-    File outputDir = new File(outputDirPath);
-    if (!outputDir.exists())
-      outputDir.mkdir();
-    logger.info("Writing output to: " + outputDirPath);
-
-    long start = System.currentTimeMillis();
+    if (toStdout) {
+      logger.info("Writing output to standard output.");
+    } else {
+      if (!outputDir.exists())
+        outputDir.mkdir();
+      logger.info("Writing output to: " + outputDir.getPath());
+    }
+    // where the quarantine directory goes unless it is set
+    File workDir = toStdout ? new File(".") : outputDir;
+    if (inputFiles.isEmpty())
+      inputFiles = Collections.singletonList(AgigaDocumentChunker.STANDARD_INPUT);
 
     boolean addTextSpans = true;
 
     AgigaConverter ac = new AgigaConverter(addTextSpans);
+    ConcreteAgigaProperties props = ac.props;
 
-    CommunicationSerializer cs = new CompactCommunicationSerializer();
-    int c = 0;
-    int step = 1000;
-    for (int i = 2; i < args.length; i++) {
-      File agigaXML = new File(args[i]);
-      if (!agigaXML.exists()) {
-        logger.error("File: {} does not seem to exist.", agigaXML.getAbsolutePath());
-        continue;
-      } else if (!agigaXML.isFile()) {
-        logger.error("File: {} does not seem to be a file.", agigaXML.getAbsolutePath());
-        continue;
-      }
+    Quarantine quarantine = null;
+    if (props.isQuarantineEnabled()) {
+      String qDir = props.getQuarantineDir();
+      quarantine = new Quarantine(qDir == null ? new File(workDir, "quarantine") : new File(qDir));
+    }
+
+    File replayDir = null;
+    // a pipeline only gets a replay directory if it asks for one
+    if (props.getReplayTopK() > 0 && (!toStdout || props.getReplayDir() != null))
+      replayDir = props.getReplayDir() == null ? new File(outputDir, "replay") : new File(props.getReplayDir());
+    SlowDocumentCapture capture = null;
+
+    File offsetIndexDir = null;
+    if (props.getOffsetIndexDir() != null && !rawExtraction) {
+      offsetIndexDir = new File(props.getOffsetIndexDir());
+      offsetIndexDir.mkdirs();
+    }
 
-      StreamingDocumentReader docReader = new StreamingDocumentReader(agigaXML.getPath(), new AgigaPrefs());
-      logger.info("Reading from: " + agigaXML.getPath());
-
-      for (AgigaDocument doc : docReader) {
-        String outFilePath = outputDir + File.separator + doc.getDocId() + ".thrift";
-        File outFile = new File(outFilePath);
-        if (outFile.exists())
-          outFile.delete();
-        outFile.createNewFile();
-        try (FileOutputStream fos = new FileOutputStream(outFile)) {
-          Communication comm;
-          if (rawExtraction)
-            comm = ac.extractRawCommunication(doc);
-          else
-            comm = ac.convertDoc(doc);
-
-          byte[] commBytes = cs.toBytes(comm);
-          fos.write(commBytes);
-
-          c++;
-          if (c % step == 0) {
-            logger.info("Wrote {} documents in {} seconds.", c, (System.currentTimeMillis() - start) / 1000d);
+    StatisticsCollector statistics = null;
+    if (props.getStatisticsDir() != null && !rawExtraction)
+      statistics = new StatisticsCollector();
+
+    InvertedIndexWriter invertedIndex = null;
+    if (props.getInvertedIndexFile() != null && !rawExtraction)
+      invertedIndex = new InvertedIndexWriter(new File(props.getInvertedIndexFile()),
+          props.getInvertedIndexSegmentMB() * (1L << 20));
+
+    OutputValidator validator = null;
+    if (props.getValidationSampleRate() > 0)
+      validator = new OutputValidator(props.getValidationSampleRate(), props.getValidationThreads());
+
+    Diagnostics.get().setMaxExamples(props.getDiagnosticsExamples());
+    Diagnostics.get().startPeriodicSummary(props.getDiagnosticsSummarySeconds());
+
+    int nThreads = props.getConversionThreads();
+    String manifestDir = props.getWorkManifestDir();
+    AgigaConversionRunner runner;
+    if (manifestDir == null) {
+      try (CommunicationSink sink = CommunicationSinks.fromProperties(outputDir, props)) {
+        runner = new AgigaConversionRunner(ac, rawExtraction, sink, quarantine);
+        runner.setOffsetIndexDir(offsetIndexDir);
+        runner.setOutputValidator(validator);
+        runner.setStatisticsCollector(statistics);
+        runner.setInvertedIndexWriter(invertedIndex);
+        if (replayDir != null)
+          runner.setSlowDocumentCapture(capture = new SlowDocumentCapture(replayDir, props.getReplayTopK()));
+        int stdinBuffer = props.getStdioBufferKB() * 1024;
+        if (nThreads > 1) {
+          List<File> files = new ArrayList<>();
+          for (String f : inputFiles)
+            if (!f.equals(AgigaDocumentChunker.STANDARD_INPUT))
+              files.add(new File(f));
+          try (ConversionScheduler scheduler = new ConversionScheduler(runner, nThreads)) {
+            scheduler.convertFiles(files);
+            if (files.size() < inputFiles.size())
+              scheduler.convertStream(STDIN_SOURCE, AgigaDocumentChunker.openStandardInput(stdinBuffer));
+          }
+        } else {
+          for (String f : inputFiles) {
+            if (f.equals(AgigaDocumentChunker.STANDARD_INPUT))
+              runner.convertStream(STDIN_SOURCE, AgigaDocumentChunker.openStandardInput(stdinBuffer));
+            else
+              runner.convertFile(new File(f));
           }
         }
+      } finally {
+        ac.close();
       }
-
-      logger.info("Finished. Wrote {} communications to {} in {} seconds.", c, outputDir.getPath(),
-          (System.currentTimeMillis() - start) / 1000d);
+    } else {
+      if (CommunicationSinks.isStandardOutput(outputDir))
+        throw new IllegalArgumentException("work.manifest.dir needs an output directory, not standard output.");
+      String workerId = props.getWorkerId() == null ? WorkManifest.defaultWorkerId() : props.getWorkerId();
+      logger.info("Claiming input files from the work manifest in {} as worker {}", manifestDir, workerId);
+      WorkManifest manifest = new WorkManifest(new File(manifestDir).toPath(), inputFiles, workerId,
+          props.getLeaseTimeoutSeconds() * 1000L, props.getLeaseHeartbeatSeconds() * 1000L,
+          props.getWorkPollSeconds() * 1000L);
+      try (LeasedCommunicationSink sink = new LeasedCommunicationSink(outputDir, props)) {
+        manifest.setLeaseOutput(sink);
+        runner = new AgigaConversionRunner(ac, rawExtraction, sink, quarantine);
+        runner.setOffsetIndexDir(offsetIndexDir);
+        runner.setOutputValidator(validator);
+        runner.setStatisticsCollector(statistics);
+        runner.setInvertedIndexWriter(invertedIndex);
+        // each worker only sees its own documents
+        if (replayDir != null)
+          runner.setSlowDocumentCapture(capture = new SlowDocumentCapture(new File(replayDir, workerId),
+              props.getReplayTopK()));
+        if (nThreads > 1) {
+          try (ConversionScheduler scheduler = new ConversionScheduler(runner, nThreads)) {
+            scheduler.convertAll(manifest);
+          }
+        } else {
+          runner.convertAll(manifest);
+        }
+      } finally {
+        manifest.close();
+        ac.close();
+      }
+    }
+    Diagnostics.get().stopPeriodicSummary();
+    runner.logSummary();
+    if (validator != null)
+      validator.close();
+    if (statistics != null)
+      statistics.write(new File(props.getStatisticsDir()), props.getStatisticsTopWords());
+    if (invertedIndex != null)
+      invertedIndex.close();
+    if (capture != null) {
+      capture.write();
+      capture.logSummary();
     }
   }
 }
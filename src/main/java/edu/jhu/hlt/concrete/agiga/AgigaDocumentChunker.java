@@ -0,0 +1,131 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Splits an Agiga XML file (gzipped if its name ends in {@code .gz}) into the
+ * raw XML of its documents, without parsing them. Documents are found the way
+ * {@link edu.jhu.agiga.StreamingDocumentReader} finds them: a document runs
+ * from a line starting with {@code <DOC} to the next line starting with
+ * {@code </DOC}.
+ */
+public class AgigaDocumentChunker implements Iterable<RawAgigaDocument>, Iterator<RawAgigaDocument>, Closeable {
+
+  /**
+   * The input file name that means standard input.
+   */
+  public static final String STANDARD_INPUT = "-";
+
+  private final String source;
+  private final BufferedReader reader;
+  private RawAgigaDocument next;
+  private int nRead = 0;
+
+  public AgigaDocumentChunker(String path) throws IOException {
+    this(path, open(path));
+  }
+
+  /**
+   * @param source
+   *          name of the input, used in {@link RawAgigaDocument#getSource()}
+   */
+  public AgigaDocumentChunker(String source, InputStream in) {
+    this.source = source;
+    this.reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+  }
+
+  private static InputStream open(String path) throws IOException {
+    InputStream is = new FileInputStream(path);
+    return path.endsWith(".gz") ? new GZIPInputStream(is) : is;
+  }
+
+  /**
+   * @return standard input, read {@code bufferSize} bytes at a time and
+   *         gunzipped if it starts with the gzip magic number
+   */
+  public static InputStream openStandardInput(int bufferSize) throws IOException {
+    return gunzipIfGzipped(new FileInputStream(FileDescriptor.in), bufferSize);
+  }
+
+  static InputStream gunzipIfGzipped(InputStream is, int bufferSize) throws IOException {
+    BufferedInputStream in = new BufferedInputStream(is, bufferSize);
+    in.mark(2);
+    int b0 = in.read();
+    int b1 = in.read();
+    in.reset();
+    if (b0 == (GZIPInputStream.GZIP_MAGIC & 0xff) && b1 == GZIPInputStream.GZIP_MAGIC >>> 8)
+      return new GZIPInputStream(in, bufferSize);
+    return in;
+  }
+
+  public String getSource() {
+    return source;
+  }
+
+  /**
+   * @return the next document, or null at the end of the input
+   */
+  public RawAgigaDocument nextDocument() throws IOException {
+    StringBuilder sb = null;
+    String line;
+    while ((line = this.reader.readLine()) != null) {
+      if (sb == null) {
+        if (line.startsWith("<DOC"))
+          sb = new StringBuilder();
+        else
+          continue;
+      }
+      sb.append(line).append("\n");
+      if (line.startsWith("</DOC"))
+        return new RawAgigaDocument(this.source, this.nRead++, sb.toString());
+    }
+    return null;
+  }
+
+  @Override
+  public Iterator<RawAgigaDocument> iterator() {
+    return this;
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (this.next == null) {
+      try {
+        this.next = this.nextDocument();
+      } catch (IOException e) {
+        throw new RuntimeException("Failed to read from " + this.source, e);
+      }
+    }
+    return this.next != null;
+  }
+
+  @Override
+  public RawAgigaDocument next() {
+    if (!this.hasNext())
+      throw new NoSuchElementException();
+    RawAgigaDocument d = this.next;
+    this.next = null;
+    return d;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.reader.close();
+  }
+}
@@ -0,0 +1,75 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.IOException;
+import java.util.List;
+
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.DependencyParse;
+import edu.jhu.hlt.concrete.Entity;
+import edu.jhu.hlt.concrete.EntityMention;
+import edu.jhu.hlt.concrete.Parse;
+import edu.jhu.hlt.concrete.Sentence;
+import edu.jhu.hlt.concrete.Tokenization;
+
+/**
+ * Receives the pieces of a document as an {@link AgigaWalker} converts them,
+ * in document order, instead of a whole {@link Communication}. Nothing is
+ * attached to anything else: a parse is not added to its tokenization, nor an
+ * entity to an entity set, so whatever a visitor does not keep can be
+ * collected as soon as its callback returns.
+ * <br/>
+ * Every callback does nothing; override the ones you need.
+ */
+public abstract class AgigaVisitor {
+
+  /**
+   * Called first for each document.
+   *
+   * @param comm
+   *          the raw Communication: id, text and metadata, without sections
+   */
+  public void onDocument(AgigaDocument doc, Communication comm) throws IOException {
+  }
+
+  /**
+   * Called for each sentence with tokens, before its parses.
+   *
+   * @param sentIdx
+   *          the index of the sentence in the Agiga document
+   * @param sentence
+   *          the sentence, with its tokenization. The tokenization has the
+   *          lemma, POS and NER taggings if those were asked for, but no
+   *          parses.
+   */
+  public void onSentence(int sentIdx, Sentence sentence) throws IOException {
+  }
+
+  /**
+   * Called with the constituency parse of the last sentence.
+   */
+  public void onParse(Tokenization tokenization, Parse parse) throws IOException {
+  }
+
+  /**
+   * Called with each dependency parse of the last sentence, in the order
+   * {@link AgigaConverter#convertDoc(AgigaDocument)} adds them.
+   */
+  public void onDependencyParse(Tokenization tokenization, DependencyParse parse) throws IOException {
+  }
+
+  /**
+   * Called for each coreference chain, after all the sentences.
+   *
+   * @param mentions
+   *          the entity's mentions, in the order of its mention ids
+   */
+  public void onEntity(Entity entity, List<EntityMention> mentions) throws IOException {
+  }
+
+  /**
+   * Called last for each document.
+   */
+  public void onDocumentEnd(AgigaDocument doc) throws IOException {
+  }
+}
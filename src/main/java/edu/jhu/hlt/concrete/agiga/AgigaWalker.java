@@ -0,0 +1,165 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import concrete.tools.AnnotationException;
+import edu.jhu.agiga.AgigaCoref;
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaPrefs;
+import edu.jhu.agiga.AgigaSentence;
+import edu.jhu.agiga.StreamingDocumentReader;
+import edu.jhu.hlt.concrete.DependencyParse;
+import edu.jhu.hlt.concrete.Entity;
+import edu.jhu.hlt.concrete.EntityMention;
+import edu.jhu.hlt.concrete.Parse;
+import edu.jhu.hlt.concrete.Sentence;
+import edu.jhu.hlt.concrete.Tokenization;
+import edu.jhu.hlt.concrete.UUID;
+
+/**
+ * Converts Agiga documents a piece at a time, handing each piece to an
+ * {@link AgigaVisitor} as soon as it is converted, rather than building a
+ * whole {@link edu.jhu.hlt.concrete.Communication} as
+ * {@link AgigaConverter#convertDoc(AgigaDocument)} does. Only the layers asked
+ * for are read from the XML and converted, so a consumer that needs only
+ * tokens pays neither for parsing the trees nor for finding their heads.
+ * <br/>
+ * The pieces are the ones {@code convertDoc} would build, with the same
+ * metadata, and the same diagnostics are recorded along the way.
+ */
+public class AgigaWalker {
+
+  /**
+   * What to convert besides the tokens.
+   */
+  public enum Layer {
+    /** Lemma, POS and NER taggings. */
+    TAGGINGS,
+    PARSE,
+    BASIC_DEPS,
+    COL_DEPS,
+    COL_CCPROC_DEPS,
+    COREF;
+  }
+
+  private static final Diagnostics DIAGNOSTICS = Diagnostics.get();
+
+  private static final Layer[] DEPENDENCY_LAYERS = { Layer.BASIC_DEPS, Layer.COL_DEPS, Layer.COL_CCPROC_DEPS };
+
+  private final AgigaConverter converter;
+  private final EnumSet<Layer> layers;
+
+  /**
+   * @param converter
+   *          makes the pieces; its text span and empty annotation settings
+   *          apply
+   */
+  public AgigaWalker(AgigaConverter converter, Set<Layer> layers) {
+    this.converter = converter;
+    this.layers = layers.isEmpty() ? EnumSet.noneOf(Layer.class) : EnumSet.copyOf(layers);
+  }
+
+  /**
+   * @return a walker of every layer
+   */
+  public static AgigaWalker all(AgigaConverter converter) {
+    return new AgigaWalker(converter, EnumSet.allOf(Layer.class));
+  }
+
+  /**
+   * @return prefs that read only what this walker converts
+   */
+  public AgigaPrefs getPrefs() {
+    AgigaPrefs prefs = new AgigaPrefs();
+    prefs.setAll(false);
+    prefs.setWord(true);
+    prefs.setOffsets(true);
+    boolean taggings = this.layers.contains(Layer.TAGGINGS);
+    prefs.setLemma(taggings);
+    prefs.setPos(taggings);
+    prefs.setNer(taggings);
+    prefs.setParse(this.layers.contains(Layer.PARSE));
+    prefs.setBasicDeps(this.layers.contains(Layer.BASIC_DEPS));
+    prefs.setColDeps(this.layers.contains(Layer.COL_DEPS));
+    prefs.setColCcprocDeps(this.layers.contains(Layer.COL_CCPROC_DEPS));
+    prefs.setCoref(this.layers.contains(Layer.COREF));
+    return prefs;
+  }
+
+  /**
+   * Walk every document in an Agiga file, reading it with
+   * {@link #getPrefs()}.
+   *
+   * @return the number of documents walked
+   */
+  public long walk(String agigaPath, AgigaVisitor visitor) throws AnnotationException, IOException {
+    long n = 0;
+    for (AgigaDocument doc : new StreamingDocumentReader(agigaPath, this.getPrefs())) {
+      this.walk(doc, visitor);
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * Walk one document, which must have been read with at least the layers of
+   * this walker.
+   */
+  public void walk(AgigaDocument doc, AgigaVisitor visitor) throws AnnotationException, IOException {
+    AgigaConverter ac = this.converter;
+    DocumentText text = new DocumentText(doc);
+    visitor.onDocument(doc, ac.extractRawCommunication(doc.getDocId(), text.getText()));
+
+    // mentions refer to sentences by index, empty ones included
+    List<UUID> tokenizationIds = new ArrayList<>(doc.getSents().size());
+    int charsFromStartOfCommunication = 0;
+    for (AgigaSentence sentence : doc.getSents()) {
+      if (sentence.getTokens().isEmpty()) {
+        DIAGNOSTICS.record(AgigaConverter.EMPTY_SENTENCE, "sentence {} of {}", sentence.getSentIdx(), doc.getDocId());
+        tokenizationIds.add(null);
+        continue;
+      }
+
+      Sentence st = ac.convertSentence(sentence, charsFromStartOfCommunication, false);
+      Tokenization tkz = st.getTokenization();
+      UUID tUuid = tkz.getUuid();
+      if (this.layers.contains(Layer.TAGGINGS))
+        ac.addTaggings(sentence, tkz);
+      visitor.onSentence(tokenizationIds.size(), st);
+
+      if (this.layers.contains(Layer.PARSE)) {
+        Parse parse = ac.convertParse(sentence, tUuid);
+        if (!ac.isAllowingEmpties() && !parse.isSetConstituentList())
+          DIAGNOSTICS.record("Empty constituency parse left out", "tokenization {}", tUuid);
+        else
+          visitor.onParse(tkz, parse);
+      }
+      for (int i = 0; i < DEPENDENCY_LAYERS.length; i++) {
+        if (!this.layers.contains(DEPENDENCY_LAYERS[i]))
+          continue;
+        String dt = AgigaConverter.DEPENDENCY_TYPES[i];
+        DependencyParse dp = ac.convertDependencyParse(ac.getDepsForType(sentence, dt), dt, tUuid);
+        if (!ac.isAllowingEmpties() && !dp.isSetDependencyList())
+          DIAGNOSTICS.record("Empty dependency parse left out", "{} in tokenization {}", dt, tUuid);
+        else
+          visitor.onDependencyParse(tkz, dp);
+      }
+
+      charsFromStartOfCommunication += text.getSentenceLength(tokenizationIds.size()) + 1;
+      tokenizationIds.add(tUuid);
+    }
+
+    if (this.layers.contains(Layer.COREF)) {
+      for (AgigaCoref coref : doc.getCorefs()) {
+        List<EntityMention> mentions = new ArrayList<>(coref.getMentions().size());
+        Entity e = ac.convertCoref(coref, doc, text, tokenizationIds, mentions);
+        visitor.onEntity(e, mentions);
+      }
+    }
+    visitor.onDocumentEnd(doc);
+  }
+}
@@ -0,0 +1,517 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import concrete.agiga.util.ConcreteAgigaProperties;
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaPrefs;
+import edu.jhu.agiga.AgigaSentence;
+import edu.jhu.agiga.AgigaToken;
+import edu.jhu.agiga.AgigaTypedDependency;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.Dependency;
+import edu.jhu.hlt.concrete.DependencyParse;
+import edu.jhu.hlt.concrete.Section;
+import edu.jhu.hlt.concrete.Sentence;
+import edu.jhu.hlt.concrete.TaggedToken;
+import edu.jhu.hlt.concrete.Token;
+import edu.jhu.hlt.concrete.TokenTagging;
+import edu.jhu.hlt.concrete.Tokenization;
+import edu.jhu.hlt.concrete.util.ConcreteException;
+
+/**
+ * Writes the dependency parses of converted Communications, or of Agiga XML
+ * directly, as CoNLL-X or CoNLL-U.
+ * <br/>
+ * Documents are formatted on a pool of threads and written in input order: the
+ * reading thread keeps a bounded window of documents in flight and writes each
+ * one as soon as it and everything before it are done.
+ * <br/>
+ * Dependency labels are the Stanford dependencies Agiga was annotated with,
+ * which are not always a tree. A word without a head (punctuation, or in
+ * collapsed dependencies a word folded into a relation, such as a preposition)
+ * is written with head 0 and relation {@code erased}, as Stanford CoreNLP does;
+ * a word with several heads gets the first in the parse. CoNLL-U output also lists every head in the
+ * DEPS column. The universal POS column is left empty, since Agiga only has
+ * Penn Treebank tags.
+ */
+public class CoNLLExporter implements Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(CoNLLExporter.class);
+
+  /**
+   * Documents in flight per thread: enough to keep every thread busy while one
+   * slow document holds up the writer.
+   */
+  private static final int WINDOW_PER_THREAD = 4;
+
+  private static final String ERASED = "erased";
+
+  public enum Format {
+    CONLLX, CONLLU;
+
+    public static Format parse(String name) {
+      return valueOf(name.trim().replace("-", "").toUpperCase());
+    }
+  }
+
+  public enum DependencyType {
+    BASIC("basic-deps"), COL("col-deps"), COL_CCPROC("col-ccproc-deps");
+
+    private final String name;
+
+    private DependencyType(String name) {
+      this.name = name;
+    }
+
+    /**
+     * @return the name {@link AgigaConverter} gives parses of this type, at the
+     *         start of their tool name
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @param name {@code basic}, {@code col} or {@code col-ccproc}, with or
+     *          without the {@code -deps} suffix
+     */
+    public static DependencyType parse(String name) {
+      String n = name.trim().toLowerCase();
+      for (DependencyType t : values())
+        if (t.name.equals(n) || t.name.equals(n + "-deps"))
+          return t;
+      throw new IllegalArgumentException("Unknown dependency type: " + name);
+    }
+  }
+
+  /**
+   * The formatted text of one document.
+   */
+  private static final class Exported {
+    private final String text;
+    private final int nSentences;
+
+    Exported(String text, int nSentences) {
+      this.text = text;
+      this.nSentences = nSentences;
+    }
+  }
+
+  private final Format format;
+  private final DependencyType depType;
+  private final int nThreads;
+  private final ExecutorService pool;
+  private final DocumentXmlParser parser;
+
+  public CoNLLExporter(Format format, DependencyType depType, int nThreads) {
+    this.format = format;
+    this.depType = depType;
+    this.nThreads = nThreads;
+    this.pool = nThreads > 1 ? Executors.newFixedThreadPool(nThreads) : null;
+
+    // only what is written out
+    AgigaPrefs prefs = new AgigaPrefs();
+    prefs.setAll(false);
+    prefs.setWord(true);
+    prefs.setLemma(true);
+    prefs.setPos(true);
+    prefs.setBasicDeps(depType == DependencyType.BASIC);
+    prefs.setColDeps(depType == DependencyType.COL);
+    prefs.setColCcprocDeps(depType == DependencyType.COL_CCPROC);
+    this.parser = new DocumentXmlParser(prefs);
+  }
+
+  /**
+   * Write every Communication in {@code reader}, in file order.
+   *
+   * @return the number of sentences written
+   */
+  public long export(final MappedCommunicationReader reader, Writer out) throws IOException, ConcreteException {
+    final int n = reader.getNumRecords();
+    return this.run(new Iterator<Callable<Exported>>() {
+      private int rec = 0;
+
+      @Override
+      public boolean hasNext() {
+        return rec < n;
+      }
+
+      @Override
+      public Callable<Exported> next() {
+        if (!this.hasNext())
+          throw new NoSuchElementException();
+        final int r = rec++;
+        return new Callable<Exported>() {
+          @Override
+          public Exported call() throws Exception {
+            return format(reader.getRecord(r));
+          }
+        };
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    }, out);
+  }
+
+  /**
+   * Write every document of an Agiga XML file straight from its annotations,
+   * without converting it to a Communication.
+   *
+   * @return the number of sentences written
+   */
+  public long exportAgiga(File agigaXML, Writer out) throws IOException, ConcreteException {
+    try (final AgigaDocumentChunker chunker = new AgigaDocumentChunker(agigaXML.getPath())) {
+      return this.run(new Iterator<Callable<Exported>>() {
+        @Override
+        public boolean hasNext() {
+          return chunker.hasNext();
+        }
+
+        @Override
+        public Callable<Exported> next() {
+          final RawAgigaDocument raw = chunker.next();
+          return new Callable<Exported>() {
+            @Override
+            public Exported call() throws Exception {
+              return format(raw.parse(parser));
+            }
+          };
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      }, out);
+    }
+  }
+
+  private long run(Iterator<Callable<Exported>> tasks, Writer out) throws IOException, ConcreteException {
+    long nSentences = 0;
+    if (this.pool == null) {
+      while (tasks.hasNext())
+        nSentences += write(call(tasks.next()), out);
+      return nSentences;
+    }
+
+    Deque<Future<Exported>> window = new ArrayDeque<>();
+    int maxWindow = this.nThreads * WINDOW_PER_THREAD;
+    try {
+      while (tasks.hasNext()) {
+        window.addLast(this.pool.submit(tasks.next()));
+        if (window.size() >= maxWindow)
+          nSentences += write(get(window.removeFirst()), out);
+      }
+      while (!window.isEmpty())
+        nSentences += write(get(window.removeFirst()), out);
+    } finally {
+      for (Future<Exported> f : window)
+        f.cancel(true);
+    }
+    return nSentences;
+  }
+
+  private static int write(Exported e, Writer out) throws IOException {
+    out.write(e.text);
+    return e.nSentences;
+  }
+
+  private static Exported call(Callable<Exported> task) throws IOException, ConcreteException {
+    try {
+      return task.call();
+    } catch (IOException | ConcreteException | RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new ConcreteException("Export failed.", e);
+    }
+  }
+
+  private static Exported get(Future<Exported> f) throws IOException, ConcreteException {
+    try {
+      return f.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ConcreteException("Interrupted while exporting.", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof ConcreteException)
+        throw (ConcreteException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new ConcreteException("Export failed.", cause);
+    }
+  }
+
+  Exported format(Communication comm) {
+    StringBuilder sb = new StringBuilder(8192);
+    int nSentences = 0;
+    if (comm.isSetSectionList()) {
+      for (Section section : comm.getSectionList()) {
+        if (!section.isSetSentenceList())
+          continue;
+        for (Sentence sent : section.getSentenceList()) {
+          Tokenization tkz = sent.getTokenization();
+          if (tkz == null || !tkz.isSetTokenList() || tkz.getTokenList().getTokenListSize() == 0)
+            continue;
+          this.appendSentence(sb, comm.getId(), nSentences++, tkz);
+        }
+      }
+    }
+    return new Exported(sb.toString(), nSentences);
+  }
+
+  Exported format(AgigaDocument doc) {
+    StringBuilder sb = new StringBuilder(8192);
+    int nSentences = 0;
+    for (AgigaSentence sent : doc.getSents()) {
+      List<AgigaToken> tokens = sent.getTokens();
+      int n = tokens.size();
+      if (n == 0)
+        continue;
+      String[] words = new String[n];
+      String[] lemmas = new String[n];
+      String[] tags = new String[n];
+      for (int i = 0; i < n; i++) {
+        AgigaToken tok = tokens.get(i);
+        words[i] = tok.getWord();
+        lemmas[i] = tok.getLemma();
+        tags[i] = tok.getPosTag();
+      }
+
+      List<AgigaTypedDependency> deps;
+      switch (this.depType) {
+      case BASIC:
+        deps = sent.getBasicDeps();
+        break;
+      case COL:
+        deps = sent.getColDeps();
+        break;
+      default:
+        deps = sent.getColCcprocDeps();
+      }
+      int m = deps.size();
+      int[] dep = new int[m];
+      int[] gov = new int[m];
+      String[] rel = new String[m];
+      for (int i = 0; i < m; i++) {
+        AgigaTypedDependency d = deps.get(i);
+        dep[i] = d.getDepIdx();
+        gov[i] = d.getGovIdx();
+        rel[i] = d.getType();
+      }
+      this.appendSentence(sb, doc.getDocId(), nSentences++, words, lemmas, tags, dep, gov, rel);
+    }
+    return new Exported(sb.toString(), nSentences);
+  }
+
+  private void appendSentence(StringBuilder sb, String docId, int sentIdx, Tokenization tkz) {
+    List<Token> tokens = tkz.getTokenList().getTokenList();
+    int n = tokens.size();
+    String[] words = new String[n];
+    for (Token t : tokens)
+      words[t.getTokenIndex()] = t.getText();
+    String[] lemmas = new String[n];
+    String[] tags = new String[n];
+    if (tkz.isSetTokenTaggingList()) {
+      for (TokenTagging tt : tkz.getTokenTaggingList()) {
+        String[] into = "LEMMA".equals(tt.getTaggingType()) ? lemmas : "POS".equals(tt.getTaggingType()) ? tags : null;
+        if (into == null || !tt.isSetTaggedTokenList())
+          continue;
+        for (TaggedToken t : tt.getTaggedTokenList())
+          if (into[t.getTokenIndex()] == null)
+            into[t.getTokenIndex()] = t.getTag();
+      }
+    }
+
+    DependencyParse parse = null;
+    if (tkz.isSetDependencyParseList()) {
+      String prefix = this.depType.getName() + " ";
+      for (DependencyParse dp : tkz.getDependencyParseList())
+        if (dp.getMetadata().getTool().startsWith(prefix)) {
+          parse = dp;
+          break;
+        }
+    }
+    // the converter leaves out empty parses unless told to keep them
+    int m = parse != null && parse.isSetDependencyList() ? parse.getDependencyListSize() : 0;
+    int[] dep = new int[m];
+    int[] gov = new int[m];
+    String[] rel = new String[m];
+    for (int i = 0; i < m; i++) {
+      Dependency d = parse.getDependencyList().get(i);
+      dep[i] = d.getDep();
+      gov[i] = d.getGov();
+      rel[i] = d.getEdgeType();
+    }
+    this.appendSentence(sb, docId, sentIdx, words, lemmas, tags, dep, gov, rel);
+  }
+
+  /**
+   * Append one sentence. Token indices in {@code dep} and {@code gov} are from
+   * 0; a negative governor is the root.
+   */
+  private void appendSentence(StringBuilder sb, String docId, int sentIdx, String[] words, String[] lemmas,
+      String[] tags, int[] dep, int[] gov, String[] rel) {
+    int n = words.length;
+    boolean conllu = this.format == Format.CONLLU;
+
+    // the first edge into each word
+    int[] head = new int[n];
+    Arrays.fill(head, -1);
+    for (int i = 0; i < dep.length; i++)
+      if (dep[i] >= 0 && dep[i] < n && head[dep[i]] < 0)
+        head[dep[i]] = i;
+
+    // for DEPS: every edge, by dependent and then governor
+    long[] byDep = null;
+    if (conllu) {
+      byDep = new long[dep.length];
+      for (int i = 0; i < dep.length; i++)
+        byDep[i] = ((long) dep[i] << 42) | ((long) (gov[i] + 1) << 21) | i;
+      Arrays.sort(byDep);
+      if (sentIdx == 0)
+        sb.append("# newdoc id = ").append(docId).append('\n');
+      sb.append("# sent_id = ").append(docId).append('-').append(sentIdx + 1).append('\n');
+      sb.append("# text =");
+      for (String w : words)
+        sb.append(' ').append(w);
+      sb.append('\n');
+    }
+
+    int next = 0;
+    for (int w = 0; w < n; w++) {
+      sb.append(w + 1).append('\t');
+      this.appendField(sb, words[w]).append('\t');
+      this.appendField(sb, lemmas[w]).append('\t');
+      if (conllu)
+        sb.append('_');
+      else
+        this.appendField(sb, tags[w]);
+      sb.append('\t');
+      this.appendField(sb, tags[w]).append('\t');
+      sb.append("_\t");
+      if (head[w] >= 0) {
+        int e = head[w];
+        sb.append(gov[e] + 1).append('\t');
+        this.appendField(sb, rel[e]);
+      } else {
+        sb.append("0\t").append(ERASED);
+      }
+      sb.append('\t');
+
+      if (conllu) {
+        while (next < byDep.length && (byDep[next] >>> 42) < w)
+          next++;
+        int first = next;
+        while (next < byDep.length && (byDep[next] >>> 42) == w) {
+          int e = (int) (byDep[next] & 0x1FFFFF);
+          if (next > first)
+            sb.append('|');
+          sb.append(gov[e] + 1).append(':');
+          this.appendField(sb, rel[e]);
+          next++;
+        }
+        if (next == first)
+          sb.append('_');
+        sb.append("\t_\n");
+      } else {
+        sb.append("_\t_\n");
+      }
+    }
+    sb.append('\n');
+  }
+
+  /**
+   * Append a column value: {@code _} if it is missing, with tabs and line breaks
+   * (and, in CoNLL-X, spaces) replaced by {@code _}.
+   */
+  private StringBuilder appendField(StringBuilder sb, String value) {
+    if (value == null || value.isEmpty())
+      return sb.append('_');
+    boolean spaces = this.format == Format.CONLLX;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\t' || c == '\n' || c == '\r' || (spaces && c == ' '))
+        c = '_';
+      sb.append(c);
+    }
+    return sb;
+  }
+
+  @Override
+  public void close() {
+    if (this.pool != null)
+      this.pool.shutdownNow();
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.out.println("Please provide: ");
+      System.out.println("Path to the output file, or - for standard output");
+      System.out.println("Path to 1 or more Concrete files (.thrift or .comms) or Agiga XML files (.xml or .xml.gz)");
+      System.out.println("e.g., " + CoNLLExporter.class.getSimpleName() + " /my/train.conll /my/output/dir/part.comms");
+      System.exit(1);
+    }
+
+    ConcreteAgigaProperties props = new ConcreteAgigaProperties();
+    Format format = Format.parse(props.getCoNLLFormat());
+    DependencyType depType = DependencyType.parse(props.getCoNLLDependencyType());
+    int nThreads = props.getConversionThreads();
+    logger.info("Writing {} {} dependencies on {} threads", format, depType.getName(), nThreads);
+
+    List<Path> concrete = new ArrayList<>();
+    List<File> agiga = new ArrayList<>();
+    for (String f : Arrays.asList(args).subList(1, args.length)) {
+      if (f.endsWith(".xml") || f.endsWith(".xml.gz"))
+        agiga.add(new File(f));
+      else
+        concrete.add(new File(f).toPath());
+    }
+
+    long start = System.currentTimeMillis();
+    long nSentences = 0;
+    OutputStream os = "-".equals(args[0]) ? System.out : new FileOutputStream(args[0]);
+    try (Writer out = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 1 << 16);
+        CoNLLExporter exporter = new CoNLLExporter(format, depType, nThreads)) {
+      if (!concrete.isEmpty())
+        try (MappedCommunicationReader reader = new MappedCommunicationReader(concrete)) {
+          nSentences += exporter.export(reader, out);
+        }
+      for (File f : agiga)
+        nSentences += exporter.exportAgiga(f, out);
+    }
+    double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+    logger.error(String.format("Wrote %d sentences in %.1f s (%.0f sentences/s)", nSentences, seconds,
+        nSentences / seconds));
+  }
+}
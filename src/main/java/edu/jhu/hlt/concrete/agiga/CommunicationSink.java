@@ -0,0 +1,23 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Destination for serialized Communications. Implementations must be safe to
+ * call from several threads.
+ */
+public interface CommunicationSink extends Closeable {
+
+  /**
+   * Write one serialized Communication.
+   *
+   * @param docId
+   *          the id of the Communication
+   * @param serialized
+   *          its compact-protocol bytes, from the buffer's position to its
+   *          limit. The buffer may be reused by the caller once this returns.
+   */
+  void write(String docId, ByteBuffer serialized) throws IOException;
+}
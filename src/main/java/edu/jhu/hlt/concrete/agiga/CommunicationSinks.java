@@ -0,0 +1,105 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Locale;
+
+import concrete.agiga.util.ConcreteAgigaProperties;
+
+/**
+ * Builds the {@link CommunicationSink} that the output settings in
+ * concrete-agiga.properties ask for.
+ */
+public class CommunicationSinks {
+
+  /**
+   * The output directory that means standard output.
+   */
+  public static final String STANDARD_OUTPUT = "-";
+
+  // the capacity of a staging ring is an int number of bytes
+  static final int MAX_STAGING_MB = 2048;
+
+  private CommunicationSinks() {
+  }
+
+  public static CommunicationSink fromProperties(File outputDir, ConcreteAgigaProperties props) {
+    return fromProperties(outputDir, props, props.getOutputStreamName());
+  }
+
+  /**
+   * @param streamName
+   *          overrides output.stream.name, e.g. to give each of several workers
+   *          its own streams
+   */
+  public static CommunicationSink fromProperties(File outputDir, ConcreteAgigaProperties props, String streamName) {
+    // AgigaConverter points System.out at standard error first, so nothing else is mixed into the frames
+    if (isStandardOutput(outputDir))
+      return framed(new FileOutputStream(FileDescriptor.out).getChannel(), props.getStdioBufferKB() * 1024,
+          props.getStagingMB());
+    return staged(unstaged(outputDir, props, streamName), props.getStagingMB());
+  }
+
+  /**
+   * The sink for a directory layout, without staging.
+   */
+  static CommunicationSink unstaged(File outputDir, ConcreteAgigaProperties props, String streamName) {
+    OutputPartitioner partitioner = partitionerFromProperties(props);
+    if (partitioner == null)
+      return new FilePerDocumentSink(outputDir);
+    return new PartitionedCommunicationSink(outputDir, partitioner, streamName, props.getMaxOpenOutputStreams());
+  }
+
+  /**
+   * @return {@code sink} behind a staging ring of {@code stagingMB}, or
+   *         {@code sink} itself if that is 0
+   */
+  static CommunicationSink staged(CommunicationSink sink, int stagingMB) {
+    return stagingMB > 0 ? new StagedCommunicationSink(sink, stagingBytes(stagingMB)) : sink;
+  }
+
+  /**
+   * @return {@code stagingMB} in bytes
+   * @throws IllegalArgumentException
+   *           if that does not fit the int capacity of a ring, i.e. staging.mb
+   *           is 2048 or more
+   */
+  static int stagingBytes(int stagingMB) {
+    if (stagingMB >= MAX_STAGING_MB)
+      throw new IllegalArgumentException("staging.mb must be less than " + MAX_STAGING_MB + ", not " + stagingMB);
+    return stagingMB << 20;
+  }
+
+  /**
+   * Frames on {@code out}, such as standard output. Without staging there is
+   * nobody to flush when conversion pauses, so each frame goes out at once.
+   */
+  static CommunicationSink framed(WritableByteChannel out, int bufferSize, int stagingMB) {
+    return staged(new FramedCommunicationSink(out, bufferSize, stagingMB <= 0), stagingMB);
+  }
+
+  public static boolean isStandardOutput(File outputDir) {
+    return outputDir.getPath().equals(STANDARD_OUTPUT);
+  }
+
+  /**
+   * @return the configured partitioner, or null if every document gets its own
+   *         file
+   */
+  public static OutputPartitioner partitionerFromProperties(ConcreteAgigaProperties props) {
+    String kind = props.getOutputPartitioner().toLowerCase(Locale.ENGLISH);
+    switch (kind) {
+    case "none":
+      return null;
+    case "hash":
+      return new HashOutputPartitioner(props.getOutputShards());
+    case "date":
+      String granularity = props.getOutputDateGranularity().toUpperCase(Locale.ENGLISH);
+      return new DateOutputPartitioner(DateOutputPartitioner.Granularity.valueOf(granularity));
+    default:
+      throw new IllegalArgumentException("Unknown output.partitioner: " + kind + " (expected none, hash or date)");
+    }
+  }
+}
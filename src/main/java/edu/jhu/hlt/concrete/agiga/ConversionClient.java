@@ -0,0 +1,161 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import concrete.agiga.util.ConcreteAgigaProperties;
+
+/**
+ * Sends conversion requests to a {@link ConversionServer} over one connection.
+ * Not thread-safe; give each thread its own.
+ */
+public class ConversionClient implements Closeable {
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final Socket socket;
+  private final DataInputStream in;
+  private final DataOutputStream out;
+
+  public ConversionClient(String host, int port) throws IOException {
+    this.socket = new Socket();
+    this.socket.setTcpNoDelay(true);
+    this.socket.connect(new InetSocketAddress(host, port));
+    this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream(), BUFFER_SIZE));
+    this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream(), BUFFER_SIZE));
+  }
+
+  /**
+   * The answer to a request: the documents converted, and the ids asked for
+   * that were not found.
+   */
+  public static final class Response {
+    private final Map<String, byte[]> documents = new LinkedHashMap<>();
+    private final List<String> missingIds = new ArrayList<>();
+
+    /**
+     * @return the serialized Communications by id, in input order
+     */
+    public Map<String, byte[]> getDocuments() {
+      return this.documents;
+    }
+
+    public List<String> getMissingIds() {
+      return this.missingIds;
+    }
+  }
+
+  /**
+   * Convert the documents of {@code path}, a file on the server's machine, with
+   * the given ids, or every document if there are none. Ids that are not in
+   * the file do not stop the others from being converted.
+   *
+   * @return the documents, in file order, and the ids that were not found
+   * @throws IOException
+   *           with the server's message, if the file could not be found or one
+   *           of the documents could not be converted
+   */
+  public Response convertFile(String path, List<String> docIds) throws IOException {
+    this.out.writeUTF(ConversionServer.FILE);
+    ConversionServer.writeString(this.out, new File(path).getAbsolutePath());
+    this.out.writeInt(docIds.size());
+    for (String id : docIds)
+      ConversionServer.writeString(this.out, id);
+    this.out.flush();
+    return this.readResponse();
+  }
+
+  /**
+   * Convert every {@code <DOC>} in {@code xml}.
+   *
+   * @return the serialized Communications by id, in document order
+   */
+  public Map<String, byte[]> convertXml(String xml) throws IOException {
+    byte[] b = xml.getBytes(StandardCharsets.UTF_8);
+    this.out.writeUTF(ConversionServer.XML);
+    this.out.writeInt(b.length);
+    this.out.write(b);
+    this.out.flush();
+    return this.readResponse().getDocuments();
+  }
+
+  private Response readResponse() throws IOException {
+    Response r = new Response();
+    int length;
+    while ((length = this.in.readInt()) != ConversionServer.END) {
+      if (length == ConversionServer.ERROR)
+        throw new IOException("Conversion failed: " + this.in.readUTF());
+      if (length == ConversionServer.MISSING) {
+        int n = this.in.readInt();
+        for (int i = 0; i < n; i++)
+          r.missingIds.add(this.readString());
+        continue;
+      }
+      String id = this.readString();
+      byte[] b = new byte[length];
+      this.in.readFully(b);
+      r.documents.put(id, b);
+    }
+    return r;
+  }
+
+  private String readString() throws IOException {
+    byte[] b = new byte[this.in.readInt()];
+    this.in.readFully(b);
+    return new String(b, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.socket.close();
+  }
+
+  /**
+   * Ask the server at {@code server.address}:{@code server.port} to convert
+   * documents of a file, and write each to {@code outputDir/docId.thrift}. Ids
+   * that are not in the file are reported on standard error, and the exit
+   * status is then 2.
+   * <br/>
+   * Usage: {@code ConversionClient /my/output/dir /my/agiga/doc.xml.gz [docId...]}
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.out.println("Please provide the path to a directory for Concrete thrift output files, the path to an "
+          + "Agiga XML file and the ids of the documents to convert (all of them if none)");
+      System.out.println("e.g., " + ConversionClient.class.getSimpleName()
+          + " /my/output/dir /my/agiga/doc.xml.gz NYT_ENG_19940701.0001");
+      System.exit(1);
+    }
+    File outputDir = new File(args[0]);
+    if (!outputDir.exists())
+      outputDir.mkdirs();
+    ConcreteAgigaProperties props = new ConcreteAgigaProperties();
+    Response r;
+    try (ConversionClient client = new ConversionClient(props.getServerAddress(), props.getServerPort())) {
+      r = client.convertFile(args[1], Arrays.asList(args).subList(2, args.length));
+    }
+    for (Map.Entry<String, byte[]> e : r.getDocuments().entrySet()) {
+      File f = new File(outputDir, e.getKey() + ".thrift");
+      Files.write(f.toPath(), e.getValue());
+      System.out.println(f.getPath());
+    }
+    for (String id : r.getMissingIds())
+      System.err.println("No document with id " + id + " in " + args[1]);
+    if (!r.getMissingIds().isEmpty())
+      System.exit(2);
+  }
+}
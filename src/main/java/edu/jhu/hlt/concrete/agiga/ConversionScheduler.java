@@ -0,0 +1,314 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import concrete.tools.AnnotationException;
+import edu.jhu.hlt.concrete.util.ConcreteException;
+
+/**
+ * Converts files on several threads, splitting them into batches of documents
+ * rather than handing each thread whole files, so that a few large files do not
+ * leave one thread working long after the others have finished.
+ * <br/>
+ * Files are first pre-scanned to estimate their cost (see
+ * {@link RawAgigaDocument#estimateCost()}). Batches are then sized so that each
+ * thread gets several, and files are started largest first. Each file is read
+ * by one task that forks a task per batch as it goes; idle threads steal those
+ * batches from the {@link ForkJoinPool}. A reader that gets too far ahead of
+ * the conversion helps convert its own oldest batches, which bounds the
+ * documents held in memory.
+ * <br/>
+ * Documents are written to the sink as they are converted, so their order in
+ * the output is not the input order.
+ */
+public class ConversionScheduler implements Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(ConversionScheduler.class);
+
+  /**
+   * Batches per thread over the whole run: enough to even out the load at the
+   * end of a run, few enough to keep per-batch overhead negligible.
+   */
+  private static final int BATCHES_PER_THREAD = 16;
+
+  /**
+   * The batch cost used when there is no pre-scan (a single claimed file),
+   * roughly 20 to 50 newswire documents.
+   */
+  public static final long DEFAULT_BATCH_COST = 20000;
+
+  private final AgigaConversionRunner runner;
+  private final int nThreads;
+  private final int maxPendingBatches;
+  private final ForkJoinPool pool;
+
+  public ConversionScheduler(AgigaConversionRunner runner, int nThreads) {
+    this.runner = runner;
+    this.nThreads = nThreads;
+    this.maxPendingBatches = 2 * nThreads;
+    this.pool = new ForkJoinPool(nThreads);
+  }
+
+  private static final class FileCost {
+    private final File file;
+    private final long cost;
+    private final int nDocs;
+
+    FileCost(File file, long cost, int nDocs) {
+      this.file = file;
+      this.cost = cost;
+      this.nDocs = nDocs;
+    }
+  }
+
+  /**
+   * Convert every document in {@code files}.
+   */
+  public void convertFiles(List<File> files) throws AnnotationException, ConcreteException, IOException {
+    List<FileCost> costs = this.prescan(files);
+    Collections.sort(costs, new Comparator<FileCost>() {
+      @Override
+      public int compare(FileCost a, FileCost b) {
+        return Long.compare(b.cost, a.cost);
+      }
+    });
+
+    long total = 0;
+    int nDocs = 0;
+    for (FileCost fc : costs) {
+      total += fc.cost;
+      nDocs += fc.nDocs;
+    }
+    long batchCost = Math.max(1, total / ((long) this.nThreads * BATCHES_PER_THREAD));
+    logger.info("Pre-scanned {} documents in {} files; converting on {} threads in batches of cost {}.", nDocs,
+        costs.size(), this.nThreads, batchCost);
+
+    List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+    for (FileCost fc : costs)
+      tasks.add(this.pool.submit(new FileTask(fc.file.getPath(), null, batchCost, null)));
+    for (ForkJoinTask<Void> t : tasks)
+      join(t);
+  }
+
+  private List<FileCost> prescan(List<File> files) throws AnnotationException, ConcreteException, IOException {
+    List<Callable<FileCost>> scans = new ArrayList<>();
+    for (final File f : files) {
+      if (!AgigaConversionRunner.isConvertible(f))
+        continue;
+      scans.add(new Callable<FileCost>() {
+        @Override
+        public FileCost call() throws IOException {
+          long cost = 0;
+          int n = 0;
+          try (AgigaDocumentChunker chunker = new AgigaDocumentChunker(f.getPath())) {
+            for (RawAgigaDocument raw : chunker) {
+              cost += raw.estimateCost();
+              n++;
+            }
+          }
+          return new FileCost(f, cost, n);
+        }
+      });
+    }
+
+    List<FileCost> costs = new ArrayList<>();
+    for (Future<FileCost> f : this.pool.invokeAll(scans)) {
+      try {
+        costs.add(f.get());
+      } catch (ExecutionException e) {
+        rethrow(e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while pre-scanning input files.", e);
+      }
+    }
+    return costs;
+  }
+
+  /**
+   * Convert one file, e.g. one claimed from a work manifest, in batches of
+   * {@link #DEFAULT_BATCH_COST}.
+   *
+   * @return false if the file was skipped or its lease was lost part way
+   *         through
+   */
+  public boolean convertFile(File agigaXML, WorkManifest.Lease lease) throws AnnotationException, ConcreteException,
+      IOException {
+    if (!AgigaConversionRunner.isConvertible(agigaXML))
+      return false;
+    FileTask t = new FileTask(agigaXML.getPath(), null, DEFAULT_BATCH_COST, lease);
+    join(this.pool.submit(t));
+    return !t.abandoned;
+  }
+
+  /**
+   * Convert every document read from {@code in}, such as standard input, in
+   * batches of {@link #DEFAULT_BATCH_COST}. It cannot be pre-scanned, as it
+   * can only be read once.
+   *
+   * @param source
+   *          name of the input, used in {@link RawAgigaDocument#getSource()}
+   */
+  public void convertStream(String source, InputStream in) throws AnnotationException, ConcreteException,
+      IOException {
+    join(this.pool.submit(new FileTask(source, in, DEFAULT_BATCH_COST, null)));
+  }
+
+  /**
+   * Convert files claimed from {@code manifest} until every file in it is done,
+   * one file at a time, each spread over all threads.
+   */
+  public void convertAll(WorkManifest manifest) throws AnnotationException, ConcreteException, IOException,
+      InterruptedException {
+    WorkManifest.Lease lease;
+    while ((lease = manifest.claim()) != null) {
+      this.convertFile(new File(lease.getFile()), lease);
+      // a missing file will not appear by retrying it, so it is done too
+      lease.complete();
+    }
+    logger.info("Every file in the work manifest is done.");
+  }
+
+  /**
+   * Reads a file, or a stream if {@code in} is not null, and forks its
+   * batches.
+   */
+  private final class FileTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final String path;
+    private final InputStream in;
+    private final long batchCost;
+    private final WorkManifest.Lease lease;
+    private volatile boolean abandoned = false;
+
+    FileTask(String path, InputStream in, long batchCost, WorkManifest.Lease lease) {
+      this.path = path;
+      this.in = in;
+      this.batchCost = batchCost;
+      this.lease = lease;
+    }
+
+    @Override
+    protected void compute() {
+      logger.info("Reading from: " + this.path);
+      Deque<BatchTask> pending = new ArrayDeque<>();
+      List<RawAgigaDocument> batch = new ArrayList<>();
+      long cost = 0;
+      try (AgigaDocumentChunker chunker = this.in == null ? new AgigaDocumentChunker(this.path)
+          : new AgigaDocumentChunker(this.path, this.in)) {
+        for (RawAgigaDocument raw : chunker) {
+          if (this.lease != null && !this.lease.isValid()) {
+            logger.warn("Abandoning {}: another worker has taken it over.", this.path);
+            this.abandoned = true;
+            break;
+          }
+          batch.add(raw);
+          cost += raw.estimateCost();
+          if (cost >= this.batchCost) {
+            this.fork(batch, pending);
+            batch = new ArrayList<>();
+            cost = 0;
+          }
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      if (!batch.isEmpty() && !this.abandoned)
+        this.fork(batch, pending);
+      for (BatchTask t : pending)
+        t.join();
+      logger.info("Finished {}.", this.path);
+    }
+
+    private void fork(List<RawAgigaDocument> batch, Deque<BatchTask> pending) {
+      BatchTask t = new BatchTask(batch, this);
+      t.fork();
+      pending.addLast(t);
+      while (pending.size() > maxPendingBatches)
+        pending.removeFirst().join();
+    }
+  }
+
+  private final class BatchTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final List<RawAgigaDocument> docs;
+    private final FileTask file;
+
+    BatchTask(List<RawAgigaDocument> docs, FileTask file) {
+      this.docs = docs;
+      this.file = file;
+    }
+
+    @Override
+    protected void compute() {
+      WorkManifest.Lease lease = this.file.lease;
+      try {
+        for (RawAgigaDocument raw : this.docs) {
+          if (lease != null) {
+            if (!lease.isValid()) {
+              this.file.abandoned = true;
+              return;
+            }
+            lease.progress();
+          }
+          runner.convertDocument(raw);
+        }
+      } catch (AnnotationException | ConcreteException | IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  private static void join(ForkJoinTask<Void> t) throws AnnotationException, ConcreteException, IOException {
+    try {
+      t.join();
+    } catch (RuntimeException | Error e) {
+      rethrow(e);
+    }
+  }
+
+  /**
+   * Throw the checked exception a task failed with, unwrapped from the runtime
+   * exceptions it was carried out of the task in.
+   */
+  private static void rethrow(Throwable t) throws AnnotationException, ConcreteException, IOException {
+    for (Throwable c = t; c != null; c = c.getCause()) {
+      if (c instanceof AnnotationException)
+        throw (AnnotationException) c;
+      if (c instanceof ConcreteException)
+        throw (ConcreteException) c;
+      if (c instanceof IOException)
+        throw (IOException) c;
+    }
+    if (t instanceof RuntimeException)
+      throw (RuntimeException) t;
+    if (t instanceof Error)
+      throw (Error) t;
+    throw new RuntimeException(t);
+  }
+
+  @Override
+  public void close() {
+    this.pool.shutdown();
+  }
+}
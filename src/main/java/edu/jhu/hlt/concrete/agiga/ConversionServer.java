@@ -0,0 +1,454 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import concrete.agiga.util.ConcreteAgigaProperties;
+import concrete.tools.AnnotationException;
+import edu.jhu.hlt.concrete.util.ConcreteException;
+
+/**
+ * Keeps a converter loaded and answers conversion requests over TCP, so that
+ * converting a few documents does not pay for starting a JVM and loading
+ * CoreNLP each time. {@link ConversionClient} speaks its protocol.
+ * <br/>
+ * A connection carries any number of requests, one after the other, written
+ * with {@link DataOutputStream}:
+ * <ul>
+ * <li>{@code "file"}, the path of an Agiga file on the server's machine, the
+ * number of ids, then the ids: convert the documents with those ids, or every
+ * document if there are none. The path and ids are each sent as a length and
+ * UTF-8 bytes, and together may be up to {@code server.max.request.mb} long.
+ * </li>
+ * <li>{@code "xml"}, then the length and UTF-8 bytes of Agiga XML holding one
+ * or more {@code <DOC>} elements: convert them. The XML is converted as it is
+ * read from the connection. A length that is negative or over
+ * {@code server.max.request.mb} is answered with {@link #ERROR} and the
+ * connection is closed.</li>
+ * </ul>
+ * Each converted document is answered with the length of its serialized
+ * Communication, the length and UTF-8 bytes of its id, then its bytes, in the
+ * order of the input. Ids asked for but not in the file follow as a length of
+ * {@link #MISSING}, their number, then each id. The answer ends with a length
+ * of {@link #END}, or of {@link #ERROR} followed by a message if the request
+ * failed part way.
+ * <br/>
+ * Each connection is served on a thread of its own. There is no
+ * authentication, so the server listens on the loopback address by default.
+ */
+public class ConversionServer implements Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(ConversionServer.class);
+
+  static final String FILE = "file";
+  static final String XML = "xml";
+  static final int END = 0;
+  static final int ERROR = -1;
+  static final int MISSING = -2;
+
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final int MAX_MESSAGE = 4096;
+
+  private final AgigaConverter converter;
+  private final boolean rawExtraction;
+  private final int maxRequestBytes;
+  private final ServerSocket server;
+  private final ExecutorService connections;
+  private final Thread acceptor;
+  private final AtomicLong nRequests = new AtomicLong();
+  private final AtomicLong nDocuments = new AtomicLong();
+
+  /**
+   * Start listening on {@code address}; port 0 picks a free port. XML requests
+   * may be up to {@code server.max.request.mb} long.
+   */
+  public ConversionServer(AgigaConverter converter, boolean rawExtraction, InetSocketAddress address)
+      throws IOException {
+    this(converter, rawExtraction, address, (int) Math.min(Integer.MAX_VALUE, converter.getProperties()
+        .getServerMaxRequestMB() * (1L << 20)));
+  }
+
+  /**
+   * @param maxRequestBytes
+   *          the longest XML request to accept
+   */
+  public ConversionServer(AgigaConverter converter, boolean rawExtraction, InetSocketAddress address,
+      int maxRequestBytes) throws IOException {
+    this.converter = converter;
+    this.rawExtraction = rawExtraction;
+    this.maxRequestBytes = maxRequestBytes;
+    this.server = new ServerSocket();
+    this.server.setReuseAddress(true);
+    this.server.bind(address);
+    final AtomicInteger n = new AtomicInteger();
+    this.connections = Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "connection-" + n.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    this.acceptor = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        accept();
+      }
+    }, "acceptor");
+    this.acceptor.start();
+    logger.info("Listening on {}", this.server.getLocalSocketAddress());
+  }
+
+  public int getPort() {
+    return this.server.getLocalPort();
+  }
+
+  public long getNumRequests() {
+    return this.nRequests.get();
+  }
+
+  private void accept() {
+    while (!this.server.isClosed()) {
+      try {
+        final Socket socket = this.server.accept();
+        this.connections.execute(new Runnable() {
+          @Override
+          public void run() {
+            serve(socket);
+          }
+        });
+      } catch (SocketException e) {
+        // closed
+      } catch (IOException e) {
+        logger.error("Failed to accept a connection", e);
+      }
+    }
+  }
+
+  /**
+   * Writes each document to the connection as soon as it is converted.
+   */
+  private static final class ResponseSink implements CommunicationSink {
+    private final DataOutputStream out;
+    private int nWritten = 0;
+
+    ResponseSink(DataOutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public synchronized void write(String docId, ByteBuffer serialized) throws IOException {
+      this.out.writeInt(serialized.remaining());
+      writeString(this.out, docId);
+      if (serialized.hasArray()) {
+        this.out.write(serialized.array(), serialized.arrayOffset() + serialized.position(), serialized.remaining());
+      } else {
+        byte[] b = new byte[serialized.remaining()];
+        serialized.get(b);
+        this.out.write(b);
+      }
+      this.nWritten++;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private void serve(Socket socket) {
+    String peer = String.valueOf(socket.getRemoteSocketAddress());
+    logger.info("Connection from {}", peer);
+    try (Socket s = socket;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), BUFFER_SIZE));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), BUFFER_SIZE))) {
+      s.setTcpNoDelay(true);
+      ResponseSink sink = new ResponseSink(out);
+      AgigaConversionRunner runner = new AgigaConversionRunner(this.converter, this.rawExtraction, sink);
+      String command;
+      while ((command = readCommand(in)) != null) {
+        // the rest of a request that is refused cannot be skipped, so give up on the connection
+        if (!command.equals(FILE) && !command.equals(XML)) {
+          refuse(out, peer, "Unknown command: " + command);
+          break;
+        }
+        int length = 0;
+        String path = null;
+        Set<String> ids = null;
+        if (command.equals(XML)) {
+          length = in.readInt();
+          if (length < 0 || length > this.maxRequestBytes) {
+            refuse(out, peer, "Request of " + length + " bytes is not between 0 and the " + this.maxRequestBytes
+                + " bytes of server.max.request.mb");
+            break;
+          }
+        } else {
+          try {
+            int[] budget = { this.maxRequestBytes };
+            path = readString(in, budget);
+            int nIds = in.readInt();
+            ids = new LinkedHashSet<>();
+            for (int i = 0; i < nIds; i++)
+              ids.add(readString(in, budget));
+          } catch (ProtocolException e) {
+            refuse(out, peer, e.getMessage());
+            break;
+          }
+        }
+        long started = System.nanoTime();
+        int before = sink.nWritten;
+        try {
+          if (command.equals(FILE))
+            writeMissing(out, convertFile(runner, path, ids));
+          else
+            this.convertXml(in, length, runner);
+          out.writeInt(END);
+        } catch (AnnotationException | ConcreteException | IOException | RuntimeException e) {
+          logger.warn("Request from {} failed: {}", peer, e.toString());
+          String message = e.getMessage() == null ? e.toString() : e.getMessage();
+          out.writeInt(ERROR);
+          out.writeUTF(message.length() > MAX_MESSAGE ? message.substring(0, MAX_MESSAGE) : message);
+        }
+        this.nRequests.incrementAndGet();
+        this.nDocuments.addAndGet(sink.nWritten - before);
+        out.flush();
+        logger.info("Answered a {} request from {} with {} documents in {} ms", command, peer, sink.nWritten - before,
+            (System.nanoTime() - started) / 1000000);
+      }
+    } catch (IOException e) {
+      logger.warn("Connection from {} ended: {}", peer, e.toString());
+    }
+  }
+
+  private static void refuse(DataOutputStream out, String peer, String message) throws IOException {
+    logger.warn("Refused a request from {}: {}", peer, message);
+    out.writeInt(ERROR);
+    out.writeUTF(message);
+    out.flush();
+  }
+
+  /**
+   * @return the next command, or null if the client has hung up
+   */
+  private static String readCommand(DataInputStream in) throws IOException {
+    try {
+      return in.readUTF();
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Write {@code s} as its length and UTF-8 bytes. Unlike
+   * {@link DataOutputStream#writeUTF(String)}, there is no 64 KB limit.
+   */
+  static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] b = s.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(b.length);
+    out.write(b);
+  }
+
+  /**
+   * Read a string written by {@link #writeString(DataOutputStream, String)}.
+   *
+   * @param budget
+   *          the bytes the rest of the request may take; reduced by the
+   *          length of the string
+   * @throws ProtocolException
+   *           if the length is negative or over the budget
+   */
+  static String readString(DataInputStream in, int[] budget) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > budget[0])
+      throw new ProtocolException("String of " + length + " bytes is not between 0 and the " + budget[0]
+          + " bytes left of server.max.request.mb");
+    budget[0] -= length;
+    byte[] b = new byte[length];
+    in.readFully(b);
+    return new String(b, StandardCharsets.UTF_8);
+  }
+
+  private static void writeMissing(DataOutputStream out, Set<String> missing) throws IOException {
+    if (missing.isEmpty())
+      return;
+    out.writeInt(MISSING);
+    out.writeInt(missing.size());
+    for (String id : missing)
+      writeString(out, id);
+  }
+
+  /**
+   * @param length
+   *          the length of the XML
+   */
+  private void convertXml(DataInputStream in, int length, AgigaConversionRunner runner)
+      throws AnnotationException, ConcreteException, IOException {
+    RequestBody xml = new RequestBody(in, length);
+    try {
+      runner.convertStream("request", xml);
+    } finally {
+      // whatever is left after the last document, or after a failure, so the next request starts in the right place
+      xml.skipRest();
+    }
+  }
+
+  /**
+   * The next {@code length} bytes of the connection. Closing it leaves the
+   * connection open.
+   */
+  private static final class RequestBody extends FilterInputStream {
+    private long remaining;
+
+    RequestBody(InputStream in, long length) {
+      super(in);
+      this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (this.remaining == 0)
+        return -1;
+      int b = this.in.read();
+      if (b < 0)
+        throw new EOFException("Connection closed " + this.remaining + " bytes before the end of the request");
+      this.remaining--;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (this.remaining == 0)
+        return -1;
+      int n = this.in.read(b, off, (int) Math.min(len, this.remaining));
+      if (n < 0)
+        throw new EOFException("Connection closed " + this.remaining + " bytes before the end of the request");
+      this.remaining -= n;
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = this.in.skip(Math.min(n, this.remaining));
+      this.remaining -= skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(this.in.available(), this.remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    void skipRest() throws IOException {
+      byte[] b = new byte[4096];
+      int n;
+      do {
+        n = this.read(b, 0, b.length);
+      } while (n >= 0);
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /**
+   * Convert the documents in {@code path} with the given ids, or all of them,
+   * reading no further than the last one wanted.
+   *
+   * @return the ids that are not in the file
+   */
+  private static Set<String> convertFile(AgigaConversionRunner runner, String path, Set<String> ids)
+      throws AnnotationException, ConcreteException, IOException {
+    if (!new File(path).isFile())
+      throw new IOException("No such file: " + path);
+    boolean all = ids.isEmpty();
+    try (AgigaDocumentChunker chunker = new AgigaDocumentChunker(path)) {
+      for (RawAgigaDocument raw : chunker) {
+        if (all) {
+          runner.convertDocument(raw);
+        } else if (ids.remove(raw.getDocId())) {
+          runner.convertDocument(raw);
+          if (ids.isEmpty())
+            break;
+        }
+      }
+    }
+    if (!ids.isEmpty())
+      logger.info("No document with id {} in {}", ids, path);
+    return ids;
+  }
+
+  /**
+   * Stop accepting connections, drop the open ones and shut down the
+   * converter's sentence threads.
+   */
+  @Override
+  public void close() throws IOException {
+    this.server.close();
+    this.connections.shutdownNow();
+    try {
+      this.acceptor.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    this.converter.close();
+    logger.info("Answered {} requests with {} documents.", this.nRequests.get(), this.nDocuments.get());
+  }
+
+  /**
+   * Serve on {@code server.address}:{@code server.port} until killed.
+   * <br/>
+   * Usage: {@code ConversionServer [true|false]}, whether to only extract the
+   * raw Communications (false by default)
+   */
+  public static void main(String[] args) throws Exception {
+    boolean rawExtraction = args.length > 0 && Boolean.parseBoolean(args[0]);
+    AgigaConverter converter = new AgigaConverter(true);
+    ConcreteAgigaProperties props = converter.getProperties();
+    InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(props.getServerAddress()),
+        props.getServerPort());
+    final ConversionServer server = new ConversionServer(converter, rawExtraction, address);
+    logger.info("Converting on port {}", server.getPort());
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        try {
+          server.close();
+        } catch (IOException e) {
+          logger.warn("Failed to close the server", e);
+        }
+      }
+    });
+    server.acceptor.join();
+  }
+}
@@ -0,0 +1,223 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import edu.jhu.agiga.AgigaCoref;
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaSentence;
+import edu.jhu.agiga.AgigaToken;
+import edu.jhu.agiga.AgigaTypedDependency;
+
+/**
+ * Counts of what is in a set of Agiga documents: words, POS and NER tags,
+ * basic dependency relations, sentence lengths and coreference chain sizes.
+ * Not thread-safe; collect one per thread and {@link #merge(CorpusStatistics)}
+ * them, as {@link StatisticsCollector} does.
+ */
+public class CorpusStatistics {
+
+  private long documents;
+  private long sentences;
+  private long emptySentences;
+  private long tokens;
+  private long chains;
+  private long mentions;
+  private final TermCounter words = new TermCounter(1024);
+  private final TermCounter pos = new TermCounter(64);
+  private final TermCounter ner = new TermCounter(16);
+  private final TermCounter deprels = new TermCounter(64);
+  /**
+   * Sentences by their number of tokens, and chains by their number of
+   * mentions.
+   */
+  private long[] sentenceLengths = new long[64];
+  private long[] chainSizes = new long[16];
+
+  public void add(AgigaDocument doc) {
+    this.documents++;
+    for (AgigaSentence sent : doc.getSents()) {
+      int n = sent.getTokens().size();
+      if (n == 0) {
+        this.emptySentences++;
+        continue;
+      }
+      this.sentences++;
+      this.tokens += n;
+      this.sentenceLengths = increment(this.sentenceLengths, n);
+      for (AgigaToken tok : sent.getTokens()) {
+        this.words.add(tok.getWord());
+        if (tok.getPosTag() != null)
+          this.pos.add(tok.getPosTag());
+        if (tok.getNerTag() != null)
+          this.ner.add(tok.getNerTag());
+      }
+      if (sent.getBasicDeps() != null)
+        for (AgigaTypedDependency dep : sent.getBasicDeps())
+          this.deprels.add(dep.getType());
+    }
+    for (AgigaCoref coref : doc.getCorefs()) {
+      int n = coref.getMentions().size();
+      this.chains++;
+      this.mentions += n;
+      this.chainSizes = increment(this.chainSizes, n);
+    }
+  }
+
+  /**
+   * Add the counts of {@code other} to these.
+   */
+  public void merge(CorpusStatistics other) {
+    this.documents += other.documents;
+    this.sentences += other.sentences;
+    this.emptySentences += other.emptySentences;
+    this.tokens += other.tokens;
+    this.chains += other.chains;
+    this.mentions += other.mentions;
+    this.words.addAll(other.words);
+    this.pos.addAll(other.pos);
+    this.ner.addAll(other.ner);
+    this.deprels.addAll(other.deprels);
+    this.sentenceLengths = addAll(this.sentenceLengths, other.sentenceLengths);
+    this.chainSizes = addAll(this.chainSizes, other.chainSizes);
+  }
+
+  private static long[] increment(long[] histogram, int i) {
+    if (i >= histogram.length)
+      histogram = Arrays.copyOf(histogram, Math.max(i + 1, histogram.length * 2));
+    histogram[i]++;
+    return histogram;
+  }
+
+  private static long[] addAll(long[] into, long[] from) {
+    if (from.length > into.length)
+      into = Arrays.copyOf(into, from.length);
+    for (int i = 0; i < from.length; i++)
+      into[i] += from[i];
+    return into;
+  }
+
+  public long getDocuments() {
+    return this.documents;
+  }
+
+  public long getSentences() {
+    return this.sentences;
+  }
+
+  public long getTokens() {
+    return this.tokens;
+  }
+
+  public long getChains() {
+    return this.chains;
+  }
+
+  public long getMentions() {
+    return this.mentions;
+  }
+
+  /**
+   * @return the number of distinct words
+   */
+  public int getVocabularySize() {
+    return this.words.size();
+  }
+
+  public long getWordCount(String word) {
+    return this.words.get(word);
+  }
+
+  public long getPosCount(String tag) {
+    return this.pos.get(tag);
+  }
+
+  public long getNerCount(String tag) {
+    return this.ner.get(tag);
+  }
+
+  public long getDeprelCount(String rel) {
+    return this.deprels.get(rel);
+  }
+
+  /**
+   * @return the number of sentences of {@code length} tokens
+   */
+  public long getSentencesOfLength(int length) {
+    return length < this.sentenceLengths.length ? this.sentenceLengths[length] : 0;
+  }
+
+  /**
+   * @return the number of coreference chains of {@code size} mentions
+   */
+  public long getChainsOfSize(int size) {
+    return size < this.chainSizes.length ? this.chainSizes[size] : 0;
+  }
+
+  /**
+   * Write the counts as tab separated lines: the totals, then a {@code #}
+   * header line before each histogram and distribution, with the
+   * {@code topWords} most frequent words last.
+   */
+  public void writeReport(Writer w, int topWords) throws IOException {
+    line(w, "documents", this.documents);
+    line(w, "sentences", this.sentences);
+    line(w, "empty_sentences", this.emptySentences);
+    line(w, "tokens", this.tokens);
+    line(w, "types", this.words.size());
+    line(w, "coref_chains", this.chains);
+    line(w, "mentions", this.mentions);
+    w.write(String.format("mean_sentence_length\t%.2f%n", this.sentences == 0 ? 0d : (double) this.tokens
+        / this.sentences));
+    writeHistogram(w, "sentence_length", this.sentenceLengths);
+    writeHistogram(w, "chain_size", this.chainSizes);
+    writeCounts(w, "pos", this.pos, Integer.MAX_VALUE);
+    writeCounts(w, "ner", this.ner, Integer.MAX_VALUE);
+    writeCounts(w, "deprel", this.deprels, Integer.MAX_VALUE);
+    writeCounts(w, "top_words", this.words, topWords);
+  }
+
+  public void writeReport(File f, int topWords) throws IOException {
+    try (Writer w = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(f.toPath()),
+        StandardCharsets.UTF_8))) {
+      this.writeReport(w, topWords);
+    }
+  }
+
+  /**
+   * Write every word with its count, most frequent first.
+   */
+  public void writeVocabulary(File f) throws IOException {
+    try (Writer w = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(f.toPath()),
+        StandardCharsets.UTF_8))) {
+      for (String word : this.words.top(Integer.MAX_VALUE))
+        line(w, word, this.words.get(word));
+    }
+  }
+
+  private static void line(Writer w, String key, long value) throws IOException {
+    w.write(key);
+    w.write('\t');
+    w.write(Long.toString(value));
+    w.write('\n');
+  }
+
+  private static void writeHistogram(Writer w, String name, long[] histogram) throws IOException {
+    w.write("# " + name + "\tcount\n");
+    for (int i = 0; i < histogram.length; i++)
+      if (histogram[i] > 0)
+        line(w, Integer.toString(i), histogram[i]);
+  }
+
+  private static void writeCounts(Writer w, String name, TermCounter counter, int limit) throws IOException {
+    w.write("# " + name + "\tcount\n");
+    for (String term : counter.top(limit))
+      line(w, term, counter.get(term));
+  }
+}
@@ -0,0 +1,40 @@
+package edu.jhu.hlt.concrete.agiga;
+
+/**
+ * Partitions documents by agency and date, parsed from Gigaword document ids
+ * of the form {@code AGENCY_LANG_YYYYMMDD.NNNN} (e.g.
+ * {@code NYT_ENG_19940701.0001} goes to {@code NYT_ENG/1994/07} by month).
+ * Ids that do not look like that go to {@link #UNKNOWN_PARTITION}.
+ */
+public class DateOutputPartitioner implements OutputPartitioner {
+
+  public static final String UNKNOWN_PARTITION = "unknown";
+
+  public enum Granularity {
+    YEAR, MONTH, DAY
+  }
+
+  private final Granularity granularity;
+
+  public DateOutputPartitioner(Granularity granularity) {
+    this.granularity = granularity;
+  }
+
+  @Override
+  public String getPartition(String docId) {
+    int us = docId.lastIndexOf('_');
+    if (us <= 0 || docId.length() < us + 9)
+      return UNKNOWN_PARTITION;
+    for (int i = us + 1; i < us + 9; i++)
+      if (!Character.isDigit(docId.charAt(i)))
+        return UNKNOWN_PARTITION;
+
+    StringBuilder sb = new StringBuilder(us + 11);
+    sb.append(docId, 0, us).append('/').append(docId, us + 1, us + 5);
+    if (this.granularity != Granularity.YEAR)
+      sb.append('/').append(docId, us + 5, us + 7);
+    if (this.granularity == Granularity.DAY)
+      sb.append('/').append(docId, us + 7, us + 9);
+    return sb.toString();
+  }
+}
@@ -0,0 +1,178 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.helpers.MessageFormatter;
+
+/**
+ * Counts anomalies in the input (empty sentences, empty parses and the like)
+ * by category instead of logging each one. The first few of each category are
+ * logged as examples when they happen; after that they are only counted, and
+ * the counts are logged in a summary, every so often while converting and
+ * once at the end. Logging therefore costs the same however dirty the input.
+ * <br/>
+ * Safe to share between threads. Converters all record to {@link #get()}.
+ */
+public class Diagnostics {
+
+  private static final Logger logger = LoggerFactory.getLogger(Diagnostics.class);
+
+  public static final int DEFAULT_MAX_EXAMPLES = 3;
+
+  private static final Diagnostics SHARED = new Diagnostics(DEFAULT_MAX_EXAMPLES);
+
+  private static final class Category {
+    private final AtomicLong count = new AtomicLong();
+    // guarded by this
+    private final List<String> examples = new ArrayList<>();
+  }
+
+  private final ConcurrentHashMap<String, Category> categories = new ConcurrentHashMap<>();
+  private volatile int maxExamples;
+  private ScheduledExecutorService reporter;
+  private long lastReported = 0;
+
+  public Diagnostics(int maxExamples) {
+    this.maxExamples = maxExamples;
+  }
+
+  /**
+   * @return the diagnostics every converter records to
+   */
+  public static Diagnostics get() {
+    return SHARED;
+  }
+
+  /**
+   * @param maxExamples how many of each category to log and keep as examples
+   */
+  public void setMaxExamples(int maxExamples) {
+    this.maxExamples = maxExamples;
+  }
+
+  /**
+   * Count an anomaly. The example is only formatted, slf4j style, if it is
+   * one of the first few of its category.
+   */
+  public void record(String category, String format, Object... args) {
+    Category c = this.categories.get(category);
+    if (c == null) {
+      Category prev = this.categories.putIfAbsent(category, c = new Category());
+      if (prev != null)
+        c = prev;
+    }
+    long n = c.count.incrementAndGet();
+    if (n > this.maxExamples)
+      return;
+
+    String example = MessageFormatter.arrayFormat(format, args).getMessage();
+    synchronized (c) {
+      c.examples.add(example);
+    }
+    if (n < this.maxExamples)
+      logger.warn("{}: {}", category, example);
+    else
+      logger.warn("{}: {} (further occurrences are only counted)", category, example);
+  }
+
+  public long getCount(String category) {
+    Category c = this.categories.get(category);
+    return c == null ? 0 : c.count.get();
+  }
+
+  public List<String> getExamples(String category) {
+    Category c = this.categories.get(category);
+    if (c == null)
+      return new ArrayList<>();
+    synchronized (c) {
+      return new ArrayList<>(c.examples);
+    }
+  }
+
+  /**
+   * @return the number of anomalies recorded in every category
+   */
+  public long getTotal() {
+    long total = 0;
+    for (Category c : this.categories.values())
+      total += c.count.get();
+    return total;
+  }
+
+  /**
+   * @return the count of each category, by category
+   */
+  public Map<String, Long> getCounts() {
+    Map<String, Long> counts = new TreeMap<>();
+    for (Map.Entry<String, Category> e : this.categories.entrySet())
+      counts.put(e.getKey(), e.getValue().count.get());
+    return counts;
+  }
+
+  public void reset() {
+    this.categories.clear();
+  }
+
+  /**
+   * Log the count and an example of every category, if anything was recorded.
+   */
+  public void logSummary() {
+    long total = this.getTotal();
+    if (total == 0)
+      return;
+    StringBuilder sb = new StringBuilder();
+    sb.append(total).append(" anomalies in ").append(this.categories.size()).append(" categories:");
+    for (Map.Entry<String, Long> e : this.getCounts().entrySet()) {
+      sb.append(String.format("%n%10d  %s", e.getValue(), e.getKey()));
+      List<String> examples = this.getExamples(e.getKey());
+      if (!examples.isEmpty())
+        sb.append(" (e.g. ").append(examples.get(0)).append(')');
+    }
+    logger.warn(sb.toString());
+  }
+
+  /**
+   * Log a summary every {@code seconds} seconds, from a daemon thread, when
+   * something new was recorded since the last.
+   */
+  public synchronized void startPeriodicSummary(long seconds) {
+    if (this.reporter != null || seconds <= 0)
+      return;
+    this.reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "diagnostics");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    this.reporter.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        long total = getTotal();
+        if (total != lastReported) {
+          lastReported = total;
+          logSummary();
+        }
+      }
+    }, seconds, seconds, TimeUnit.SECONDS);
+  }
+
+  public synchronized void stopPeriodicSummary() {
+    if (this.reporter != null) {
+      this.reporter.shutdownNow();
+      this.reporter = null;
+    }
+  }
+}
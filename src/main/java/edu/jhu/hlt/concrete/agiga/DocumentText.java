@@ -0,0 +1,107 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.util.List;
+
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaMention;
+import edu.jhu.agiga.AgigaSentence;
+import edu.jhu.agiga.AgigaToken;
+
+/**
+ * The Communication text of a document, as {@link AgigaConverter#flattenText(AgigaDocument)} gives it, with where each
+ * token lies in it, so that mention text is cut out of the text rather than put together again a word at a time.
+ */
+class DocumentText {
+
+  private final AgigaDocument doc;
+  private final String text;
+  /**
+   * First token of each sentence, empty ones included, then the number of tokens.
+   */
+  private final int[] sentenceStarts;
+  private final int[] sentenceLengths;
+  private final int[] tokenStarts;
+  private final int[] tokenEnds;
+  /**
+   * False if a word starts or ends a sentence with whitespace, which flattenText trims, so that some tokens are not
+   * where the offsets say.
+   */
+  private final boolean exact;
+
+  DocumentText(AgigaDocument doc) {
+    this.doc = doc;
+    List<AgigaSentence> sents = doc.getSents();
+    int nToks = 0;
+    for (AgigaSentence sent : sents)
+      nToks += sent.getTokens().size();
+    this.sentenceStarts = new int[sents.size() + 1];
+    this.sentenceLengths = new int[sents.size()];
+    this.tokenStarts = new int[nToks];
+    this.tokenEnds = new int[nToks];
+
+    boolean exact = true;
+    StringBuilder sb = new StringBuilder(nToks * 8);
+    int t = 0;
+    for (int i = 0; i < sents.size(); i++) {
+      int start = sb.length();
+      this.sentenceStarts[i] = t;
+      for (AgigaToken tok : sents.get(i).getTokens()) {
+        this.tokenStarts[t] = sb.length();
+        sb.append(tok.getWord());
+        this.tokenEnds[t] = sb.length();
+        sb.append(' ');
+        t++;
+      }
+      if (sb.length() > start)
+        sb.setLength(sb.length() - 1);
+      if (sb.length() > start && (sb.charAt(start) <= ' ' || sb.charAt(sb.length() - 1) <= ' ')) {
+        String trimmed = sb.substring(start).trim();
+        sb.setLength(start);
+        sb.append(trimmed);
+        exact = false;
+      }
+      this.sentenceLengths[i] = sb.length() - start;
+      sb.append('\n');
+    }
+    this.sentenceStarts[sents.size()] = nToks;
+    this.text = sb.toString();
+    this.exact = exact;
+  }
+
+  String getText() {
+    return this.text;
+  }
+
+  /**
+   * @return the length of sentence {@code sentIdx}'s text, without its newline
+   */
+  int getSentenceLength(int sentIdx) {
+    return this.sentenceLengths[sentIdx];
+  }
+
+  /**
+   * @return the words of {@code m}, separated by spaces, as
+   *         {@link AgigaConverter#extractMentionString(AgigaMention, AgigaDocument)} gives them
+   */
+  String getMentionText(AgigaMention m) {
+    int s = m.getSentenceIdx();
+    if (!this.exact) {
+      List<AgigaToken> sentence = this.doc.getSents().get(s).getTokens();
+      StringBuilder sb = new StringBuilder();
+      for (int i = m.getStartTokenIdx(); i < m.getEndTokenIdx(); i++) {
+        if (i > m.getStartTokenIdx())
+          sb.append(' ');
+        sb.append(sentence.get(i).getWord());
+      }
+      return sb.toString();
+    }
+    int first = this.sentenceStarts[s] + m.getStartTokenIdx();
+    int last = this.sentenceStarts[s] + m.getEndTokenIdx() - 1;
+    if (last < first)
+      return "";
+    if (m.getStartTokenIdx() < 0 || last >= this.sentenceStarts[s + 1])
+      throw new IndexOutOfBoundsException("Mention tokens [" + m.getStartTokenIdx() + ", " + m.getEndTokenIdx()
+          + ") are not all in sentence " + s);
+    return this.text.substring(this.tokenStarts[first], this.tokenEnds[last]);
+  }
+}
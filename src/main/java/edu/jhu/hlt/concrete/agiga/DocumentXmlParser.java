@@ -0,0 +1,64 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Iterator;
+
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaPrefs;
+import edu.jhu.agiga.StreamingDocumentReader;
+
+/**
+ * Parses the XML of one {@code <DOC>} element at a time, for callers that split
+ * files into documents themselves (see {@link AgigaDocumentChunker}) and so
+ * keep each document's raw XML. Each document goes through the parser
+ * {@link StreamingDocumentReader} hands the documents of a file to, by way of
+ * its {@link #getIteratorInstance(byte[])}; the reader only opens a one-line
+ * stub file, which it never reads documents from.
+ * <br/>
+ * Parsing keeps no state between documents, so a parser can be shared between
+ * threads.
+ */
+public class DocumentXmlParser extends StreamingDocumentReader {
+
+  private static final byte[] STUB = "<FILE id=\"parser\">\n".getBytes(StandardCharsets.UTF_8);
+
+  public DocumentXmlParser(AgigaPrefs prefs) {
+    this(createStub(), prefs);
+  }
+
+  private DocumentXmlParser(File stub, AgigaPrefs prefs) {
+    super(stub.getPath(), prefs);
+    // the reader has what it needs from the stub
+    if (!stub.delete())
+      stub.deleteOnExit();
+  }
+
+  private static File createStub() {
+    try {
+      File f = File.createTempFile("agiga-parser-", ".xml");
+      Files.write(f.toPath(), STUB);
+      return f;
+    } catch (IOException e) {
+      // as StreamingDocumentReader itself reports failing to open its file
+      throw new RuntimeException("Unable to create the file the Agiga parser opens.", e);
+    }
+  }
+
+  /**
+   * @param docXml
+   *          UTF-8 XML from a {@code <DOC} line through its {@code </DOC>}
+   *          line, as {@link StreamingDocumentReader} would hand it to the
+   *          parser
+   * @throws IllegalArgumentException
+   *           if {@code docXml} holds no document
+   */
+  public AgigaDocument parse(byte[] docXml) {
+    Iterator<AgigaDocument> it = this.getIteratorInstance(docXml);
+    if (!it.hasNext())
+      throw new IllegalArgumentException("No <DOC> element found.");
+    return it.next();
+  }
+}
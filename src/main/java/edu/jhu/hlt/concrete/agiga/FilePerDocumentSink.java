@@ -0,0 +1,34 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes each Communication to its own {@code docId.thrift} file in a single
+ * directory, replacing any file already there.
+ */
+public class FilePerDocumentSink implements CommunicationSink {
+
+  private final File outputDir;
+
+  public FilePerDocumentSink(File outputDir) {
+    this.outputDir = outputDir;
+  }
+
+  @Override
+  public void write(String docId, ByteBuffer serialized) throws IOException {
+    File outFile = new File(this.outputDir, docId + ".thrift");
+    try (FileChannel ch = FileChannel.open(outFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (serialized.hasRemaining())
+        ch.write(serialized);
+    }
+  }
+
+  @Override
+  public void close() {
+  }
+}
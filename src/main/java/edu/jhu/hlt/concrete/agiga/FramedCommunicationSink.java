@@ -0,0 +1,121 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes Communications to a channel, such as standard output, as frames: the
+ * length of the serialized Communication as a 4 byte big-endian int, then its
+ * bytes. See {@link #readFrame(DataInputStream)}.
+ * <br/>
+ * Frames are gathered in a direct buffer and written out when it fills, or on
+ * {@link #flush()}. Put a {@link StagedCommunicationSink} in front of it to
+ * write on a thread of its own, which also flushes whenever it has nothing
+ * else to write; without one, have it flush after every frame, so a reader
+ * downstream is not kept waiting for a full buffer.
+ */
+public class FramedCommunicationSink implements CommunicationSink, Flushable {
+
+  private static final Logger logger = LoggerFactory.getLogger(FramedCommunicationSink.class);
+
+  private final WritableByteChannel out;
+  private final ByteBuffer pending;
+  private final ByteBuffer header = ByteBuffer.allocate(4);
+  private final boolean flushEachFrame;
+  private boolean closed = false;
+
+  private long nWritten = 0;
+  private long nBytes = 0;
+
+  /**
+   * @param bufferSize
+   *          how many bytes to gather before writing to {@code out}
+   */
+  public FramedCommunicationSink(WritableByteChannel out, int bufferSize) {
+    this(out, bufferSize, false);
+  }
+
+  /**
+   * @param flushEachFrame
+   *          whether to write each frame to {@code out} straight away
+   */
+  public FramedCommunicationSink(WritableByteChannel out, int bufferSize, boolean flushEachFrame) {
+    this.out = out;
+    this.pending = ByteBuffer.allocateDirect(bufferSize);
+    this.flushEachFrame = flushEachFrame;
+  }
+
+  /**
+   * Read one frame, as written by this sink.
+   *
+   * @return the serialized Communication, or null at the end of {@code in}
+   */
+  public static byte[] readFrame(DataInputStream in) throws IOException {
+    int length;
+    try {
+      length = in.readInt();
+    } catch (EOFException e) {
+      return null;
+    }
+    byte[] b = new byte[length];
+    in.readFully(b);
+    return b;
+  }
+
+  @Override
+  public synchronized void write(String docId, ByteBuffer serialized) throws IOException {
+    int n = serialized.remaining();
+    this.nWritten++;
+    this.nBytes += 4 + n;
+    if (4 + n > this.pending.remaining())
+      this.flush();
+    if (4 + n <= this.pending.remaining()) {
+      this.pending.putInt(n);
+      this.pending.put(serialized);
+      if (this.flushEachFrame)
+        this.flush();
+      return;
+    }
+    // too big to gather
+    this.header.clear();
+    this.header.putInt(n);
+    this.header.flip();
+    writeFully(this.out, this.header);
+    writeFully(this.out, serialized);
+  }
+
+  @Override
+  public synchronized void flush() throws IOException {
+    this.pending.flip();
+    writeFully(this.out, this.pending);
+    this.pending.clear();
+  }
+
+  private static void writeFully(WritableByteChannel ch, ByteBuffer b) throws IOException {
+    while (b.hasRemaining())
+      ch.write(b);
+  }
+
+  /**
+   * Write what is gathered, then close the channel.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (this.closed)
+      return;
+    this.closed = true;
+    try {
+      this.flush();
+      logger.info("Wrote {} communications in {} bytes of frames.", this.nWritten, this.nBytes);
+    } finally {
+      this.out.close();
+    }
+  }
+}
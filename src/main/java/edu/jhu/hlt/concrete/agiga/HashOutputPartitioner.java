@@ -0,0 +1,43 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.util.Locale;
+
+/**
+ * Spreads documents over a fixed number of shards by hashing the document id.
+ * The hash only depends on the id, so every run (and every reader) agrees on
+ * which shard holds a document.
+ */
+public class HashOutputPartitioner implements OutputPartitioner {
+
+  private final int nShards;
+
+  public HashOutputPartitioner(int nShards) {
+    if (nShards < 1)
+      throw new IllegalArgumentException("Need at least one shard, got: " + nShards);
+    this.nShards = nShards;
+  }
+
+  public int getNumShards() {
+    return nShards;
+  }
+
+  /**
+   * @return the shard, in [0, number of shards), that {@code docId} belongs to
+   */
+  public int getShard(String docId) {
+    // String.hashCode is fixed by the language spec; the finalizer from
+    // MurmurHash3 spreads ids that only differ in their last few characters
+    int h = docId.hashCode();
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return (h & Integer.MAX_VALUE) % this.nShards;
+  }
+
+  @Override
+  public String getPartition(String docId) {
+    return String.format(Locale.ROOT, "shard-%05d", this.getShard(docId));
+  }
+}
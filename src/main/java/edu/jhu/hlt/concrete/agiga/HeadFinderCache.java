@@ -0,0 +1,236 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.stanford.nlp.trees.HeadFinder;
+import edu.stanford.nlp.trees.PennTreebankLanguagePack;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreebankLanguagePack;
+
+/**
+ * Remembers which child a {@link HeadFinder} picks for each production (a
+ * node's label and its children's labels), which repeat heavily in newswire
+ * parses. Safe to share between threads.
+ * <br/>
+ * {@link edu.stanford.nlp.trees.SemanticHeadFinder} looks past the labels for
+ * a few categories: it checks the words under VP, SQ and SINV for auxiliaries
+ * and copulas, and matches tree patterns under CONJP and SBARQ. Heads of those
+ * are always found by the head finder. Unary nodes need no lookup at all.
+ * <br/>
+ * The cache is bounded: once it holds {@code maxEntries} productions, new ones
+ * are looked up but not added. Production frequencies follow a steep power
+ * law, so the productions seen first cover nearly all of what follows.
+ */
+public class HeadFinderCache {
+
+  private static final Logger logger = LoggerFactory.getLogger(HeadFinderCache.class);
+
+  public static final int DEFAULT_MAX_ENTRIES = 1 << 17;
+
+  private static final Set<String> UNCACHEABLE = new HashSet<>(Arrays.asList("VP", "SQ", "SINV", "CONJP", "SBARQ"));
+
+  private static final int NO_HEAD = -2;
+
+  private final HeadFinder headFinder;
+  private final TreebankLanguagePack tlp = new PennTreebankLanguagePack();
+  private final int maxEntries;
+  private final ConcurrentHashMap<Production, Integer> heads = new ConcurrentHashMap<>();
+  private final ThreadLocal<Production> probe = new ThreadLocal<Production>() {
+    @Override
+    protected Production initialValue() {
+      return new Production(8);
+    }
+  };
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong uncached = new AtomicLong();
+
+  public HeadFinderCache(HeadFinder headFinder) {
+    this(headFinder, DEFAULT_MAX_ENTRIES);
+  }
+
+  /**
+   * @param maxEntries the most productions to remember; 0 turns the cache off
+   */
+  public HeadFinderCache(HeadFinder headFinder, int maxEntries) {
+    this.headFinder = headFinder;
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * @return the index of {@code node}'s head child, falling back on the
+   *         rightmost child if no head can be found, or -1 if {@code node} is a
+   *         leaf
+   */
+  public int headChildIndex(Tree node) {
+    if (node.isLeaf())
+      return -1;
+    Tree[] children = node.children();
+    if (children.length == 1)
+      return 0;
+
+    if (this.maxEntries <= 0 || UNCACHEABLE.contains(this.tlp.basicCategory(node.value()))) {
+      this.uncached.incrementAndGet();
+      return this.determineHead(node, children);
+    }
+
+    Production production = this.probe.get().set(node, children);
+    Integer head = this.heads.get(production);
+    if (head != null) {
+      this.hits.incrementAndGet();
+      return head;
+    }
+    this.misses.incrementAndGet();
+    int h = this.findHead(node, children);
+    // failures are not remembered, so each one is still counted
+    if (h == NO_HEAD)
+      return children.length - 1;
+    if (h >= 0 && this.heads.size() < this.maxEntries)
+      this.heads.put(production.copy(), h);
+    return h;
+  }
+
+  private int determineHead(Tree node, Tree[] children) {
+    int h = this.findHead(node, children);
+    return h == NO_HEAD ? children.length - 1 : h;
+  }
+
+  /**
+   * @return the head child's index, -1 if the head finder returned something
+   *         other than a child, or {@link #NO_HEAD} if it failed
+   */
+  private int findHead(Tree node, Tree[] children) {
+    Tree headTree;
+    try {
+      headTree = this.headFinder.determineHead(node);
+    } catch (IllegalArgumentException iae) {
+      Diagnostics.get().record("No head found, used the rightmost child", "{}", iae.getMessage());
+      return NO_HEAD;
+    }
+    for (int i = 0; i < children.length; i++)
+      if (children[i] == headTree)
+        return i;
+    return -1;
+  }
+
+  /**
+   * A node's label, then each child's, marked by whether the child is a leaf or
+   * a preterminal since the head rules skip some preterminals. Each thread
+   * looks productions up with one reused instance, which is only copied when
+   * it is added to the cache.
+   */
+  private static final class Production {
+    private String[] labels;
+    private byte[] kinds;
+    private int length;
+    private int hash;
+
+    Production(int capacity) {
+      this.labels = new String[capacity];
+      this.kinds = new byte[capacity];
+    }
+
+    Production set(Tree node, Tree[] children) {
+      int n = children.length + 1;
+      if (n > this.labels.length) {
+        this.labels = new String[n];
+        this.kinds = new byte[n];
+      }
+      this.length = n;
+      this.labels[0] = node.value();
+      int h = this.labels[0].hashCode();
+      for (int i = 1; i < n; i++) {
+        Tree child = children[i - 1];
+        this.labels[i] = child.value();
+        this.kinds[i] = (byte) (child.isLeaf() ? 1 : child.isPreTerminal() ? 2 : 3);
+        h = 31 * (31 * h + this.kinds[i]) + this.labels[i].hashCode();
+      }
+      this.hash = h;
+      return this;
+    }
+
+    Production copy() {
+      Production p = new Production(this.length);
+      System.arraycopy(this.labels, 0, p.labels, 0, this.length);
+      System.arraycopy(this.kinds, 0, p.kinds, 0, this.length);
+      p.length = this.length;
+      p.hash = this.hash;
+      return p;
+    }
+
+    @Override
+    public int hashCode() {
+      return this.hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Production))
+        return false;
+      Production p = (Production) o;
+      if (p.hash != this.hash || p.length != this.length)
+        return false;
+      for (int i = 0; i < this.length; i++)
+        if (p.kinds[i] != this.kinds[i] || !p.labels[i].equals(this.labels[i]))
+          return false;
+      return true;
+    }
+  }
+
+  /**
+   * @return lookups answered from the cache
+   */
+  public long getHits() {
+    return this.hits.get();
+  }
+
+  /**
+   * @return lookups of cacheable productions that were not in the cache
+   */
+  public long getMisses() {
+    return this.misses.get();
+  }
+
+  /**
+   * @return lookups of categories whose heads depend on more than the
+   *         production, or made with the cache turned off
+   */
+  public long getUncached() {
+    return this.uncached.get();
+  }
+
+  /**
+   * @return the fraction of non-unary lookups answered from the cache
+   */
+  public double getHitRate() {
+    long total = this.getHits() + this.getMisses() + this.getUncached();
+    return total == 0 ? 0 : (double) this.getHits() / total;
+  }
+
+  /**
+   * @return the number of productions remembered
+   */
+  public int size() {
+    return this.heads.size();
+  }
+
+  public void clear() {
+    this.heads.clear();
+    this.hits.set(0);
+    this.misses.set(0);
+    this.uncached.set(0);
+  }
+
+  public void logSummary() {
+    logger.info(String.format("Head finding: %.1f%% hit rate (%d hits, %d misses, %d uncacheable), %d productions cached",
+        100 * this.getHitRate(), this.getHits(), this.getMisses(), this.getUncached(), this.size()));
+  }
+}
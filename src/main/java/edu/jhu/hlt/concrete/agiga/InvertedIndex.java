@@ -0,0 +1,301 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Memory-mapped, read-only view of an index written by
+ * {@link InvertedIndexWriter}: for each word and each entity name (the
+ * canonical name {@link AgigaConverter#convertDoc(edu.jhu.agiga.AgigaDocument)}
+ * gives a coreference chain), the (document, sentence) pairs it occurs in.
+ * Words and names are matched ignoring case. Sentences are numbered as in the
+ * Communication's sentence list. Lookups binary search the dictionary in
+ * place, so opening an index reads nothing but its footer, and it is safe to
+ * query from several threads.
+ * <br/>
+ * File layout: postings, document ids, document offsets, terms, dictionary,
+ * footer. Postings are varints: the gap from the previous document, then the
+ * sentence, or the gap from the previous sentence when the document is the
+ * same.
+ */
+public class InvertedIndex implements Closeable {
+
+  static final int MAGIC = 0x41474949; // AGII
+  static final int VERSION = 1;
+  /**
+   * docsOffset, docOffsetsOffset, termsOffset, dictOffset, nDocs, nTerms,
+   * version, magic.
+   */
+  static final int FOOTER_SIZE = 4 * 8 + 4 * 4;
+  /**
+   * keyOffset (from termsOffset), postingsOffset, keyLength, count.
+   */
+  static final int ENTRY_SIZE = 8 + 8 + 4 + 4;
+
+  static final char WORD = 'w';
+  static final char ENTITY = 'e';
+
+  /**
+   * Regions overlap by this much, so that a value starting in one can be read
+   * whole from it.
+   */
+  private static final int OVERLAP = 16;
+  private static final int REGION_BITS = 30;
+
+  private final List<MappedByteBuffer> regions = new ArrayList<>();
+  private final long docsOffset;
+  private final long docOffsetsOffset;
+  private final long termsOffset;
+  private final long dictOffset;
+  private final int nDocs;
+  private final int nTerms;
+
+  public InvertedIndex(File file) throws IOException {
+    try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = ch.size();
+      if (size < FOOTER_SIZE)
+        throw new IOException(file + " is too short to be an inverted index.");
+      for (long start = 0; start < size; start += 1L << REGION_BITS)
+        this.regions.add(ch.map(MapMode.READ_ONLY, start, Math.min(size - start, (1L << REGION_BITS) + OVERLAP)));
+      long f = size - FOOTER_SIZE;
+      this.docsOffset = this.getLong(f);
+      this.docOffsetsOffset = this.getLong(f + 8);
+      this.termsOffset = this.getLong(f + 16);
+      this.dictOffset = this.getLong(f + 24);
+      this.nDocs = this.getInt(f + 32);
+      this.nTerms = this.getInt(f + 36);
+      int version = this.getInt(f + 40);
+      if (this.getInt(f + 44) != MAGIC)
+        throw new IOException(file + " is not an inverted index.");
+      if (version != VERSION)
+        throw new IOException("Unsupported inverted index version " + version + " in " + file);
+    }
+  }
+
+  public int getNumDocuments() {
+    return this.nDocs;
+  }
+
+  /**
+   * @return the number of distinct words and entity names
+   */
+  public int getNumTerms() {
+    return this.nTerms;
+  }
+
+  /**
+   * @return the id of the Communication numbered {@code doc}
+   */
+  public String getDocId(int doc) {
+    long[] pos = { this.getLong(this.docOffsetsOffset + 8L * doc) };
+    int len = this.readVarint(pos);
+    return new String(this.getBytes(pos[0], len), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return where {@code word} occurs, empty if nowhere
+   */
+  public Postings findWord(String word) {
+    return this.find(WORD, word);
+  }
+
+  /**
+   * @return where the entity named {@code name} is mentioned, empty if
+   *         nowhere
+   */
+  public Postings findEntity(String name) {
+    return this.find(ENTITY, name);
+  }
+
+  /**
+   * @return the ids of the documents {@code postings} are in, in index order
+   */
+  public Set<String> getDocIds(Postings postings) {
+    Set<String> ids = new LinkedHashSet<>();
+    while (postings.next())
+      ids.add(this.getDocId(postings.doc()));
+    return ids;
+  }
+
+  static String key(char kind, String term) {
+    return kind + term.toLowerCase(Locale.ROOT);
+  }
+
+  private Postings find(char kind, String term) {
+    byte[] key = key(kind, term).getBytes(StandardCharsets.UTF_8);
+    int lo = 0;
+    int hi = this.nTerms - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      long e = this.dictOffset + (long) mid * ENTRY_SIZE;
+      int c = this.compareKey(this.termsOffset + this.getLong(e), this.getInt(e + 16), key);
+      if (c < 0) {
+        lo = mid + 1;
+      } else if (c > 0) {
+        hi = mid - 1;
+      } else {
+        long end = mid + 1 < this.nTerms ? this.getLong(e + ENTRY_SIZE + 8) : this.docsOffset;
+        return new Postings(this.getLong(e + 8), end, this.getInt(e + 20));
+      }
+    }
+    return new Postings(0, 0, 0);
+  }
+
+  /**
+   * Compare the key stored at {@code at} with {@code key}, as unsigned bytes.
+   */
+  private int compareKey(long at, int len, byte[] key) {
+    int n = Math.min(len, key.length);
+    for (int i = 0; i < n; i++) {
+      int c = (this.get(at + i) & 0xff) - (key[i] & 0xff);
+      if (c != 0)
+        return c;
+    }
+    return len - key.length;
+  }
+
+  private MappedByteBuffer region(long pos) {
+    return this.regions.get((int) (pos >>> REGION_BITS));
+  }
+
+  private static int inRegion(long pos) {
+    return (int) (pos & ((1L << REGION_BITS) - 1));
+  }
+
+  byte get(long pos) {
+    return this.region(pos).get(inRegion(pos));
+  }
+
+  private int getInt(long pos) {
+    return this.region(pos).getInt(inRegion(pos));
+  }
+
+  private long getLong(long pos) {
+    return this.region(pos).getLong(inRegion(pos));
+  }
+
+  private byte[] getBytes(long pos, int len) {
+    byte[] b = new byte[len];
+    for (int i = 0; i < len; i++)
+      b[i] = this.get(pos + i);
+    return b;
+  }
+
+  /**
+   * Read a varint at {@code pos[0]}, moving it past.
+   */
+  int readVarint(long[] pos) {
+    int v = 0;
+    for (int shift = 0;; shift += 7) {
+      byte b = this.get(pos[0]++);
+      v |= (b & 0x7f) << shift;
+      if (b >= 0)
+        return v;
+    }
+  }
+
+  static void writeVarint(OutputStream out, int v) throws IOException {
+    while ((v & ~0x7f) != 0) {
+      out.write((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    out.write(v);
+  }
+
+  /**
+   * A cursor over the (document, sentence) pairs of a term, in order.
+   */
+  public final class Postings {
+    private final long[] pos;
+    private final long end;
+    private final int size;
+    private int doc = 0;
+    private int sentence = -1;
+
+    Postings(long start, long end, int size) {
+      this.pos = new long[] { start };
+      this.end = end;
+      this.size = size;
+    }
+
+    /**
+     * @return the number of pairs
+     */
+    public int size() {
+      return this.size;
+    }
+
+    /**
+     * Move to the next pair.
+     *
+     * @return false if there are no more
+     */
+    public boolean next() {
+      if (this.pos[0] >= this.end)
+        return false;
+      int gap = readVarint(this.pos);
+      int s = readVarint(this.pos);
+      if (gap == 0 && this.sentence >= 0) {
+        this.sentence += s;
+      } else {
+        this.doc += gap;
+        this.sentence = s;
+      }
+      return true;
+    }
+
+    public int doc() {
+      return this.doc;
+    }
+
+    public int sentence() {
+      return this.sentence;
+    }
+  }
+
+  /**
+   * Print the ids of the documents each term occurs in, with how long the
+   * lookup took. A term {@code entity:NAME} looks up an entity name.
+   * <br/>
+   * Usage: {@code InvertedIndex /my/index.bin word... entity:name...}
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.out.println("Please provide the path to an inverted index and 1 or more words, or entity:NAME names");
+      System.out.println("e.g., " + InvertedIndex.class.getSimpleName() + " /my/index.bin dog entity:Obama");
+      System.exit(1);
+    }
+    try (InvertedIndex index = new InvertedIndex(new File(args[0]))) {
+      for (int i = 1; i < args.length; i++) {
+        long start = System.nanoTime();
+        Postings p = args[i].startsWith("entity:") ? index.findEntity(args[i].substring("entity:".length())) : index
+            .findWord(args[i]);
+        Set<String> ids = index.getDocIds(p);
+        System.out.printf("%s\t%d documents\t%.3f ms%n", args[i], ids.size(), (System.nanoTime() - start) / 1e6);
+        for (String id : ids)
+          System.out.println(id);
+      }
+    }
+  }
+
+  /**
+   * Unmaps nothing, as the JVM offers no way to; the regions go when this is
+   * collected.
+   */
+  @Override
+  public void close() {
+    this.regions.clear();
+  }
+}
@@ -0,0 +1,496 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhu.agiga.AgigaCoref;
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaMention;
+import edu.jhu.agiga.AgigaSentence;
+import edu.jhu.agiga.AgigaToken;
+
+/**
+ * Builds an {@link InvertedIndex} of words and entity names while documents
+ * are converted, from any number of threads. Each thread adds to an in-memory
+ * segment of its own, without locking, which is written to a temporary file
+ * once it holds about {@code segmentBytes} of postings. {@link #close()}
+ * writes out what is left and merges the segments, a term at a time, into the
+ * index.
+ */
+public class InvertedIndexWriter implements Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(InvertedIndexWriter.class);
+
+  /**
+   * Rough bytes a term takes in a segment besides its postings.
+   */
+  private static final int TERM_OVERHEAD = 96;
+
+  private final File indexFile;
+  private final File tmpDir;
+  private final long segmentBytes;
+
+  private final DataOutputStream docIds;
+  private int nDocs = 0;
+
+  private final List<Segment> segments = new ArrayList<>();
+  private final List<File> segmentFiles = new ArrayList<>();
+  private final ThreadLocal<Segment> local = new ThreadLocal<Segment>() {
+    @Override
+    protected Segment initialValue() {
+      Segment s = new Segment();
+      synchronized (segments) {
+        segments.add(s);
+      }
+      return s;
+    }
+  };
+
+  /**
+   * @param segmentBytes
+   *          about how much memory each thread may hold postings in
+   */
+  public InvertedIndexWriter(File indexFile, long segmentBytes) throws IOException {
+    this.indexFile = indexFile;
+    File parent = indexFile.getAbsoluteFile().getParentFile();
+    parent.mkdirs();
+    this.tmpDir = Files.createTempDirectory(parent.toPath(), indexFile.getName() + ".tmp").toFile();
+    this.segmentBytes = segmentBytes;
+    this.docIds = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(this.tmpDir, "docs"))));
+  }
+
+  /**
+   * Index the words and entity names of {@code doc}.
+   */
+  public void add(AgigaDocument doc) throws IOException {
+    int docNum = this.register(doc.getDocId());
+    Segment seg = this.local.get();
+
+    // mentions give the Agiga sentence; postings the Communication's, without empty sentences
+    List<AgigaSentence> sents = doc.getSents();
+    int[] sentence = new int[sents.size()];
+    int s = 0;
+    for (int i = 0; i < sents.size(); i++) {
+      sentence[i] = s;
+      if (sents.get(i).getTokens().isEmpty())
+        continue;
+      for (AgigaToken tok : sents.get(i).getTokens())
+        seg.add(InvertedIndex.key(InvertedIndex.WORD, tok.getWord()), docNum, s);
+      s++;
+    }
+
+    if (!doc.getCorefs().isEmpty())
+      addEntities(doc, docNum, sentence, seg);
+
+    if (seg.bytes >= this.segmentBytes)
+      this.spill(seg);
+  }
+
+  /**
+   * Add the sentences of every mention of each named entity. Chains may share a name.
+   */
+  private static void addEntities(AgigaDocument doc, int docNum, int[] sentence, Segment seg) throws IOException {
+    DocumentText text = new DocumentText(doc);
+    Map<String, int[]> entities = new HashMap<>();
+    for (AgigaCoref coref : doc.getCorefs()) {
+      String name = null;
+      for (AgigaMention m : coref.getMentions())
+        if (m.isRepresentative())
+          name = text.getMentionText(m);
+      if (name == null || name.isEmpty())
+        continue;
+      String key = InvertedIndex.key(InvertedIndex.ENTITY, name);
+      int[] before = entities.get(key);
+      int n = before == null ? 0 : before.length;
+      int[] mentionSents = before == null ? new int[coref.getMentions().size()] : Arrays.copyOf(before, n
+          + coref.getMentions().size());
+      for (AgigaMention m : coref.getMentions())
+        mentionSents[n++] = sentence[m.getSentenceIdx()];
+      entities.put(key, mentionSents);
+    }
+    for (Map.Entry<String, int[]> e : entities.entrySet()) {
+      int[] mentionSents = e.getValue();
+      Arrays.sort(mentionSents);
+      for (int ms : mentionSents)
+        seg.add(e.getKey(), docNum, ms);
+    }
+  }
+
+  private synchronized int register(String docId) throws IOException {
+    byte[] b = docId.getBytes(StandardCharsets.UTF_8);
+    InvertedIndex.writeVarint(this.docIds, b.length);
+    this.docIds.write(b);
+    return this.nDocs++;
+  }
+
+  private void spill(Segment seg) throws IOException {
+    if (seg.postings.isEmpty())
+      return;
+    File f;
+    synchronized (this.segmentFiles) {
+      f = new File(this.tmpDir, "segment-" + this.segmentFiles.size());
+      this.segmentFiles.add(f);
+    }
+    seg.writeTo(f);
+  }
+
+  /**
+   * Write the remaining segments and merge them all into the index file.
+   */
+  @Override
+  public void close() throws IOException {
+    long start = System.currentTimeMillis();
+    this.docIds.close();
+    synchronized (this.segments) {
+      for (Segment seg : this.segments)
+        this.spill(seg);
+      this.segments.clear();
+    }
+
+    int nTerms = 0;
+    File keysFile = new File(this.tmpDir, "keys");
+    File dictFile = new File(this.tmpDir, "dict");
+    File offsetsFile = new File(this.tmpDir, "offsets");
+    try (CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(
+        this.indexFile), 1 << 16))) {
+      DataOutputStream dout = new DataOutputStream(out);
+
+      // postings, merged from the segments a term at a time
+      try (CountingOutputStream keys = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(
+          keysFile)));
+          DataOutputStream dict = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dictFile)))) {
+        List<SegmentReader> readers = new ArrayList<>();
+        try {
+          for (File f : this.segmentFiles)
+            readers.add(new SegmentReader(f));
+          nTerms = merge(readers, out, keys, dict);
+        } finally {
+          for (SegmentReader r : readers)
+            r.close();
+        }
+      }
+
+      long docsOffset = out.count;
+      try (DataInputStream docs = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(
+          this.tmpDir, "docs"))));
+          DataOutputStream offsets = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(offsetsFile)))) {
+        for (int d = 0; d < this.nDocs; d++) {
+          offsets.writeLong(out.count);
+          int len = SegmentReader.readVarint(docs);
+          byte[] b = new byte[len];
+          docs.readFully(b);
+          InvertedIndex.writeVarint(out, len);
+          out.write(b);
+        }
+      }
+      long docOffsetsOffset = out.count;
+      Files.copy(offsetsFile.toPath(), out);
+      long termsOffset = out.count;
+      Files.copy(keysFile.toPath(), out);
+      long dictOffset = out.count;
+      Files.copy(dictFile.toPath(), out);
+
+      dout.writeLong(docsOffset);
+      dout.writeLong(docOffsetsOffset);
+      dout.writeLong(termsOffset);
+      dout.writeLong(dictOffset);
+      dout.writeInt(this.nDocs);
+      dout.writeInt(nTerms);
+      dout.writeInt(InvertedIndex.VERSION);
+      dout.writeInt(InvertedIndex.MAGIC);
+      dout.flush();
+    }
+
+    for (File f : this.tmpDir.listFiles())
+      f.delete();
+    this.tmpDir.delete();
+    logger.info("Indexed {} terms in {} documents from {} segments into {} in {} seconds.", nTerms, this.nDocs,
+        this.segmentFiles.size(), this.indexFile.getPath(), (System.currentTimeMillis() - start) / 1000d);
+  }
+
+  /**
+   * Merge the segments, whose terms are each in order, writing each term's
+   * postings to {@code out}, its key to {@code keys} and its dictionary entry
+   * to {@code dict}.
+   *
+   * @return the number of terms
+   */
+  private static int merge(List<SegmentReader> readers, CountingOutputStream out, CountingOutputStream keys,
+      DataOutputStream dict) throws IOException {
+    int nTerms = 0;
+    List<SegmentReader> withTerm = new ArrayList<>();
+    PostingsEncoder enc = new PostingsEncoder();
+    while (true) {
+      byte[] min = null;
+      for (SegmentReader r : readers)
+        if (r.key != null && (min == null || compare(r.key, min) < 0))
+          min = r.key;
+      if (min == null)
+        return nTerms;
+
+      withTerm.clear();
+      for (SegmentReader r : readers)
+        if (r.key != null && compare(r.key, min) == 0)
+          withTerm.add(r);
+      for (SegmentReader r : withTerm)
+        r.startPostings();
+
+      long postingsOffset = out.count;
+      int count = 0;
+      enc.reset(out);
+      // the segments of different threads hold interleaved documents
+      while (true) {
+        SegmentReader next = null;
+        for (SegmentReader r : withTerm)
+          if (r.hasPosting() && (next == null || r.doc < next.doc || r.doc == next.doc && r.sentence < next.sentence))
+            next = r;
+        if (next == null)
+          break;
+        if (enc.add(next.doc, next.sentence))
+          count++;
+        next.nextPosting();
+      }
+
+      dict.writeLong(keys.count);
+      dict.writeLong(postingsOffset);
+      dict.writeInt(min.length);
+      dict.writeInt(count);
+      keys.write(min);
+      nTerms++;
+      for (SegmentReader r : withTerm)
+        r.nextTerm();
+    }
+  }
+
+  private static int compare(byte[] a, byte[] b) {
+    int n = Math.min(a.length, b.length);
+    for (int i = 0; i < n; i++) {
+      int c = (a[i] & 0xff) - (b[i] & 0xff);
+      if (c != 0)
+        return c;
+    }
+    return a.length - b.length;
+  }
+
+  /**
+   * Writes (document, sentence) pairs in the format {@link InvertedIndex}
+   * reads.
+   */
+  private static final class PostingsEncoder {
+    private OutputStream out;
+    private int doc;
+    private int sentence;
+
+    void reset(OutputStream out) {
+      this.out = out;
+      this.doc = 0;
+      this.sentence = -1;
+    }
+
+    /**
+     * @return false if the pair is the same as the last, and was not written
+     */
+    boolean add(int d, int s) throws IOException {
+      if (this.sentence >= 0 && d == this.doc) {
+        if (s == this.sentence)
+          return false;
+        InvertedIndex.writeVarint(this.out, 0);
+        InvertedIndex.writeVarint(this.out, s - this.sentence);
+      } else {
+        InvertedIndex.writeVarint(this.out, d - this.doc);
+        InvertedIndex.writeVarint(this.out, s);
+      }
+      this.doc = d;
+      this.sentence = s;
+      return true;
+    }
+  }
+
+  /**
+   * One thread's postings, each term's already encoded.
+   */
+  private static final class Segment {
+    final Map<String, TermPostings> postings = new HashMap<>();
+    long bytes = 0;
+
+    void add(String key, int doc, int sentence) throws IOException {
+      TermPostings tp = this.postings.get(key);
+      if (tp == null) {
+        this.postings.put(key, tp = new TermPostings());
+        this.bytes += TERM_OVERHEAD + 2 * key.length();
+      }
+      int before = tp.buf.size();
+      if (tp.enc.add(doc, sentence))
+        tp.count++;
+      this.bytes += tp.buf.size() - before;
+    }
+
+    /**
+     * Write the terms in order, with their postings, and empty the segment.
+     */
+    void writeTo(File f) throws IOException {
+      final Map<String, byte[]> keyBytes = new HashMap<>(this.postings.size() * 2);
+      for (String k : this.postings.keySet())
+        keyBytes.put(k, k.getBytes(StandardCharsets.UTF_8));
+      String[] terms = this.postings.keySet().toArray(new String[this.postings.size()]);
+      Arrays.sort(terms, new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+          return InvertedIndexWriter.compare(keyBytes.get(a), keyBytes.get(b));
+        }
+      });
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(f), 1 << 16)) {
+        for (String t : terms) {
+          byte[] k = keyBytes.get(t);
+          TermPostings tp = this.postings.get(t);
+          InvertedIndex.writeVarint(out, k.length);
+          out.write(k);
+          InvertedIndex.writeVarint(out, tp.count);
+          InvertedIndex.writeVarint(out, tp.buf.size());
+          tp.buf.writeTo(out);
+        }
+        // keys are never empty, so an empty one ends the segment
+        InvertedIndex.writeVarint(out, 0);
+      }
+      this.postings.clear();
+      this.bytes = 0;
+    }
+  }
+
+  private static final class TermPostings {
+    final ByteArrayOutputStream buf = new ByteArrayOutputStream(8);
+    final PostingsEncoder enc = new PostingsEncoder();
+    int count = 0;
+
+    TermPostings() {
+      this.enc.reset(this.buf);
+    }
+  }
+
+  /**
+   * Reads a segment file a term at a time, and the current term's postings a
+   * pair at a time.
+   */
+  private static final class SegmentReader implements Closeable {
+    private final DataInputStream in;
+    byte[] key;
+    private byte[] postings;
+    private int pos;
+    int doc;
+    int sentence;
+
+    SegmentReader(File f) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+      this.nextTerm();
+    }
+
+    void nextTerm() throws IOException {
+      int len = readVarint(this.in);
+      if (len == 0) {
+        this.key = null;
+        return;
+      }
+      this.key = new byte[len];
+      this.in.readFully(this.key);
+      readVarint(this.in); // the count, which the merge recounts
+      this.postings = new byte[readVarint(this.in)];
+      this.in.readFully(this.postings);
+    }
+
+    void startPostings() {
+      this.pos = 0;
+      this.doc = 0;
+      this.sentence = -1;
+      this.nextPosting();
+    }
+
+    boolean hasPosting() {
+      return this.sentence >= 0;
+    }
+
+    void nextPosting() {
+      if (this.pos >= this.postings.length) {
+        this.sentence = -1;
+        return;
+      }
+      int gap = this.readPostingVarint();
+      int s = this.readPostingVarint();
+      if (gap == 0 && this.sentence >= 0) {
+        this.sentence += s;
+      } else {
+        this.doc += gap;
+        this.sentence = s;
+      }
+    }
+
+    private int readPostingVarint() {
+      int v = 0;
+      for (int shift = 0;; shift += 7) {
+        byte b = this.postings[this.pos++];
+        v |= (b & 0x7f) << shift;
+        if (b >= 0)
+          return v;
+      }
+    }
+
+    static int readVarint(InputStream in) throws IOException {
+      int v = 0;
+      for (int shift = 0;; shift += 7) {
+        int b = in.read();
+        if (b < 0)
+          throw new EOFException();
+        v |= (b & 0x7f) << shift;
+        if (b < 0x80)
+          return v;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.in.close();
+    }
+  }
+
+  private static final class CountingOutputStream extends FilterOutputStream {
+    long count = 0;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      this.out.write(b);
+      this.count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      this.out.write(b, off, len);
+      this.count += len;
+    }
+  }
+}
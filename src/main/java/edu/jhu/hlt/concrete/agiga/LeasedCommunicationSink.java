@@ -0,0 +1,181 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import concrete.agiga.util.ConcreteAgigaProperties;
+
+/**
+ * Output for files claimed from a {@link WorkManifest}. The documents of each
+ * claimed file are written under {@code outputDir/.leases}, in a directory of
+ * the lease's own laid out like the output directory, and moved into place when
+ * the lease completes. The output of a lease that is lost is thrown away, so a
+ * file taken over from a crashed or stuck worker appears in the output once.
+ * <br/>
+ * Streams are named after the file's line in the manifest
+ * ({@code part-<line>.comms}), not the worker, so converting a file again
+ * replaces its output rather than adding to it.
+ * <br/>
+ * One {@link StagedCommunicationSink}, shared by every lease, stages the
+ * documents on their way to the sink of the current lease; a lease's output is
+ * only moved into place once everything staged for it is written.
+ */
+public class LeasedCommunicationSink implements CommunicationSink, WorkManifest.LeaseOutput {
+
+  private static final Logger logger = LoggerFactory.getLogger(LeasedCommunicationSink.class);
+
+  static final String STAGING_DIR = ".leases";
+
+  private final Path outputDir;
+  private final Path stagingRoot;
+  private final ConcreteAgigaProperties props;
+  // null if staging.mb is 0
+  private final StagedCommunicationSink ring;
+
+  // only one file is converted at a time
+  private volatile WorkManifest.Lease lease;
+  private volatile Path staging;
+  private volatile CommunicationSink sink;
+
+  public LeasedCommunicationSink(File outputDir, ConcreteAgigaProperties props) {
+    this.outputDir = outputDir.toPath();
+    this.stagingRoot = this.outputDir.resolve(STAGING_DIR);
+    this.props = props;
+    int stagingMB = props.getStagingMB();
+    this.ring = stagingMB <= 0 ? null : new StagedCommunicationSink(new CommunicationSink() {
+      @Override
+      public void write(String docId, ByteBuffer serialized) throws IOException {
+        writeToLease(docId, serialized);
+      }
+
+      @Override
+      public void close() {
+      }
+    }, CommunicationSinks.stagingBytes(stagingMB));
+  }
+
+  /**
+   * @return the sink for the output of one lease, written under {@code dir}.
+   *         It is not staged; the documents have been by then.
+   */
+  protected CommunicationSink openSink(File dir, String streamName) {
+    return CommunicationSinks.unstaged(dir, this.props, streamName);
+  }
+
+  @Override
+  public synchronized void open(WorkManifest.Lease lease) throws IOException {
+    if (this.lease != null)
+      throw new IllegalStateException("Still converting " + this.lease.getFile() + "; cannot start on "
+          + lease.getFile());
+    Files.createDirectories(this.stagingRoot);
+    this.staging = Files.createTempDirectory(this.stagingRoot, lease.getIndex() + "-" + lease.getWorkerId() + "-");
+    this.sink = this.openSink(this.staging.toFile(), this.props.getOutputStreamName() + "-" + lease.getIndex());
+    this.lease = lease;
+  }
+
+  @Override
+  public void write(String docId, ByteBuffer serialized) throws IOException {
+    if (this.ring != null)
+      this.ring.write(docId, serialized);
+    else
+      this.writeToLease(docId, serialized);
+  }
+
+  private void writeToLease(String docId, ByteBuffer serialized) throws IOException {
+    CommunicationSink s = this.sink;
+    if (s == null)
+      throw new IOException("No file is claimed to write " + docId + " for.");
+    s.write(docId, serialized);
+  }
+
+  @Override
+  public synchronized void commit(WorkManifest.Lease lease) throws IOException {
+    if (lease != this.lease)
+      return;
+    if (this.ring != null)
+      this.ring.awaitWritten();
+    this.sink.close();
+    final Path from = this.staging;
+    final int[] moved = { 0 };
+    Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Path to = outputDir.resolve(from.relativize(file));
+        Files.createDirectories(to.getParent());
+        Files.move(file, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        moved[0]++;
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    deleteTree(from);
+    logger.info("Moved {} output files for {} into place.", moved[0], lease.getFile());
+    this.clear();
+  }
+
+  @Override
+  public synchronized void discard(WorkManifest.Lease lease) throws IOException {
+    if (lease != this.lease)
+      return;
+    try {
+      if (this.ring != null)
+        this.ring.awaitWritten();
+    } finally {
+      try {
+        this.sink.close();
+      } finally {
+        deleteTree(this.staging);
+        logger.warn("Threw away the output written for {} before its lease was lost.", lease.getFile());
+        this.clear();
+      }
+    }
+  }
+
+  private void clear() {
+    this.lease = null;
+    this.sink = null;
+    this.staging = null;
+  }
+
+  private static void deleteTree(Path dir) throws IOException {
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+        if (e != null)
+          throw e;
+        Files.delete(d);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /**
+   * Throw away the output of a lease still open, e.g. after a failure. Its file
+   * is not marked done, so another worker converts it again.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      if (this.lease != null)
+        this.discard(this.lease);
+    } finally {
+      if (this.ring != null)
+        this.ring.close();
+    }
+  }
+}
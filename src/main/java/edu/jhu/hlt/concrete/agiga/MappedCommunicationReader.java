@@ -0,0 +1,377 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolException;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import concrete.agiga.util.ByteBufferInputTransport;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.util.ConcreteException;
+
+/**
+ * Random-access reader over files of back-to-back, compact-serialized
+ * {@link Communication}s, such as the output of {@link AgigaConverter} (a
+ * single {@code docId.thrift} file is the one-record case).
+ * <br/>
+ * Files are memory-mapped in regions of at most {@link #MAX_REGION_SIZE}
+ * bytes. On open, every record is walked once to build an index of
+ * Communication id to (region, offset, length); only the id field is decoded
+ * during that walk. Lookups then deserialize directly from the mapped region
+ * without reading the file through the heap.
+ */
+public class MappedCommunicationReader implements Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(MappedCommunicationReader.class);
+
+  public static final int MAX_REGION_SIZE = Integer.MAX_VALUE;
+
+  private static final short ID_FIELD = Communication._Fields.ID.getThriftFieldId();
+
+  /**
+   * Callback for {@link MappedCommunicationReader#scan(int, Handler)}. Called
+   * concurrently from the scanning threads.
+   */
+  public interface Handler {
+    void handle(Communication comm) throws Exception;
+  }
+
+  /**
+   * Where a serialized Communication lives on disk.
+   */
+  public static final class Location {
+    private final Path file;
+    private final long offset;
+    private final int length;
+
+    Location(Path file, long offset, int length) {
+      this.file = file;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    public Path getFile() {
+      return file;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    public int getLength() {
+      return length;
+    }
+
+    @Override
+    public String toString() {
+      return file + "@" + offset + "+" + length;
+    }
+  }
+
+  private static final class Region {
+    private final Path file;
+    private final long fileOffset;
+    private final MappedByteBuffer buffer;
+
+    Region(Path file, long fileOffset, MappedByteBuffer buffer) {
+      this.file = file;
+      this.fileOffset = fileOffset;
+      this.buffer = buffer;
+    }
+  }
+
+  private final int maxRegionSize;
+  private final List<Region> regions = new ArrayList<>();
+  private final Map<String, Integer> idToRecord = new HashMap<>();
+
+  private int nRecords = 0;
+  private int[] recordRegion = new int[1024];
+  private int[] recordOffset = new int[1024];
+  private int[] recordLength = new int[1024];
+
+  /**
+   * Map and index the given files.
+   *
+   * @throws IOException if a file cannot be mapped, or if it holds anything
+   *           other than whole serialized Communications.
+   */
+  public MappedCommunicationReader(List<Path> files) throws IOException {
+    this(files, MAX_REGION_SIZE);
+  }
+
+  MappedCommunicationReader(List<Path> files, int maxRegionSize) throws IOException {
+    this.maxRegionSize = maxRegionSize;
+    long start = System.currentTimeMillis();
+    for (Path p : files)
+      this.mapAndIndex(p);
+    logger.info("Indexed {} communications in {} files ({} mapped regions) in {} seconds.", this.nRecords,
+        files.size(), this.regions.size(), (System.currentTimeMillis() - start) / 1000d);
+  }
+
+  private void mapAndIndex(Path file) throws IOException {
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = ch.size();
+      long regionStart = 0;
+      while (regionStart < size) {
+        long regionSize = Math.min(size - regionStart, this.maxRegionSize);
+        boolean lastRegion = regionStart + regionSize == size;
+        MappedByteBuffer mapped = ch.map(MapMode.READ_ONLY, regionStart, regionSize);
+        this.regions.add(new Region(file, regionStart, mapped));
+        int consumed = this.indexRegion(this.regions.size() - 1, lastRegion);
+        if (consumed == 0)
+          throw new IOException("Communication at offset " + regionStart + " in " + file
+              + " is larger than the maximum region size of " + this.maxRegionSize + " bytes.");
+        regionStart += consumed;
+      }
+    }
+  }
+
+  /**
+   * Index every whole record in a region.
+   *
+   * @return the number of bytes covered by whole records. For every region but
+   *         the last of a file, a record straddling the region's end is left for
+   *         the next region, which is mapped starting at that record.
+   */
+  private int indexRegion(int regionIdx, boolean lastRegion) throws IOException {
+    Region r = this.regions.get(regionIdx);
+    ByteBufferInputTransport trans = new ByteBufferInputTransport(r.buffer.duplicate());
+    TCompactProtocol prot = new TCompactProtocol(trans);
+    while (trans.remaining() > 0) {
+      int start = trans.position();
+      String id;
+      try {
+        id = readId(prot);
+      } catch (TException e) {
+        if (!lastRegion)
+          return start;
+        throw new IOException("Corrupt or truncated Communication at offset " + (r.fileOffset + start) + " in "
+            + r.file, e);
+      }
+
+      this.addRecord(id, regionIdx, start, trans.position() - start);
+    }
+
+    return trans.position();
+  }
+
+  /**
+   * Read a serialized Communication's id, skipping every other field.
+   */
+  private static String readId(TProtocol prot) throws TException {
+    String id = null;
+    prot.readStructBegin();
+    while (true) {
+      TField f = prot.readFieldBegin();
+      if (f.type == TType.STOP)
+        break;
+      if (f.id == ID_FIELD && f.type == TType.STRING)
+        id = prot.readString();
+      else
+        TProtocolUtil.skip(prot, f.type);
+      prot.readFieldEnd();
+    }
+    prot.readStructEnd();
+
+    if (id == null)
+      throw new TProtocolException(TProtocolException.INVALID_DATA, "Communication does not have an id.");
+    return id;
+  }
+
+  private void addRecord(String id, int region, int offset, int length) {
+    if (this.nRecords == this.recordRegion.length) {
+      int newSize = this.nRecords * 2;
+      this.recordRegion = Arrays.copyOf(this.recordRegion, newSize);
+      this.recordOffset = Arrays.copyOf(this.recordOffset, newSize);
+      this.recordLength = Arrays.copyOf(this.recordLength, newSize);
+    }
+
+    int rec = this.nRecords++;
+    this.recordRegion[rec] = region;
+    this.recordOffset[rec] = offset;
+    this.recordLength[rec] = length;
+    Integer prev = this.idToRecord.put(id, rec);
+    if (prev != null)
+      logger.warn("Communication {} appears more than once; using the copy at {}.", id, this.getLocation(id));
+  }
+
+  /**
+   * @return the number of distinct Communication ids indexed
+   */
+  public int size() {
+    return this.idToRecord.size();
+  }
+
+  public Set<String> getIds() {
+    return Collections.unmodifiableSet(this.idToRecord.keySet());
+  }
+
+  public boolean contains(String id) {
+    return this.idToRecord.containsKey(id);
+  }
+
+  /**
+   * @return where the Communication with this id is stored, or null if it is
+   *         not in the index
+   */
+  public Location getLocation(String id) {
+    Integer rec = this.idToRecord.get(id);
+    if (rec == null)
+      return null;
+    Region r = this.regions.get(this.recordRegion[rec]);
+    return new Location(r.file, r.fileOffset + this.recordOffset[rec], this.recordLength[rec]);
+  }
+
+  /**
+   * @return a read-only view of the serialized bytes of the Communication with
+   *         this id, or null if it is not in the index
+   */
+  public ByteBuffer getBytes(String id) {
+    Integer rec = this.idToRecord.get(id);
+    if (rec == null)
+      return null;
+    return this.view(rec).slice().asReadOnlyBuffer();
+  }
+
+  /**
+   * @return the Communication with this id, or null if it is not in the index
+   * @throws ConcreteException
+   *           if the stored bytes do not deserialize
+   */
+  public Communication get(String id) throws ConcreteException {
+    Integer rec = this.idToRecord.get(id);
+    if (rec == null)
+      return null;
+    return this.read(rec);
+  }
+
+  /**
+   * @return the number of records indexed, in file order; larger than
+   *         {@link #size()} if an id is stored more than once
+   */
+  public int getNumRecords() {
+    return this.nRecords;
+  }
+
+  /**
+   * @return the {@code rec}'th Communication stored, counting from 0 in the
+   *         order the files were given
+   * @throws ConcreteException
+   *           if the stored bytes do not deserialize
+   */
+  public Communication getRecord(int rec) throws ConcreteException {
+    if (rec < 0 || rec >= this.nRecords)
+      throw new IndexOutOfBoundsException("No record " + rec + " of " + this.nRecords);
+    return this.read(rec);
+  }
+
+  private ByteBuffer view(int rec) {
+    ByteBuffer view = this.regions.get(this.recordRegion[rec]).buffer.duplicate();
+    view.position(this.recordOffset[rec]);
+    view.limit(this.recordOffset[rec] + this.recordLength[rec]);
+    return view;
+  }
+
+  private Communication read(int rec) throws ConcreteException {
+    Communication comm = new Communication();
+    try {
+      comm.read(new TCompactProtocol(new ByteBufferInputTransport(this.view(rec))));
+    } catch (TException e) {
+      throw new ConcreteException("Failed to deserialize Communication at record " + rec, e);
+    }
+    return comm;
+  }
+
+  /**
+   * Deserialize every indexed Communication and pass it to {@code handler},
+   * using {@code nThreads} threads. Work is split into runs of consecutive
+   * records that never cross a mapped region, so each thread reads
+   * sequentially through its part of the mapping.
+   *
+   * @throws ConcreteException
+   *           if a record fails to deserialize or the handler throws
+   */
+  public void scan(int nThreads, final Handler handler) throws ConcreteException {
+    if (this.nRecords == 0)
+      return;
+
+    long totalBytes = 0;
+    for (int rec = 0; rec < this.nRecords; rec++)
+      totalBytes += this.recordLength[rec];
+    // a few chunks per thread, so one slow chunk does not hold up the scan
+    long chunkBytes = Math.max(1, totalBytes / (nThreads * 4L));
+
+    List<Callable<Void>> tasks = new ArrayList<>();
+    int from = 0;
+    long bytes = 0;
+    for (int rec = 0; rec < this.nRecords; rec++) {
+      if (rec > from && (this.recordRegion[rec] != this.recordRegion[from] || bytes >= chunkBytes)) {
+        tasks.add(this.scanTask(from, rec, handler));
+        from = rec;
+        bytes = 0;
+      }
+      bytes += this.recordLength[rec];
+    }
+    tasks.add(this.scanTask(from, this.nRecords, handler));
+
+    ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+    try {
+      for (Future<Void> f : pool.invokeAll(tasks))
+        f.get();
+    } catch (ExecutionException e) {
+      throw new ConcreteException("Scan failed.", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ConcreteException("Interrupted while scanning.", e);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private Callable<Void> scanTask(final int from, final int to, final Handler handler) {
+    return new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        for (int rec = from; rec < to; rec++)
+          handler.handle(read(rec));
+        return null;
+      }
+    };
+  }
+
+  /**
+   * Drops the mappings. They are released once garbage collected.
+   */
+  @Override
+  public void close() {
+    this.regions.clear();
+    this.idToRecord.clear();
+    this.nRecords = 0;
+  }
+}
@@ -0,0 +1,14 @@
+package edu.jhu.hlt.concrete.agiga;
+
+/**
+ * Decides which partition of the output a converted document belongs to.
+ */
+public interface OutputPartitioner {
+
+  /**
+   * @return a relative path naming the partition for {@code docId}, e.g.
+   *         {@code shard-00003} or {@code NYT_ENG/1994/07}. Must be the same
+   *         every time it is called with the same id.
+   */
+  String getPartition(String docId);
+}
@@ -0,0 +1,270 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import concrete.agiga.util.ByteBufferInputTransport;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.EntityMentionSet;
+import edu.jhu.hlt.concrete.EntitySet;
+import edu.jhu.hlt.concrete.Section;
+import edu.jhu.hlt.concrete.Sentence;
+import edu.jhu.hlt.concrete.validation.AbstractAnnotation;
+import edu.jhu.hlt.concrete.validation.ValidatableEntityMentionSet;
+import edu.jhu.hlt.concrete.validation.ValidatableEntitySet;
+import edu.jhu.hlt.concrete.validation.ValidatableSection;
+import edu.jhu.hlt.concrete.validation.ValidatableSentence;
+import edu.jhu.hlt.concrete.validation.ValidatableTokenization;
+
+/**
+ * Runs concrete-validation over a sample of the Communications written, on
+ * threads of its own, counting violations by rule. A sampled document is
+ * copied and read back from its serialized bytes, so what is checked is what
+ * was written, whether or not it was built as a Communication. Conversion never
+ * waits for it: when the validation threads fall behind, documents are skipped,
+ * and counted as such.
+ * <br/>
+ * The rules are those of concrete-validation's {@code CommunicationValidator}
+ * (sections, sentences, tokenizations and entity mention sets), and entity
+ * sets. A document whose bytes do not read back as a Communication is counted
+ * under {@link #UNREADABLE}.
+ */
+public class OutputValidator implements Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(OutputValidator.class);
+
+  static final String UNREADABLE = "Communication unreadable";
+
+  private static final int QUEUED_PER_THREAD = 16;
+  private static final int MAX_EXAMPLES = 3;
+
+  private final long sampleThreshold;
+  private final ThreadPoolExecutor pool;
+
+  private final AtomicLong validated = new AtomicLong();
+  private final AtomicLong invalid = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+  private final ConcurrentMap<String, AtomicLong> violations = new ConcurrentHashMap<>();
+  private final Map<String, List<String>> examples = new TreeMap<>();
+
+  /**
+   * @param sampleRate
+   *          the fraction of documents to validate, picked by their ids; 1 for
+   *          every document
+   * @param threads
+   *          how many threads to validate on
+   */
+  public OutputValidator(double sampleRate, int threads) {
+    if (sampleRate <= 0 || sampleRate > 1)
+      throw new IllegalArgumentException("Sample rate must be in (0, 1]: " + sampleRate);
+    this.sampleThreshold = (long) Math.ceil(sampleRate * (1L << 32));
+    final AtomicInteger n = new AtomicInteger();
+    this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+        threads * QUEUED_PER_THREAD), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "validation-" + n.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    }, new RejectedExecutionHandler() {
+      @Override
+      public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+        skipped.incrementAndGet();
+      }
+    });
+  }
+
+  /**
+   * @return whether {@code docId} is in the sample. The same ids are picked
+   *         on every run.
+   */
+  public boolean isSampled(String docId) {
+    if (this.sampleThreshold > 0xffffffffL)
+      return true;
+    // spread the hash, so that ids differing only at the end are picked evenly
+    int h = docId.hashCode() * 0x9e3779b9;
+    h ^= h >>> 16;
+    return (h & 0xffffffffL) < this.sampleThreshold;
+  }
+
+  /**
+   * Queue the document for validation if it is in the sample. The bytes are
+   * copied, so {@code serialized} may be reused once this returns; its
+   * position is not moved.
+   */
+  public void offer(final String docId, ByteBuffer serialized) {
+    if (!this.isSampled(docId))
+      return;
+    final byte[] bytes = new byte[serialized.remaining()];
+    serialized.duplicate().get(bytes);
+    this.pool.execute(new Runnable() {
+      @Override
+      public void run() {
+        validate(docId, bytes);
+      }
+    });
+  }
+
+  void validate(String docId, byte[] bytes) {
+    Communication comm = new Communication();
+    try {
+      comm.read(new TCompactProtocol(new ByteBufferInputTransport(ByteBuffer.wrap(bytes))));
+    } catch (TException | RuntimeException e) {
+      this.violation(UNREADABLE, docId + ": " + e);
+      this.invalid.incrementAndGet();
+      this.validated.incrementAndGet();
+      return;
+    }
+
+    boolean valid = true;
+    if (comm.isSetSectionList()) {
+      for (Section sect : comm.getSectionList()) {
+        valid &= this.check(new ValidatableSection(sect), comm, "Section", docId);
+        if (!sect.isSetSentenceList())
+          continue;
+        for (Sentence sent : sect.getSentenceList()) {
+          valid &= this.check(new ValidatableSentence(sent), comm, "Sentence", docId);
+          if (sent.isSetTokenization())
+            valid &= this.check(new ValidatableTokenization(sent.getTokenization()), comm, "Tokenization", docId);
+        }
+      }
+    }
+    if (comm.isSetEntityMentionSetList())
+      for (EntityMentionSet ems : comm.getEntityMentionSetList())
+        valid &= this.check(new ValidatableEntityMentionSet(ems), comm, "EntityMentionSet", docId);
+    if (comm.isSetEntitySetList())
+      for (EntitySet es : comm.getEntitySetList())
+        valid &= this.check(new ValidatableEntitySet(es), comm, "EntitySet", docId);
+
+    if (!valid)
+      this.invalid.incrementAndGet();
+    this.validated.incrementAndGet();
+  }
+
+  private boolean check(AbstractAnnotation<?> annotation, Communication comm, String rule, String docId) {
+    boolean ok;
+    try {
+      ok = annotation.validate(comm);
+    } catch (RuntimeException e) {
+      // a validator that fails on what it is given has found something wrong too
+      ok = false;
+    }
+    if (!ok)
+      this.violation(rule, docId);
+    return ok;
+  }
+
+  private void violation(String rule, String example) {
+    AtomicLong count = this.violations.get(rule);
+    if (count == null) {
+      AtomicLong fresh = new AtomicLong();
+      count = this.violations.putIfAbsent(rule, fresh);
+      if (count == null)
+        count = fresh;
+    }
+    if (count.getAndIncrement() < MAX_EXAMPLES) {
+      synchronized (this.examples) {
+        List<String> l = this.examples.get(rule);
+        if (l == null)
+          this.examples.put(rule, l = new ArrayList<>(MAX_EXAMPLES));
+        l.add(example);
+      }
+    }
+  }
+
+  /**
+   * @return the documents validated so far
+   */
+  public long getValidated() {
+    return this.validated.get();
+  }
+
+  /**
+   * @return the documents validated with at least one violation
+   */
+  public long getInvalid() {
+    return this.invalid.get();
+  }
+
+  /**
+   * @return the sampled documents left unvalidated because the validation
+   *         threads were behind
+   */
+  public long getSkipped() {
+    return this.skipped.get();
+  }
+
+  /**
+   * @return the number of violations of each rule, by rule
+   */
+  public Map<String, Long> getViolations() {
+    Map<String, Long> m = new TreeMap<>();
+    for (Map.Entry<String, AtomicLong> e : this.violations.entrySet())
+      m.put(e.getKey(), e.getValue().get());
+    return m;
+  }
+
+  /**
+   * @return the first few documents that broke {@code rule}
+   */
+  public List<String> getExamples(String rule) {
+    synchronized (this.examples) {
+      List<String> l = this.examples.get(rule);
+      return l == null ? Collections.<String> emptyList() : new ArrayList<>(l);
+    }
+  }
+
+  public void logSummary() {
+    Map<String, Long> counts = this.getViolations();
+    if (counts.isEmpty()) {
+      logger.info("Validated {} sampled documents without violations ({} skipped).", this.getValidated(),
+          this.getSkipped());
+      return;
+    }
+    StringBuilder sb = new StringBuilder();
+    sb.append(this.getInvalid()).append(" of ").append(this.getValidated())
+        .append(" sampled documents failed validation (").append(this.getSkipped()).append(" skipped):");
+    for (Map.Entry<String, Long> e : counts.entrySet()) {
+      sb.append(String.format("%n%10d  %s", e.getValue(), e.getKey()));
+      List<String> ex = this.getExamples(e.getKey());
+      if (!ex.isEmpty())
+        sb.append(" (e.g. ").append(ex.get(0)).append(')');
+    }
+    logger.warn(sb.toString());
+  }
+
+  /**
+   * Wait for the queued documents to be validated, and log the summary.
+   */
+  @Override
+  public void close() {
+    this.pool.shutdown();
+    try {
+      while (!this.pool.awaitTermination(10, TimeUnit.SECONDS))
+        logger.info("Waiting for {} documents to be validated.", this.pool.getQueue().size());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    this.logSummary();
+  }
+}
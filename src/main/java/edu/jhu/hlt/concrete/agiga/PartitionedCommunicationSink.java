@@ -0,0 +1,148 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes Communications into one stream per output partition. The stream for
+ * partition {@code p} is {@code outputDir/p/streamName.comms}, holding
+ * back-to-back serialized Communications that can be read with
+ * {@link MappedCommunicationReader}. Giving concurrent writers (e.g. one per
+ * machine) different stream names keeps them from writing the same file.
+ * <br/>
+ * Each stream is opened once and written through a {@link FileChannel}.
+ * Communications are gathered in a direct buffer per stream (the copy the JDK
+ * would otherwise make from a heap buffer on every channel write) and written
+ * out when it fills. Only the most recently used streams are kept open; a
+ * stream closed to make room is appended to when it is next needed.
+ */
+public class PartitionedCommunicationSink implements CommunicationSink {
+
+  private static final Logger logger = LoggerFactory.getLogger(PartitionedCommunicationSink.class);
+
+  public static final String STREAM_EXTENSION = ".comms";
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final File outputDir;
+  private final OutputPartitioner partitioner;
+  private final String streamName;
+  private final int maxOpenStreams;
+  // in access order, least recently used first
+  private final Map<String, Stream> open = new LinkedHashMap<String, Stream>(16, 0.75f, true);
+  // partitions written to during this run, so a re-opened stream appends
+  private final Set<String> started = new HashSet<>();
+
+  private long nWritten = 0;
+
+  /**
+   * An open stream file and the Communications not yet written to it.
+   */
+  private static final class Stream {
+    private final FileChannel ch;
+    private final ByteBuffer pending = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    Stream(File f, boolean append) throws IOException {
+      this.ch = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    void write(ByteBuffer serialized) throws IOException {
+      if (serialized.remaining() <= this.pending.remaining()) {
+        this.pending.put(serialized);
+        return;
+      }
+      // too big to gather: write what is pending and this one together
+      this.pending.flip();
+      ByteBuffer[] both = new ByteBuffer[] { this.pending, serialized };
+      while (this.pending.hasRemaining() || serialized.hasRemaining())
+        this.ch.write(both);
+      this.pending.clear();
+    }
+
+    void close() throws IOException {
+      try {
+        this.pending.flip();
+        while (this.pending.hasRemaining())
+          this.ch.write(this.pending);
+      } finally {
+        this.ch.close();
+      }
+    }
+  }
+
+  public PartitionedCommunicationSink(File outputDir, OutputPartitioner partitioner, String streamName,
+      int maxOpenStreams) {
+    this.outputDir = outputDir;
+    this.partitioner = partitioner;
+    this.streamName = streamName;
+    this.maxOpenStreams = maxOpenStreams;
+  }
+
+  public File getStreamFile(String partition) {
+    return new File(new File(this.outputDir, partition), this.streamName + STREAM_EXTENSION);
+  }
+
+  private Stream stream(String partition) throws IOException {
+    Stream s = this.open.get(partition);
+    if (s == null) {
+      File f = this.getStreamFile(partition);
+      File dir = f.getParentFile();
+      if (!dir.isDirectory() && !dir.mkdirs())
+        throw new IOException("Unable to create partition directory: " + dir);
+      boolean append = !this.started.add(partition);
+      s = new Stream(f, append);
+      this.open.put(partition, s);
+      if (this.open.size() > this.maxOpenStreams)
+        this.closeEldest();
+    }
+    return s;
+  }
+
+  /**
+   * Close the least recently used stream to make room. It is out of the map
+   * before it is closed, so a failure to close it leaves no closed stream
+   * behind to be written to.
+   */
+  private void closeEldest() throws IOException {
+    Iterator<Map.Entry<String, Stream>> it = this.open.entrySet().iterator();
+    Map.Entry<String, Stream> eldest = it.next();
+    it.remove();
+    eldest.getValue().close();
+  }
+
+  @Override
+  public synchronized void write(String docId, ByteBuffer serialized) throws IOException {
+    this.stream(this.partitioner.getPartition(docId)).write(serialized);
+    this.nWritten++;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    IOException first = null;
+    for (Map.Entry<String, Stream> e : this.open.entrySet()) {
+      try {
+        e.getValue().close();
+      } catch (IOException ioe) {
+        if (first == null)
+          first = ioe;
+      }
+    }
+    this.open.clear();
+    logger.info("Wrote {} communications into {} partitions under {}.", this.nWritten, this.started.size(),
+        this.outputDir);
+    if (first != null)
+      throw first;
+  }
+}
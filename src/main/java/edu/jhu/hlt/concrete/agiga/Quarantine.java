@@ -0,0 +1,117 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the documents that failed to convert, so that a batch run can carry on
+ * without them. For each one, {@code NAME.xml} holds its raw Agiga XML and
+ * {@code NAME.error.txt} the stack trace, where NAME is the document id (or the
+ * input file and position if the id can't be found). Nothing is created until
+ * the first failure.
+ */
+public class Quarantine {
+
+  private static final Logger logger = LoggerFactory.getLogger(Quarantine.class);
+
+  private static final int MAX_CAUSE_LENGTH = 120;
+  private static final int MAX_LISTED = 20;
+
+  private final File dir;
+  private final Map<String, Integer> failuresByCause = new TreeMap<>();
+  private final List<String> failed = new ArrayList<>();
+  private int nFailed = 0;
+
+  public Quarantine(File dir) {
+    this.dir = dir;
+  }
+
+  public File getDir() {
+    return dir;
+  }
+
+  public synchronized int getNumFailed() {
+    return this.nFailed;
+  }
+
+  /**
+   * @return the number of failures for each kind of failure: the exception
+   *         class and its message, with numbers replaced by {@code #}
+   */
+  public synchronized Map<String, Integer> getFailuresByCause() {
+    return Collections.unmodifiableMap(new TreeMap<>(this.failuresByCause));
+  }
+
+  /**
+   * Record a failed document.
+   *
+   * @throws IOException
+   *           if the document cannot be written to the quarantine directory
+   */
+  public synchronized void add(RawAgigaDocument doc, Throwable cause) throws IOException {
+    if (this.nFailed < MAX_LISTED)
+      logger.error("Failed to convert {}; quarantining it: {}", doc, cause.toString());
+    else if (this.nFailed == MAX_LISTED)
+      logger.error("Failed to convert {}; further failures are only quarantined and counted", doc);
+    if (!this.dir.isDirectory() && !this.dir.mkdirs())
+      throw new IOException("Unable to create quarantine directory: " + this.dir);
+
+    String name = this.uniqueName(doc);
+    Files.write(new File(this.dir, name + ".xml").toPath(), doc.getXml().getBytes(StandardCharsets.UTF_8));
+    StringWriter trace = new StringWriter();
+    try (PrintWriter pw = new PrintWriter(trace)) {
+      pw.println(doc);
+      cause.printStackTrace(pw);
+    }
+    Files.write(new File(this.dir, name + ".error.txt").toPath(), trace.toString().getBytes(StandardCharsets.UTF_8));
+
+    this.nFailed++;
+    String key = causeKey(cause);
+    Integer n = this.failuresByCause.get(key);
+    this.failuresByCause.put(key, n == null ? 1 : n + 1);
+    if (this.failed.size() < MAX_LISTED)
+      this.failed.add(doc.toString());
+  }
+
+  private String uniqueName(RawAgigaDocument doc) {
+    String id = doc.getDocId();
+    String base = id != null ? id : new File(doc.getSource()).getName() + "-" + doc.getIndex();
+    base = base.replaceAll("[^A-Za-z0-9._-]", "_");
+    String name = base;
+    for (int i = 1; new File(this.dir, name + ".xml").exists(); i++)
+      name = base + "." + i;
+    return name;
+  }
+
+  static String causeKey(Throwable cause) {
+    String msg = cause.getMessage() == null ? "" : ": " + cause.getMessage().replaceAll("[0-9]+", "#");
+    String key = cause.getClass().getSimpleName() + msg;
+    return key.length() > MAX_CAUSE_LENGTH ? key.substring(0, MAX_CAUSE_LENGTH) + "..." : key;
+  }
+
+  /**
+   * Log how many documents failed and why.
+   */
+  public synchronized void logSummary() {
+    if (this.nFailed == 0) {
+      logger.info("No documents failed.");
+      return;
+    }
+    logger.error("{} documents failed and were quarantined in {}", this.nFailed, this.dir);
+    for (Map.Entry<String, Integer> e : this.failuresByCause.entrySet())
+      logger.error("  {} x {}", e.getValue(), e.getKey());
+    logger.error("First failed documents: {}{}", this.failed, this.nFailed > this.failed.size() ? " ..." : "");
+  }
+}
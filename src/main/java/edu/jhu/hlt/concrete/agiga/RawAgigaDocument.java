@@ -0,0 +1,173 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import edu.jhu.agiga.AgigaDocument;
+
+/**
+ * The unparsed XML of one {@code <DOC>} of an Agiga file, as split off by
+ * {@link AgigaDocumentChunker}.
+ */
+public class RawAgigaDocument {
+
+  private static final Pattern DOC_ID = Pattern.compile("<DOC\\b[^>]*\\bid=\"([^\"]*)\"");
+
+  private final String source;
+  private final int index;
+  private final String xml;
+
+  public RawAgigaDocument(String source, int index, String xml) {
+    this.source = source;
+    this.index = index;
+    this.xml = xml;
+  }
+
+  /**
+   * @return the file the document came from
+   */
+  public String getSource() {
+    return source;
+  }
+
+  /**
+   * @return the position of the document in its file, from 0
+   */
+  public int getIndex() {
+    return index;
+  }
+
+  public String getXml() {
+    return xml;
+  }
+
+  /**
+   * @return the id attribute of the {@code <DOC>} element, found without parsing
+   *         the document, or null if there isn't one
+   */
+  public String getDocId() {
+    Matcher m = DOC_ID.matcher(this.xml);
+    return m.find() ? unescape(m.group(1)) : null;
+  }
+
+  /**
+   * @return the number of tokens, counted from the XML without parsing it
+   */
+  public int countTokens() {
+    int tokens = 0;
+    for (int i = this.xml.indexOf("<token "); i >= 0; i = this.xml.indexOf("<token ", i + 1))
+      tokens++;
+    return tokens;
+  }
+
+  /**
+   * The text {@link AgigaConverter#flattenText(AgigaDocument)} gives for the
+   * parsed document, a line of space separated words per sentence, read from
+   * the XML without parsing it. Parsing would load CoreNLP, which the Agiga
+   * reader needs for its sentences.
+   */
+  public String getText() {
+    StringBuilder sb = new StringBuilder();
+    int end = this.xml.indexOf("</sentences>");
+    if (end < 0)
+      end = this.xml.length();
+    int i = this.xml.indexOf("<sentence ");
+    while (i >= 0 && i < end) {
+      int sentEnd = this.xml.indexOf("</sentence>", i);
+      if (sentEnd < 0)
+        sentEnd = end;
+      boolean first = true;
+      for (int w = this.xml.indexOf("<word>", i); w >= 0 && w < sentEnd; w = this.xml.indexOf("<word>", w)) {
+        w += "<word>".length();
+        int wEnd = this.xml.indexOf("</word>", w);
+        if (!first)
+          sb.append(' ');
+        sb.append(unescape(this.xml.substring(w, wEnd)));
+        first = false;
+        w = wEnd;
+      }
+      sb.append('\n');
+      i = this.xml.indexOf("<sentence ", sentEnd);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Replace the predefined entities and character references in XML text.
+   */
+  static String unescape(String text) {
+    int amp = text.indexOf('&');
+    if (amp < 0)
+      return text;
+    StringBuilder sb = new StringBuilder(text.length());
+    sb.append(text, 0, amp);
+    for (int i = amp; i < text.length(); i++) {
+      char c = text.charAt(i);
+      int semi = c == '&' ? text.indexOf(';', i) : -1;
+      if (semi < 0) {
+        sb.append(c);
+        continue;
+      }
+      String entity = text.substring(i + 1, semi);
+      switch (entity) {
+      case "amp":
+        sb.append('&');
+        break;
+      case "lt":
+        sb.append('<');
+        break;
+      case "gt":
+        sb.append('>');
+        break;
+      case "quot":
+        sb.append('"');
+        break;
+      case "apos":
+        sb.append('\'');
+        break;
+      default:
+        if (entity.startsWith("#x"))
+          sb.appendCodePoint(Integer.parseInt(entity.substring(2), 16));
+        else if (entity.startsWith("#"))
+          sb.appendCodePoint(Integer.parseInt(entity.substring(1)));
+        else
+          sb.append(text, i, semi + 1);
+      }
+      i = semi;
+    }
+    return sb.toString();
+  }
+
+  /**
+   * A rough, relative measure of how long the document will take to convert:
+   * its number of tokens plus the number of constituents in its parses, counted
+   * from the XML without parsing it.
+   */
+  public long estimateCost() {
+    long tokens = this.countTokens();
+
+    long constituents = 0;
+    int i = this.xml.indexOf("<parse>");
+    while (i >= 0) {
+      int end = this.xml.indexOf("</parse>", i);
+      if (end < 0)
+        break;
+      for (int j = i; j < end; j++)
+        if (this.xml.charAt(j) == '(')
+          constituents++;
+      i = this.xml.indexOf("<parse>", end);
+    }
+    return tokens + constituents;
+  }
+
+  public AgigaDocument parse(DocumentXmlParser parser) {
+    return parser.parse(this.xml.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public String toString() {
+    String id = this.getDocId();
+    return this.source + "#" + this.index + (id == null ? "" : " (" + id + ")");
+  }
+}
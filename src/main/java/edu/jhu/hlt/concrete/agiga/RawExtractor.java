@@ -0,0 +1,27 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Extracts raw Communications (id and text, no annotations) from Agiga files:
+ * {@link AgigaConverter#main(String[])} with the raw extraction flag set. Only
+ * the words are read from the XML, and no CoreNLP class is loaded, so it
+ * starts faster and in less memory, and runs from the {@code raw} assembly,
+ * which leaves CoreNLP out.
+ * <br/>
+ * Usage: {@code RawExtractor /my/output/dir /my/agiga/doc.xml.gz...}, where
+ * either may be {@code -} for standard output or input.
+ */
+public class RawExtractor {
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.out.println("Please provide the path to a directory for Concrete thrift output files, and the path to 1 "
+          + "or more input Agiga XML files");
+      System.out.println("e.g., " + RawExtractor.class.getSimpleName() + " /my/output/dir /my/agiga/doc.xml.gz");
+      System.exit(1);
+    }
+    AgigaConverter.run(new File(args[0]), true, Arrays.asList(args).subList(1, args.length));
+  }
+}
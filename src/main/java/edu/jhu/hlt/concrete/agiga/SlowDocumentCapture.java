@@ -0,0 +1,208 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the raw XML of the K slowest documents converted, and of the K with
+ * the most tokens and the most serialized bytes, and writes them to a replay
+ * directory at the end of a run. Each measure gets an Agiga file of its
+ * documents, largest first ({@code latency.xml}, {@code tokens.xml},
+ * {@code bytes.xml}), which can be converted again or handed to the
+ * benchmarks, and {@code summary.tsv} lists them all with their measurements.
+ * <br/>
+ * Safe to share between threads. A document that would not make any of the
+ * lists is turned away without taking a lock.
+ */
+public class SlowDocumentCapture {
+
+  private static final Logger logger = LoggerFactory.getLogger(SlowDocumentCapture.class);
+
+  public enum Measure {
+    LATENCY, TOKENS, BYTES;
+
+    public String getFileName() {
+      return this.name().toLowerCase() + ".xml";
+    }
+  }
+
+  /**
+   * One converted document and its measurements.
+   */
+  public static final class Entry {
+    private final RawAgigaDocument raw;
+    private final String docId;
+    private final long nanos;
+    private final int tokens;
+    private final int bytes;
+
+    Entry(RawAgigaDocument raw, String docId, long nanos, int tokens, int bytes) {
+      this.raw = raw;
+      this.docId = docId;
+      this.nanos = nanos;
+      this.tokens = tokens;
+      this.bytes = bytes;
+    }
+
+    public RawAgigaDocument getRaw() {
+      return raw;
+    }
+
+    public String getDocId() {
+      return docId;
+    }
+
+    public long getNanos() {
+      return nanos;
+    }
+
+    public int getTokens() {
+      return tokens;
+    }
+
+    public int getBytes() {
+      return bytes;
+    }
+
+    long get(Measure m) {
+      switch (m) {
+      case LATENCY:
+        return this.nanos;
+      case TOKENS:
+        return this.tokens;
+      default:
+        return this.bytes;
+      }
+    }
+  }
+
+  private static final class ByMeasure implements Comparator<Entry> {
+    private final Measure measure;
+
+    ByMeasure(Measure measure) {
+      this.measure = measure;
+    }
+
+    @Override
+    public int compare(Entry a, Entry b) {
+      return Long.compare(a.get(this.measure), b.get(this.measure));
+    }
+  }
+
+  private final File dir;
+  private final int k;
+  private final Map<Measure, PriorityQueue<Entry>> smallestFirst = new EnumMap<>(Measure.class);
+  /**
+   * The smallest value still on each full list; -1 while a list has room.
+   */
+  private final AtomicLongArray floor = new AtomicLongArray(Measure.values().length);
+
+  /**
+   * @param k
+   *          how many documents to keep for each measure
+   */
+  public SlowDocumentCapture(File dir, int k) {
+    this.dir = dir;
+    this.k = k;
+    for (Measure m : Measure.values()) {
+      this.smallestFirst.put(m, new PriorityQueue<Entry>(k + 1, new ByMeasure(m)));
+      this.floor.set(m.ordinal(), -1);
+    }
+  }
+
+  public File getDir() {
+    return dir;
+  }
+
+  /**
+   * Consider a converted document for the lists.
+   *
+   * @param nanos
+   *          how long it took to parse, convert and serialize
+   * @param bytes
+   *          its serialized size
+   */
+  public void offer(RawAgigaDocument raw, String docId, long nanos, int tokens, int bytes) {
+    Entry e = null;
+    for (Measure m : Measure.values()) {
+      long v = m == Measure.LATENCY ? nanos : m == Measure.TOKENS ? tokens : bytes;
+      if (v <= this.floor.get(m.ordinal()))
+        continue;
+      if (e == null)
+        e = new Entry(raw, docId, nanos, tokens, bytes);
+      PriorityQueue<Entry> top = this.smallestFirst.get(m);
+      synchronized (top) {
+        top.add(e);
+        if (top.size() > this.k)
+          top.poll();
+        if (top.size() == this.k)
+          this.floor.set(m.ordinal(), top.peek().get(m));
+      }
+    }
+  }
+
+  /**
+   * @return the documents kept for {@code m}, largest first
+   */
+  public List<Entry> getTop(Measure m) {
+    PriorityQueue<Entry> top = this.smallestFirst.get(m);
+    List<Entry> entries;
+    synchronized (top) {
+      entries = new ArrayList<>(top);
+    }
+    Collections.sort(entries, Collections.reverseOrder(new ByMeasure(m)));
+    return entries;
+  }
+
+  /**
+   * Write the replay directory, replacing any files from an earlier run.
+   */
+  public void write() throws IOException {
+    if (!this.dir.isDirectory() && !this.dir.mkdirs())
+      throw new IOException("Unable to create replay directory: " + this.dir);
+
+    try (Writer summary = Files.newBufferedWriter(new File(this.dir, "summary.tsv").toPath(), StandardCharsets.UTF_8)) {
+      summary.write("measure\trank\tdoc\tsource\tms\ttokens\tbytes\n");
+      for (Measure m : Measure.values()) {
+        List<Entry> top = this.getTop(m);
+        try (Writer xml = Files.newBufferedWriter(new File(this.dir, m.getFileName()).toPath(), StandardCharsets.UTF_8)) {
+          xml.write("<FILE id=\"top-" + m.name().toLowerCase() + "\">\n");
+          for (Entry e : top) {
+            xml.write(e.raw.getXml());
+            if (!e.raw.getXml().endsWith("\n"))
+              xml.write("\n");
+          }
+          xml.write("</FILE>\n");
+        }
+        for (int i = 0; i < top.size(); i++) {
+          Entry e = top.get(i);
+          summary.write(String.format("%s\t%d\t%s\t%s#%d\t%.3f\t%d\t%d%n", m.name().toLowerCase(), i + 1, e.docId,
+              e.raw.getSource(), e.raw.getIndex(), e.nanos / 1e6, e.tokens, e.bytes));
+        }
+      }
+    }
+  }
+
+  public void logSummary() {
+    List<Entry> slowest = this.getTop(Measure.LATENCY);
+    if (slowest.isEmpty())
+      return;
+    Entry e = slowest.get(0);
+    logger.info(String.format("Slowest document: %s (%.1f ms, %d tokens, %d bytes). The top %d by latency, tokens "
+        + "and bytes are in %s", e.docId, e.nanos / 1e6, e.tokens, e.bytes, this.k, this.dir));
+  }
+}
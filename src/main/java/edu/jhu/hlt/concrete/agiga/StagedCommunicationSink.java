@@ -0,0 +1,307 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stages documents in a bounded ring of direct memory and writes them to
+ * another sink on a thread of its own. When conversion outruns the disk,
+ * converting threads wait for room in the ring rather than piling serialized
+ * documents up on the heap. The writer hands the sink a view of the ring, so
+ * the bytes reach the channel without another heap copy.
+ * <br/>
+ * Documents are written in the order they were staged. A document bigger than
+ * the ring is written by the thread that converted it, once everything staged
+ * before it has been written; nothing else is staged or written meanwhile, so
+ * the order is kept and the sink is only used by one thread at a time.
+ * Whenever the ring runs dry, a {@link Flushable} sink is flushed, so nothing
+ * waits in its buffers while the converters are busy.
+ */
+public class StagedCommunicationSink implements CommunicationSink {
+
+  private static final Logger logger = LoggerFactory.getLogger(StagedCommunicationSink.class);
+
+  /**
+   * A document in the ring. {@code reserved} includes the bytes skipped at the
+   * end of the ring to keep the document in one piece.
+   */
+  private static final class Staged {
+    private final String docId;
+    private final int offset;
+    private final int length;
+    private final int reserved;
+
+    Staged(String docId, int offset, int length, int reserved) {
+      this.docId = docId;
+      this.offset = offset;
+      this.length = length;
+      this.reserved = reserved;
+    }
+  }
+
+  private final CommunicationSink sink;
+  private final ByteBuffer ring;
+  private final int capacity;
+  private final Thread writer;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = this.lock.newCondition();
+  private final Condition notFull = this.lock.newCondition();
+  // guarded by lock
+  private final Deque<Staged> staged = new ArrayDeque<>();
+  private long head = 0;
+  private long tail = 0;
+  // a document too big for the ring is being written, or waiting to be
+  private boolean writingDirectly = false;
+  private boolean unflushed = false;
+  private boolean flushing = false;
+  private boolean closed = false;
+  private Throwable failure;
+  private long nStaged = 0;
+  private long nUnstaged = 0;
+  private long maxUsed = 0;
+  private long waitNanos = 0;
+
+  /**
+   * @param capacity
+   *          the size of the ring, in bytes
+   */
+  public StagedCommunicationSink(CommunicationSink sink, int capacity) {
+    this.sink = sink;
+    this.capacity = capacity;
+    this.ring = ByteBuffer.allocateDirect(capacity);
+    this.writer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        drain();
+      }
+    }, "staged-writer");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  @Override
+  public void write(String docId, ByteBuffer serialized) throws IOException {
+    int n = serialized.remaining();
+    if (n > this.capacity) {
+      this.writeDirectly(docId, serialized);
+      return;
+    }
+    this.lock.lock();
+    try {
+      int pos = 0;
+      int padding = 0;
+      long waitStart = 0;
+      while (true) {
+        this.checkOpen();
+        if (!this.writingDirectly) {
+          // an empty ring starts over at its beginning, where any document fits
+          if (this.tail == this.head)
+            this.head = this.tail = (this.tail + this.capacity - 1) / this.capacity * this.capacity;
+          pos = (int) (this.tail % this.capacity);
+          padding = pos + n > this.capacity ? this.capacity - pos : 0;
+          if (this.tail + padding + n - this.head <= this.capacity)
+            break;
+        }
+        if (waitStart == 0)
+          waitStart = System.nanoTime();
+        this.notFull.await();
+      }
+      if (waitStart != 0)
+        this.waitNanos += System.nanoTime() - waitStart;
+      int offset = (pos + padding) % this.capacity;
+      this.ring.clear();
+      this.ring.position(offset);
+      this.ring.put(serialized);
+      this.tail += padding + n;
+      this.maxUsed = Math.max(this.maxUsed, this.tail - this.head);
+      this.staged.addLast(new Staged(docId, offset, n, padding + n));
+      this.nStaged++;
+      this.notEmpty.signal();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for room to stage " + docId);
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Write a document too big for the ring on this thread, once everything
+   * staged before it is written and the writer is idle.
+   */
+  private void writeDirectly(String docId, ByteBuffer serialized) throws IOException {
+    this.lock.lock();
+    try {
+      long waitStart = System.nanoTime();
+      while (this.writingDirectly) {
+        this.checkOpen();
+        this.notFull.await();
+      }
+      this.checkOpen();
+      this.writingDirectly = true;
+      try {
+        while (this.head != this.tail || this.flushing) {
+          this.checkOpen();
+          this.notFull.await();
+        }
+        this.waitNanos += System.nanoTime() - waitStart;
+        this.nUnstaged++;
+        this.lock.unlock();
+        try {
+          this.sink.write(docId, serialized);
+        } finally {
+          this.lock.lock();
+        }
+        this.unflushed = this.sink instanceof Flushable;
+      } finally {
+        this.writingDirectly = false;
+        this.notFull.signalAll();
+        this.notEmpty.signal();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to write " + docId);
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  private void checkOpen() throws IOException {
+    if (this.failure != null)
+      throw new IOException("Writing staged Communications failed.", this.failure);
+    if (this.closed)
+      throw new IOException("The staging sink is closed.");
+  }
+
+  private void drain() {
+    try {
+      while (true) {
+        Staged s = null;
+        ByteBuffer view = null;
+        this.lock.lock();
+        try {
+          // once the ring is empty, a document being written directly has the sink to itself
+          while (this.staged.isEmpty() && (this.writingDirectly || !this.unflushed)) {
+            if (this.closed && !this.writingDirectly)
+              return;
+            this.notEmpty.await();
+          }
+          if (this.staged.isEmpty()) {
+            this.flushing = true;
+            this.unflushed = false;
+          } else {
+            s = this.staged.pollFirst();
+            view = this.ring.duplicate();
+            view.limit(s.offset + s.length);
+            view.position(s.offset);
+          }
+        } finally {
+          this.lock.unlock();
+        }
+        if (s == null) {
+          try {
+            ((Flushable) this.sink).flush();
+          } finally {
+            this.lock.lock();
+            try {
+              this.flushing = false;
+              this.notFull.signalAll();
+            } finally {
+              this.lock.unlock();
+            }
+          }
+          continue;
+        }
+        this.sink.write(s.docId, view);
+        this.lock.lock();
+        try {
+          this.head += s.reserved;
+          this.unflushed = this.sink instanceof Flushable;
+          this.notFull.signalAll();
+        } finally {
+          this.lock.unlock();
+        }
+      }
+    } catch (Throwable e) {
+      // Errors too, or converters waiting for room would wait forever
+      this.lock.lock();
+      try {
+        this.failure = e;
+        this.notFull.signalAll();
+      } finally {
+        this.lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Wait until every document staged so far has been written to the sink,
+   * though not necessarily flushed.
+   */
+  public void awaitWritten() throws IOException {
+    this.lock.lock();
+    try {
+      while ((this.head != this.tail || this.writingDirectly) && this.failure == null)
+        this.notFull.await();
+      if (this.failure != null)
+        throw new IOException("Writing staged Communications failed.", this.failure);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for staged documents to be written.");
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * Write every staged document, then close the sink.
+   */
+  @Override
+  public void close() throws IOException {
+    this.lock.lock();
+    try {
+      if (this.closed)
+        return;
+      this.closed = true;
+      this.notEmpty.signal();
+    } finally {
+      this.lock.unlock();
+    }
+    try {
+      this.writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the staged writer.");
+    } finally {
+      this.sink.close();
+    }
+    if (this.failure != null)
+      throw new IOException("Writing staged Communications failed.", this.failure);
+    logger.info("Staged {} communications in {} bytes of direct memory (at most {} in use); converters waited {} "
+        + "ms for room. {} were too big to stage.", this.nStaged, this.capacity, this.maxUsed,
+        TimeUnit.NANOSECONDS.toMillis(this.waitNanos), this.nUnstaged);
+  }
+
+  /**
+   * @return the most bytes that were staged at once
+   */
+  public long getMaxUsed() {
+    this.lock.lock();
+    try {
+      return this.maxUsed;
+    } finally {
+      this.lock.unlock();
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.jhu.agiga.AgigaDocument;
+
+/**
+ * Collects {@link CorpusStatistics} by input file from any number of threads.
+ * Each thread counts into statistics of its own, without locking; they are
+ * merged when asked for, which must be after the threads are done.
+ */
+public class StatisticsCollector {
+
+  private static final Logger logger = LoggerFactory.getLogger(StatisticsCollector.class);
+
+  private final List<Map<String, CorpusStatistics>> perThread = new ArrayList<>();
+  private final ThreadLocal<Map<String, CorpusStatistics>> local = new ThreadLocal<Map<String, CorpusStatistics>>() {
+    @Override
+    protected Map<String, CorpusStatistics> initialValue() {
+      Map<String, CorpusStatistics> m = new HashMap<>();
+      synchronized (perThread) {
+        perThread.add(m);
+      }
+      return m;
+    }
+  };
+
+  /**
+   * Count {@code doc}, read from {@code source}.
+   */
+  public void add(String source, AgigaDocument doc) {
+    Map<String, CorpusStatistics> m = this.local.get();
+    CorpusStatistics stats = m.get(source);
+    if (stats == null)
+      m.put(source, stats = new CorpusStatistics());
+    stats.add(doc);
+  }
+
+  /**
+   * @return the statistics of each input file, merged across threads
+   */
+  public Map<String, CorpusStatistics> getBySource() {
+    Map<String, CorpusStatistics> merged = new TreeMap<>();
+    synchronized (this.perThread) {
+      for (Map<String, CorpusStatistics> m : this.perThread) {
+        for (Map.Entry<String, CorpusStatistics> e : m.entrySet()) {
+          CorpusStatistics stats = merged.get(e.getKey());
+          if (stats == null)
+            merged.put(e.getKey(), stats = new CorpusStatistics());
+          stats.merge(e.getValue());
+        }
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * Write {@code NAME.stats.tsv} for each input file, {@code corpus.stats.tsv}
+   * for all of them and {@code vocabulary.tsv}, the corpus's word counts, to
+   * {@code dir}.
+   *
+   * @param topWords
+   *          how many of the most frequent words to put in each report
+   * @return the statistics of the whole corpus
+   */
+  public CorpusStatistics write(File dir, int topWords) throws IOException {
+    if (!dir.exists())
+      dir.mkdirs();
+    CorpusStatistics corpus = new CorpusStatistics();
+    for (Map.Entry<String, CorpusStatistics> e : this.getBySource().entrySet()) {
+      e.getValue().writeReport(new File(dir, new File(e.getKey()).getName() + ".stats.tsv"), topWords);
+      corpus.merge(e.getValue());
+    }
+    corpus.writeReport(new File(dir, "corpus.stats.tsv"), topWords);
+    corpus.writeVocabulary(new File(dir, "vocabulary.tsv"));
+    logger.info("Wrote statistics of {} documents, {} tokens and {} distinct words to {}", corpus.getDocuments(),
+        corpus.getTokens(), corpus.getVocabularySize(), dir.getPath());
+    return corpus;
+  }
+}
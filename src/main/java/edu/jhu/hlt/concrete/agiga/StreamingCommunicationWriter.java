@@ -0,0 +1,674 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.TFieldIdEnum;
+import org.apache.thrift.meta_data.FieldMetaData;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TList;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+
+import concrete.agiga.util.ConcreteAgigaProperties;
+import concrete.agiga.util.ReusableCompactSerializer;
+import concrete.tools.AnnotationException;
+import edu.jhu.agiga.AgigaCoref;
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaMention;
+import edu.jhu.agiga.AgigaSentence;
+import edu.jhu.agiga.AgigaToken;
+import edu.jhu.agiga.AgigaTypedDependency;
+import edu.jhu.hlt.concrete.AnnotationMetadata;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.Constituent;
+import edu.jhu.hlt.concrete.Dependency;
+import edu.jhu.hlt.concrete.DependencyParse;
+import edu.jhu.hlt.concrete.Entity;
+import edu.jhu.hlt.concrete.EntityMention;
+import edu.jhu.hlt.concrete.EntityMentionSet;
+import edu.jhu.hlt.concrete.EntitySet;
+import edu.jhu.hlt.concrete.Parse;
+import edu.jhu.hlt.concrete.Section;
+import edu.jhu.hlt.concrete.Sentence;
+import edu.jhu.hlt.concrete.TaggedToken;
+import edu.jhu.hlt.concrete.TextSpan;
+import edu.jhu.hlt.concrete.TheoryDependencies;
+import edu.jhu.hlt.concrete.Token;
+import edu.jhu.hlt.concrete.TokenList;
+import edu.jhu.hlt.concrete.TokenRefSequence;
+import edu.jhu.hlt.concrete.TokenTagging;
+import edu.jhu.hlt.concrete.Tokenization;
+import edu.jhu.hlt.concrete.TokenizationKind;
+import edu.jhu.hlt.concrete.UUID;
+import edu.jhu.hlt.concrete.util.ConcreteException;
+import edu.jhu.hlt.concrete.util.ConcreteUUIDFactory;
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * Writes the Communication that {@link AgigaConverter#convertDoc(AgigaDocument)}
+ * would build straight to a Thrift protocol, without building the Communication.
+ * <br/>
+ * Fields are written in the order and with the ids the generated Concrete
+ * classes use, so the output reads back as the same Communication (up to UUIDs
+ * and the Communication timestamp), and with the compact protocol is byte for
+ * byte what {@code CompactCommunicationSerializer} writes for it. UUIDs are
+ * drawn from the converter's factory in the same order as {@code convertDoc}.
+ * <br/>
+ * Offsets are checked as they are written, as in {@code convertDoc}; the
+ * converter's full TextSpan validation pass is not run. If a document fails
+ * part way through, whatever was written for it must be discarded.
+ */
+public class StreamingCommunicationWriter {
+
+  private static final Diagnostics DIAGNOSTICS = Diagnostics.get();
+
+  private static final String[] DEP_TYPES = new String[] { "basic-deps", "col-deps", "col-ccproc-deps" };
+
+  // neither the compact nor the binary protocol writes struct names
+  private static final TStruct STRUCT = new TStruct();
+
+  private static final TField COMM_ID = field(Communication.metaDataMap, Communication._Fields.ID);
+  private static final TField COMM_UUID = field(Communication.metaDataMap, Communication._Fields.UUID);
+  private static final TField COMM_TYPE = field(Communication.metaDataMap, Communication._Fields.TYPE);
+  private static final TField COMM_TEXT = field(Communication.metaDataMap, Communication._Fields.TEXT);
+  private static final TField COMM_METADATA = field(Communication.metaDataMap, Communication._Fields.METADATA);
+  private static final TField COMM_SECTIONS = field(Communication.metaDataMap, Communication._Fields.SECTION_LIST);
+  private static final TField COMM_MENTION_SETS = field(Communication.metaDataMap,
+      Communication._Fields.ENTITY_MENTION_SET_LIST);
+  private static final TField COMM_ENTITY_SETS = field(Communication.metaDataMap, Communication._Fields.ENTITY_SET_LIST);
+
+  private static final TField UUID_STRING = field(UUID.metaDataMap, UUID._Fields.UUID_STRING);
+
+  private static final TField MD_TOOL = field(AnnotationMetadata.metaDataMap, AnnotationMetadata._Fields.TOOL);
+  private static final TField MD_TIMESTAMP = field(AnnotationMetadata.metaDataMap, AnnotationMetadata._Fields.TIMESTAMP);
+  private static final TField MD_DEPENDENCIES = field(AnnotationMetadata.metaDataMap,
+      AnnotationMetadata._Fields.DEPENDENCIES);
+  private static final TField MD_K_BEST = field(AnnotationMetadata.metaDataMap, AnnotationMetadata._Fields.K_BEST);
+  // a required field with a default, so always written
+  private static final int K_BEST = new AnnotationMetadata().getKBest();
+  private static final TField DEPS_TOKENIZATIONS = field(TheoryDependencies.metaDataMap,
+      TheoryDependencies._Fields.TOKENIZATION_THEORY_LIST);
+
+  private static final TField TS_START = field(TextSpan.metaDataMap, TextSpan._Fields.START);
+  private static final TField TS_ENDING = field(TextSpan.metaDataMap, TextSpan._Fields.ENDING);
+
+  private static final TField SECT_UUID = field(Section.metaDataMap, Section._Fields.UUID);
+  private static final TField SECT_SENTENCES = field(Section.metaDataMap, Section._Fields.SENTENCE_LIST);
+  private static final TField SECT_TEXT_SPAN = field(Section.metaDataMap, Section._Fields.TEXT_SPAN);
+  private static final TField SECT_KIND = field(Section.metaDataMap, Section._Fields.KIND);
+
+  private static final TField SENT_UUID = field(Sentence.metaDataMap, Sentence._Fields.UUID);
+  private static final TField SENT_TOKENIZATION = field(Sentence.metaDataMap, Sentence._Fields.TOKENIZATION);
+  private static final TField SENT_TEXT_SPAN = field(Sentence.metaDataMap, Sentence._Fields.TEXT_SPAN);
+  private static final TField SENT_RAW_TEXT_SPAN = field(Sentence.metaDataMap, Sentence._Fields.RAW_TEXT_SPAN);
+
+  private static final TField TKZ_UUID = field(Tokenization.metaDataMap, Tokenization._Fields.UUID);
+  private static final TField TKZ_METADATA = field(Tokenization.metaDataMap, Tokenization._Fields.METADATA);
+  private static final TField TKZ_TOKEN_LIST = field(Tokenization.metaDataMap, Tokenization._Fields.TOKEN_LIST);
+  private static final TField TKZ_KIND = field(Tokenization.metaDataMap, Tokenization._Fields.KIND);
+  private static final TField TKZ_TAGGINGS = field(Tokenization.metaDataMap, Tokenization._Fields.TOKEN_TAGGING_LIST);
+  private static final TField TKZ_PARSES = field(Tokenization.metaDataMap, Tokenization._Fields.PARSE_LIST);
+  private static final TField TKZ_DEP_PARSES = field(Tokenization.metaDataMap,
+      Tokenization._Fields.DEPENDENCY_PARSE_LIST);
+
+  private static final TField TL_TOKENS = field(TokenList.metaDataMap, TokenList._Fields.TOKEN_LIST);
+
+  private static final TField TOK_INDEX = field(Token.metaDataMap, Token._Fields.TOKEN_INDEX);
+  private static final TField TOK_TEXT = field(Token.metaDataMap, Token._Fields.TEXT);
+  private static final TField TOK_TEXT_SPAN = field(Token.metaDataMap, Token._Fields.TEXT_SPAN);
+  private static final TField TOK_RAW_TEXT_SPAN = field(Token.metaDataMap, Token._Fields.RAW_TEXT_SPAN);
+
+  private static final TField TT_UUID = field(TokenTagging.metaDataMap, TokenTagging._Fields.UUID);
+  private static final TField TT_METADATA = field(TokenTagging.metaDataMap, TokenTagging._Fields.METADATA);
+  private static final TField TT_TAGGED_TOKENS = field(TokenTagging.metaDataMap,
+      TokenTagging._Fields.TAGGED_TOKEN_LIST);
+  private static final TField TT_TYPE = field(TokenTagging.metaDataMap, TokenTagging._Fields.TAGGING_TYPE);
+
+  private static final TField TAG_INDEX = field(TaggedToken.metaDataMap, TaggedToken._Fields.TOKEN_INDEX);
+  private static final TField TAG_TAG = field(TaggedToken.metaDataMap, TaggedToken._Fields.TAG);
+
+  private static final TField PARSE_UUID = field(Parse.metaDataMap, Parse._Fields.UUID);
+  private static final TField PARSE_METADATA = field(Parse.metaDataMap, Parse._Fields.METADATA);
+  private static final TField PARSE_CONSTITUENTS = field(Parse.metaDataMap, Parse._Fields.CONSTITUENT_LIST);
+
+  private static final TField CONST_ID = field(Constituent.metaDataMap, Constituent._Fields.ID);
+  private static final TField CONST_TAG = field(Constituent.metaDataMap, Constituent._Fields.TAG);
+  private static final TField CONST_CHILDREN = field(Constituent.metaDataMap, Constituent._Fields.CHILD_LIST);
+  private static final TField CONST_HEAD = field(Constituent.metaDataMap, Constituent._Fields.HEAD_CHILD_INDEX);
+  private static final TField CONST_START = field(Constituent.metaDataMap, Constituent._Fields.START);
+  private static final TField CONST_ENDING = field(Constituent.metaDataMap, Constituent._Fields.ENDING);
+
+  private static final TField DP_UUID = field(DependencyParse.metaDataMap, DependencyParse._Fields.UUID);
+  private static final TField DP_METADATA = field(DependencyParse.metaDataMap, DependencyParse._Fields.METADATA);
+  private static final TField DP_DEPS = field(DependencyParse.metaDataMap, DependencyParse._Fields.DEPENDENCY_LIST);
+
+  private static final TField DEP_GOV = field(Dependency.metaDataMap, Dependency._Fields.GOV);
+  private static final TField DEP_DEP = field(Dependency.metaDataMap, Dependency._Fields.DEP);
+  private static final TField DEP_EDGE_TYPE = field(Dependency.metaDataMap, Dependency._Fields.EDGE_TYPE);
+
+  private static final TField EMS_UUID = field(EntityMentionSet.metaDataMap, EntityMentionSet._Fields.UUID);
+  private static final TField EMS_METADATA = field(EntityMentionSet.metaDataMap, EntityMentionSet._Fields.METADATA);
+  private static final TField EMS_MENTIONS = field(EntityMentionSet.metaDataMap, EntityMentionSet._Fields.MENTION_LIST);
+
+  private static final TField EM_UUID = field(EntityMention.metaDataMap, EntityMention._Fields.UUID);
+  private static final TField EM_TOKENS = field(EntityMention.metaDataMap, EntityMention._Fields.TOKENS);
+  private static final TField EM_TEXT = field(EntityMention.metaDataMap, EntityMention._Fields.TEXT);
+
+  private static final TField TRS_INDICES = field(TokenRefSequence.metaDataMap,
+      TokenRefSequence._Fields.TOKEN_INDEX_LIST);
+  private static final TField TRS_ANCHOR = field(TokenRefSequence.metaDataMap,
+      TokenRefSequence._Fields.ANCHOR_TOKEN_INDEX);
+  private static final TField TRS_TOKENIZATION = field(TokenRefSequence.metaDataMap,
+      TokenRefSequence._Fields.TOKENIZATION_ID);
+
+  private static final TField ES_UUID = field(EntitySet.metaDataMap, EntitySet._Fields.UUID);
+  private static final TField ES_METADATA = field(EntitySet.metaDataMap, EntitySet._Fields.METADATA);
+  private static final TField ES_ENTITIES = field(EntitySet.metaDataMap, EntitySet._Fields.ENTITY_LIST);
+
+  private static final TField ENT_UUID = field(Entity.metaDataMap, Entity._Fields.UUID);
+  private static final TField ENT_MENTION_IDS = field(Entity.metaDataMap, Entity._Fields.MENTION_ID_LIST);
+  private static final TField ENT_CANONICAL_NAME = field(Entity.metaDataMap, Entity._Fields.CANONICAL_NAME);
+
+  /**
+   * The wire description of a field, taken from the generated class so that ids
+   * and types cannot drift from it. Enums are sent as i32.
+   */
+  private static <F extends TFieldIdEnum> TField field(Map<F, FieldMetaData> metaDataMap, F f) {
+    FieldMetaData md = metaDataMap.get(f);
+    byte type = md.valueMetaData.type == TType.ENUM ? TType.I32 : md.valueMetaData.type;
+    return new TField(md.fieldName, type, f.getThriftFieldId());
+  }
+
+  private final AgigaConverter converter;
+  private final ConcreteAgigaProperties props;
+  private final ReusableCompactSerializer buffers = new ReusableCompactSerializer();
+
+  public StreamingCommunicationWriter(AgigaConverter converter) {
+    this.converter = converter;
+    this.props = converter.getProperties();
+  }
+
+  /**
+   * @return the compact-protocol serialization of the converted document
+   */
+  public byte[] toBytes(AgigaDocument doc) throws AnnotationException, ConcreteException {
+    ByteBuffer serialized = this.serialize(doc, this.buffers);
+    return Arrays.copyOf(serialized.array(), serialized.remaining());
+  }
+
+  /**
+   * @return the compact-protocol serialization of the converted document, in
+   *         the current thread's buffer of {@code into}
+   */
+  public ByteBuffer serialize(AgigaDocument doc, ReusableCompactSerializer into) throws AnnotationException,
+      ConcreteException {
+    try {
+      this.write(doc, into.begin());
+    } catch (TException e) {
+      throw new ConcreteException("Failed to write document " + doc.getDocId(), e);
+    }
+    return into.finish();
+  }
+
+  /**
+   * Write the converted document to {@code out} as a Communication struct.
+   */
+  public void write(AgigaDocument doc, TProtocol out) throws AnnotationException, TException {
+    ConcreteUUIDFactory idF = this.converter.getUUIDFactory();
+    List<AgigaSentence> sents = doc.getSents();
+
+    // Communication text, with each sentence's length for its TextSpan and each token's place for the mentions
+    DocumentText docText = new DocumentText(doc);
+    String text = docText.getText();
+    int nNonEmpty = 0;
+    for (AgigaSentence sent : sents)
+      if (!sent.getTokens().isEmpty())
+        nNonEmpty++;
+
+    out.writeStructBegin(STRUCT);
+    writeString(out, COMM_ID, doc.getDocId());
+    writeUUID(out, COMM_UUID, idF.getConcreteUUID());
+    writeString(out, COMM_TYPE, "News");
+    writeString(out, COMM_TEXT, text);
+    out.writeFieldBegin(COMM_METADATA);
+    writeMetadata(out, this.converter.getToolName(), System.currentTimeMillis() / 1000, null);
+    out.writeFieldEnd();
+
+    out.writeFieldBegin(COMM_SECTIONS);
+    out.writeListBegin(new TList(TType.STRUCT, 1));
+    UUID sectUuid = idF.getConcreteUUID();
+    out.writeStructBegin(STRUCT);
+    writeUUID(out, SECT_UUID, sectUuid);
+    List<UUID> tokenizationUuids = new ArrayList<>(nNonEmpty);
+    if (nNonEmpty > 0) {
+      out.writeFieldBegin(SECT_SENTENCES);
+      out.writeListBegin(new TList(TType.STRUCT, nNonEmpty));
+      int charsFromStartOfCommunication = 0;
+      for (int i = 0; i < sents.size(); i++) {
+        AgigaSentence sent = sents.get(i);
+        if (sent.getTokens().isEmpty()) {
+          DIAGNOSTICS.record(AgigaConverter.EMPTY_SENTENCE, "sentence {} of {}", sent.getSentIdx(), doc.getDocId());
+          continue;
+        }
+        int sentLength = docText.getSentenceLength(i);
+        tokenizationUuids.add(this.writeSentence(out, sent, charsFromStartOfCommunication, sentLength));
+        charsFromStartOfCommunication = TextSpans.nextSentenceStart(charsFromStartOfCommunication, sentLength);
+      }
+      out.writeListEnd();
+      out.writeFieldEnd();
+    }
+    if (this.converter.isAddingTextSpans())
+      writeTextSpan(out, SECT_TEXT_SPAN, 0, text.length());
+    writeString(out, SECT_KIND, "Passage");
+    endStruct(out);
+    out.writeListEnd();
+    out.writeFieldEnd();
+
+    this.writeCoref(out, doc, docText, tokenizationUuids);
+
+    endStruct(out);
+  }
+
+  /**
+   * @return the UUID of the sentence's tokenization
+   */
+  private UUID writeSentence(TProtocol out, AgigaSentence sent, int charsFromStartOfCommunication, int length)
+      throws AnnotationException, TException {
+    ConcreteUUIDFactory idF = this.converter.getUUIDFactory();
+    // in the order convertSentence draws them
+    UUID tUuid = idF.getConcreteUUID();
+    UUID[] taggingUuids = new UUID[] { idF.getConcreteUUID(), idF.getConcreteUUID(), idF.getConcreteUUID() };
+    UUID parseUuid = idF.getConcreteUUID();
+    UUID[] depParseUuids = new UUID[] { idF.getConcreteUUID(), idF.getConcreteUUID(), idF.getConcreteUUID() };
+    UUID sentUuid = idF.getConcreteUUID();
+
+    List<AgigaToken> tokens = sent.getTokens();
+    int nTokens = tokens.size();
+    boolean addTextSpans = this.converter.isAddingTextSpans();
+    boolean storeOffsetInRaw = this.converter.isStoringOffsetInRaw();
+
+    out.writeStructBegin(STRUCT);
+    writeUUID(out, SENT_UUID, sentUuid);
+
+    // Tokenization
+    out.writeFieldBegin(SENT_TOKENIZATION);
+    out.writeStructBegin(STRUCT);
+    writeUUID(out, TKZ_UUID, tUuid);
+    out.writeFieldBegin(TKZ_METADATA);
+    writeMetadata(out, this.props.getTokenizerToolName(), AgigaConverter.annotationTime, null);
+    out.writeFieldEnd();
+
+    out.writeFieldBegin(TKZ_TOKEN_LIST);
+    out.writeStructBegin(STRUCT);
+    out.writeFieldBegin(TL_TOKENS);
+    out.writeListBegin(new TList(TType.STRUCT, nTokens));
+    int computedTokenStart = charsFromStartOfCommunication;
+    for (int i = 0; i < nTokens; i++) {
+      AgigaToken tok = tokens.get(i);
+      int computedTokenEnd = TextSpans.tokenEnd(computedTokenStart, tok);
+      out.writeStructBegin(STRUCT);
+      writeI32(out, TOK_INDEX, i);
+      writeString(out, TOK_TEXT, tok.getWord());
+      if (addTextSpans) {
+        TextSpans.checkToken(computedTokenStart, computedTokenEnd);
+        writeTextSpan(out, TOK_TEXT_SPAN, computedTokenStart, computedTokenEnd);
+        if (storeOffsetInRaw) {
+          TextSpans.checkRawToken(tok);
+          writeTextSpan(out, TOK_RAW_TEXT_SPAN, tok.getCharOffBegin(), tok.getCharOffEnd());
+        }
+      }
+      endStruct(out);
+      computedTokenStart = TextSpans.nextTokenStart(computedTokenEnd);
+    }
+    out.writeListEnd();
+    out.writeFieldEnd();
+    endStruct(out);
+    out.writeFieldEnd();
+
+    writeI32(out, TKZ_KIND, TokenizationKind.TOKEN_LIST.getValue());
+
+    out.writeFieldBegin(TKZ_TAGGINGS);
+    out.writeListBegin(new TList(TType.STRUCT, 3));
+    this.writeTagging(out, taggingUuids[0], tUuid, this.props.getLemmatizerToolName(), "LEMMA", tokens, 0);
+    this.writeTagging(out, taggingUuids[1], tUuid, this.props.getPOSToolName(), "POS", tokens, 1);
+    this.writeTagging(out, taggingUuids[2], tUuid, this.props.getNERToolName(), "NER", tokens, 2);
+    out.writeListEnd();
+    out.writeFieldEnd();
+
+    Tree tree = sent.getStanfordContituencyTree();
+    int nLeaves = countLeaves(tree);
+    if (nLeaves != nTokens) {
+      DIAGNOSTICS.record(AgigaConverter.LEAF_TOKEN_MISMATCH, "{} tokens, parse {}", nTokens, tree);
+      throw new AnnotationException("number of leaves in the parse (" + nLeaves
+          + ") is not equal to the number of tokens in the sentence (" + nTokens + ")");
+    }
+    out.writeFieldBegin(TKZ_PARSES);
+    out.writeListBegin(new TList(TType.STRUCT, 1));
+    out.writeStructBegin(STRUCT);
+    writeUUID(out, PARSE_UUID, parseUuid);
+    out.writeFieldBegin(PARSE_METADATA);
+    writeMetadata(out, this.props.getCParseToolName(), AgigaConverter.annotationTime, tUuid);
+    out.writeFieldEnd();
+    out.writeFieldBegin(PARSE_CONSTITUENTS);
+    out.writeListBegin(new TList(TType.STRUCT, tree.size()));
+    writeConstituents(out, tree, 0, 0, new int[1]);
+    out.writeListEnd();
+    out.writeFieldEnd();
+    endStruct(out);
+    out.writeListEnd();
+    out.writeFieldEnd();
+
+    out.writeFieldBegin(TKZ_DEP_PARSES);
+    out.writeListBegin(new TList(TType.STRUCT, DEP_TYPES.length));
+    this.writeDependencyParse(out, depParseUuids[0], tUuid, DEP_TYPES[0], sent.getBasicDeps());
+    this.writeDependencyParse(out, depParseUuids[1], tUuid, DEP_TYPES[1], sent.getColDeps());
+    this.writeDependencyParse(out, depParseUuids[2], tUuid, DEP_TYPES[2], sent.getColCcprocDeps());
+    out.writeListEnd();
+    out.writeFieldEnd();
+
+    endStruct(out);
+    out.writeFieldEnd();
+
+    if (addTextSpans) {
+      int sentEnd = charsFromStartOfCommunication + length;
+      TextSpans.checkSentence(charsFromStartOfCommunication, sentEnd);
+      writeTextSpan(out, SENT_TEXT_SPAN, charsFromStartOfCommunication, sentEnd);
+      if (storeOffsetInRaw) {
+        TextSpans.checkRawSentence(sent);
+        writeTextSpan(out, SENT_RAW_TEXT_SPAN, TextSpans.rawSentenceStart(sent), TextSpans.rawSentenceEnd(sent));
+      }
+    }
+    endStruct(out);
+    return tUuid;
+  }
+
+  /**
+   * @param which
+   *          0 for lemmas, 1 for part of speech tags and 2 for named entity tags
+   */
+  private void writeTagging(TProtocol out, UUID uuid, UUID tUuid, String tool, String type, List<AgigaToken> tokens,
+      int which) throws TException {
+    out.writeStructBegin(STRUCT);
+    writeUUID(out, TT_UUID, uuid);
+    out.writeFieldBegin(TT_METADATA);
+    writeMetadata(out, tool, AgigaConverter.annotationTime, tUuid);
+    out.writeFieldEnd();
+    out.writeFieldBegin(TT_TAGGED_TOKENS);
+    out.writeListBegin(new TList(TType.STRUCT, tokens.size()));
+    for (int i = 0; i < tokens.size(); i++) {
+      AgigaToken tok = tokens.get(i);
+      String tag = which == 0 ? tok.getLemma() : which == 1 ? tok.getPosTag() : tok.getNerTag();
+      out.writeStructBegin(STRUCT);
+      writeI32(out, TAG_INDEX, i);
+      if (tag != null)
+        writeString(out, TAG_TAG, tag);
+      endStruct(out);
+    }
+    out.writeListEnd();
+    out.writeFieldEnd();
+    writeString(out, TT_TYPE, type);
+    endStruct(out);
+  }
+
+  /**
+   * Write the constituents of the subtree at {@code node} in the order
+   * {@code AgigaConverter#stanford2concrete} lists them: children before their
+   * parent, with ids numbered parent first.
+   *
+   * @param width
+   *          set to the number of leaves under {@code node}
+   * @return the number of constituents written
+   */
+  private static int writeConstituents(TProtocol out, Tree node, int id, int start, int[] width) throws TException {
+    Tree[] children = node.children();
+    int[] childIds = new int[children.length];
+    int nextId = id + 1;
+    int childStart = start;
+    for (int i = 0; i < children.length; i++) {
+      childIds[i] = nextId;
+      nextId += writeConstituents(out, children[i], nextId, childStart, width);
+      childStart += width[0];
+    }
+    int ending = children.length == 0 ? start + 1 : childStart;
+    int head = AgigaConverter.headChildIndex(node);
+
+    out.writeStructBegin(STRUCT);
+    writeI32(out, CONST_ID, id);
+    if (node.value() != null)
+      writeString(out, CONST_TAG, node.value());
+    out.writeFieldBegin(CONST_CHILDREN);
+    out.writeListBegin(new TList(TType.I32, childIds.length));
+    for (int c : childIds)
+      out.writeI32(c);
+    out.writeListEnd();
+    out.writeFieldEnd();
+    if (head >= 0)
+      writeI32(out, CONST_HEAD, head);
+    writeI32(out, CONST_START, start);
+    writeI32(out, CONST_ENDING, ending);
+    endStruct(out);
+
+    width[0] = ending - start;
+    return nextId - id;
+  }
+
+  private static int countLeaves(Tree node) {
+    if (node.isLeaf())
+      return 1;
+    int n = 0;
+    for (Tree child : node.children())
+      n += countLeaves(child);
+    return n;
+  }
+
+  private void writeDependencyParse(TProtocol out, UUID uuid, UUID tUuid, String name,
+      List<AgigaTypedDependency> deps) throws TException {
+    out.writeStructBegin(STRUCT);
+    writeUUID(out, DP_UUID, uuid);
+    out.writeFieldBegin(DP_METADATA);
+    writeMetadata(out, name + " " + this.props.getDParseToolName(), AgigaConverter.annotationTime, tUuid);
+    out.writeFieldEnd();
+    out.writeFieldBegin(DP_DEPS);
+    out.writeListBegin(new TList(TType.STRUCT, deps.size()));
+    for (AgigaTypedDependency ad : deps) {
+      out.writeStructBegin(STRUCT);
+      if (ad.getGovIdx() >= 0) // else ROOT
+        writeI32(out, DEP_GOV, ad.getGovIdx());
+      writeI32(out, DEP_DEP, ad.getDepIdx());
+      if (ad.getType() != null)
+        writeString(out, DEP_EDGE_TYPE, ad.getType());
+      endStruct(out);
+    }
+    out.writeListEnd();
+    out.writeFieldEnd();
+    endStruct(out);
+  }
+
+  private void writeCoref(TProtocol out, AgigaDocument doc, DocumentText docText, List<UUID> tokenizationUuids)
+      throws AnnotationException, TException {
+    ConcreteUUIDFactory idF = this.converter.getUUIDFactory();
+    List<AgigaCoref> corefs = doc.getCorefs();
+
+    // draw every UUID up front, in the order convertDoc draws them
+    UUID emsUuid = idF.getConcreteUUID();
+    UUID esUuid = idF.getConcreteUUID();
+    UUID[] entityUuids = new UUID[corefs.size()];
+    UUID[][] mentionUuids = new UUID[corefs.size()][];
+    int nMentions = 0;
+    for (int c = 0; c < corefs.size(); c++) {
+      List<AgigaMention> mentions = corefs.get(c).getMentions();
+      if (mentions.isEmpty() && !this.converter.isAllowingEmpties())
+        throw new AnnotationException("Entity does not have any mentions");
+      entityUuids[c] = idF.getConcreteUUID();
+      mentionUuids[c] = new UUID[mentions.size()];
+      for (int m = 0; m < mentions.size(); m++) {
+        idF.getConcreteUUID(); // convertDoc draws (and drops) one for the mention's coref set
+        mentionUuids[c][m] = idF.getConcreteUUID();
+      }
+      nMentions += mentions.size();
+    }
+
+    String corefTool = this.props.getCorefToolName();
+    String[] canonicalNames = new String[corefs.size()];
+    out.writeFieldBegin(COMM_MENTION_SETS);
+    out.writeListBegin(new TList(TType.STRUCT, 1));
+    out.writeStructBegin(STRUCT);
+    writeUUID(out, EMS_UUID, emsUuid);
+    out.writeFieldBegin(EMS_METADATA);
+    writeMetadata(out, corefTool, AgigaConverter.annotationTime, null);
+    out.writeFieldEnd();
+    out.writeFieldBegin(EMS_MENTIONS);
+    out.writeListBegin(new TList(TType.STRUCT, nMentions));
+    for (int c = 0; c < corefs.size(); c++) {
+      List<AgigaMention> mentions = corefs.get(c).getMentions();
+      for (int m = 0; m < mentions.size(); m++) {
+        AgigaMention mention = mentions.get(m);
+        String mentionString = docText.getMentionText(mention);
+        if (mention.isRepresentative())
+          canonicalNames[c] = mentionString;
+        out.writeStructBegin(STRUCT);
+        writeUUID(out, EM_UUID, mentionUuids[c][m]);
+        out.writeFieldBegin(EM_TOKENS);
+        writeTokenRefSequence(out, mention, tokenizationUuids.get(mention.getSentenceIdx()));
+        out.writeFieldEnd();
+        writeString(out, EM_TEXT, mentionString);
+        endStruct(out);
+      }
+    }
+    out.writeListEnd();
+    out.writeFieldEnd();
+    endStruct(out);
+    out.writeListEnd();
+    out.writeFieldEnd();
+
+    out.writeFieldBegin(COMM_ENTITY_SETS);
+    out.writeListBegin(new TList(TType.STRUCT, 1));
+    out.writeStructBegin(STRUCT);
+    writeUUID(out, ES_UUID, esUuid);
+    out.writeFieldBegin(ES_METADATA);
+    writeMetadata(out, corefTool, AgigaConverter.annotationTime, null);
+    out.writeFieldEnd();
+    out.writeFieldBegin(ES_ENTITIES);
+    out.writeListBegin(new TList(TType.STRUCT, corefs.size()));
+    for (int c = 0; c < corefs.size(); c++) {
+      out.writeStructBegin(STRUCT);
+      writeUUID(out, ENT_UUID, entityUuids[c]);
+      out.writeFieldBegin(ENT_MENTION_IDS);
+      out.writeListBegin(new TList(TType.STRUCT, mentionUuids[c].length));
+      for (UUID mu : mentionUuids[c])
+        writeUUIDStruct(out, mu);
+      out.writeListEnd();
+      out.writeFieldEnd();
+      if (canonicalNames[c] != null)
+        writeString(out, ENT_CANONICAL_NAME, canonicalNames[c]);
+      endStruct(out);
+    }
+    out.writeListEnd();
+    out.writeFieldEnd();
+    endStruct(out);
+    out.writeListEnd();
+    out.writeFieldEnd();
+  }
+
+  /**
+   * As {@link AgigaConverter#extractTokenRefSequence(AgigaMention, UUID)}.
+   */
+  private static void writeTokenRefSequence(TProtocol out, AgigaMention m, UUID tUuid) throws AnnotationException,
+      TException {
+    int start = m.getStartTokenIdx();
+    int end = m.getEndTokenIdx();
+    int head = m.getHeadTokenIdx();
+    if (end - start < 0)
+      throw new AnnotationException("Calling extractTokenRefSequence on mention " + m + " with head = " + head
+          + ", UUID = " + tUuid);
+
+    boolean hasAnchor;
+    if (end == start) {
+      hasAnchor = head >= 0;
+      DIAGNOSTICS.record(AgigaConverter.EMPTY_MENTION, "mention {} in tokenization {}", m, tUuid);
+    } else {
+      hasAnchor = head >= start && head < end;
+    }
+
+    out.writeStructBegin(STRUCT);
+    out.writeFieldBegin(TRS_INDICES);
+    out.writeListBegin(new TList(TType.I32, end - start));
+    for (int tid = start; tid < end; tid++)
+      out.writeI32(tid);
+    out.writeListEnd();
+    out.writeFieldEnd();
+    if (hasAnchor)
+      writeI32(out, TRS_ANCHOR, head);
+    writeUUID(out, TRS_TOKENIZATION, tUuid);
+    endStruct(out);
+  }
+
+  /**
+   * @param dependency
+   *          if not null, the tokenization the annotation depends on
+   */
+  private static void writeMetadata(TProtocol out, String tool, long timestamp, UUID dependency) throws TException {
+    out.writeStructBegin(STRUCT);
+    writeString(out, MD_TOOL, tool);
+    out.writeFieldBegin(MD_TIMESTAMP);
+    out.writeI64(timestamp);
+    out.writeFieldEnd();
+    if (dependency != null) {
+      out.writeFieldBegin(MD_DEPENDENCIES);
+      out.writeStructBegin(STRUCT);
+      out.writeFieldBegin(DEPS_TOKENIZATIONS);
+      out.writeListBegin(new TList(TType.STRUCT, 1));
+      writeUUIDStruct(out, dependency);
+      out.writeListEnd();
+      out.writeFieldEnd();
+      endStruct(out);
+      out.writeFieldEnd();
+    }
+    writeI32(out, MD_K_BEST, K_BEST);
+    endStruct(out);
+  }
+
+  private static void writeTextSpan(TProtocol out, TField f, int start, int ending) throws TException {
+    out.writeFieldBegin(f);
+    out.writeStructBegin(STRUCT);
+    writeI32(out, TS_START, start);
+    writeI32(out, TS_ENDING, ending);
+    endStruct(out);
+    out.writeFieldEnd();
+  }
+
+  private static void writeUUID(TProtocol out, TField f, UUID uuid) throws TException {
+    out.writeFieldBegin(f);
+    writeUUIDStruct(out, uuid);
+    out.writeFieldEnd();
+  }
+
+  private static void writeUUIDStruct(TProtocol out, UUID uuid) throws TException {
+    out.writeStructBegin(STRUCT);
+    writeString(out, UUID_STRING, uuid.getUuidString());
+    endStruct(out);
+  }
+
+  private static void writeString(TProtocol out, TField f, String s) throws TException {
+    out.writeFieldBegin(f);
+    out.writeString(s);
+    out.writeFieldEnd();
+  }
+
+  private static void writeI32(TProtocol out, TField f, int i) throws TException {
+    out.writeFieldBegin(f);
+    out.writeI32(i);
+    out.writeFieldEnd();
+  }
+
+  private static void endStruct(TProtocol out) throws TException {
+    out.writeFieldStop();
+    out.writeStructEnd();
+  }
+}
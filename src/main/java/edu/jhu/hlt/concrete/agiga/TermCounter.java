@@ -0,0 +1,118 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Counts strings in an open addressing table of keys and primitive counts, so
+ * that counting a token allocates nothing once its term has been seen. Not
+ * thread-safe: give each thread its own and {@link #addAll(TermCounter)} them
+ * at the end.
+ */
+class TermCounter {
+
+  private String[] keys;
+  private long[] counts;
+  private int size;
+  private long total;
+
+  TermCounter() {
+    this(16);
+  }
+
+  /**
+   * @param expected
+   *          how many terms to make room for up front
+   */
+  TermCounter(int expected) {
+    int cap = Integer.highestOneBit(Math.max(expected, 4) * 4 / 3) << 1;
+    this.keys = new String[cap];
+    this.counts = new long[cap];
+  }
+
+  void add(String term) {
+    this.add(term, 1);
+  }
+
+  void add(String term, long n) {
+    int i = this.slot(term);
+    if (this.keys[i] == null) {
+      this.keys[i] = term;
+      this.counts[i] = n;
+      if (++this.size * 4 > this.keys.length * 3)
+        this.grow();
+    } else {
+      this.counts[i] += n;
+    }
+    this.total += n;
+  }
+
+  void addAll(TermCounter other) {
+    for (int i = 0; i < other.keys.length; i++)
+      if (other.keys[i] != null)
+        this.add(other.keys[i], other.counts[i]);
+  }
+
+  long get(String term) {
+    int i = this.slot(term);
+    return this.keys[i] == null ? 0 : this.counts[i];
+  }
+
+  /**
+   * @return the number of distinct terms
+   */
+  int size() {
+    return this.size;
+  }
+
+  /**
+   * @return the sum of the counts
+   */
+  long getTotal() {
+    return this.total;
+  }
+
+  /**
+   * @return up to {@code limit} terms, most frequent first, ties in string
+   *         order
+   */
+  String[] top(int limit) {
+    String[] terms = new String[this.size];
+    int n = 0;
+    for (String k : this.keys)
+      if (k != null)
+        terms[n++] = k;
+    Arrays.sort(terms, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        int c = Long.compare(get(b), get(a));
+        return c != 0 ? c : a.compareTo(b);
+      }
+    });
+    return limit < terms.length ? Arrays.copyOf(terms, limit) : terms;
+  }
+
+  private int slot(String term) {
+    int h = term.hashCode() * 0x9e3779b9;
+    h ^= h >>> 16;
+    int mask = this.keys.length - 1;
+    int i = h & mask;
+    while (this.keys[i] != null && !this.keys[i].equals(term))
+      i = (i + 1) & mask;
+    return i;
+  }
+
+  private void grow() {
+    String[] oldKeys = this.keys;
+    long[] oldCounts = this.counts;
+    this.keys = new String[oldKeys.length * 2];
+    this.counts = new long[oldKeys.length * 2];
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != null) {
+        int j = this.slot(oldKeys[i]);
+        this.keys[j] = oldKeys[i];
+        this.counts[j] = oldCounts[i];
+      }
+    }
+  }
+}
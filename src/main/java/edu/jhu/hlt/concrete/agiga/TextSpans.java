@@ -0,0 +1,75 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.util.List;
+
+import concrete.tools.AnnotationException;
+import edu.jhu.agiga.AgigaSentence;
+import edu.jhu.agiga.AgigaToken;
+import edu.jhu.hlt.concrete.TextSpan;
+import edu.jhu.hlt.concrete.validation.ValidatableTextSpan;
+
+/**
+ * Where the sentences and tokens of a converted document lie in its text, and the checks made on their TextSpans.
+ * {@link AgigaConverter} and {@link StreamingCommunicationWriter} both work their spans out here, so that they cannot
+ * drift apart. Tokens in the text are separated by a space and sentences by a newline.
+ */
+final class TextSpans {
+
+  private TextSpans() {
+  }
+
+  /**
+   * @return the end of the TextSpan of {@code tok}, which starts at {@code start}
+   */
+  static int tokenEnd(int start, AgigaToken tok) {
+    return start + tok.getWord().length();
+  }
+
+  /**
+   * @return where the token after one ending at {@code tokenEnd} starts
+   */
+  static int nextTokenStart(int tokenEnd) {
+    return tokenEnd + 1;
+  }
+
+  /**
+   * @return where the sentence after one starting at {@code start} starts
+   */
+  static int nextSentenceStart(int start, int length) {
+    return start + length + 1;
+  }
+
+  static int rawSentenceStart(AgigaSentence sent) {
+    return sent.getTokens().get(0).getCharOffBegin();
+  }
+
+  static int rawSentenceEnd(AgigaSentence sent) {
+    List<AgigaToken> tokens = sent.getTokens();
+    return tokens.get(tokens.size() - 1).getCharOffEnd();
+  }
+
+  static void checkToken(int start, int ending) throws AnnotationException {
+    check(start, ending, "Token TextSpan was invalid: ");
+  }
+
+  static void checkRawToken(AgigaToken tok) throws AnnotationException {
+    check(tok.getCharOffBegin(), tok.getCharOffEnd(), "Computed/Raw TextSpan was invalid: ");
+  }
+
+  static void checkSentence(int start, int ending) throws AnnotationException {
+    check(start, ending, "TextSpan was not valid: ");
+  }
+
+  static void checkRawSentence(AgigaSentence sent) throws AnnotationException {
+    check(rawSentenceStart(sent), rawSentenceEnd(sent), "Computed TextSpan was not valid: ");
+  }
+
+  /**
+   * The check {@link ValidatableTextSpan#isValid()} makes, done on the offsets themselves so that nothing is allocated
+   * unless the span is bad.
+   */
+  private static void check(int start, int ending, String msg) throws AnnotationException {
+    if (start < 0 || ending <= start)
+      throw new AnnotationException(msg + new TextSpan(start, ending).toString());
+  }
+}
@@ -0,0 +1,300 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaSentence;
+import edu.jhu.agiga.AgigaToken;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.Section;
+import edu.jhu.hlt.concrete.Sentence;
+import edu.jhu.hlt.concrete.TextSpan;
+import edu.jhu.hlt.concrete.Token;
+
+/**
+ * Maps character offsets to tokens by binary search, instead of scanning every
+ * Tokenization. Tokens are numbered through the whole document; a token's
+ * sentence is its index in the Communication's sentence list, empty Agiga
+ * sentences being left out as {@link AgigaConverter#convertDoc(AgigaDocument)}
+ * leaves them out.
+ * <br/>
+ * Offsets are held both as computed (the token TextSpans, into the
+ * Communication text) and raw (the raw TextSpans, into the original document),
+ * in a few int arrays: 16 bytes a token, 4 a sentence.
+ */
+public class TokenOffsetIndex {
+
+  private static final int MAGIC = 0x41474f49; // AGOI
+  private static final int VERSION = 1;
+
+  /**
+   * First token of each sentence, then the number of tokens.
+   */
+  private final int[] sentenceStarts;
+  private final int[] starts;
+  private final int[] ends;
+  private final int[] rawStarts;
+  private final int[] rawEnds;
+
+  private TokenOffsetIndex(int[] sentenceStarts, int[] starts, int[] ends, int[] rawStarts, int[] rawEnds) {
+    this.sentenceStarts = sentenceStarts;
+    this.starts = starts;
+    this.ends = ends;
+    this.rawStarts = rawStarts;
+    this.rawEnds = rawEnds;
+  }
+
+  /**
+   * Index the tokens of {@code doc}, with the offsets
+   * {@link AgigaConverter#convertTokenization(AgigaSentence, int, boolean)}
+   * gives them, without converting anything.
+   */
+  public static TokenOffsetIndex of(AgigaDocument doc) {
+    int nSents = 0;
+    int nToks = 0;
+    for (AgigaSentence sent : doc.getSents()) {
+      if (!sent.getTokens().isEmpty()) {
+        nSents++;
+        nToks += sent.getTokens().size();
+      }
+    }
+
+    int[] sentenceStarts = new int[nSents + 1];
+    int[] starts = new int[nToks];
+    int[] ends = new int[nToks];
+    int[] rawStarts = new int[nToks];
+    int[] rawEnds = new int[nToks];
+    int s = 0;
+    int t = 0;
+    int offset = 0;
+    for (AgigaSentence sent : doc.getSents()) {
+      if (sent.getTokens().isEmpty())
+        continue;
+      sentenceStarts[s++] = t;
+      for (AgigaToken tok : sent.getTokens()) {
+        starts[t] = offset;
+        offset += tok.getWord().length();
+        ends[t] = offset;
+        rawStarts[t] = tok.getCharOffBegin();
+        rawEnds[t] = tok.getCharOffEnd();
+        t++;
+        // the space or newline after the token
+        offset++;
+      }
+    }
+    sentenceStarts[nSents] = nToks;
+    return new TokenOffsetIndex(sentenceStarts, starts, ends, rawStarts, rawEnds);
+  }
+
+  /**
+   * Index the token TextSpans of a converted Communication. A token without a
+   * (raw) TextSpan is indexed at -1, where no lookup finds it.
+   */
+  public static TokenOffsetIndex of(Communication comm) {
+    int nSents = 0;
+    int nToks = 0;
+    if (comm.isSetSectionList()) {
+      for (Section sect : comm.getSectionList()) {
+        if (!sect.isSetSentenceList())
+          continue;
+        for (Sentence sent : sect.getSentenceList()) {
+          nSents++;
+          nToks += sent.getTokenization().getTokenList().getTokenListSize();
+        }
+      }
+    }
+
+    int[] sentenceStarts = new int[nSents + 1];
+    int[] starts = new int[nToks];
+    int[] ends = new int[nToks];
+    int[] rawStarts = new int[nToks];
+    int[] rawEnds = new int[nToks];
+    int s = 0;
+    int t = 0;
+    if (comm.isSetSectionList()) {
+      for (Section sect : comm.getSectionList()) {
+        if (!sect.isSetSentenceList())
+          continue;
+        for (Sentence sent : sect.getSentenceList()) {
+          sentenceStarts[s++] = t;
+          for (Token tok : sent.getTokenization().getTokenList().getTokenList()) {
+            TextSpan ts = tok.getTextSpan();
+            starts[t] = ts == null ? -1 : ts.getStart();
+            ends[t] = ts == null ? -1 : ts.getEnding();
+            ts = tok.getRawTextSpan();
+            rawStarts[t] = ts == null ? -1 : ts.getStart();
+            rawEnds[t] = ts == null ? -1 : ts.getEnding();
+            t++;
+          }
+        }
+      }
+    }
+    sentenceStarts[nSents] = nToks;
+    return new TokenOffsetIndex(sentenceStarts, starts, ends, rawStarts, rawEnds);
+  }
+
+  public int getNumSentences() {
+    return this.sentenceStarts.length - 1;
+  }
+
+  public int getNumTokens() {
+    return this.starts.length;
+  }
+
+  /**
+   * @return the token covering the character at {@code offset} of the
+   *         Communication text, or -1 if it is between tokens or outside them
+   */
+  public int tokenAt(int offset) {
+    return find(this.starts, this.ends, offset);
+  }
+
+  /**
+   * @return the token covering the character at {@code rawOffset} of the
+   *         original document, or -1 if there is none
+   */
+  public int rawTokenAt(int rawOffset) {
+    return find(this.rawStarts, this.rawEnds, rawOffset);
+  }
+
+  /**
+   * @return the tokens overlapping the characters [start, end) of the
+   *         Communication text, as {first, last + 1}; {i, i} if none do
+   */
+  public int[] tokensIn(int start, int end) {
+    return overlapping(this.starts, this.ends, start, end);
+  }
+
+  /**
+   * @return the tokens overlapping the characters [start, end) of the original
+   *         document, as {@link #tokensIn(int, int)} does
+   */
+  public int[] rawTokensIn(int start, int end) {
+    return overlapping(this.rawStarts, this.rawEnds, start, end);
+  }
+
+  /**
+   * @return the sentence of the token numbered {@code token} in the document
+   */
+  public int getSentence(int token) {
+    int i = Arrays.binarySearch(this.sentenceStarts, 0, this.sentenceStarts.length - 1, token);
+    // sentences are never empty, so no two start at the same token
+    return i >= 0 ? i : -i - 2;
+  }
+
+  /**
+   * @return the index of {@code token} within its sentence, as in
+   *         {@link Token#getTokenIndex()}
+   */
+  public int getTokenIndex(int token) {
+    return token - this.sentenceStarts[this.getSentence(token)];
+  }
+
+  /**
+   * @return the number in the document of the first token of
+   *         {@code sentence}
+   */
+  public int getFirstToken(int sentence) {
+    return this.sentenceStarts[sentence];
+  }
+
+  public int getStart(int token) {
+    return this.starts[token];
+  }
+
+  public int getEnd(int token) {
+    return this.ends[token];
+  }
+
+  public int getRawStart(int token) {
+    return this.rawStarts[token];
+  }
+
+  public int getRawEnd(int token) {
+    return this.rawEnds[token];
+  }
+
+  /**
+   * @return the last token starting at or before {@code offset}, if it ends
+   *         after it; else -1. Starts are in increasing order, as tokens do not
+   *         overlap.
+   */
+  private static int find(int[] starts, int[] ends, int offset) {
+    int i = lastAtOrBefore(starts, offset);
+    return i >= 0 && offset < ends[i] ? i : -1;
+  }
+
+  private static int[] overlapping(int[] starts, int[] ends, int start, int end) {
+    // the first token ending after start, to the last starting before end
+    int first = lastAtOrBefore(ends, start) + 1;
+    int last = lastAtOrBefore(starts, end - 1);
+    return new int[] { first, Math.max(first, last + 1) };
+  }
+
+  /**
+   * @return the last index whose value is at most {@code key}, or -1
+   */
+  private static int lastAtOrBefore(int[] sorted, int key) {
+    int lo = 0;
+    int hi = sorted.length - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (sorted[mid] <= key)
+        lo = mid + 1;
+      else
+        hi = mid - 1;
+    }
+    return hi;
+  }
+
+  /**
+   * Write the index, to be read back by {@link #readFrom(DataInput)}.
+   */
+  public void writeTo(DataOutput out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(this.getNumSentences());
+    out.writeInt(this.getNumTokens());
+    writeInts(out, this.sentenceStarts);
+    writeInts(out, this.starts);
+    writeInts(out, this.ends);
+    writeInts(out, this.rawStarts);
+    writeInts(out, this.rawEnds);
+  }
+
+  public static TokenOffsetIndex readFrom(DataInput in) throws IOException {
+    if (in.readInt() != MAGIC)
+      throw new IOException("Not a token offset index.");
+    int version = in.readInt();
+    if (version != VERSION)
+      throw new IOException("Unsupported token offset index version: " + version);
+    int nSents = in.readInt();
+    int nToks = in.readInt();
+    if (nSents < 0 || nToks < 0)
+      throw new IOException("Corrupt token offset index: " + nSents + " sentences, " + nToks + " tokens.");
+    return new TokenOffsetIndex(readInts(in, nSents + 1), readInts(in, nToks), readInts(in, nToks), readInts(in,
+        nToks), readInts(in, nToks));
+  }
+
+  /**
+   * @return the number of bytes {@link #writeTo(DataOutput)} writes
+   */
+  public int getSerializedSize() {
+    return 4 * (4 + this.sentenceStarts.length + 4 * this.starts.length);
+  }
+
+  private static void writeInts(DataOutput out, int[] values) throws IOException {
+    for (int v : values)
+      out.writeInt(v);
+  }
+
+  private static int[] readInts(DataInput in, int n) throws IOException {
+    int[] values = new int[n];
+    for (int i = 0; i < n; i++)
+      values[i] = in.readInt();
+    return values;
+  }
+}
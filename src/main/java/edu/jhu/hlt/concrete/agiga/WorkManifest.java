@@ -0,0 +1,432 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coordinator-free sharing of a list of input files between workers (threads,
+ * JVMs or machines) that can all see one directory, e.g. on a shared
+ * filesystem. The directory holds:
+ * <ul>
+ * <li>{@code manifest}: the input files, one per line. Written once, by
+ * whichever worker gets there first.</li>
+ * <li>{@code leases/N.lease}: held by the worker converting line N. Created with
+ * an atomic create-if-absent, so only one worker can hold it.</li>
+ * <li>{@code done/N.done}: line N has been converted.</li>
+ * </ul>
+ * A worker renews its leases by touching them, but only while it is making
+ * progress. A lease that has not been renewed within the lease timeout belongs
+ * to a crashed or stuck worker; the next worker to look renames it out of the
+ * way (an atomic step only one worker can win), checks that what it moved is
+ * still the expired lease rather than one another worker has just taken out,
+ * and claims the file itself. A worker that has lost a lease sees that on its
+ * next renewal and stops work on that file.
+ * <br/>
+ * Lease ages are judged by file modification times, so worker clocks must
+ * agree to well within the lease timeout.
+ * <br/>
+ * A {@link LeaseOutput} keeps what is written under a lease out of sight until
+ * the lease completes, so output from a worker that lost its lease never mixes
+ * with that of the worker that took the file over.
+ */
+public class WorkManifest {
+
+  private static final Logger logger = LoggerFactory.getLogger(WorkManifest.class);
+
+  private static final String MANIFEST = "manifest";
+  private static final String LEASE_DIR = "leases";
+  private static final String DONE_DIR = "done";
+
+  private final Path dir;
+  private final Path leaseDir;
+  private final Path doneDir;
+  private final List<String> files;
+  private final String workerId;
+  private final long leaseTimeoutMillis;
+  private final long pollMillis;
+
+  private final Set<Lease> held = Collections.newSetFromMap(new ConcurrentHashMap<Lease, Boolean>());
+  private final ScheduledExecutorService heartbeat;
+  private volatile LeaseOutput output;
+
+  /**
+   * Output written while holding a lease, kept apart from finished output until
+   * the lease completes.
+   */
+  public interface LeaseOutput {
+    /**
+     * Start keeping the output for a newly claimed file.
+     */
+    void open(Lease lease) throws IOException;
+
+    /**
+     * Move the output of {@code lease} into place. Called while the lease is
+     * still held, before its file is marked done.
+     */
+    void commit(Lease lease) throws IOException;
+
+    /**
+     * Throw away the output of a lease that was lost or given up; whoever
+     * converts the file next writes it again.
+     */
+    void discard(Lease lease) throws IOException;
+  }
+
+  /**
+   * Join (or start) the manifest in {@code dir}.
+   *
+   * @param inputFiles
+   *          the input files, used to write the manifest if there isn't one
+   *          yet. Ignored if another worker already wrote it.
+   * @param workerId
+   *          unique name for this worker, written into its leases
+   */
+  public WorkManifest(Path dir, List<String> inputFiles, String workerId, long leaseTimeoutMillis,
+      long heartbeatMillis, long pollMillis) throws IOException {
+    this.dir = dir;
+    this.leaseDir = dir.resolve(LEASE_DIR);
+    this.doneDir = dir.resolve(DONE_DIR);
+    this.workerId = workerId;
+    this.leaseTimeoutMillis = leaseTimeoutMillis;
+    this.pollMillis = pollMillis;
+    Files.createDirectories(this.leaseDir);
+    Files.createDirectories(this.doneDir);
+    this.files = this.readOrWriteManifest(inputFiles);
+
+    this.heartbeat = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "lease-heartbeat");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    this.heartbeat.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        for (Lease l : held)
+          l.renew();
+      }
+    }, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return a worker id made from the host name and process id
+   */
+  public static String defaultWorkerId() {
+    // "pid@host"
+    String[] name = ManagementFactory.getRuntimeMXBean().getName().split("@", 2);
+    return name.length == 2 ? name[1] + "-" + name[0] : name[0];
+  }
+
+  private List<String> readOrWriteManifest(List<String> inputFiles) throws IOException {
+    Path manifest = this.dir.resolve(MANIFEST);
+    if (!Files.exists(manifest)) {
+      List<String> absolute = new ArrayList<>();
+      for (String f : inputFiles)
+        absolute.add(new File(f).getAbsolutePath());
+      Path tmp = Files.createTempFile(this.dir, MANIFEST + "-", "." + this.workerId);
+      Files.write(tmp, absolute, StandardCharsets.UTF_8);
+      try {
+        // a hard link is created atomically and never replaces an existing file
+        Files.createLink(manifest, tmp);
+        logger.info("Wrote manifest of {} files to {}", absolute.size(), manifest);
+      } catch (FileAlreadyExistsException e) {
+        logger.info("Another worker wrote the manifest first; using theirs.");
+      } finally {
+        Files.delete(tmp);
+      }
+    }
+    return Files.readAllLines(manifest, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Keep the output of each lease claimed from now on in {@code output}.
+   */
+  public void setLeaseOutput(LeaseOutput output) {
+    this.output = output;
+  }
+
+  public String getWorkerId() {
+    return workerId;
+  }
+
+  public int size() {
+    return this.files.size();
+  }
+
+  public boolean isDone(int i) {
+    return Files.exists(this.donePath(i));
+  }
+
+  private Path leasePath(int i) {
+    return this.leaseDir.resolve(i + ".lease");
+  }
+
+  private Path donePath(int i) {
+    return this.doneDir.resolve(i + ".done");
+  }
+
+  /**
+   * Claim the next file nobody else is working on. If every remaining file is
+   * leased to a live worker, waits for them to finish or for their leases to
+   * expire.
+   *
+   * @return the claimed file's lease, or null once every file is done
+   */
+  public Lease claim() throws IOException, InterruptedException {
+    while (true) {
+      boolean allDone = true;
+      for (int i = 0; i < this.files.size(); i++) {
+        if (this.isDone(i))
+          continue;
+        allDone = false;
+        Lease l = this.tryClaim(i);
+        if (l != null)
+          return l;
+      }
+      if (allDone)
+        return null;
+      Thread.sleep(this.pollMillis);
+    }
+  }
+
+  /**
+   * @return a lease on file {@code i}, or null if someone else holds a live
+   *         lease on it
+   */
+  Lease tryClaim(int i) throws IOException {
+    Path lp = this.leasePath(i);
+    if (this.tryCreateLease(lp)) {
+      // it may have been finished between our done check and the lease
+      if (this.isDone(i)) {
+        Files.deleteIfExists(lp);
+        return null;
+      }
+      return this.hold(i, lp);
+    }
+
+    FileTime renewed;
+    String owner;
+    try {
+      renewed = Files.getLastModifiedTime(lp);
+      owner = readOwner(lp);
+    } catch (NoSuchFileException e) {
+      return null; // released since we looked; pick it up on the next pass
+    }
+    long age = System.currentTimeMillis() - renewed.toMillis();
+    if (age < this.leaseTimeoutMillis)
+      return null;
+    return this.reclaim(i, owner, age);
+  }
+
+  /**
+   * Take over the lease on file {@code i}, which was {@code age} milliseconds
+   * old and held by {@code owner} when we looked at it.
+   *
+   * @return the new lease, or null if someone else got there first
+   */
+  Lease reclaim(int i, String owner, long age) throws IOException {
+    Path lp = this.leasePath(i);
+    Path expired = this.leaseDir.resolve(i + ".lease.expired-" + this.workerId + "-" + System.nanoTime());
+    try {
+      Files.move(lp, expired);
+    } catch (NoSuchFileException e) {
+      return null; // another worker took it out of the way first
+    }
+    // another worker may have reclaimed it since we looked, in which case what
+    // we moved is that worker's fresh lease, not the expired one
+    if (!owner.equals(readOwner(expired))
+        || System.currentTimeMillis() - Files.getLastModifiedTime(expired).toMillis() < this.leaseTimeoutMillis) {
+      this.putBack(expired, lp);
+      return null;
+    }
+    logger.warn("Lease on {} ({}) was {} seconds old; reclaiming it from {}.", this.files.get(i), lp, age / 1000d,
+        owner.trim());
+    Files.deleteIfExists(expired);
+    return this.tryCreateLease(lp) ? this.hold(i, lp) : null;
+  }
+
+  private void putBack(Path expired, Path lp) throws IOException {
+    try {
+      // like the manifest, a hard link never replaces a lease created meanwhile
+      Files.createLink(lp, expired);
+    } catch (FileAlreadyExistsException e) {
+      // its holder sees that on its next renewal and stops
+      logger.warn("Could not put back the live lease {} moved aside by mistake.", lp);
+    } finally {
+      Files.delete(expired);
+    }
+  }
+
+  private static String readOwner(Path lp) throws IOException {
+    return new String(Files.readAllBytes(lp), StandardCharsets.UTF_8);
+  }
+
+  private boolean tryCreateLease(Path lp) throws IOException {
+    try {
+      Files.createFile(lp);
+    } catch (FileAlreadyExistsException e) {
+      return false;
+    }
+    Files.write(lp, this.workerId.getBytes(StandardCharsets.UTF_8));
+    return true;
+  }
+
+  private Lease hold(int i, Path lp) throws IOException {
+    Lease l = new Lease(i, lp, this.output);
+    if (l.output != null) {
+      try {
+        l.output.open(l);
+      } catch (IOException | RuntimeException e) {
+        Files.deleteIfExists(lp);
+        throw e;
+      }
+    }
+    this.held.add(l);
+    logger.info("Worker {} claimed {}", this.workerId, this.files.get(i));
+    return l;
+  }
+
+  /**
+   * Stop renewing leases. Leases still held will expire and be picked up by
+   * other workers.
+   */
+  public void close() {
+    this.heartbeat.shutdownNow();
+  }
+
+  /**
+   * One worker's claim on one input file.
+   */
+  public class Lease {
+    private final int index;
+    private final Path path;
+    private final LeaseOutput output;
+    private final AtomicLong progress = new AtomicLong();
+    private long progressAtLastRenewal = 0;
+    private volatile boolean valid = true;
+
+    private Lease(int index, Path path, LeaseOutput output) {
+      this.index = index;
+      this.path = path;
+      this.output = output;
+    }
+
+    public String getFile() {
+      return files.get(this.index);
+    }
+
+    /**
+     * @return the line of the manifest the file is on, from 0
+     */
+    public int getIndex() {
+      return this.index;
+    }
+
+    public String getWorkerId() {
+      return workerId;
+    }
+
+    /**
+     * Record that work on the file is moving along. The lease is only renewed if
+     * progress was made since the last renewal.
+     */
+    public void progress() {
+      this.progress.incrementAndGet();
+    }
+
+    /**
+     * @return false once another worker has taken over this file
+     */
+    public boolean isValid() {
+      return this.valid;
+    }
+
+    private boolean stillOurs() throws IOException {
+      try {
+        return readOwner(this.path).equals(workerId);
+      } catch (NoSuchFileException e) {
+        return false;
+      }
+    }
+
+    synchronized void renew() {
+      if (!this.valid)
+        return;
+      try {
+        if (!this.stillOurs()) {
+          logger.warn("Worker {} lost its lease on {}.", workerId, this.getFile());
+          this.valid = false;
+          held.remove(this);
+          return;
+        }
+        long p = this.progress.get();
+        if (p != this.progressAtLastRenewal) {
+          this.progressAtLastRenewal = p;
+          Files.setLastModifiedTime(this.path, FileTime.fromMillis(System.currentTimeMillis()));
+        }
+      } catch (IOException e) {
+        logger.warn("Failed to renew lease " + this.path, e);
+      }
+    }
+
+    /**
+     * Move the file's output into place, mark the file as converted and give up
+     * the lease.
+     *
+     * @return false if the lease was lost before completion, in which case the
+     *         output is thrown away and another worker is responsible for the
+     *         file
+     */
+    public synchronized boolean complete() throws IOException {
+      held.remove(this);
+      if (!this.valid || !this.stillOurs()) {
+        this.valid = false;
+        logger.warn("Worker {} finished {} after losing its lease; not marking it done.", workerId, this.getFile());
+        if (this.output != null)
+          this.output.discard(this);
+        return false;
+      }
+      if (this.output != null)
+        this.output.commit(this);
+      Files.write(donePath(this.index), workerId.getBytes(StandardCharsets.UTF_8));
+      Files.deleteIfExists(this.path);
+      this.valid = false;
+      return true;
+    }
+
+    /**
+     * Give up the lease without marking the file done, so another worker can
+     * take it straight away.
+     */
+    public synchronized void release() throws IOException {
+      held.remove(this);
+      if (this.output != null)
+        this.output.discard(this);
+      if (this.valid && this.stillOurs())
+        Files.deleteIfExists(this.path);
+      this.valid = false;
+    }
+  }
+}
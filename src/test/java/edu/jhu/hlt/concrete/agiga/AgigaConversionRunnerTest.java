@@ -0,0 +1,125 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Scanner;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import concrete.tools.AnnotationException;
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaPrefs;
+
+public class AgigaConversionRunnerTest {
+
+  static final String strPath = "src/test/resources/agiga_dog-bites-man.annotated.xml.gz";
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  File input;
+
+  /**
+   * Collects the ids of what is written to it.
+   */
+  static class CollectingSink implements CommunicationSink {
+    final List<String> ids = Collections.synchronizedList(new ArrayList<String>());
+
+    @Override
+    public void write(String docId, ByteBuffer serialized) {
+      ids.add(docId);
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  static String readTestFile() throws IOException {
+    try (InputStream is = new GZIPInputStream(new FileInputStream(strPath));
+        Scanner sc = new Scanner(is, "UTF-8")) {
+      return sc.useDelimiter("\\A").next();
+    }
+  }
+
+  /**
+   * @return the test document's DOC element, renamed to {@code id}
+   */
+  static String testDoc(String id) throws IOException {
+    String file = readTestFile();
+    String doc = file.substring(file.indexOf("<DOC "), file.indexOf("</DOC>") + "</DOC>\n".length());
+    return doc.replace("id=\"agiga_dog-bites-man\"", "id=\"" + id + "\"");
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    // the middle document's second parse has fewer leaves than its sentence has tokens
+    String bad = testDoc("bad-2").replace("(ROOT (S (NP (PRP He)) (VP (VBD died)) (. !)))", "(ROOT (NP (PRP He)))");
+    String xml = "<FILE id=\"test\">\n" + testDoc("good-1") + bad + testDoc("good-3") + "</FILE>\n";
+    this.input = tmp.newFile("three.xml");
+    Files.write(this.input.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void failedDocumentIsQuarantined() throws Exception {
+    File qDir = new File(tmp.getRoot(), "quarantine");
+    Quarantine q = new Quarantine(qDir);
+    CollectingSink sink = new CollectingSink();
+    AgigaConversionRunner runner = new AgigaConversionRunner(new AgigaConverter(true), false, sink, q);
+    assertTrue(runner.convertFile(this.input));
+
+    assertEquals(Arrays.asList("good-1", "good-3"), sink.ids);
+    assertEquals(1, q.getNumFailed());
+    assertEquals(1, q.getFailuresByCause().size());
+    String error = new String(Files.readAllBytes(new File(qDir, "bad-2.error.txt").toPath()), StandardCharsets.UTF_8);
+    assertTrue(error.contains(AnnotationException.class.getName()));
+    String xml = new String(Files.readAllBytes(new File(qDir, "bad-2.xml").toPath()), StandardCharsets.UTF_8);
+    assertTrue(xml.startsWith("<DOC id=\"bad-2\""));
+    assertTrue(xml.contains("(ROOT (NP (PRP He)))"));
+  }
+
+  @Test
+  public void rawExtractionReadsOnlyTheText() throws Exception {
+    CollectingSink sink = new CollectingSink();
+    AgigaConversionRunner runner = new AgigaConversionRunner(new AgigaConverter(true), true, sink);
+    assertTrue(runner.convertFile(this.input));
+    // the bad parse is never read
+    assertEquals(Arrays.asList("good-1", "bad-2", "good-3"), sink.ids);
+
+    AgigaPrefs ap = new AgigaPrefs();
+    ap.setAll(true);
+    DocumentXmlParser parser = new DocumentXmlParser(ap);
+    AgigaConverter ac = new AgigaConverter(true);
+    String escaped = testDoc("R&amp;D").replace("<word>Smith</word>", "<word>S&amp;P&#39;s &lt;x&gt;</word>");
+    List<String> docs = Arrays.asList(testDoc("plain"), escaped,
+        new SyntheticCorpusGenerator(3, 10, 20, 0.5, 10, 0.3).document("SYN_ENG_20000101.0001"));
+    for (String xml : docs) {
+      RawAgigaDocument raw = new RawAgigaDocument("test", 0, xml);
+      AgigaDocument doc = raw.parse(parser);
+      assertEquals(doc.getDocId(), raw.getDocId());
+      assertEquals(ac.flattenText(doc), raw.getText());
+    }
+    assertTrue(new RawAgigaDocument("test", 0, escaped).getText().startsWith("John S&P's <x> ,"));
+  }
+
+  @Test(expected = AnnotationException.class)
+  public void withoutQuarantineFailureStopsTheRun() throws Exception {
+    new AgigaConversionRunner(new AgigaConverter(true), false, new CollectingSink()).convertFile(this.input);
+  }
+}
@@ -0,0 +1,128 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaPrefs;
+import edu.jhu.agiga.StreamingDocumentReader;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.DependencyParse;
+import edu.jhu.hlt.concrete.Entity;
+import edu.jhu.hlt.concrete.EntityMention;
+import edu.jhu.hlt.concrete.Parse;
+import edu.jhu.hlt.concrete.Sentence;
+import edu.jhu.hlt.concrete.TokenTagging;
+import edu.jhu.hlt.concrete.Tokenization;
+
+public class AgigaWalkerTest {
+
+  static class CollectingVisitor extends AgigaVisitor {
+    Communication comm;
+    final List<Sentence> sentences = new ArrayList<>();
+    final List<Parse> parses = new ArrayList<>();
+    final List<DependencyParse> depParses = new ArrayList<>();
+    final List<Entity> entities = new ArrayList<>();
+    final List<EntityMention> mentions = new ArrayList<>();
+    int ended = 0;
+
+    @Override
+    public void onDocument(AgigaDocument doc, Communication comm) {
+      this.comm = comm;
+    }
+
+    @Override
+    public void onSentence(int sentIdx, Sentence sentence) {
+      this.sentences.add(sentence);
+    }
+
+    @Override
+    public void onParse(Tokenization tokenization, Parse parse) {
+      this.parses.add(parse);
+    }
+
+    @Override
+    public void onDependencyParse(Tokenization tokenization, DependencyParse parse) {
+      this.depParses.add(parse);
+    }
+
+    @Override
+    public void onEntity(Entity entity, List<EntityMention> mentions) {
+      this.entities.add(entity);
+      this.mentions.addAll(mentions);
+    }
+
+    @Override
+    public void onDocumentEnd(AgigaDocument doc) {
+      this.ended++;
+    }
+  }
+
+  @Test
+  public void piecesMatchConvertDoc() throws Exception {
+    AgigaPrefs ap = new AgigaPrefs();
+    ap.setAll(true);
+    AgigaDocument doc = new StreamingDocumentReader(AgigaConversionRunnerTest.strPath, ap).next();
+    AgigaConverter ac = new AgigaConverter(true);
+    Communication comm = ac.convertDoc(doc);
+    CollectingVisitor v = new CollectingVisitor();
+    AgigaWalker.all(ac).walk(doc, v);
+
+    assertEquals(comm.getText(), v.comm.getText());
+    assertFalse(v.comm.isSetSectionList());
+    List<Sentence> sents = comm.getSectionList().get(0).getSentenceList();
+    assertEquals(sents.size(), v.sentences.size());
+    for (int i = 0; i < sents.size(); i++) {
+      Tokenization expected = sents.get(i).getTokenization();
+      Tokenization got = v.sentences.get(i).getTokenization();
+      assertEquals(sents.get(i).getTextSpan(), v.sentences.get(i).getTextSpan());
+      assertEquals(expected.getTokenList(), got.getTokenList());
+      assertEquals(3, got.getTokenTaggingListSize());
+      for (int t = 0; t < 3; t++) {
+        TokenTagging tt = expected.getTokenTaggingList().get(t);
+        assertEquals(tt.getTaggingType(), got.getTokenTaggingList().get(t).getTaggingType());
+        assertEquals(tt.getTaggedTokenList(), got.getTokenTaggingList().get(t).getTaggedTokenList());
+      }
+      assertFalse(got.isSetParseList());
+      assertEquals(expected.getParseList().get(0).getConstituentList(), v.parses.get(i).getConstituentList());
+      for (int d = 0; d < 3; d++) {
+        DependencyParse dp = v.depParses.get(3 * i + d);
+        assertEquals(expected.getDependencyParseList().get(d).getMetadata().getTool(), dp.getMetadata().getTool());
+        assertEquals(expected.getDependencyParseList().get(d).getDependencyList(), dp.getDependencyList());
+        assertEquals(got.getUuid(), dp.getMetadata().getDependencies().getTokenizationTheoryList().get(0));
+      }
+    }
+
+    List<Entity> entities = comm.getEntitySetList().get(0).getEntityList();
+    List<EntityMention> mentions = comm.getEntityMentionSetList().get(0).getMentionList();
+    assertEquals(entities.size(), v.entities.size());
+    assertEquals(entities.get(0).getCanonicalName(), v.entities.get(0).getCanonicalName());
+    assertEquals(mentions.size(), v.mentions.size());
+    for (int i = 0; i < mentions.size(); i++) {
+      assertEquals(mentions.get(i).getText(), v.mentions.get(i).getText());
+      assertEquals(mentions.get(i).getTokens().getTokenIndexList(), v.mentions.get(i).getTokens()
+          .getTokenIndexList());
+    }
+    assertEquals(1, v.ended);
+  }
+
+  @Test
+  public void convertsOnlyTheLayersAskedFor() throws Exception {
+    AgigaWalker walker = new AgigaWalker(new AgigaConverter(true), EnumSet.of(AgigaWalker.Layer.BASIC_DEPS));
+    CollectingVisitor v = new CollectingVisitor();
+    assertEquals(1, walker.walk(AgigaConversionRunnerTest.strPath, v));
+
+    assertEquals(3, v.sentences.size());
+    assertFalse(v.sentences.get(0).getTokenization().isSetTokenTaggingList());
+    assertEquals(0, v.parses.size());
+    assertEquals(3, v.depParses.size());
+    assertEquals(0, v.entities.size());
+    assertEquals(1, v.ended);
+  }
+}
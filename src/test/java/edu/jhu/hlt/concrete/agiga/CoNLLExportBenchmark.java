@@ -0,0 +1,100 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaPrefs;
+import edu.jhu.agiga.StreamingDocumentReader;
+import edu.jhu.hlt.concrete.serialization.CompactCommunicationSerializer;
+
+/**
+ * Sentences per second written by {@link CoNLLExporter}, from Agiga XML and
+ * from a stream of converted Communications, on 1 up to the given number of
+ * threads. The input is the test document repeated, and the output is thrown
+ * away.
+ * <br/>
+ * Usage: {@code CoNLLExportBenchmark [documents] [max threads]}
+ */
+public class CoNLLExportBenchmark {
+
+  private static final Writer NULL = new Writer() {
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+    }
+
+    @Override
+    public void write(String str) {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  };
+
+  private interface Input {
+    long export(CoNLLExporter exporter) throws Exception;
+  }
+
+  private static void run(String name, Input input, int nThreads) throws Exception {
+    try (CoNLLExporter exporter = new CoNLLExporter(CoNLLExporter.Format.CONLLU, CoNLLExporter.DependencyType.COL_CCPROC,
+        nThreads)) {
+      input.export(exporter); // warm up
+      long start = System.nanoTime();
+      long nSentences = input.export(exporter);
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("%-8s %2d threads %12.0f sentences/s%n", name, nThreads, nSentences / seconds);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int nDocs = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+    int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+    final File agiga = File.createTempFile("conll-bench", ".xml");
+    final File comms = File.createTempFile("conll-bench", ".comms");
+    agiga.deleteOnExit();
+    comms.deleteOnExit();
+
+    StringBuilder sb = new StringBuilder("<FILE id=\"bench\">\n");
+    for (int i = 0; i < nDocs; i++)
+      sb.append(AgigaConversionRunnerTest.testDoc("bench-" + i));
+    sb.append("</FILE>\n");
+    Files.write(agiga.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+
+    AgigaPrefs ap = new AgigaPrefs();
+    ap.setAll(true);
+    AgigaConverter converter = new AgigaConverter(true);
+    CompactCommunicationSerializer cs = new CompactCommunicationSerializer();
+    try (OutputStream os = new FileOutputStream(comms)) {
+      for (AgigaDocument doc : new StreamingDocumentReader(agiga.getPath(), ap))
+        os.write(cs.toBytes(converter.convertDoc(doc)));
+    }
+
+    try (final MappedCommunicationReader reader = new MappedCommunicationReader(Collections.singletonList(comms.toPath()))) {
+      for (int t = 1; t <= maxThreads; t *= 2) {
+        run("agiga", new Input() {
+          @Override
+          public long export(CoNLLExporter exporter) throws Exception {
+            return exporter.exportAgiga(agiga, NULL);
+          }
+        }, t);
+        run("concrete", new Input() {
+          @Override
+          public long export(CoNLLExporter exporter) throws Exception {
+            return exporter.export(reader, NULL);
+          }
+        }, t);
+      }
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaPrefs;
+import edu.jhu.agiga.StreamingDocumentReader;
+import edu.jhu.hlt.concrete.serialization.CompactCommunicationSerializer;
+
+public class CoNLLExporterTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private String export(CoNLLExporter.Format format, CoNLLExporter.DependencyType deps, int nThreads, File agiga)
+      throws Exception {
+    StringWriter out = new StringWriter();
+    try (CoNLLExporter exporter = new CoNLLExporter(format, deps, nThreads)) {
+      exporter.exportAgiga(agiga, out);
+    }
+    return out.toString();
+  }
+
+  private String exportConverted(CoNLLExporter.Format format, CoNLLExporter.DependencyType deps) throws Exception {
+    AgigaPrefs ap = new AgigaPrefs();
+    ap.setAll(true);
+    AgigaDocument doc = new StreamingDocumentReader(AgigaConversionRunnerTest.strPath, ap).next();
+    File comms = tmp.newFile();
+    Files.write(comms.toPath(), new CompactCommunicationSerializer().toBytes(new AgigaConverter(true).convertDoc(doc)));
+
+    StringWriter out = new StringWriter();
+    try (CoNLLExporter exporter = new CoNLLExporter(format, deps, 1);
+        MappedCommunicationReader reader = new MappedCommunicationReader(Collections.singletonList(comms.toPath()))) {
+      assertEquals(3, exporter.export(reader, out));
+    }
+    return out.toString();
+  }
+
+  @Test
+  public void agigaAndCommunicationsGiveTheSameOutput() throws Exception {
+    File agiga = new File(AgigaConversionRunnerTest.strPath);
+    for (CoNLLExporter.Format format : CoNLLExporter.Format.values())
+      for (CoNLLExporter.DependencyType deps : CoNLLExporter.DependencyType.values())
+        assertEquals(format + " " + deps, exportConverted(format, deps), export(format, deps, 1, agiga));
+  }
+
+  @Test
+  public void collapsedDependencies() throws Exception {
+    String[] basic = exportConverted(CoNLLExporter.Format.CONLLX, CoNLLExporter.DependencyType.BASIC).split("\n");
+    assertEquals("5\tof\tof\tIN\tIN\t_\t4\tprep\t_\t_", basic[4]);
+    assertEquals("7\tINC\tINC\tNNP\tNNP\t_\t5\tpobj\t_\t_", basic[6]);
+
+    String[] col = exportConverted(CoNLLExporter.Format.CONLLU, CoNLLExporter.DependencyType.COL_CCPROC).split("\n");
+    assertEquals("# sent_id = agiga_dog-bites-man-1", col[1]);
+    assertEquals("5\tof\tof\t_\tIN\t_\t0\terased\t_\t_", col[7]);
+    assertEquals("7\tINC\tINC\t_\tNNP\t_\t4\tprep_of\t4:prep_of\t_", col[9]);
+  }
+
+  @Test
+  public void parallelOutputIsInInputOrder() throws Exception {
+    List<String> ids = new ArrayList<>();
+    StringBuilder sb = new StringBuilder("<FILE id=\"many\">\n");
+    for (int i = 0; i < 50; i++) {
+      ids.add("doc-" + i);
+      sb.append(AgigaConversionRunnerTest.testDoc("doc-" + i));
+    }
+    sb.append("</FILE>\n");
+    File agiga = tmp.newFile("many.xml");
+    Files.write(agiga.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+
+    String sequential = export(CoNLLExporter.Format.CONLLU, CoNLLExporter.DependencyType.COL, 1, agiga);
+    String parallel = export(CoNLLExporter.Format.CONLLU, CoNLLExporter.DependencyType.COL, 4, agiga);
+    assertEquals(sequential, parallel);
+
+    List<String> seen = new ArrayList<>();
+    for (String line : parallel.split("\n"))
+      if (line.startsWith("# newdoc id = "))
+        seen.add(line.substring("# newdoc id = ".length()));
+    assertEquals(ids, seen);
+    assertTrue(parallel.endsWith("\n\n"));
+  }
+}
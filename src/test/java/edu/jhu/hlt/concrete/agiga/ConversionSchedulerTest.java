@@ -0,0 +1,66 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ConversionSchedulerTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private File agigaFile(String name, int nDocs, Set<String> ids) throws Exception {
+    StringBuilder sb = new StringBuilder("<FILE id=\"" + name + "\">\n");
+    for (int i = 0; i < nDocs; i++) {
+      String id = name + "-" + i;
+      sb.append(AgigaConversionRunnerTest.testDoc(id));
+      ids.add(id);
+    }
+    sb.append("</FILE>\n");
+    File f = tmp.newFile(name + ".xml");
+    Files.write(f.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+    return f;
+  }
+
+  @Test
+  public void everyDocumentConvertedOnce() throws Exception {
+    Set<String> expected = new HashSet<>();
+    List<File> files = new ArrayList<>();
+    files.add(agigaFile("small", 2, expected));
+    files.add(agigaFile("large", 60, expected));
+    files.add(agigaFile("medium", 10, expected));
+    files.add(new File(tmp.getRoot(), "missing.xml"));
+
+    AgigaConversionRunnerTest.CollectingSink sink = new AgigaConversionRunnerTest.CollectingSink();
+    Quarantine q = new Quarantine(new File(tmp.getRoot(), "quarantine"));
+    AgigaConversionRunner runner = new AgigaConversionRunner(new AgigaConverter(true), false, sink, q);
+    try (ConversionScheduler scheduler = new ConversionScheduler(runner, 4)) {
+      scheduler.convertFiles(files);
+    }
+
+    assertEquals(expected.size(), sink.ids.size());
+    assertEquals(expected, new HashSet<>(sink.ids));
+    assertEquals(expected.size(), runner.getNumWritten());
+    assertEquals(0, q.getNumFailed());
+  }
+
+  @Test
+  public void costCountsTokensAndConstituents() throws Exception {
+    RawAgigaDocument raw = new RawAgigaDocument("x", 0, AgigaConversionRunnerTest.testDoc("d"));
+    // 3 sentences of 19, 3 and 7 tokens, and their parses
+    int tokens = 19 + 3 + 7;
+    assertTrue(raw.estimateCost() > tokens);
+    assertTrue(raw.estimateCost() < 4 * tokens);
+  }
+}
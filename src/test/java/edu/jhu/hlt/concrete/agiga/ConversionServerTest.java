@@ -0,0 +1,157 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaPrefs;
+import edu.jhu.agiga.StreamingDocumentReader;
+import edu.jhu.hlt.concrete.Communication;
+
+public class ConversionServerTest {
+
+  private AgigaConverter converter;
+  private ConversionServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    this.converter = new AgigaConverter(true);
+    this.server = new ConversionServer(this.converter, false, new InetSocketAddress(InetAddress.getLoopbackAddress(),
+        0));
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    this.server.close();
+  }
+
+  private static Communication read(byte[] b) throws Exception {
+    Communication c = new Communication();
+    new TDeserializer(new TCompactProtocol.Factory()).deserialize(c, b);
+    return c;
+  }
+
+  @Test
+  public void answersSeveralRequestsOnOneConnection() throws Exception {
+    AgigaDocument doc = new StreamingDocumentReader(AgigaConversionRunnerTest.strPath, new AgigaPrefs()).next();
+    String expected = this.converter.convertDoc(doc).getText();
+    try (ConversionClient client = new ConversionClient("127.0.0.1", this.server.getPort())) {
+      Map<String, byte[]> docs = client.convertFile(AgigaConversionRunnerTest.strPath, Arrays
+          .asList("agiga_dog-bites-man")).getDocuments();
+      assertEquals(Collections.singleton("agiga_dog-bites-man"), docs.keySet());
+      Communication c = read(docs.get("agiga_dog-bites-man"));
+      assertEquals("agiga_dog-bites-man", c.getId());
+      assertEquals(expected, c.getText());
+
+      String xml = "<FILE id=\"request\">\n" + AgigaConversionRunnerTest.testDoc("one")
+          + AgigaConversionRunnerTest.testDoc("two") + "</FILE>\n";
+      docs = client.convertXml(xml);
+      assertEquals(Arrays.asList("one", "two"), new ArrayList<>(docs.keySet()));
+      assertEquals(expected, read(docs.get("two")).getText());
+
+      // every document when no ids are given
+      assertEquals(1, client.convertFile(AgigaConversionRunnerTest.strPath, new ArrayList<String>()).getDocuments()
+          .size());
+    }
+    assertEquals(3, this.server.getNumRequests());
+  }
+
+  @Test
+  public void missingIdsAreReportedWithTheDocumentsFound() throws Exception {
+    try (ConversionClient client = new ConversionClient("127.0.0.1", this.server.getPort())) {
+      ConversionClient.Response r = client.convertFile(AgigaConversionRunnerTest.strPath, Arrays.asList("missing",
+          "agiga_dog-bites-man"));
+      assertEquals(Collections.singleton("agiga_dog-bites-man"), r.getDocuments().keySet());
+      assertEquals(Arrays.asList("missing"), r.getMissingIds());
+    }
+  }
+
+  @Test
+  public void longIdsAreSentWhole() throws Exception {
+    StringBuilder id = new StringBuilder();
+    while (id.length() < 70000)
+      id.append("\u00e9-long-id-");
+    try (ConversionClient client = new ConversionClient("127.0.0.1", this.server.getPort())) {
+      assertEquals(Collections.singleton(id.toString()), client.convertXml(AgigaConversionRunnerTest.testDoc(id
+          .toString())).keySet());
+      ConversionClient.Response r = client.convertFile(AgigaConversionRunnerTest.strPath, Arrays.asList(id
+          .toString()));
+      assertEquals(Arrays.asList(id.toString()), r.getMissingIds());
+    }
+  }
+
+  @Test
+  public void failedRequestLeavesTheConnectionUsable() throws Exception {
+    try (ConversionClient client = new ConversionClient("127.0.0.1", this.server.getPort())) {
+      try {
+        client.convertFile("no/such/file.xml.gz", new ArrayList<String>());
+        fail("Expected the request to fail.");
+      } catch (IOException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("No such file"));
+      }
+      assertEquals(1, client.convertXml(AgigaConversionRunnerTest.testDoc("again")).size());
+    }
+  }
+
+  @Test
+  public void requestLengthIsChecked() throws Exception {
+    String doc = AgigaConversionRunnerTest.testDoc("small");
+    try (ConversionServer small = new ConversionServer(this.converter, false, new InetSocketAddress(InetAddress
+        .getLoopbackAddress(), 0), doc.length() + 100)) {
+      try (ConversionClient client = new ConversionClient("127.0.0.1", small.getPort())) {
+        assertEquals(1, client.convertXml(doc).size());
+        try {
+          client.convertXml(doc + AgigaConversionRunnerTest.testDoc("big"));
+          fail("Expected the request to be refused.");
+        } catch (IOException e) {
+          assertTrue(e.getMessage(), e.getMessage().contains("server.max.request.mb"));
+        }
+      }
+
+      try (Socket s = new Socket(InetAddress.getLoopbackAddress(), small.getPort())) {
+        DataOutputStream out = new DataOutputStream(s.getOutputStream());
+        out.writeUTF(ConversionServer.XML);
+        out.writeInt(-5);
+        out.flush();
+        DataInputStream in = new DataInputStream(s.getInputStream());
+        assertEquals(ConversionServer.ERROR, in.readInt());
+        assertTrue(in.readUTF().contains("-5 bytes"));
+        assertEquals("the connection is closed", -1, in.read());
+      }
+    }
+  }
+
+  @Test
+  public void failedXmlRequestLeavesTheConnectionUsable() throws Exception {
+    try (ConversionClient client = new ConversionClient("127.0.0.1", this.server.getPort())) {
+      // the second document is cut off, after the first has been answered
+      String doc = AgigaConversionRunnerTest.testDoc("whole");
+      String broken = AgigaConversionRunnerTest.testDoc("broken");
+      try {
+        client.convertXml(doc + broken.substring(0, broken.length() / 2) + "</DOC>\n");
+        fail("Expected the request to fail.");
+      } catch (IOException e) {
+        assertTrue(e.getMessage(), e.getMessage().startsWith("Conversion failed"));
+      }
+      assertEquals(1, client.convertXml(AgigaConversionRunnerTest.testDoc("again")).size());
+    }
+  }
+}
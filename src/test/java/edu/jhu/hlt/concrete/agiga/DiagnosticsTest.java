@@ -0,0 +1,54 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class DiagnosticsTest {
+
+  @Test
+  public void countsEverythingKeepsFewExamples() throws Exception {
+    final Diagnostics d = new Diagnostics(2);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      final int id = t;
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 1000; i++)
+            d.record("empty", "thread {} event {}", id, i);
+        }
+      });
+    }
+    for (Thread t : threads)
+      t.start();
+    for (Thread t : threads)
+      t.join();
+    d.record("other", "just {}", "one");
+
+    assertEquals(4000, d.getCount("empty"));
+    assertEquals(2, d.getExamples("empty").size());
+    assertEquals(Arrays.asList("just one"), d.getExamples("other"));
+    assertEquals(4001, d.getTotal());
+    assertEquals(0, d.getCount("missing"));
+  }
+
+  @Test
+  public void converterRecordsMismatchedParses() throws Exception {
+    String category = AgigaConverter.LEAF_TOKEN_MISMATCH;
+    long before = Diagnostics.get().getCount(category);
+    String bad = AgigaConversionRunnerTest.testDoc("bad").replace("(ROOT (S (NP (PRP He)) (VP (VBD died)) (. !)))",
+        "(ROOT (NP (PRP He)))");
+    AgigaConversionRunner runner = new AgigaConversionRunner(new AgigaConverter(true), false,
+        new AgigaConversionRunnerTest.CollectingSink(), null);
+    try {
+      runner.convertDocument(new RawAgigaDocument("test", 0, bad));
+    } catch (Exception expected) {
+    }
+    assertEquals(before + 1, Diagnostics.get().getCount(category));
+  }
+}
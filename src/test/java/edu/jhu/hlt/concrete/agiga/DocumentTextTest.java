@@ -0,0 +1,47 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.jhu.agiga.AgigaCoref;
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaMention;
+import edu.jhu.agiga.AgigaPrefs;
+import edu.jhu.agiga.StreamingDocumentReader;
+
+public class DocumentTextTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void mentionTextIsWhatTheWordsMake() throws Exception {
+    File f = tmp.newFile("syn_eng_20000101.xml");
+    new SyntheticCorpusGenerator(11, 30, 15, 0.5, 8, 0.8).writeFile(f, "SYN_ENG_20000101", 3);
+    AgigaConverter ac = new AgigaConverter(true);
+    AgigaPrefs ap = new AgigaPrefs();
+    ap.setAll(true);
+    int mentions = 0;
+    for (String path : new String[] { AgigaConversionRunnerTest.strPath, f.getPath() }) {
+      for (AgigaDocument doc : new StreamingDocumentReader(path, ap)) {
+        DocumentText text = new DocumentText(doc);
+        assertEquals(ac.flattenText(doc), text.getText());
+        for (int i = 0; i < doc.getSents().size(); i++)
+          assertEquals(ac.flattenText(doc.getSents().get(i)).length(), text.getSentenceLength(i));
+        for (AgigaCoref coref : doc.getCorefs()) {
+          for (AgigaMention m : coref.getMentions()) {
+            assertEquals(ac.extractMentionString(m, doc), text.getMentionText(m));
+            mentions++;
+          }
+        }
+      }
+    }
+    assertTrue(mentions > 100);
+  }
+}
@@ -0,0 +1,95 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.junit.Test;
+
+import edu.jhu.hlt.concrete.Communication;
+
+public class FramedCommunicationSinkTest {
+
+  /**
+   * @return {@code n} bytes, all {@code (byte) n}
+   */
+  private static byte[] doc(int n) {
+    byte[] b = new byte[n];
+    Arrays.fill(b, (byte) n);
+    return b;
+  }
+
+  private static List<byte[]> readFrames(byte[] stream) throws IOException {
+    List<byte[]> frames = new ArrayList<>();
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(stream));
+    byte[] frame;
+    while ((frame = FramedCommunicationSink.readFrame(in)) != null)
+      frames.add(frame);
+    return frames;
+  }
+
+  @Test
+  public void framesAreReadBackWhole() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    // some documents are bigger than the buffer
+    FramedCommunicationSink sink = new FramedCommunicationSink(Channels.newChannel(out), 1024);
+    for (int i = 0; i < 3000; i += 7) {
+      sink.write("doc-" + i, ByteBuffer.wrap(doc(i)));
+      if (i % 100 == 0)
+        sink.flush();
+    }
+    sink.close();
+
+    List<byte[]> frames = readFrames(out.toByteArray());
+    assertEquals((3000 + 6) / 7, frames.size());
+    for (int i = 0; i < frames.size(); i++)
+      assertArrayEquals(doc(i * 7), frames.get(i));
+  }
+
+  @Test
+  public void convertsAStreamIntoFrames() throws Exception {
+    AgigaConverter converter = new AgigaConverter(true);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    AgigaConversionRunner runner;
+    try (FramedCommunicationSink sink = new FramedCommunicationSink(Channels.newChannel(out), 1 << 16)) {
+      runner = new AgigaConversionRunner(converter, false, sink);
+      // gzipped, as if from cat rather than zcat
+      runner.convertStream("stdin", AgigaDocumentChunker.gunzipIfGzipped(new FileInputStream(
+          AgigaConversionRunnerTest.strPath), 1 << 16));
+    }
+    List<byte[]> frames = readFrames(out.toByteArray());
+    assertEquals(1, frames.size());
+    Communication c = new Communication();
+    new TDeserializer(new TCompactProtocol.Factory()).deserialize(c, frames.get(0));
+    assertEquals("agiga_dog-bites-man", c.getId());
+    assertEquals(1, runner.getNumWritten());
+  }
+
+  @Test
+  public void unstagedFramesAreFlushedAtOnce() throws Exception {
+    // standard output with staging.mb=0
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CommunicationSink sink = CommunicationSinks.framed(Channels.newChannel(out), 1 << 20, 0);
+    sink.write("a", ByteBuffer.wrap(doc(10)));
+    // a reader at the other end of a pipe gets each frame without waiting for the buffer to fill
+    assertEquals(1, readFrames(out.toByteArray()).size());
+    sink.write("b", ByteBuffer.wrap(doc(20)));
+    List<byte[]> frames = readFrames(out.toByteArray());
+    assertEquals(2, frames.size());
+    assertArrayEquals(doc(20), frames.get(1));
+    sink.close();
+    assertEquals(2, readFrames(out.toByteArray()).size());
+  }
+}
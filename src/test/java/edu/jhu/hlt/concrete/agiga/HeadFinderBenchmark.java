@@ -0,0 +1,60 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaPrefs;
+import edu.jhu.agiga.AgigaSentence;
+import edu.stanford.nlp.trees.SemanticHeadFinder;
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * Constituents per second given a head by {@link SemanticHeadFinder} alone and
+ * through a {@link HeadFinderCache}, over the parses in an Agiga file, with the
+ * cache's hit rate.
+ * <br/>
+ * Usage: {@code HeadFinderBenchmark [agiga.xml.gz or directory] [rounds]}
+ */
+public class HeadFinderBenchmark {
+
+  private static long visit(Tree t, HeadFinderCache cache) {
+    long n = 1;
+    cache.headChildIndex(t);
+    for (Tree child : t.children())
+      if (!child.isLeaf())
+        n += visit(child, cache);
+    return n;
+  }
+
+  private static void run(String name, HeadFinderCache cache, List<Tree> trees, int rounds) {
+    for (int r = 0; r < Math.max(1, rounds / 5); r++)
+      for (Tree t : trees)
+        visit(t, cache);
+
+    long n = 0;
+    long start = System.nanoTime();
+    for (int r = 0; r < rounds; r++)
+      for (Tree t : trees)
+        n += visit(t, cache);
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("%-8s %12.0f constituents/s  %5.1f%% hit rate  %d productions cached%n", name, n / seconds,
+        100 * cache.getHitRate(), cache.size());
+  }
+
+  public static void main(String[] args) throws Exception {
+    String path = args.length > 0 ? args[0] : AgigaConversionRunnerTest.strPath;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+
+    AgigaPrefs ap = new AgigaPrefs();
+    ap.setAll(false);
+    ap.setParse(true);
+    List<Tree> trees = new ArrayList<>();
+    for (AgigaDocument doc : SerializationBenchmark.readDocuments(path, ap))
+      for (AgigaSentence sent : doc.getSents())
+        trees.add(sent.getStanfordContituencyTree());
+
+    run("direct", new HeadFinderCache(new SemanticHeadFinder(), 0), trees, rounds);
+    run("cached", new HeadFinderCache(new SemanticHeadFinder()), trees, rounds);
+  }
+}
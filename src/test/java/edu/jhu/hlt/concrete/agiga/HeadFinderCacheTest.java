@@ -0,0 +1,87 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaPrefs;
+import edu.jhu.agiga.AgigaSentence;
+import edu.jhu.agiga.StreamingDocumentReader;
+import edu.stanford.nlp.trees.SemanticHeadFinder;
+import edu.stanford.nlp.trees.Tree;
+
+public class HeadFinderCacheTest {
+
+  List<Tree> trees = new ArrayList<>();
+
+  @Before
+  public void setUp() throws Exception {
+    AgigaPrefs ap = new AgigaPrefs();
+    ap.setAll(true);
+    for (AgigaDocument doc : new StreamingDocumentReader(AgigaConversionRunnerTest.strPath, ap))
+      for (AgigaSentence sent : doc.getSents())
+        trees.add(sent.getStanfordContituencyTree());
+
+    // the same productions with heads that depend on the words
+    trees.add(Tree.valueOf("(ROOT (S (NP (NNP John)) (VP (VBZ is) (NP (DT a) (NN dog)))))"));
+    trees.add(Tree.valueOf("(ROOT (S (NP (NNP John)) (VP (VBZ eats) (NP (DT a) (NN dog)))))"));
+    trees.add(Tree.valueOf("(ROOT (S (NP (NNP John)) (VP (VBZ has) (VP (VBN eaten)))))"));
+    trees.add(Tree.valueOf("(ROOT (SQ (VBZ Is) (NP (PRP he)) (NP (DT a) (NN dog)) (. ?)))"));
+    trees.add(Tree.valueOf("(ROOT (SQ (VBZ Does) (NP (PRP he)) (VP (VB bite)) (. ?)))"));
+    trees.add(Tree.valueOf("(ROOT (NP (NP (NNS dogs)) (CONJP (RB as) (RB well) (IN as)) (NP (NNS cats))))"));
+    trees.add(Tree.valueOf("(ROOT (NP (NP (NNS dogs)) (CONJP (RB rather) (IN than)) (NP (NNS cats))))"));
+    // no head rule for XYZ
+    trees.add(Tree.valueOf("(ROOT (XYZ (NN a) (NN b)))"));
+  }
+
+  private static void collectHeads(Tree t, HeadFinderCache cache, List<Integer> heads) {
+    heads.add(cache.headChildIndex(t));
+    for (Tree child : t.children())
+      collectHeads(child, cache, heads);
+  }
+
+  private List<Integer> heads(HeadFinderCache cache) {
+    List<Integer> heads = new ArrayList<>();
+    for (Tree t : trees)
+      collectHeads(t, cache, heads);
+    return heads;
+  }
+
+  @Test
+  public void sameHeadsAsHeadFinder() throws Exception {
+    List<Integer> expected = heads(new HeadFinderCache(new SemanticHeadFinder(), 0));
+    HeadFinderCache cache = new HeadFinderCache(new SemanticHeadFinder());
+    assertEquals(expected, heads(cache));
+    long misses = cache.getMisses();
+
+    // every cacheable production has been seen
+    assertEquals(expected, heads(cache));
+    assertTrue(cache.getHits() > 0);
+    assertEquals(misses + 1, cache.getMisses()); // the failure is not cached
+    assertTrue(cache.getHitRate() > 0 && cache.getHitRate() < 1);
+  }
+
+  @Test
+  public void copulaIsNotTheHead() throws Exception {
+    HeadFinderCache cache = new HeadFinderCache(new SemanticHeadFinder());
+    Tree is = Tree.valueOf("(VP (VBZ is) (NP (DT a) (NN dog)))");
+    Tree eats = Tree.valueOf("(VP (VBZ eats) (NP (DT a) (NN dog)))");
+    assertEquals(1, cache.headChildIndex(is));
+    assertEquals(0, cache.headChildIndex(eats));
+    assertEquals(1, cache.headChildIndex(is));
+  }
+
+  @Test
+  public void bounded() throws Exception {
+    HeadFinderCache cache = new HeadFinderCache(new SemanticHeadFinder(), 2);
+    heads(cache);
+    heads(cache);
+    assertEquals(2, cache.size());
+  }
+}
@@ -0,0 +1,139 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaPrefs;
+import edu.jhu.agiga.StreamingDocumentReader;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.Entity;
+import edu.jhu.hlt.concrete.EntityMention;
+import edu.jhu.hlt.concrete.Sentence;
+import edu.jhu.hlt.concrete.Token;
+import edu.jhu.hlt.concrete.UUID;
+
+public class InvertedIndexTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void findsTheTestDocument() throws Exception {
+    File f = new File(tmp.getRoot(), "index.bin");
+    AgigaConversionRunnerTest.CollectingSink sink = new AgigaConversionRunnerTest.CollectingSink();
+    AgigaConversionRunner runner = new AgigaConversionRunner(new AgigaConverter(true), false, sink, null);
+    try (InvertedIndexWriter w = new InvertedIndexWriter(f, 1 << 20)) {
+      runner.setInvertedIndexWriter(w);
+      runner.convertFile(new File(AgigaConversionRunnerTest.strPath));
+    }
+
+    try (InvertedIndex index = new InvertedIndex(f)) {
+      assertEquals(1, index.getNumDocuments());
+      assertEquals(Collections.singleton("agiga_dog-bites-man"), index.getDocIds(index.findWord("DOG")));
+      assertEquals(0, index.findWord("cat").size());
+      assertFalse(index.findWord("cat").next());
+    }
+    assertEquals(1, tmp.getRoot().list().length);
+  }
+
+  @Test
+  public void segmentsFromSeveralThreadsMergeToWhatTheDocumentsSay() throws Exception {
+    final File corpus = tmp.newFile("syn_eng_20000101.xml");
+    new SyntheticCorpusGenerator(2, 12, 15, 0.5, 8, 0.7).writeFile(corpus, "SYN_ENG_20000101", 40);
+    final AgigaPrefs ap = new AgigaPrefs();
+    ap.setAll(true);
+
+    // what each word and entity name should find: "docId sentence"
+    Map<String, TreeSet<String>> expected = new HashMap<>();
+    AgigaConverter ac = new AgigaConverter(true);
+    for (AgigaDocument doc : new StreamingDocumentReader(corpus.getPath(), ap)) {
+      Communication comm = ac.convertDoc(doc);
+      Map<UUID, Integer> sentOf = new HashMap<>();
+      List<Sentence> sents = comm.getSectionList().get(0).getSentenceList();
+      for (int s = 0; s < sents.size(); s++) {
+        sentOf.put(sents.get(s).getTokenization().getUuid(), s);
+        for (Token t : sents.get(s).getTokenization().getTokenList().getTokenList())
+          put(expected, InvertedIndex.key(InvertedIndex.WORD, t.getText()), comm.getId() + " " + s);
+      }
+      Map<UUID, EntityMention> mentions = new HashMap<>();
+      for (EntityMention em : comm.getEntityMentionSetList().get(0).getMentionList())
+        mentions.put(em.getUuid(), em);
+      for (Entity e : comm.getEntitySetList().get(0).getEntityList())
+        for (UUID m : e.getMentionIdList())
+          put(expected, InvertedIndex.key(InvertedIndex.ENTITY, e.getCanonicalName()), comm.getId() + " "
+              + sentOf.get(mentions.get(m).getTokens().getTokenizationId()));
+    }
+
+    File f = new File(tmp.getRoot(), "index.bin");
+    // small segments, so that each thread writes several
+    final InvertedIndexWriter w = new InvertedIndexWriter(f, 4096);
+    final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 3; t++) {
+      final int first = t;
+      Thread th = new Thread() {
+        @Override
+        public void run() {
+          int i = 0;
+          try {
+            for (AgigaDocument doc : new StreamingDocumentReader(corpus.getPath(), ap))
+              if (i++ % 3 == first)
+                w.add(doc);
+          } catch (Exception e) {
+            failures.add(e);
+          }
+        }
+      };
+      th.start();
+      threads.add(th);
+    }
+    for (Thread th : threads)
+      th.join();
+    w.close();
+    assertTrue(failures.isEmpty());
+
+    try (InvertedIndex index = new InvertedIndex(f)) {
+      assertEquals(40, index.getNumDocuments());
+      assertEquals(expected.size(), index.getNumTerms());
+      int entities = 0;
+      for (Map.Entry<String, TreeSet<String>> e : expected.entrySet()) {
+        String term = e.getKey().substring(1);
+        boolean entity = e.getKey().charAt(0) == InvertedIndex.ENTITY;
+        InvertedIndex.Postings p = entity ? index.findEntity(term) : index.findWord(term);
+        TreeSet<String> got = new TreeSet<>();
+        int lastDoc = -1;
+        while (p.next()) {
+          assertTrue(p.doc() >= lastDoc);
+          lastDoc = p.doc();
+          got.add(index.getDocId(p.doc()) + " " + p.sentence());
+        }
+        assertEquals(term, e.getValue(), got);
+        assertEquals(got.size(), p.size());
+        if (entity)
+          entities++;
+      }
+      assertTrue(entities > 10);
+    }
+  }
+
+  private static void put(Map<String, TreeSet<String>> m, String key, String posting) {
+    TreeSet<String> s = m.get(key);
+    if (s == null)
+      m.put(key, s = new TreeSet<>());
+    s.add(posting);
+  }
+}
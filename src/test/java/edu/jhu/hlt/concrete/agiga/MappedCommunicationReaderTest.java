@@ -0,0 +1,107 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.serialization.CompactCommunicationSerializer;
+
+public class MappedCommunicationReaderTest {
+
+  String strPath = "src/test/resources/agiga_dog-bites-man.annotated.xml.gz";
+
+  ConcreteAgigaTestingUtils catu = new ConcreteAgigaTestingUtils();
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  Communication comm;
+  Path first;
+  Path second;
+  int recordSize;
+
+  @Before
+  public void setUp() throws Exception {
+    this.comm = catu.getCommunication(strPath);
+    CompactCommunicationSerializer cs = new CompactCommunicationSerializer();
+    this.first = tmp.newFile("first.comms").toPath();
+    this.second = tmp.newFile("second.comms").toPath();
+    try (FileOutputStream fos = new FileOutputStream(first.toFile())) {
+      for (int i = 0; i < 10; i++) {
+        byte[] bytes = cs.toBytes(new Communication(comm).setId("doc-" + i));
+        this.recordSize = Math.max(this.recordSize, bytes.length);
+        fos.write(bytes);
+      }
+    }
+    try (FileOutputStream fos = new FileOutputStream(second.toFile())) {
+      fos.write(cs.toBytes(comm));
+    }
+  }
+
+  @Test
+  public void lookup() throws Exception {
+    try (MappedCommunicationReader r = new MappedCommunicationReader(Arrays.asList(first, second))) {
+      assertEquals(11, r.size());
+      assertTrue(r.contains(comm.getId()));
+      assertFalse(r.contains("no-such-doc"));
+      assertNull(r.get("no-such-doc"));
+
+      Communication c = r.get("doc-7");
+      assertEquals("doc-7", c.getId());
+      assertEquals(comm.getText(), c.getText());
+      assertEquals(comm.getSectionList(), c.getSectionList());
+      assertEquals(first, r.getLocation("doc-7").getFile());
+      assertEquals(second, r.getLocation(comm.getId()).getFile());
+      assertEquals(0L, r.getLocation(comm.getId()).getOffset());
+      assertEquals(r.getLocation("doc-3").getLength(), r.getBytes("doc-3").remaining());
+    }
+  }
+
+  @Test
+  public void recordsStraddlingRegions() throws Exception {
+    // a region holds at most two records, so most records start a new mapping
+    List<Path> files = Collections.singletonList(first);
+    try (MappedCommunicationReader r = new MappedCommunicationReader(files, this.recordSize * 2 + 1)) {
+      assertEquals(10, r.size());
+      for (int i = 0; i < 10; i++)
+        assertEquals(comm.getText(), r.get("doc-" + i).getText());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void regionSmallerThanRecord() throws Exception {
+    new MappedCommunicationReader(Collections.singletonList(first), this.recordSize / 2).close();
+  }
+
+  @Test
+  public void parallelScan() throws Exception {
+    final Set<String> seen = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    List<Path> files = new ArrayList<>(Arrays.asList(first, second));
+    try (MappedCommunicationReader r = new MappedCommunicationReader(files, this.recordSize * 3)) {
+      r.scan(4, new MappedCommunicationReader.Handler() {
+        @Override
+        public void handle(Communication c) {
+          assertTrue("saw " + c.getId() + " twice", seen.add(c.getId()));
+        }
+      });
+      assertEquals(r.getIds(), seen);
+    }
+  }
+}
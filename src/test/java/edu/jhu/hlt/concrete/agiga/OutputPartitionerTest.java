@@ -0,0 +1,114 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import concrete.agiga.util.ReusableCompactSerializer;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.serialization.CompactCommunicationSerializer;
+
+public class OutputPartitionerTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void datePartitions() {
+    String id = "NYT_ENG_19940701.0001";
+    assertEquals("NYT_ENG/1994", new DateOutputPartitioner(DateOutputPartitioner.Granularity.YEAR).getPartition(id));
+    assertEquals("NYT_ENG/1994/07", new DateOutputPartitioner(DateOutputPartitioner.Granularity.MONTH).getPartition(id));
+    assertEquals("NYT_ENG/1994/07/01", new DateOutputPartitioner(DateOutputPartitioner.Granularity.DAY).getPartition(id));
+
+    DateOutputPartitioner p = new DateOutputPartitioner(DateOutputPartitioner.Granularity.MONTH);
+    assertEquals(DateOutputPartitioner.UNKNOWN_PARTITION, p.getPartition("agiga_dog-bites-man"));
+    assertEquals(DateOutputPartitioner.UNKNOWN_PARTITION, p.getPartition("NYT_ENG_1994"));
+  }
+
+  @Test
+  public void hashShardsAreStableAndInRange() {
+    HashOutputPartitioner p = new HashOutputPartitioner(7);
+    int[] counts = new int[7];
+    for (int i = 0; i < 7000; i++) {
+      String id = "AFP_ENG_20030101." + i;
+      int shard = p.getShard(id);
+      assertEquals(shard, new HashOutputPartitioner(7).getShard(id));
+      counts[shard]++;
+    }
+    for (int c : counts)
+      assertTrue("badly balanced shard: " + c, c > 700 && c < 1300);
+    assertEquals(String.format("shard-%05d", p.getShard("x")), p.getPartition("x"));
+  }
+
+  @Test
+  public void partitionedStreamsAreReadable() throws Exception {
+    File out = tmp.newFolder();
+    HashOutputPartitioner p = new HashOutputPartitioner(3);
+    CompactCommunicationSerializer cs = new CompactCommunicationSerializer();
+    Communication comm = new ConcreteAgigaTestingUtils().getCommunication(
+        "src/test/resources/agiga_dog-bites-man.annotated.xml.gz");
+    // one open stream at a time forces streams to be closed and re-opened
+    try (PartitionedCommunicationSink sink = new PartitionedCommunicationSink(out, p, "test", 1)) {
+      for (int i = 0; i < 30; i++) {
+        String id = "doc-" + i;
+        sink.write(id, ByteBuffer.wrap(cs.toBytes(new Communication(comm).setId(id))));
+      }
+    }
+
+    for (int shard = 0; shard < 3; shard++) {
+      String partition = String.format("shard-%05d", shard);
+      File f = streamFile(out, partition);
+      List<Path> files = new ArrayList<>();
+      files.add(f.toPath());
+      try (MappedCommunicationReader r = new MappedCommunicationReader(files)) {
+        for (String id : r.getIds())
+          assertEquals(partition, p.getPartition(id));
+        for (int i = 0; i < 30; i++)
+          assertEquals(p.getShard("doc-" + i) == shard, r.contains("doc-" + i));
+      }
+    }
+  }
+
+  @Test
+  public void reusedBufferAndLargeDocuments() throws Exception {
+    File out = tmp.newFolder();
+    HashOutputPartitioner p = new HashOutputPartitioner(1);
+    ReusableCompactSerializer serializer = new ReusableCompactSerializer(1024, 1 << 20);
+    Communication comm = new ConcreteAgigaTestingUtils().getCommunication(
+        "src/test/resources/agiga_dog-bites-man.annotated.xml.gz");
+    StringBuilder big = new StringBuilder();
+    while (big.length() < 200000)
+      big.append(comm.getText());
+
+    // every tenth document is larger than a stream's write buffer
+    try (PartitionedCommunicationSink sink = new PartitionedCommunicationSink(out, p, "test", 4)) {
+      for (int i = 0; i < 40; i++) {
+        Communication c = new Communication(comm).setId("doc-" + i);
+        if (i % 10 == 9)
+          c.setText(big.toString());
+        sink.write(c.getId(), serializer.serialize(c));
+      }
+    }
+
+    List<Path> files = new ArrayList<>();
+    files.add(streamFile(out, p.getPartition("doc-0")).toPath());
+    try (MappedCommunicationReader r = new MappedCommunicationReader(files)) {
+      assertEquals(40, r.size());
+      for (int i = 0; i < 40; i++)
+        assertEquals(i % 10 == 9 ? big.toString() : comm.getText(), r.get("doc-" + i).getText());
+    }
+  }
+
+  private static File streamFile(File out, String partition) {
+    return new File(new File(out, partition), "test" + PartitionedCommunicationSink.STREAM_EXTENSION);
+  }
+}
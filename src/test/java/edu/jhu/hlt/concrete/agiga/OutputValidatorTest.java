@@ -0,0 +1,77 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Map;
+
+import org.junit.Test;
+
+import concrete.agiga.util.ReusableCompactSerializer;
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaPrefs;
+import edu.jhu.agiga.StreamingDocumentReader;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.TextSpan;
+import edu.jhu.hlt.concrete.Tokenization;
+
+public class OutputValidatorTest {
+
+  @Test
+  public void convertedDocumentsAreValid() throws Exception {
+    AgigaConversionRunnerTest.CollectingSink sink = new AgigaConversionRunnerTest.CollectingSink();
+    AgigaConversionRunner runner = new AgigaConversionRunner(new AgigaConverter(true), false, sink, null);
+    OutputValidator validator = new OutputValidator(1, 2);
+    runner.setOutputValidator(validator);
+    runner.convertFile(new File(AgigaConversionRunnerTest.strPath));
+    validator.close();
+
+    assertEquals(1, validator.getValidated());
+    // Agiga has no entity or mention types, which concrete-validation requires
+    Map<String, Long> v = validator.getViolations();
+    v.remove("EntityMentionSet");
+    v.remove("EntitySet");
+    assertTrue(v.isEmpty());
+  }
+
+  @Test
+  public void violationsAreCountedByRule() throws Exception {
+    AgigaPrefs ap = new AgigaPrefs();
+    ap.setAll(true);
+    AgigaDocument doc = new StreamingDocumentReader(AgigaConversionRunnerTest.strPath, ap).next();
+    Communication comm = new AgigaConverter(true).convertDoc(doc);
+    Tokenization tkz = comm.getSectionList().get(0).getSentenceList().get(1).getTokenization();
+    tkz.getTokenList().getTokenList().get(0).setTokenIndex(7);
+    comm.getSectionList().get(0).setTextSpan(new TextSpan(5, 2));
+
+    OutputValidator validator = new OutputValidator(1, 1);
+    validator.offer("bad", new ReusableCompactSerializer().serialize(comm));
+    validator.validate("garbage", new byte[] { 0x7f, 0x7f, 0x7f });
+    validator.close();
+
+    assertEquals(2, validator.getValidated());
+    assertEquals(2, validator.getInvalid());
+    Map<String, Long> v = validator.getViolations();
+    assertEquals(Long.valueOf(1), v.get("Tokenization"));
+    assertEquals(Long.valueOf(1), v.get("Section"));
+    assertEquals(Long.valueOf(1), v.get(OutputValidator.UNREADABLE));
+    assertEquals("bad", validator.getExamples("Tokenization").get(0));
+  }
+
+  @Test
+  public void samplesTheSameIdsAtTheRateAskedFor() {
+    OutputValidator a = new OutputValidator(0.25, 1);
+    OutputValidator b = new OutputValidator(0.25, 1);
+    int sampled = 0;
+    for (int i = 0; i < 4000; i++) {
+      String id = String.format("NYT_ENG_19940701.%04d", i);
+      assertEquals(a.isSampled(id), b.isSampled(id));
+      if (a.isSampled(id))
+        sampled++;
+    }
+    assertTrue(sampled > 850 && sampled < 1150);
+    a.close();
+    b.close();
+  }
+}
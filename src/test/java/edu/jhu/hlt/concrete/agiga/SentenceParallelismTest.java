@@ -0,0 +1,80 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaPrefs;
+import edu.jhu.agiga.StreamingDocumentReader;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.EntityMention;
+import edu.jhu.hlt.concrete.Sentence;
+import edu.jhu.hlt.concrete.Tokenization;
+
+public class SentenceParallelismTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void parallelSentencesMatchSerial() throws Exception {
+    File f = tmp.newFile("syn_eng_20000101.xml");
+    new SyntheticCorpusGenerator(3, 300, 20, 0.3, 8, 0.5).writeFile(f, "SYN_ENG_20000101", 1);
+    AgigaPrefs ap = new AgigaPrefs();
+    ap.setAll(true);
+    AgigaDocument doc = new StreamingDocumentReader(f.getPath(), ap).next();
+
+    AgigaConverter serial = new AgigaConverter(true);
+    serial.setSentenceParallelism(1, 1);
+    AgigaConverter parallel = new AgigaConverter(true);
+    parallel.setSentenceParallelism(4, 16);
+    Communication expected = serial.convertDoc(doc);
+    Communication got = parallel.convertDoc(doc);
+
+    assertEquals(expected.getText(), got.getText());
+    List<Sentence> es = expected.getSectionList().get(0).getSentenceList();
+    List<Sentence> gs = got.getSectionList().get(0).getSentenceList();
+    assertEquals(doc.getSents().size(), gs.size());
+    for (int i = 0; i < es.size(); i++) {
+      Tokenization et = es.get(i).getTokenization();
+      Tokenization gt = gs.get(i).getTokenization();
+      assertEquals(es.get(i).getTextSpan(), gs.get(i).getTextSpan());
+      assertEquals(et.getTokenList(), gt.getTokenList());
+      assertEquals(et.getTokenTaggingList().get(1).getTaggedTokenList(),
+          gt.getTokenTaggingList().get(1).getTaggedTokenList());
+      assertEquals(et.getParseList().get(0).getConstituentList(), gt.getParseList().get(0).getConstituentList());
+      for (int d = 0; d < 3; d++)
+        assertEquals(et.getDependencyParseList().get(d).getDependencyList(), gt.getDependencyParseList().get(d)
+            .getDependencyList());
+    }
+
+    // mentions still point at the tokenization of their sentence
+    List<EntityMention> em = expected.getEntityMentionSetList().get(0).getMentionList();
+    List<EntityMention> gm = got.getEntityMentionSetList().get(0).getMentionList();
+    assertEquals(em.size(), gm.size());
+    for (int i = 0; i < em.size(); i++) {
+      assertEquals(em.get(i).getText(), gm.get(i).getText());
+      assertEquals(em.get(i).getTokens().getTokenIndexList(), gm.get(i).getTokens().getTokenIndexList());
+      assertEquals(indexOf(es, em.get(i)), indexOf(gs, gm.get(i)));
+    }
+
+    // closing shuts the sentence threads down; converting again starts new ones
+    parallel.close();
+    assertEquals(expected.getText(), parallel.convertDoc(doc).getText());
+    parallel.close();
+    serial.close();
+  }
+
+  private static int indexOf(List<Sentence> sents, EntityMention m) {
+    for (int i = 0; i < sents.size(); i++)
+      if (sents.get(i).getTokenization().getUuid().equals(m.getTokens().getTokenizationId()))
+        return i;
+    return -1;
+  }
+}
@@ -0,0 +1,107 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaPrefs;
+import edu.jhu.agiga.StreamingDocumentReader;
+import edu.jhu.hlt.concrete.serialization.CompactCommunicationSerializer;
+
+/**
+ * Compares serializing annotated documents through
+ * {@link AgigaConverter#convertDoc(AgigaDocument)} and
+ * {@link CompactCommunicationSerializer} with
+ * {@link StreamingCommunicationWriter}: documents per second and bytes
+ * allocated per document. Documents are parsed up front, so only conversion
+ * and serialization are timed.
+ * <br/>
+ * Usage: {@code SerializationBenchmark [agiga.xml.gz or directory] [rounds]}
+ * <br/>
+ * Given a directory, such as the replay directory of a conversion run (see
+ * {@link SlowDocumentCapture}), every Agiga file in it is read.
+ */
+public class SerializationBenchmark {
+
+  private interface Path {
+    byte[] serialize(AgigaDocument doc) throws Exception;
+  }
+
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean)
+      return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    return -1;
+  }
+
+  private static void run(String name, Path path, List<AgigaDocument> docs, int rounds) throws Exception {
+    // warm up
+    for (int r = 0; r < Math.max(1, rounds / 5); r++)
+      for (AgigaDocument doc : docs)
+        path.serialize(doc);
+
+    long bytesOut = 0;
+    long alloc = allocatedBytes();
+    long start = System.nanoTime();
+    for (int r = 0; r < rounds; r++)
+      for (AgigaDocument doc : docs)
+        bytesOut += path.serialize(doc).length;
+    double seconds = (System.nanoTime() - start) / 1e9;
+    long allocated = allocatedBytes() - alloc;
+
+    long n = (long) rounds * docs.size();
+    System.out.printf("%-10s %10.1f docs/s %12d bytes allocated/doc %10d bytes written/doc%n", name, n / seconds,
+        allocated / n, bytesOut / n);
+  }
+
+  /**
+   * @return the documents in an Agiga file, or in every Agiga file in a
+   *         directory
+   */
+  static List<AgigaDocument> readDocuments(String path, AgigaPrefs ap) {
+    List<String> files = new ArrayList<>();
+    File f = new File(path);
+    if (f.isDirectory()) {
+      for (File c : f.listFiles())
+        if (c.getName().endsWith(".xml") || c.getName().endsWith(".xml.gz"))
+          files.add(c.getPath());
+      Collections.sort(files);
+    } else {
+      files.add(path);
+    }
+    List<AgigaDocument> docs = new ArrayList<>();
+    for (String file : files)
+      for (AgigaDocument doc : new StreamingDocumentReader(file, ap))
+        docs.add(doc);
+    return docs;
+  }
+
+  public static void main(String[] args) throws Exception {
+    String path = args.length > 0 ? args[0] : "src/test/resources/agiga_dog-bites-man.annotated.xml.gz";
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+    AgigaPrefs ap = new AgigaPrefs();
+    ap.setAll(true);
+    List<AgigaDocument> docs = readDocuments(path, ap);
+
+    final AgigaConverter converter = new AgigaConverter(true);
+    final CompactCommunicationSerializer cs = new CompactCommunicationSerializer();
+    final StreamingCommunicationWriter writer = new StreamingCommunicationWriter(converter);
+
+    run("objects", new Path() {
+      @Override
+      public byte[] serialize(AgigaDocument doc) throws Exception {
+        return cs.toBytes(converter.convertDoc(doc));
+      }
+    }, docs, rounds);
+    run("streaming", new Path() {
+      @Override
+      public byte[] serialize(AgigaDocument doc) throws Exception {
+        return writer.toBytes(doc);
+      }
+    }, docs, rounds);
+  }
+}
@@ -0,0 +1,90 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaPrefs;
+import edu.jhu.agiga.StreamingDocumentReader;
+
+public class SlowDocumentCaptureTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static List<String> ids(List<SlowDocumentCapture.Entry> entries) {
+    List<String> ids = new ArrayList<>();
+    for (SlowDocumentCapture.Entry e : entries)
+      ids.add(e.getDocId());
+    return ids;
+  }
+
+  @Test
+  public void keepsTheTopKOfEachMeasure() throws Exception {
+    final SlowDocumentCapture capture = new SlowDocumentCapture(tmp.getRoot(), 3);
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      final int offset = t;
+      threads.add(new Thread() {
+        @Override
+        public void run() {
+          for (int i = offset; i < 100; i += 4) {
+            RawAgigaDocument raw = new RawAgigaDocument("f", i, "<DOC id=\"d" + i + "\">\n</DOC>");
+            // slowest are the last, largest the first, and most tokens in the middle
+            capture.offer(raw, "d" + i, i, 1000 - Math.abs(50 - i), 1000 - i);
+          }
+        }
+      });
+    }
+    for (Thread t : threads)
+      t.start();
+    for (Thread t : threads)
+      t.join();
+
+    assertEquals("[d99, d98, d97]", ids(capture.getTop(SlowDocumentCapture.Measure.LATENCY)).toString());
+    assertEquals("d50", capture.getTop(SlowDocumentCapture.Measure.TOKENS).get(0).getDocId());
+    assertEquals(3, capture.getTop(SlowDocumentCapture.Measure.TOKENS).size());
+    assertEquals("[d0, d1, d2]", ids(capture.getTop(SlowDocumentCapture.Measure.BYTES)).toString());
+
+    capture.write();
+    String latency = new String(Files.readAllBytes(new File(tmp.getRoot(), "latency.xml").toPath()),
+        StandardCharsets.UTF_8);
+    assertTrue(latency.startsWith("<FILE id=\"top-latency\">\n<DOC id=\"d99\">"));
+    List<String> summary = Files.readAllLines(new File(tmp.getRoot(), "summary.tsv").toPath(), StandardCharsets.UTF_8);
+    assertEquals(1 + 3 * 3, summary.size());
+  }
+
+  @Test
+  public void replayFilesCanBeReadBack() throws Exception {
+    SlowDocumentCapture capture = new SlowDocumentCapture(tmp.getRoot(), 2);
+    AgigaConversionRunner runner = new AgigaConversionRunner(new AgigaConverter(true), false,
+        new AgigaConversionRunnerTest.CollectingSink());
+    runner.setSlowDocumentCapture(capture);
+    for (int i = 0; i < 5; i++)
+      runner.convertDocument(new RawAgigaDocument("test", i, AgigaConversionRunnerTest.testDoc("doc-" + i)));
+    capture.write();
+
+    SlowDocumentCapture.Entry e = capture.getTop(SlowDocumentCapture.Measure.TOKENS).get(0);
+    assertEquals(19 + 3 + 7, e.getTokens());
+    assertTrue(e.getBytes() > 0 && e.getNanos() > 0);
+
+    AgigaPrefs ap = new AgigaPrefs();
+    ap.setAll(true);
+    int n = 0;
+    for (AgigaDocument doc : new StreamingDocumentReader(new File(tmp.getRoot(), "latency.xml").getPath(), ap)) {
+      assertTrue(doc.getDocId().startsWith("doc-"));
+      n++;
+    }
+    assertEquals(2, n);
+  }
+}
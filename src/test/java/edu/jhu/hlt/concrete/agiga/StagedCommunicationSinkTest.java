@@ -0,0 +1,211 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class StagedCommunicationSinkTest {
+
+  /**
+   * Keeps a copy of what is written to it, slowly.
+   */
+  static class SlowSink implements CommunicationSink, Flushable {
+    final Map<String, byte[]> docs = new ConcurrentHashMap<>();
+    final AtomicInteger flushes = new AtomicInteger();
+    volatile boolean direct = true;
+    volatile boolean closed = false;
+
+    @Override
+    public void write(String docId, ByteBuffer serialized) throws IOException {
+      if (serialized.remaining() <= 1024)
+        this.direct &= serialized.isDirect();
+      byte[] b = new byte[serialized.remaining()];
+      serialized.get(b);
+      this.docs.put(docId, b);
+      try {
+        Thread.sleep(0, 200000);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public void flush() {
+      this.flushes.incrementAndGet();
+    }
+
+    @Override
+    public void close() {
+      this.closed = true;
+    }
+  }
+
+  /**
+   * @return {@code n} bytes, from {@code seed} on
+   */
+  private static byte[] doc(int seed, int n) {
+    byte[] b = new byte[n];
+    for (int i = 0; i < n; i++)
+      b[i] = (byte) (seed + i);
+    return b;
+  }
+
+  @Test
+  public void documentsFromSeveralThreadsArriveWhole() throws Exception {
+    final SlowSink slow = new SlowSink();
+    // documents of up to 1500 bytes, in a ring of 1024: many wait for room,
+    // some wrap around its end and some do not fit at all
+    final StagedCommunicationSink sink = new StagedCommunicationSink(slow, 1024);
+    final int nThreads = 4;
+    final int perThread = 200;
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < nThreads; t++) {
+      final int first = t * perThread;
+      Thread th = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (int i = first; i < first + perThread; i++)
+              sink.write("doc-" + i, ByteBuffer.wrap(doc(i, (i * 37) % 1500)));
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      });
+      th.start();
+      threads.add(th);
+    }
+    for (Thread th : threads)
+      th.join();
+    sink.close();
+
+    assertTrue(slow.closed);
+    assertTrue("staged documents are handed over as views of the ring", slow.direct);
+    assertTrue(sink.getMaxUsed() <= 1024);
+    assertEquals(nThreads * perThread, slow.docs.size());
+    for (int i = 0; i < nThreads * perThread; i++)
+      assertArrayEquals(doc(i, (i * 37) % 1500), slow.docs.get("doc-" + i));
+  }
+
+  @Test
+  public void flushesWhenThereIsNothingLeftToWrite() throws Exception {
+    SlowSink slow = new SlowSink();
+    try (StagedCommunicationSink sink = new StagedCommunicationSink(slow, 1024)) {
+      sink.write("a", ByteBuffer.wrap(doc(0, 10)));
+      for (int i = 0; i < 500 && slow.flushes.get() == 0; i++)
+        Thread.sleep(10);
+      assertEquals(1, slow.flushes.get());
+      assertArrayEquals(doc(0, 10), slow.docs.get("a"));
+    }
+  }
+
+  @Test
+  public void failedWriteReachesTheConverters() throws Exception {
+    CommunicationSink broken = new CommunicationSink() {
+      @Override
+      public void write(String docId, ByteBuffer serialized) throws IOException {
+        throw new IOException("Broken pipe");
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    StagedCommunicationSink sink = new StagedCommunicationSink(broken, 256);
+    try {
+      for (int i = 0; i < 1000; i++)
+        sink.write("doc-" + i, ByteBuffer.wrap(doc(i, 100)));
+      sink.close();
+      fail("Expected the write to fail.");
+    } catch (IOException e) {
+      assertEquals("Broken pipe", e.getCause().getMessage());
+    }
+  }
+
+  @Test
+  public void writerDyingOfAnErrorReachesTheConverters() throws Exception {
+    CommunicationSink dying = new CommunicationSink() {
+      @Override
+      public void write(String docId, ByteBuffer serialized) {
+        throw new OutOfMemoryError("Direct buffer memory");
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    StagedCommunicationSink sink = new StagedCommunicationSink(dying, 256);
+    try {
+      // more than fits in the ring, so the converter waits for room that never comes
+      for (int i = 0; i < 1000; i++)
+        sink.write("doc-" + i, ByteBuffer.wrap(doc(i, 100)));
+      fail("Expected the write to fail.");
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof OutOfMemoryError);
+    }
+    try {
+      sink.close();
+      fail("Expected close to report the failure.");
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof OutOfMemoryError);
+    }
+  }
+
+  @Test
+  public void documentsTooBigToStageKeepTheirPlace() throws Exception {
+    final List<String> order = new ArrayList<>();
+    final AtomicInteger inSink = new AtomicInteger();
+    final AtomicInteger overlaps = new AtomicInteger();
+    CommunicationSink recording = new SlowSink() {
+      @Override
+      public void write(String docId, ByteBuffer serialized) throws IOException {
+        if (inSink.incrementAndGet() > 1)
+          overlaps.incrementAndGet();
+        super.write(docId, serialized);
+        order.add(docId);
+        inSink.decrementAndGet();
+      }
+
+      @Override
+      public void flush() {
+        if (inSink.incrementAndGet() > 1)
+          overlaps.incrementAndGet();
+        super.flush();
+        inSink.decrementAndGet();
+      }
+    };
+    List<String> expected = new ArrayList<>();
+    try (StagedCommunicationSink sink = new StagedCommunicationSink(recording, 1024)) {
+      for (int i = 0; i < 300; i++) {
+        // every seventh is bigger than the ring
+        sink.write("doc-" + i, ByteBuffer.wrap(doc(i, i % 7 == 0 ? 2000 : 100 + i % 300)));
+        expected.add("doc-" + i);
+      }
+    }
+    assertEquals(expected, order);
+    assertEquals("the sink was used by two threads at once", 0, overlaps.get());
+  }
+
+  @Test
+  public void stagingTooBigForAnIntIsRefused() {
+    assertEquals(2047 << 20, CommunicationSinks.stagingBytes(2047));
+    try {
+      CommunicationSinks.stagingBytes(2048);
+      fail("2048 MB overflows the capacity of the ring");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
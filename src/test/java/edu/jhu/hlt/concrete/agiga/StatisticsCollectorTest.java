@@ -0,0 +1,112 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaPrefs;
+import edu.jhu.agiga.StreamingDocumentReader;
+
+public class StatisticsCollectorTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void countsTheTestDocument() throws Exception {
+    AgigaConversionRunnerTest.CollectingSink sink = new AgigaConversionRunnerTest.CollectingSink();
+    AgigaConversionRunner runner = new AgigaConversionRunner(new AgigaConverter(true), false, sink, null);
+    StatisticsCollector collector = new StatisticsCollector();
+    runner.setStatisticsCollector(collector);
+    runner.convertFile(new File(AgigaConversionRunnerTest.strPath));
+
+    File dir = tmp.newFolder("stats");
+    CorpusStatistics corpus = collector.write(dir, 5);
+    assertEquals(1, corpus.getDocuments());
+    assertEquals(3, corpus.getSentences());
+    assertTrue(corpus.getWordCount("dog") > 0);
+    assertEquals(corpus.getTokens(), sumLengths(corpus));
+
+    List<String> report = Files.readAllLines(new File(dir, "corpus.stats.tsv").toPath(), StandardCharsets.UTF_8);
+    assertEquals("documents\t1", report.get(0));
+    assertEquals(report, Files.readAllLines(new File(dir, "agiga_dog-bites-man.annotated.xml.gz.stats.tsv")
+        .toPath(), StandardCharsets.UTF_8));
+    assertEquals(corpus.getVocabularySize(), Files.readAllLines(new File(dir, "vocabulary.tsv").toPath(),
+        StandardCharsets.UTF_8).size());
+  }
+
+  private static long sumLengths(CorpusStatistics stats) {
+    long tokens = 0;
+    for (int n = 1; n < 1000; n++)
+      tokens += n * stats.getSentencesOfLength(n);
+    return tokens;
+  }
+
+  @Test
+  public void threadsMergeToTheSerialCounts() throws Exception {
+    final List<String> files = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      File f = tmp.newFile("syn_eng_2000010" + (i + 1) + ".xml");
+      new SyntheticCorpusGenerator(i, 10, 15, 0.5, 8, 0.5).writeFile(f, "SYN_ENG_2000010" + (i + 1), 5);
+      files.add(f.getPath());
+    }
+    final AgigaPrefs ap = new AgigaPrefs();
+    ap.setAll(true);
+
+    CorpusStatistics serial = new CorpusStatistics();
+    for (String f : files)
+      for (AgigaDocument doc : new StreamingDocumentReader(f, ap))
+        serial.add(doc);
+
+    final StatisticsCollector collector = new StatisticsCollector();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 2; t++) {
+      final int first = t;
+      Thread th = new Thread() {
+        @Override
+        public void run() {
+          // each file is split between the threads
+          for (String f : files) {
+            int i = 0;
+            for (AgigaDocument doc : new StreamingDocumentReader(f, ap))
+              if (i++ % 2 == first)
+                collector.add(f, doc);
+          }
+        }
+      };
+      th.start();
+      threads.add(th);
+    }
+    for (Thread th : threads)
+      th.join();
+
+    Map<String, CorpusStatistics> bySource = collector.getBySource();
+    assertEquals(4, bySource.size());
+    CorpusStatistics merged = new CorpusStatistics();
+    for (CorpusStatistics s : bySource.values()) {
+      assertEquals(5, s.getDocuments());
+      merged.merge(s);
+    }
+    assertEquals(serial.getDocuments(), merged.getDocuments());
+    assertEquals(serial.getTokens(), merged.getTokens());
+    assertEquals(serial.getMentions(), merged.getMentions());
+    assertEquals(serial.getVocabularySize(), merged.getVocabularySize());
+    assertEquals(serial.getPosCount("NN"), merged.getPosCount("NN"));
+    assertEquals(serial.getDeprelCount("nsubj"), merged.getDeprelCount("nsubj"));
+    assertEquals(serial.getChainsOfSize(2), merged.getChainsOfSize(2));
+    for (int n = 0; n < 100; n++)
+      assertEquals(serial.getSentencesOfLength(n), merged.getSentencesOfLength(n));
+    assertTrue(serial.getDeprelCount("nsubj") > 0);
+  }
+}
@@ -0,0 +1,111 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaPrefs;
+import edu.jhu.agiga.AgigaSentence;
+import edu.jhu.agiga.StreamingDocumentReader;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.UUID;
+import edu.jhu.hlt.concrete.serialization.CompactCommunicationSerializer;
+import edu.jhu.hlt.concrete.util.ConcreteUUIDFactory;
+
+public class StreamingCommunicationWriterTest {
+
+  String strPath = "src/test/resources/agiga_dog-bites-man.annotated.xml.gz";
+
+  CompactCommunicationSerializer cs = new CompactCommunicationSerializer();
+  AgigaDocument doc;
+
+  /**
+   * Hands out 00000000-0000-0000-0000-000000000000, ...-000000000001, and so on.
+   */
+  static class SequentialUUIDFactory extends ConcreteUUIDFactory {
+    private int next = 0;
+
+    @Override
+    public UUID getConcreteUUID() {
+      return new UUID(String.format("00000000-0000-0000-0000-%012d", next++));
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    AgigaPrefs ap = new AgigaPrefs();
+    ap.setAll(true);
+    StreamingDocumentReader docReader = new StreamingDocumentReader(strPath, ap);
+    assertTrue(docReader.hasNext());
+    this.doc = docReader.next();
+  }
+
+  private void assertSameAsConvertDoc(boolean addTextSpans) throws Exception {
+    assertSameAsConvertDoc(this.doc, addTextSpans);
+  }
+
+  private void assertSameAsConvertDoc(AgigaDocument doc, boolean addTextSpans) throws Exception {
+    AgigaConverter objects = new AgigaConverter(addTextSpans);
+    objects.setUUIDFactory(new SequentialUUIDFactory());
+    Communication comm = objects.convertDoc(doc);
+
+    AgigaConverter streaming = new AgigaConverter(addTextSpans);
+    streaming.setUUIDFactory(new SequentialUUIDFactory());
+    byte[] streamed = new StreamingCommunicationWriter(streaming).toBytes(doc);
+
+    // the two may have been converted either side of a second boundary
+    Communication read = cs.fromBytes(streamed);
+    comm.getMetadata().setTimestamp(read.getMetadata().getTimestamp());
+    assertEquals(comm, read);
+    assertArrayEquals(cs.toBytes(comm), streamed);
+  }
+
+  @Test
+  public void sameBytesAsConvertDoc() throws Exception {
+    assertSameAsConvertDoc(true);
+  }
+
+  @Test
+  public void sameBytesWithoutTextSpans() throws Exception {
+    assertSameAsConvertDoc(false);
+  }
+
+  @Test
+  public void sameBytesOnSyntheticDocuments() throws Exception {
+    SyntheticCorpusGenerator gen = new SyntheticCorpusGenerator(11, 6, 14, 0.6, 6, 0.5);
+    AgigaPrefs prefs = new AgigaPrefs();
+    prefs.setAll(true);
+    DocumentXmlParser parser = new DocumentXmlParser(prefs);
+    int nCorefs = 0;
+    int nEmpty = 0;
+    for (int i = 0; i < 40; i++) {
+      String xml = gen.document(String.format("SYN_ENG_20000101.%04d", i));
+      // both leave empty sentences out; one at the end keeps the mentions' sentence numbers right
+      if (i % 4 == 0)
+        xml = xml.replace("</sentences>", "  <sentence id=\"999\">\n    <tokens>\n    </tokens>\n"
+            + "    <parse>(ROOT) </parse>\n    <basic-dependencies>\n    </basic-dependencies>\n"
+            + "    <collapsed-dependencies>\n    </collapsed-dependencies>\n"
+            + "    <collapsed-ccprocessed-dependencies>\n    </collapsed-ccprocessed-dependencies>\n"
+            + "  </sentence>\n</sentences>");
+      AgigaDocument synthetic = parser.parse(xml.getBytes(StandardCharsets.UTF_8));
+      for (AgigaSentence sent : synthetic.getSents()) {
+        if (sent.getTokens().isEmpty())
+          nEmpty++;
+        else
+          assertTrue(!sent.getBasicDeps().isEmpty() && !sent.getColDeps().isEmpty()
+              && !sent.getColCcprocDeps().isEmpty());
+      }
+      nCorefs += synthetic.getCorefs().size();
+      assertSameAsConvertDoc(synthetic, true);
+      assertSameAsConvertDoc(synthetic, false);
+    }
+    assertEquals(10, nEmpty);
+    assertTrue(nCorefs > 40);
+  }
+}
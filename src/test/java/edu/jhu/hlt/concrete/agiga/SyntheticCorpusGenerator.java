@@ -0,0 +1,474 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes synthetic Annotated Gigaword: documents of random but well formed
+ * sentences, each with tokens (word, lemma, character offsets, POS and NER),
+ * a bracketed parse, basic, collapsed and collapsed cc-processed dependencies
+ * read off the parse, and coreference chains over its noun phrases. The
+ * sentences make no sense, but they have the shape of the real corpus, so the
+ * converter, the benchmarks and scaling tests can run at any size without it.
+ * <br/>
+ * Document and sentence lengths are drawn from log-normal distributions with
+ * the given means; {@code spread} is their sigma, and 0 gives every document
+ * and sentence the mean length. Parses are at most {@code depth} constituents
+ * deep, and each noun phrase becomes a mention with probability
+ * {@code coref}. Chains of a single mention are dropped. The grammar has no
+ * coordination, so the collapsed cc-processed dependencies are the collapsed
+ * ones.
+ * <br/>
+ * Usage: {@code SyntheticCorpusGenerator [out=synthetic] [docs=1000] [files=1]
+ * [sentences=20] [tokens=25] [spread=0.5] [depth=12] [coref=0.3] [seed=1]
+ * [gzip=true] [threads=N]}
+ * <br/>
+ * Files are named {@code syn_eng_YYYYMMDD.xml.gz}, a day apart, and hold
+ * documents {@code SYN_ENG_YYYYMMDD.NNNN}, so the date partitioner can split
+ * them. The same seed always gives the same corpus.
+ */
+public class SyntheticCorpusGenerator {
+
+  private static final String[] DT = { "the", "a", "this", "that", "every", "some", "another", "no" };
+  private static final String[] JJ = { "large", "small", "new", "local", "former", "economic", "political",
+      "foreign", "major", "public", "private", "early", "recent", "strong", "senior", "national", "final", "key" };
+  /** Word and lemma pairs. */
+  private static final String[] NN = { "dog", "dog", "dogs", "dog", "company", "company", "companies", "company",
+      "official", "official", "officials", "official", "market", "market", "markets", "market", "government",
+      "government", "year", "year", "years", "year", "city", "city", "report", "report", "reports", "report", "team",
+      "team", "plan", "plan", "plans", "plan", "price", "price", "prices", "price", "week", "week", "country",
+      "country", "group", "group", "police", "police", "minister", "minister", "bank", "bank", "shares", "share",
+      "deal", "deal", "court", "court", "president", "president", "talks", "talk", "troops", "troop" };
+  private static final String[] VBD = { "bit", "bite", "said", "say", "reported", "report", "announced",
+      "announce", "expected", "expect", "saw", "see", "made", "make", "took", "take", "told", "tell", "found", "find",
+      "gave", "give", "won", "win", "lost", "lose", "led", "lead", "sold", "sell", "bought", "buy", "held", "hold",
+      "raised", "raise", "cut", "cut", "rejected", "reject", "backed", "back" };
+  private static final String[] IN = { "of", "in", "on", "at", "by", "for", "with", "from", "after", "near",
+      "against", "over" };
+  private static final String[] PRP = { "he", "she", "it", "they" };
+  private static final String[] SYLLABLES = { "ka", "mor", "li", "tan", "ber", "so", "vel", "dra", "ni", "gor",
+      "ha", "pel", "ru", "sen", "to", "mar", "quin", "el", "zu", "dan" };
+  private static final String[] NAME_TYPES = { "PERSON", "ORGANIZATION", "LOCATION" };
+
+  private final Random rnd;
+  private final int meanSentences;
+  private final int meanTokens;
+  private final double spread;
+  private final int maxDepth;
+  private final double corefDensity;
+
+  // the sentence being generated
+  private final List<String> words = new ArrayList<>();
+  private final List<String> lemmas = new ArrayList<>();
+  private final List<String> tags = new ArrayList<>();
+  private final List<String> ners = new ArrayList<>();
+  private final List<Integer> governors = new ArrayList<>();
+  private final List<String> relations = new ArrayList<>();
+  private final StringBuilder parse = new StringBuilder();
+  // noun phrases of the document so far: sentence, start, end (exclusive), head, all 0-based
+  private final List<int[]> nounPhrases = new ArrayList<>();
+  private int sentence;
+
+  /**
+   * @param meanSentences
+   *          mean sentences per document
+   * @param meanTokens
+   *          mean tokens per sentence
+   * @param spread
+   *          sigma of the log-normal length distributions
+   * @param maxDepth
+   *          how deep parses may be
+   * @param corefDensity
+   *          the probability that a noun phrase is a mention
+   */
+  public SyntheticCorpusGenerator(long seed, int meanSentences, int meanTokens, double spread, int maxDepth,
+      double corefDensity) {
+    this.rnd = new Random(seed);
+    this.meanSentences = meanSentences;
+    this.meanTokens = meanTokens;
+    this.spread = spread;
+    this.maxDepth = maxDepth;
+    this.corefDensity = corefDensity;
+  }
+
+  private int logNormal(int mean, int min) {
+    double mu = Math.log(mean) - this.spread * this.spread / 2;
+    return Math.max(min, (int) Math.round(Math.exp(mu + this.spread * this.rnd.nextGaussian())));
+  }
+
+  private String pick(String[] words) {
+    return words[this.rnd.nextInt(words.length)];
+  }
+
+  private String name() {
+    int n = 2 + this.rnd.nextInt(2);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < n; i++)
+      sb.append(pick(SYLLABLES));
+    sb.setCharAt(0, Character.toUpperCase(sb.charAt(0)));
+    return sb.toString();
+  }
+
+  private int token(String word, String lemma, String tag, String ner) {
+    this.parse.append('(').append(tag).append(' ').append(word).append(')');
+    this.words.add(word);
+    this.lemmas.add(lemma);
+    this.tags.add(tag);
+    this.ners.add(ner);
+    this.governors.add(-1);
+    this.relations.add(null);
+    return this.words.size() - 1;
+  }
+
+  private int token(String word, String tag) {
+    return token(word, word, tag, "O");
+  }
+
+  /** A word and lemma pair. */
+  private int token(String[] pairs, String tag) {
+    int i = this.rnd.nextInt(pairs.length / 2) * 2;
+    return token(pairs[i], pairs[i + 1], tag, "O");
+  }
+
+  private void attach(int dependent, int governor, String relation) {
+    this.governors.set(dependent, governor);
+    this.relations.set(dependent, relation);
+  }
+
+  /**
+   * Generators for each constituent take the number of tokens it should span
+   * and its depth, and return the index of its head token.
+   */
+  private int s(int b, int d, boolean root) {
+    this.parse.append("(S ");
+    int subject = b - 1 <= 1 ? 1 : 1 + this.rnd.nextInt(Math.min(4, b - 1));
+    int head = np(subject, d + 1);
+    this.parse.append(' ');
+    int verb = vp(b - subject, d + 1);
+    attach(head, verb, "nsubj");
+    if (root) {
+      this.parse.append(' ');
+      attach(token(".", "."), verb, "punct");
+    }
+    this.parse.append(')');
+    return verb;
+  }
+
+  private int np(int b, int d) {
+    int start = this.words.size();
+    int head;
+    this.parse.append("(NP ");
+    // longer phrases than a determiner, two adjectives and a noun have to
+    // branch, unless they are already as deep as parses may go
+    if (b >= 3 && d + 2 < this.maxDepth && (b > 4 || this.rnd.nextDouble() < 0.3)) {
+      int left = 1 + this.rnd.nextInt(Math.min(4, b - 2));
+      head = np(left, d + 1);
+      this.parse.append(' ');
+      attach(pp(b - left, d + 1), head, "prep");
+    } else if (b == 1 && this.rnd.nextDouble() < 0.3) {
+      String pronoun = pick(PRP);
+      head = token(pronoun, "PRP");
+    } else if (this.rnd.nextDouble() < 0.3) {
+      String type = pick(NAME_TYPES);
+      head = start + b - 1;
+      for (int i = 0; i < b; i++) {
+        if (i > 0)
+          this.parse.append(' ');
+        String name = name();
+        int t = token(name, name, "NNP", type);
+        if (t != head)
+          attach(t, head, "nn");
+      }
+    } else {
+      head = start + b - 1;
+      for (int i = 0; i < b - 1; i++) {
+        if (i == 0)
+          attach(token(pick(DT), "DT"), head, "det");
+        else
+          attach(token(pick(JJ), "JJ"), head, "amod");
+        this.parse.append(' ');
+      }
+      token(NN, "NN");
+    }
+    this.parse.append(')');
+    this.nounPhrases.add(new int[] { this.sentence, start, this.words.size(), head });
+    return head;
+  }
+
+  private int vp(int b, int d) {
+    this.parse.append("(VP ");
+    int verb = token(VBD, "VBD");
+    int rest = b - 1;
+    if (rest > 0) {
+      this.parse.append(' ');
+      double r = this.rnd.nextDouble();
+      if (rest >= 4 && d + 3 < this.maxDepth && r < (rest >= 8 ? 0.3 : 0.1)) {
+        this.parse.append("(SBAR ");
+        int that = token("that", "IN");
+        this.parse.append(' ');
+        int clause = s(rest - 1, d + 2, false);
+        attach(that, clause, "mark");
+        attach(clause, verb, "ccomp");
+        this.parse.append(')');
+      } else if (rest >= 3 && d + 2 < this.maxDepth && r < 0.6) {
+        int object = 1 + this.rnd.nextInt(rest - 2);
+        attach(np(object, d + 1), verb, "dobj");
+        this.parse.append(' ');
+        attach(pp(rest - object, d + 1), verb, "prep");
+      } else if (rest >= 2 && d + 2 < this.maxDepth && r < 0.75) {
+        attach(pp(rest, d + 1), verb, "prep");
+      } else {
+        attach(np(rest, d + 1), verb, "dobj");
+      }
+    }
+    this.parse.append(')');
+    return verb;
+  }
+
+  private int pp(int b, int d) {
+    this.parse.append("(PP ");
+    int prep = token(pick(IN), "IN");
+    this.parse.append(' ');
+    attach(np(b - 1, d + 1), prep, "pobj");
+    this.parse.append(')');
+    return prep;
+  }
+
+  private static void dependencies(StringBuilder xml, String element, List<Integer> governors, List<String> relations) {
+    xml.append("    <").append(element).append(">\n");
+    for (int i = 0; i < governors.size(); i++) {
+      if (relations.get(i) == null)
+        continue;
+      xml.append("      <dep type=\"").append(relations.get(i)).append("\">\n");
+      xml.append("        <governor>").append(governors.get(i) + 1).append("</governor>\n");
+      xml.append("        <dependent>").append(i + 1).append("</dependent>\n");
+      xml.append("      </dep>\n");
+    }
+    xml.append("    </").append(element).append(">\n");
+  }
+
+  private static void mention(StringBuilder xml, int[] np, boolean representative) {
+    xml.append(representative ? "    <mention representative=\"true\">\n" : "    <mention>\n");
+    xml.append("      <sentence>").append(np[0] + 1).append("</sentence>\n");
+    xml.append("      <start>").append(np[1] + 1).append("</start>\n");
+    xml.append("      <end>").append(np[2] + 1).append("</end>\n");
+    xml.append("      <head>").append(np[3] + 1).append("</head>\n");
+    xml.append("    </mention>\n");
+  }
+
+  /**
+   * @return the XML of one random {@code <DOC>}
+   */
+  public String document(String docId) {
+    int nSentences = logNormal(this.meanSentences, 1);
+    StringBuilder text = new StringBuilder();
+    StringBuilder sents = new StringBuilder();
+    this.nounPhrases.clear();
+    int offset = 0;
+    for (this.sentence = 0; this.sentence < nSentences; this.sentence++) {
+      this.words.clear();
+      this.lemmas.clear();
+      this.tags.clear();
+      this.ners.clear();
+      this.governors.clear();
+      this.relations.clear();
+      this.parse.setLength(0);
+
+      this.parse.append("(ROOT ");
+      attach(s(logNormal(this.meanTokens, 3) - 1, 1, true), -1, "root");
+      this.parse.append(')');
+
+      text.append("<P>\n( ").append(this.parse, 6, this.parse.length()).append("\n</P>\n");
+      sents.append("  <sentence id=\"").append(this.sentence + 1).append("\">\n    <tokens>\n");
+      for (int i = 0; i < this.words.size(); i++) {
+        String word = this.words.get(i);
+        sents.append("      <token id=\"").append(i + 1).append("\">\n");
+        sents.append("        <word>").append(word).append("</word>\n");
+        sents.append("        <lemma>").append(this.lemmas.get(i)).append("</lemma>\n");
+        sents.append("        <CharacterOffsetBegin>").append(offset).append("</CharacterOffsetBegin>\n");
+        offset += word.length();
+        sents.append("        <CharacterOffsetEnd>").append(offset).append("</CharacterOffsetEnd>\n");
+        offset++;
+        sents.append("        <POS>").append(this.tags.get(i)).append("</POS>\n");
+        sents.append("        <NER>").append(this.ners.get(i)).append("</NER>\n");
+        sents.append("      </token>\n");
+      }
+      sents.append("    </tokens>\n    <parse>").append(this.parse).append(" </parse>\n");
+      dependencies(sents, "basic-dependencies", this.governors, this.relations);
+
+      // collapse prep(g, p) and pobj(p, n) into prep_p(g, n)
+      List<Integer> governors = new ArrayList<>(this.governors);
+      List<String> relations = new ArrayList<>(this.relations);
+      for (int i = 0; i < governors.size(); i++) {
+        int p = governors.get(i);
+        if ("pobj".equals(relations.get(i)) && "prep".equals(this.relations.get(p))) {
+          governors.set(i, this.governors.get(p));
+          relations.set(i, "prep_" + this.words.get(p));
+          relations.set(p, null);
+        }
+      }
+      dependencies(sents, "collapsed-dependencies", governors, relations);
+      dependencies(sents, "collapsed-ccprocessed-dependencies", governors, relations);
+      sents.append("  </sentence>\n");
+    }
+
+    // mentions join one of the last few chains, or start a new one
+    List<List<int[]>> chains = new ArrayList<>();
+    for (int[] np : this.nounPhrases) {
+      if (this.rnd.nextDouble() >= this.corefDensity)
+        continue;
+      if (chains.isEmpty() || this.rnd.nextDouble() < 0.4) {
+        List<int[]> chain = new ArrayList<>();
+        chain.add(np);
+        chains.add(chain);
+      } else {
+        chains.get(chains.size() - 1 - this.rnd.nextInt(Math.min(5, chains.size()))).add(np);
+      }
+    }
+
+    StringBuilder xml = new StringBuilder(text.length() + sents.length() + 1024);
+    xml.append("<DOC id=\"").append(docId).append("\" type=\"story\">\n<TEXT>\n").append(text).append("</TEXT>\n");
+    xml.append("<sentences>\n").append(sents).append("</sentences> <coreferences>\n");
+    for (List<int[]> chain : chains) {
+      if (chain.size() < 2)
+        continue;
+      xml.append("  <coreference>\n");
+      for (int i = 0; i < chain.size(); i++)
+        mention(xml, chain.get(i), i == 0);
+      xml.append("  </coreference>\n");
+    }
+    xml.append("</coreferences>\n</DOC>\n");
+    return xml.toString();
+  }
+
+  /**
+   * Write a {@code <FILE>} of {@code nDocs} documents named
+   * {@code prefix.0001} and on, gzipped if {@code file} ends in {@code .gz}.
+   *
+   * @return the number of bytes of XML written
+   */
+  public long writeFile(File file, String prefix, int nDocs) throws IOException {
+    long bytes = 0;
+    OutputStream os = new FileOutputStream(file);
+    if (file.getName().endsWith(".gz"))
+      os = new GZIPOutputStream(os, 1 << 16);
+    try (Writer w = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8), 1 << 16)) {
+      String header = "<FILE id=\"" + prefix.toLowerCase() + "\">\n";
+      w.write(header);
+      bytes += header.length();
+      for (int i = 1; i <= nDocs; i++) {
+        String doc = document(String.format("%s.%04d", prefix, i));
+        w.write(doc);
+        bytes += doc.length();
+      }
+      w.write("</FILE>\n");
+      bytes += 8;
+    }
+    return bytes;
+  }
+
+  public static void main(String[] args) throws Exception {
+    File out = new File("synthetic");
+    int docs = 1000;
+    int files = 1;
+    int sentences = 20;
+    int tokens = 25;
+    double spread = 0.5;
+    int depth = 12;
+    double coref = 0.3;
+    long seed = 1;
+    boolean gzip = true;
+    int threads = Runtime.getRuntime().availableProcessors();
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (eq < 0)
+        throw new IllegalArgumentException("Expected key=value, got: " + arg);
+      String key = arg.substring(0, eq);
+      String value = arg.substring(eq + 1);
+      switch (key) {
+      case "out":
+        out = new File(value);
+        break;
+      case "docs":
+        docs = Integer.parseInt(value);
+        break;
+      case "files":
+        files = Integer.parseInt(value);
+        break;
+      case "sentences":
+        sentences = Integer.parseInt(value);
+        break;
+      case "tokens":
+        tokens = Integer.parseInt(value);
+        break;
+      case "spread":
+        spread = Double.parseDouble(value);
+        break;
+      case "depth":
+        depth = Integer.parseInt(value);
+        break;
+      case "coref":
+        coref = Double.parseDouble(value);
+        break;
+      case "seed":
+        seed = Long.parseLong(value);
+        break;
+      case "gzip":
+        gzip = Boolean.parseBoolean(value);
+        break;
+      case "threads":
+        threads = Integer.parseInt(value);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown setting: " + key);
+      }
+    }
+    if (!out.isDirectory() && !out.mkdirs())
+      throw new IOException("Unable to create directory: " + out);
+
+    SimpleDateFormat day = new SimpleDateFormat("yyyyMMdd");
+    day.setTimeZone(TimeZone.getTimeZone("UTC"));
+    long start = System.nanoTime();
+    ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+    List<Future<Long>> written = new ArrayList<>();
+    for (int f = 0; f < files; f++) {
+      final String prefix = "SYN_ENG_" + day.format(946684800000L + f * 86400000L);
+      final File file = new File(out, prefix.toLowerCase() + (gzip ? ".xml.gz" : ".xml"));
+      final int nDocs = docs / files + (f < docs % files ? 1 : 0);
+      final SyntheticCorpusGenerator gen = new SyntheticCorpusGenerator(seed * 1000003 + f, sentences, tokens, spread,
+          depth, coref);
+      written.add(pool.submit(new Callable<Long>() {
+        @Override
+        public Long call() throws IOException {
+          return gen.writeFile(file, prefix, nDocs);
+        }
+      }));
+    }
+    long bytes = 0;
+    try {
+      for (Future<Long> w : written)
+        bytes += w.get();
+    } finally {
+      pool.shutdown();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("Wrote %d documents in %d files to %s: %.1f MB of XML in %.1f s (%.1f MB/s)%n", docs, files,
+        out, bytes / 1048576.0, seconds, bytes / 1048576.0 / seconds);
+  }
+}
@@ -0,0 +1,64 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaPrefs;
+import edu.jhu.agiga.AgigaSentence;
+import edu.jhu.agiga.StreamingDocumentReader;
+
+public class SyntheticCorpusGeneratorTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void sameSeedSameCorpus() {
+    String a = new SyntheticCorpusGenerator(7, 5, 15, 0.5, 10, 0.5).document("SYN_ENG_20000101.0001");
+    String b = new SyntheticCorpusGenerator(7, 5, 15, 0.5, 10, 0.5).document("SYN_ENG_20000101.0001");
+    String c = new SyntheticCorpusGenerator(8, 5, 15, 0.5, 10, 0.5).document("SYN_ENG_20000101.0001");
+    assertEquals(a, b);
+    assertFalse(a.equals(c));
+  }
+
+  @Test
+  public void documentsReadAndConvertCleanly() throws Exception {
+    File f = tmp.newFile("syn_eng_20000101.xml.gz");
+    SyntheticCorpusGenerator gen = new SyntheticCorpusGenerator(1, 8, 20, 0.5, 8, 0.5);
+    assertTrue(gen.writeFile(f, "SYN_ENG_20000101", 20) > 0);
+
+    AgigaPrefs ap = new AgigaPrefs();
+    ap.setAll(true);
+    int docs = 0;
+    int chains = 0;
+    for (AgigaDocument doc : new StreamingDocumentReader(f.getPath(), ap)) {
+      for (AgigaSentence sent : doc.getSents()) {
+        int n = sent.getTokens().size();
+        assertEquals(n, sent.getStanfordContituencyTree().getLeaves().size());
+        // every token has a head in the basic dependencies, the root 0
+        assertEquals(n, sent.getBasicDeps().size());
+        assertTrue(sent.getColDeps().size() <= n);
+      }
+      chains += doc.getCorefs().size();
+      docs++;
+    }
+    assertEquals(20, docs);
+    assertTrue(chains > 0);
+
+    long anomalies = Diagnostics.get().getTotal();
+    AgigaConversionRunnerTest.CollectingSink sink = new AgigaConversionRunnerTest.CollectingSink();
+    AgigaConversionRunner runner = new AgigaConversionRunner(new AgigaConverter(true), false, sink, null);
+    runner.convertFile(f);
+    assertEquals(20, sink.ids.size());
+    assertEquals("SYN_ENG_20000101.0001", sink.ids.get(0));
+    assertEquals(anomalies, Diagnostics.get().getTotal());
+  }
+}
@@ -0,0 +1,61 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import concrete.tools.AnnotationException;
+import edu.jhu.agiga.AgigaPrefs;
+import edu.jhu.agiga.StreamingDocumentReader;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.TextSpan;
+import edu.jhu.hlt.concrete.Token;
+
+public class TextSpanValidationTest {
+
+  AgigaConverter converter;
+  Communication comm;
+
+  @Before
+  public void setUp() throws Exception {
+    this.converter = new AgigaConverter(true);
+    this.comm = this.converter.convertDoc(new StreamingDocumentReader(AgigaConversionRunnerTest.strPath,
+        new AgigaPrefs()).next());
+  }
+
+  private Token lastToken() {
+    List<Token> toks = this.comm.getSectionList().get(0).getSentenceList().get(0).getTokenization()
+        .getTokenList().getTokenList();
+    return toks.get(toks.size() - 1);
+  }
+
+  @Test
+  public void convertedSpansAreValid() throws Exception {
+    this.converter.validateTextSpans(this.comm);
+  }
+
+  @Test
+  public void spanPastTheEndOfTheTextIsRejected() throws Exception {
+    int len = this.comm.getText().length();
+    // passes the start >= 0 && ending > start check made while converting
+    this.lastToken().setTextSpan(new TextSpan(len - 1, len + 5));
+    try {
+      this.converter.validateTextSpans(this.comm);
+      fail("Expected a TextSpan past the end of the text to be rejected.");
+    } catch (AnnotationException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("Token"));
+    }
+  }
+
+  @Test
+  public void rawSpansAreNotCheckedAgainstTheText() throws Exception {
+    // raw spans point into the original document, which can be longer
+    int len = this.comm.getText().length();
+    this.lastToken().setRawTextSpan(new TextSpan(len + 10, len + 20));
+    this.converter.validateTextSpans(this.comm);
+  }
+}
@@ -0,0 +1,301 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import concrete.agiga.util.ConcreteAgigaProperties;
+
+/**
+ * End-to-end conversion throughput: reading Agiga files, converting,
+ * serializing and writing, as {@link AgigaConverter#main(String[])} does, for
+ * every combination of thread count and output sink asked for. Each
+ * combination gets warm-up passes and then measured passes over the whole
+ * sample; each measured pass reports documents, tokens, megabytes read and
+ * written per second, the peak heap and the time spent in garbage collection.
+ * Results are written as JSON to {@code out}, {@code throughput.json} unless
+ * given; logging goes to standard out, so use {@code out=-} only when it is off.
+ * <br/>
+ * Usage: {@code ThroughputBenchmark [threads=1,2,4] [sinks=null,files,hash]
+ * [warmup=1] [passes=3] [out=results.json] input.xml.gz...}
+ * <br/>
+ * Sinks: {@code null} throws the output away, {@code files} writes a file per
+ * document, {@code hash} and {@code date} write partitioned streams. Output
+ * goes to a temporary directory that is deleted after every pass. Other
+ * settings, such as {@code -Dconversion.streaming=true}, are read from the
+ * properties as usual.
+ */
+public class ThroughputBenchmark {
+
+  /**
+   * Counts what goes through to the real sink, if there is one.
+   */
+  private static final class CountingSink implements CommunicationSink {
+    private final CommunicationSink sink;
+    private final AtomicLong bytes = new AtomicLong();
+
+    CountingSink(CommunicationSink sink) {
+      this.sink = sink;
+    }
+
+    @Override
+    public void write(String docId, ByteBuffer serialized) throws IOException {
+      this.bytes.addAndGet(serialized.remaining());
+      if (this.sink != null)
+        this.sink.write(docId, serialized);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (this.sink != null)
+        this.sink.close();
+    }
+  }
+
+  private static final class Pass {
+    long docs;
+    long failed;
+    double seconds;
+    long bytesOut;
+    long peakHeap;
+    long gcMillis;
+    long gcCount;
+
+    /**
+     * The mean of {@code passes}; the peak heap is the highest of them.
+     */
+    static Pass mean(List<Pass> passes) {
+      Pass m = new Pass();
+      for (Pass p : passes) {
+        m.docs += p.docs;
+        m.failed += p.failed;
+        m.seconds += p.seconds;
+        m.bytesOut += p.bytesOut;
+        m.peakHeap = Math.max(m.peakHeap, p.peakHeap);
+        m.gcMillis += p.gcMillis;
+        m.gcCount += p.gcCount;
+      }
+      int n = passes.size();
+      m.docs = Math.round((double) m.docs / n);
+      m.failed = Math.round((double) m.failed / n);
+      m.seconds /= n;
+      m.bytesOut = Math.round((double) m.bytesOut / n);
+      m.gcMillis = Math.round((double) m.gcMillis / n);
+      m.gcCount = Math.round((double) m.gcCount / n);
+      return m;
+    }
+  }
+
+  private final List<File> inputs;
+  private final long bytesIn;
+  private final long tokensIn;
+
+  ThroughputBenchmark(List<File> inputs) throws IOException {
+    this.inputs = inputs;
+    long bytes = 0;
+    long tokens = 0;
+    for (File f : inputs) {
+      bytes += f.length();
+      try (AgigaDocumentChunker chunker = new AgigaDocumentChunker(f.getPath())) {
+        for (RawAgigaDocument raw : chunker) {
+          String xml = raw.getXml();
+          for (int i = xml.indexOf("<token "); i >= 0; i = xml.indexOf("<token ", i + 1))
+            tokens++;
+        }
+      }
+    }
+    this.bytesIn = bytes;
+    this.tokensIn = tokens;
+  }
+
+  private static CommunicationSink sink(String kind, File dir, ConcreteAgigaProperties props) {
+    switch (kind) {
+    case "null":
+      return null;
+    case "files":
+      return new FilePerDocumentSink(dir);
+    case "hash":
+      return new PartitionedCommunicationSink(dir, new HashOutputPartitioner(props.getOutputShards()), "part",
+          props.getMaxOpenOutputStreams());
+    case "date":
+      return new PartitionedCommunicationSink(dir, new DateOutputPartitioner(DateOutputPartitioner.Granularity.MONTH),
+          "part", props.getMaxOpenOutputStreams());
+    default:
+      throw new IllegalArgumentException("Unknown sink: " + kind + " (expected null, files, hash or date)");
+    }
+  }
+
+  private Pass run(String sinkKind, int nThreads) throws Exception {
+    Path dir = Files.createTempDirectory("throughput");
+    try {
+      AgigaConverter converter = new AgigaConverter(true);
+      Quarantine quarantine = new Quarantine(dir.resolve("quarantine").toFile());
+      CountingSink sink = new CountingSink(sink(sinkKind, dir.toFile(), converter.getProperties()));
+
+      List<MemoryPoolMXBean> heap = new ArrayList<>();
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        if (pool.getType() == MemoryType.HEAP) {
+          pool.resetPeakUsage();
+          heap.add(pool);
+        }
+      long gcMillis = 0;
+      long gcCount = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+        gcMillis -= gc.getCollectionTime();
+        gcCount -= gc.getCollectionCount();
+      }
+
+      long start = System.nanoTime();
+      AgigaConversionRunner runner = new AgigaConversionRunner(converter, false, sink, quarantine);
+      try {
+        if (nThreads > 1) {
+          try (ConversionScheduler scheduler = new ConversionScheduler(runner, nThreads)) {
+            scheduler.convertFiles(this.inputs);
+          }
+        } else {
+          for (File f : this.inputs)
+            runner.convertFile(f);
+        }
+      } finally {
+        sink.close();
+      }
+
+      Pass p = new Pass();
+      p.seconds = (System.nanoTime() - start) / 1e9;
+      p.docs = runner.getNumWritten();
+      p.failed = quarantine.getNumFailed();
+      p.bytesOut = sink.bytes.get();
+      for (MemoryPoolMXBean pool : heap)
+        p.peakHeap += pool.getPeakUsage().getUsed();
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+        gcMillis += gc.getCollectionTime();
+        gcCount += gc.getCollectionCount();
+      }
+      p.gcMillis = gcMillis;
+      p.gcCount = gcCount;
+      return p;
+    } finally {
+      delete(dir);
+    }
+  }
+
+  private static void delete(Path dir) throws IOException {
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+        Files.delete(d);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private String toJson(Pass p) {
+    double mb = 1024 * 1024;
+    return String.format(Locale.ROOT, "{\"seconds\": %.3f, \"docs\": %d, \"failed\": %d, \"docs_per_s\": %.1f, "
+        + "\"tokens_per_s\": %.1f, \"mb_in_per_s\": %.3f, \"mb_out_per_s\": %.3f, \"peak_heap_mb\": %.1f, "
+        + "\"gc_ms\": %d, \"gc_count\": %d}", p.seconds, p.docs, p.failed, p.docs / p.seconds, this.tokensIn
+        / p.seconds, this.bytesIn / mb / p.seconds, p.bytesOut / mb / p.seconds, p.peakHeap / mb, p.gcMillis,
+        p.gcCount);
+  }
+
+  private static String quote(String s) {
+    return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  public static void main(String[] args) throws Exception {
+    List<Integer> threads = Arrays.asList(1, 2, 4);
+    List<String> sinks = Arrays.asList("null", "files", "hash");
+    int warmup = 1;
+    int passes = 3;
+    String out = "throughput.json";
+    List<File> inputs = new ArrayList<>();
+    for (String arg : args) {
+      if (arg.startsWith("threads=")) {
+        threads = new ArrayList<>();
+        for (String t : arg.substring("threads=".length()).split(","))
+          threads.add(Integer.parseInt(t.trim()));
+      } else if (arg.startsWith("sinks=")) {
+        sinks = Arrays.asList(arg.substring("sinks=".length()).split(","));
+      } else if (arg.startsWith("warmup=")) {
+        warmup = Integer.parseInt(arg.substring("warmup=".length()));
+      } else if (arg.startsWith("passes=")) {
+        passes = Integer.parseInt(arg.substring("passes=".length()));
+      } else if (arg.startsWith("out=")) {
+        out = arg.substring("out=".length());
+      } else {
+        inputs.add(new File(arg));
+      }
+    }
+    if (inputs.isEmpty())
+      inputs.add(new File(AgigaConversionRunnerTest.strPath));
+
+    ThroughputBenchmark bench = new ThroughputBenchmark(inputs);
+    ConcreteAgigaProperties props = new ConcreteAgigaProperties();
+    Runtime rt = Runtime.getRuntime();
+
+    StringBuilder json = new StringBuilder();
+    json.append("{\n");
+    json.append("  \"date\": ").append(quote(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date())))
+        .append(",\n");
+    json.append("  \"tool\": ").append(quote(props.getToolName())).append(",\n");
+    json.append("  \"java\": ").append(quote(System.getProperty("java.version"))).append(",\n");
+    json.append("  \"processors\": ").append(rt.availableProcessors()).append(",\n");
+    json.append("  \"max_heap_mb\": ").append(rt.maxMemory() / (1024 * 1024)).append(",\n");
+    json.append("  \"streaming\": ").append(props.isStreamingConversion()).append(",\n");
+    json.append("  \"inputs\": ").append(inputs.size()).append(",\n");
+    json.append("  \"bytes_in\": ").append(bench.bytesIn).append(",\n");
+    json.append("  \"tokens_in\": ").append(bench.tokensIn).append(",\n");
+    json.append("  \"runs\": [");
+    String sep = "\n";
+    for (String sinkKind : sinks) {
+      for (int nThreads : threads) {
+        for (int i = 0; i < warmup; i++)
+          bench.run(sinkKind, nThreads);
+        json.append(sep).append("    {\"sink\": ").append(quote(sinkKind)).append(", \"threads\": ").append(nThreads)
+            .append(", \"passes\": [");
+        List<Pass> measured = new ArrayList<>();
+        for (int i = 0; i < passes; i++) {
+          Pass p = bench.run(sinkKind, nThreads);
+          measured.add(p);
+          System.err.printf("%-6s %2d threads  pass %d: %.1f docs/s%n", sinkKind, nThreads, i + 1, p.docs / p.seconds);
+          json.append(i == 0 ? "\n      " : ",\n      ").append(bench.toJson(p));
+        }
+        json.append("\n    ], \"mean\": ").append(bench.toJson(Pass.mean(measured))).append('}');
+        sep = ",\n";
+      }
+    }
+    json.append("\n  ]\n}\n");
+
+    if (out.equals("-")) {
+      System.out.print(json);
+    } else {
+      try (PrintStream ps = new PrintStream(out, "UTF-8")) {
+        ps.print(json);
+      }
+      System.err.println("Results written to " + out);
+    }
+  }
+}
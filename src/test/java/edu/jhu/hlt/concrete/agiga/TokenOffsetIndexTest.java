@@ -0,0 +1,107 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.jhu.agiga.AgigaDocument;
+import edu.jhu.agiga.AgigaPrefs;
+import edu.jhu.agiga.StreamingDocumentReader;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.Sentence;
+import edu.jhu.hlt.concrete.Token;
+
+public class TokenOffsetIndexTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static AgigaDocument read(String path) {
+    AgigaPrefs ap = new AgigaPrefs();
+    ap.setAll(true);
+    return new StreamingDocumentReader(path, ap).next();
+  }
+
+  @Test
+  public void lookupsMatchAScanOfTheTokens() throws Exception {
+    File f = tmp.newFile("syn_eng_20000101.xml");
+    new SyntheticCorpusGenerator(5, 40, 15, 0.5, 8, 0.5).writeFile(f, "SYN_ENG_20000101", 1);
+    AgigaDocument doc = read(f.getPath());
+    Communication comm = new AgigaConverter(true).convertDoc(doc);
+    TokenOffsetIndex index = TokenOffsetIndex.of(doc);
+
+    List<Token> tokens = new ArrayList<>();
+    List<Integer> sentOf = new ArrayList<>();
+    List<Sentence> sents = comm.getSectionList().get(0).getSentenceList();
+    for (int s = 0; s < sents.size(); s++) {
+      for (Token tok : sents.get(s).getTokenization().getTokenList().getTokenList()) {
+        tokens.add(tok);
+        sentOf.add(s);
+      }
+    }
+    assertEquals(sents.size(), index.getNumSentences());
+    assertEquals(tokens.size(), index.getNumTokens());
+
+    int textLength = comm.getText().length();
+    for (int offset = -1; offset <= textLength; offset++) {
+      int expected = -1;
+      for (int t = 0; t < tokens.size(); t++)
+        if (tokens.get(t).getTextSpan().getStart() <= offset && offset < tokens.get(t).getTextSpan().getEnding())
+          expected = t;
+      assertEquals(expected, index.tokenAt(offset));
+      if (expected >= 0) {
+        assertEquals((int) sentOf.get(expected), index.getSentence(expected));
+        assertEquals(tokens.get(expected).getTokenIndex(), index.getTokenIndex(expected));
+        int raw = tokens.get(expected).getRawTextSpan().getStart();
+        assertEquals(expected, index.rawTokenAt(raw));
+      }
+    }
+
+    Token first = tokens.get(3);
+    Token last = tokens.get(7);
+    assertArrayEquals(new int[] { 3, 8 }, index.tokensIn(first.getTextSpan().getStart() + 1, last.getTextSpan()
+        .getEnding()));
+    assertArrayEquals(new int[] { 3, 8 }, index.rawTokensIn(first.getRawTextSpan().getStart(), last
+        .getRawTextSpan().getStart() + 1));
+    // the space between two tokens
+    int gap = tokens.get(3).getTextSpan().getEnding();
+    assertArrayEquals(new int[] { 4, 4 }, index.tokensIn(gap, gap + 1));
+  }
+
+  @Test
+  public void sameFromTheCommunicationAndAfterARoundTrip() throws Exception {
+    AgigaDocument doc = read(AgigaConversionRunnerTest.strPath);
+    TokenOffsetIndex fromDoc = TokenOffsetIndex.of(doc);
+    TokenOffsetIndex fromComm = TokenOffsetIndex.of(new AgigaConverter(true).convertDoc(doc));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    fromDoc.writeTo(new DataOutputStream(bytes));
+    assertEquals(fromDoc.getSerializedSize(), bytes.size());
+    TokenOffsetIndex read = TokenOffsetIndex.readFrom(new DataInputStream(new ByteArrayInputStream(bytes
+        .toByteArray())));
+
+    for (TokenOffsetIndex other : new TokenOffsetIndex[] { fromComm, read }) {
+      assertEquals(fromDoc.getNumSentences(), other.getNumSentences());
+      assertEquals(fromDoc.getNumTokens(), other.getNumTokens());
+      for (int s = 0; s < fromDoc.getNumSentences(); s++)
+        assertEquals(fromDoc.getFirstToken(s), other.getFirstToken(s));
+      for (int t = 0; t < fromDoc.getNumTokens(); t++) {
+        assertEquals(fromDoc.getStart(t), other.getStart(t));
+        assertEquals(fromDoc.getEnd(t), other.getEnd(t));
+        assertEquals(fromDoc.getRawStart(t), other.getRawStart(t));
+        assertEquals(fromDoc.getRawEnd(t), other.getRawEnd(t));
+      }
+    }
+  }
+}
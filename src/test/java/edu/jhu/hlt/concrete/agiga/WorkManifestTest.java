@@ -0,0 +1,213 @@
+package edu.jhu.hlt.concrete.agiga;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import concrete.agiga.util.ConcreteAgigaProperties;
+
+public class WorkManifestTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  Path dir;
+  List<String> inputs = new ArrayList<>();
+
+  @Before
+  public void setUp() throws Exception {
+    this.dir = tmp.newFolder("shared").toPath();
+    for (int i = 0; i < 20; i++)
+      inputs.add("input-" + i + ".xml.gz");
+  }
+
+  private WorkManifest worker(String id, long leaseTimeoutMillis) throws Exception {
+    return new WorkManifest(dir, inputs, id, leaseTimeoutMillis, 50, 10);
+  }
+
+  @Test
+  public void everyFileIsClaimedOnce() throws Exception {
+    final List<String> converted = Collections.synchronizedList(new ArrayList<String>());
+    List<Callable<Void>> workers = new ArrayList<>();
+    for (int w = 0; w < 4; w++) {
+      final WorkManifest m = worker("worker-" + w, 60000);
+      workers.add(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          WorkManifest.Lease l;
+          while ((l = m.claim()) != null) {
+            converted.add(l.getFile());
+            assertTrue(l.complete());
+          }
+          m.close();
+          return null;
+        }
+      });
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    for (Future<Void> f : pool.invokeAll(workers))
+      f.get();
+    pool.shutdown();
+
+    assertEquals(inputs.size(), converted.size());
+    assertEquals(inputs.size(), Files.readAllLines(dir.resolve("manifest"), StandardCharsets.UTF_8).size());
+    WorkManifest checker = worker("checker", 60000);
+    for (int i = 0; i < inputs.size(); i++)
+      assertTrue(checker.isDone(i));
+    checker.close();
+  }
+
+  @Test
+  public void expiredLeaseIsReclaimed() throws Exception {
+    WorkManifest crashed = worker("crashed", 60000);
+    WorkManifest.Lease stale = crashed.tryClaim(0);
+    assertNotNull(stale);
+    crashed.close();
+
+    WorkManifest other = worker("other", 60000);
+    assertNull("lease is still live", other.tryClaim(0));
+
+    // pretend the crashed worker stopped renewing ten minutes ago
+    Path lease = dir.resolve("leases").resolve("0.lease");
+    Files.setLastModifiedTime(lease, FileTime.fromMillis(System.currentTimeMillis() - 600000));
+    WorkManifest.Lease taken = other.tryClaim(0);
+    assertNotNull(taken);
+    assertTrue(taken.getFile().endsWith("input-0.xml.gz"));
+
+    assertFalse("a worker that lost its lease must not mark the file done", stale.complete());
+    assertFalse(other.isDone(0));
+    assertTrue(taken.complete());
+    assertTrue(other.isDone(0));
+    other.close();
+  }
+
+  @Test
+  public void freshLeaseIsNotMovedAsideByALateReclaim() throws Exception {
+    WorkManifest crashed = worker("crashed", 60000);
+    assertNotNull(crashed.tryClaim(5));
+    crashed.close();
+    Path lease = dir.resolve("leases").resolve("5.lease");
+    Files.setLastModifiedTime(lease, FileTime.fromMillis(System.currentTimeMillis() - 600000));
+
+    // both see the expired lease; "first" reclaims it before "late" moves it
+    WorkManifest first = worker("first", 60000);
+    WorkManifest.Lease l = first.tryClaim(5);
+    assertNotNull(l);
+    WorkManifest late = worker("late", 60000);
+    assertNull(late.reclaim(5, "crashed", 600000));
+
+    assertEquals("first", new String(Files.readAllBytes(lease), StandardCharsets.UTF_8));
+    l.progress();
+    l.renew();
+    assertTrue(l.isValid());
+    assertEquals(1, dir.resolve("leases").toFile().list().length);
+    assertTrue(l.complete());
+    first.close();
+    late.close();
+  }
+
+  @Test
+  public void lostLeaseIsNoticedOnRenewal() throws Exception {
+    WorkManifest slow = worker("slow", 60000);
+    WorkManifest.Lease l = slow.tryClaim(3);
+    Path lease = dir.resolve("leases").resolve("3.lease");
+    Files.setLastModifiedTime(lease, FileTime.fromMillis(System.currentTimeMillis() - 600000));
+    assertNotNull(worker("fast", 60000).tryClaim(3));
+
+    l.progress();
+    l.renew();
+    assertFalse(l.isValid());
+    slow.close();
+  }
+
+  private static LeasedCommunicationSink leasedSink(File outputDir) throws IOException {
+    return new LeasedCommunicationSink(outputDir, new ConcreteAgigaProperties()) {
+      @Override
+      protected CommunicationSink openSink(File d, String streamName) {
+        return new PartitionedCommunicationSink(d, new HashOutputPartitioner(4), streamName, 16);
+      }
+    };
+  }
+
+  private static List<Path> streams(Path outputDir) throws IOException {
+    final List<Path> found = new ArrayList<>();
+    Files.walkFileTree(outputDir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        found.add(file);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return found;
+  }
+
+  @Test
+  public void outputOfATakenOverFileAppearsOnce() throws Exception {
+    File input = tmp.newFile("input.xml.gz");
+    new SyntheticCorpusGenerator(3, 4, 12, 0.5, 3, 0.3).writeFile(input, "doc", 30);
+    List<String> one = Collections.singletonList(input.getPath());
+    Path shared = tmp.newFolder("one").toPath();
+    File outputDir = tmp.newFolder("out");
+    AgigaConverter converter = new AgigaConverter(true);
+
+    // the first worker gets part way through the file and stops renewing
+    WorkManifest crashed = new WorkManifest(shared, one, "crashed", 60000, 50, 10);
+    LeasedCommunicationSink crashedSink = leasedSink(outputDir);
+    crashed.setLeaseOutput(crashedSink);
+    WorkManifest.Lease stale = crashed.tryClaim(0);
+    AgigaConversionRunner crashedRunner = new AgigaConversionRunner(converter, false, crashedSink);
+    try (AgigaDocumentChunker chunker = new AgigaDocumentChunker(input.getPath())) {
+      Iterator<RawAgigaDocument> docs = chunker.iterator();
+      for (int i = 0; i < 12; i++)
+        crashedRunner.convertDocument(docs.next());
+    }
+    crashed.close();
+    Files.setLastModifiedTime(shared.resolve("leases").resolve("0.lease"),
+        FileTime.fromMillis(System.currentTimeMillis() - 600000));
+
+    WorkManifest other = new WorkManifest(shared, one, "other", 60000, 50, 10);
+    try (LeasedCommunicationSink sink = leasedSink(outputDir)) {
+      other.setLeaseOutput(sink);
+      new AgigaConversionRunner(converter, false, sink).convertAll(other);
+    }
+    other.close();
+    assertTrue(other.isDone(0));
+
+    // the first worker comes back, finds its lease gone and its output unwanted
+    assertFalse(stale.complete());
+    crashedSink.close();
+
+    List<Path> written = streams(outputDir.toPath());
+    for (Path p : written)
+      assertTrue(p + " was left behind", p.getFileName().toString().matches("part-0\\.comms"));
+    try (MappedCommunicationReader reader = new MappedCommunicationReader(written)) {
+      assertEquals(30, reader.getNumRecords());
+      assertEquals("every document appears exactly once", 30, reader.size());
+    }
+  }
+}